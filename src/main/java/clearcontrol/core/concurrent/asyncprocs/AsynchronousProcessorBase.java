@@ -2,19 +2,25 @@ package clearcontrol.core.concurrent.asyncprocs;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
-import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.timing.LatencyHistogram;
 import clearcontrol.core.concurrent.timing.WaitingInterface;
 import clearcontrol.core.log.LoggingFeature;
 
 /**
- * Asynchronous processor base
+ * Asynchronous processor base.
+ * 
+ * Inputs are processed by a dedicated worker thread that parks while the input
+ * queue is empty and is woken up as soon as an input is passed. Each wake-up
+ * drains up to a maximal batch size of inputs. Time spent by inputs waiting in
+ * the queue and time spent processing them are recorded in histograms.
  *
  * @param <I>
  *          input type
@@ -29,15 +35,30 @@ public abstract class AsynchronousProcessorBase<I, O> implements
                                                LoggingFeature,
                                                WaitingInterface
 {
+  private static final long cWorkerParkTimeOutInNanoseconds =
+                                                            TimeUnit.MILLISECONDS.toNanos(100);
 
   private final String mName;
   private AsynchronousProcessorInterface<O, ?> mReceiver;
   private final BlockingQueue<I> mInputQueue;
-  private final AtomicReference<WaitingScheduledFuture<?>> mScheduledFuture =
-                                                                            new AtomicReference<>();
+  private volatile Thread mWorkerThread;
+  private volatile int mMaxBatchSize = 1;
   private final AtomicBoolean mIsProcessing =
                                             new AtomicBoolean(false);
 
+  // All inputs are enqueued and dequeued while holding this lock, this keeps
+  // the ring of enqueue time stamps aligned with the input queue:
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mNotEmpty = mLock.newCondition();
+  private final Condition mNotFull = mLock.newCondition();
+  private final long[] mEnqueueTimeStamps;
+  private int mEnqueueTimeStampsHead, mEnqueueTimeStampsCount;
+
+  private final LatencyHistogram mQueueWaitHistogram =
+                                                     new LatencyHistogram();
+  private final LatencyHistogram mProcessTimeHistogram =
+                                                       new LatencyHistogram();
+
   /**
    * Instanciates a processor given a name and max input queue size.
    * 
@@ -51,10 +72,9 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   {
     super();
     mName = pName;
-    mInputQueue =
-                new ArrayBlockingQueue<I>(pMaxQueueSize <= 0 ? 1
-                                                             : pMaxQueueSize);
-
+    final int lCapacity = pMaxQueueSize <= 0 ? 1 : pMaxQueueSize;
+    mInputQueue = new ArrayBlockingQueue<I>(lCapacity);
+    mEnqueueTimeStamps = new long[lCapacity];
   }
 
   @Override
@@ -68,40 +88,167 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   {
     try
     {
-      final Runnable lRunnable = () -> {
+      if (mWorkerThread != null)
+        return true;
+
+      final Thread lWorkerThread =
+                                 ClearControlExecutors.getThreadFactory("AsynchronousProcessor-"
+                                                                        + mName,
+                                                                        Thread.NORM_PRIORITY)
+                                                      .newThread(this::runWorker);
+      mWorkerThread = lWorkerThread;
+      lWorkerThread.start();
+      signalWaiters();
+
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private void runWorker()
+  {
+    final Thread lThisThread = Thread.currentThread();
+    @SuppressWarnings("unchecked")
+    I[] lBatch = (I[]) new Object[mMaxBatchSize];
 
-        try
+    while (mWorkerThread == lThisThread)
+    {
+      if (lBatch.length != mMaxBatchSize)
+      {
+        @SuppressWarnings("unchecked")
+        I[] lNewBatch = (I[]) new Object[mMaxBatchSize];
+        lBatch = lNewBatch;
+      }
+
+      final int lBatchLength;
+      try
+      {
+        lBatchLength = dequeue(lBatch, lThisThread);
+      }
+      catch (final InterruptedException e)
+      {
+        continue;
+      }
+
+      try
+      {
+        for (int i = 0; i < lBatchLength; i++)
         {
-          final I lInput = mInputQueue.poll(1, TimeUnit.SECONDS);
-          if (lInput == null)
+          try
           {
-            return;
+            final O lOutput = processInput(lBatch[i]);
+            if (lOutput != null)
+            {
+              send(lOutput);
+            }
           }
-          mIsProcessing.set(true);
-          final O lOutput = process(lInput);
-          mIsProcessing.set(false);
-          if (lOutput != null)
+          catch (final Throwable e)
           {
-            send(lOutput);
+            e.printStackTrace();
           }
+          lBatch[i] = null;
         }
-        catch (final Throwable e)
+      }
+      finally
+      {
+        mIsProcessing.set(false);
+        signalWaiters();
+      }
+    }
+  }
+
+  private int dequeue(I[] pBatch,
+                      Thread pWorkerThread) throws InterruptedException
+  {
+    mLock.lock();
+    try
+    {
+      while (mInputQueue.isEmpty())
+      {
+        if (mWorkerThread != pWorkerThread)
+          return 0;
+        mNotEmpty.awaitNanos(cWorkerParkTimeOutInNanoseconds);
+      }
+
+      final long lNow = System.nanoTime();
+      int lBatchLength = 0;
+      I lInput;
+      while (lBatchLength < pBatch.length
+             && (lInput = mInputQueue.poll()) != null)
+      {
+        pBatch[lBatchLength++] = lInput;
+        if (mEnqueueTimeStampsCount > 0)
         {
-          e.printStackTrace();
+          mQueueWaitHistogram.record(lNow
+                                     - mEnqueueTimeStamps[mEnqueueTimeStampsHead]);
+          mEnqueueTimeStampsHead = (mEnqueueTimeStampsHead + 1)
+                                   % mEnqueueTimeStamps.length;
+          mEnqueueTimeStampsCount--;
         }
+      }
+      mIsProcessing.set(lBatchLength > 0);
+      mNotFull.signalAll();
+      return lBatchLength;
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+  }
 
-      };
-
-      mScheduledFuture.set(scheduleAtFixedRate(lRunnable,
-                                               1,
-                                               TimeUnit.NANOSECONDS));
+  private boolean enqueue(final I pObject,
+                          long pTimeOutInNanoseconds) throws InterruptedException
+  {
+    mLock.lock();
+    try
+    {
+      long lRemainingNanoseconds = pTimeOutInNanoseconds;
+      while (!mInputQueue.offer(pObject))
+      {
+        if (lRemainingNanoseconds <= 0)
+          return false;
+        lRemainingNanoseconds =
+                              mNotFull.awaitNanos(lRemainingNanoseconds);
+      }
 
+      if (mEnqueueTimeStampsCount < mEnqueueTimeStamps.length)
+      {
+        mEnqueueTimeStamps[(mEnqueueTimeStampsHead
+                            + mEnqueueTimeStampsCount++)
+                           % mEnqueueTimeStamps.length] =
+                                                        System.nanoTime();
+      }
+      mNotEmpty.signal();
       return true;
     }
-    catch (final Throwable e)
+    finally
     {
-      e.printStackTrace();
-      return false;
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Processes a single input on the worker thread and records the processing
+   * time.
+   * 
+   * @param pInput
+   *          input
+   * @return output or null
+   */
+  protected O processInput(final I pInput)
+  {
+    final long lStart = System.nanoTime();
+    try
+    {
+      return process(pInput);
+    }
+    finally
+    {
+      mProcessTimeHistogram.record(System.nanoTime() - lStart);
     }
   }
 
@@ -114,22 +261,35 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   @Override
   public boolean stop(final long pTimeOut, TimeUnit pTimeUnit)
   {
+    final Thread lWorkerThread = mWorkerThread;
+    if (lWorkerThread == null)
+      return true;
+
+    mWorkerThread = null;
+    mLock.lock();
     try
     {
-      final WaitingScheduledFuture<?> lWaitingScheduledFuture =
-                                                              mScheduledFuture.getAndSet(null);
-      if (lWaitingScheduledFuture != null)
-      {
-        lWaitingScheduledFuture.cancel(false);
-        lWaitingScheduledFuture.waitForCompletion(pTimeOut,
-                                                  pTimeUnit);
-      }
+      mNotEmpty.signalAll();
+    }
+    finally
+    {
+      mLock.unlock();
+    }
+
+    if (lWorkerThread == Thread.currentThread())
       return true;
+
+    try
+    {
+      TimeUnit.NANOSECONDS.timedJoin(lWorkerThread,
+                                     Math.min(pTimeUnit.toNanos(pTimeOut),
+                                              Long.MAX_VALUE / 2));
     }
-    catch (final ExecutionException e)
+    catch (final InterruptedException e)
     {
-      throw new RuntimeException(e);
+      Thread.currentThread().interrupt();
     }
+    return true;
   }
 
   @Override
@@ -146,32 +306,28 @@ public abstract class AsynchronousProcessorBase<I, O> implements
                             final long pTimeOut,
                             TimeUnit pTimeUnit)
   {
-    waitFor(pTimeOut,
-            pTimeUnit,
-            () -> mScheduledFuture.get() != null);
+    waitFor(pTimeOut, pTimeUnit, () -> mWorkerThread != null);
     try
     {
       if (pObject == null)
         return false;
-      mInputQueue.offer(pObject, pTimeOut, pTimeUnit);
+      return enqueue(pObject, pTimeUnit.toNanos(pTimeOut));
     }
     catch (final InterruptedException e)
     {
       return passOrWait(pObject, pTimeOut, pTimeUnit);
     }
-    return false;
   }
 
   @Override
   public boolean passOrWait(final I pObject)
   {
-    waitFor(() -> mScheduledFuture.get() != null);
+    waitFor(() -> mWorkerThread != null);
     try
     {
       if (pObject == null)
         return false;
-      mInputQueue.put(pObject);
-      return true;
+      return enqueue(pObject, Long.MAX_VALUE);
     }
     catch (final InterruptedException e)
     {
@@ -183,15 +339,65 @@ public abstract class AsynchronousProcessorBase<I, O> implements
   @Override
   public boolean passOrFail(final I pObject)
   {
-    if (mScheduledFuture.get() == null)
+    if (mWorkerThread == null)
     {
       return false;
     }
 
-    if (pObject != null)
-      return mInputQueue.offer(pObject);
-    else
+    try
+    {
+      if (pObject != null)
+        return enqueue(pObject, 0);
+      else
+        return false;
+    }
+    catch (final InterruptedException e)
+    {
       return false;
+    }
+  }
+
+  /**
+   * Sets the maximal number of inputs taken from the input queue and processed
+   * per wake-up of the worker thread.
+   * 
+   * @param pMaxBatchSize
+   *          max batch size, at least 1
+   */
+  public void setMaxBatchSize(int pMaxBatchSize)
+  {
+    mMaxBatchSize = Math.max(1, pMaxBatchSize);
+  }
+
+  /**
+   * Returns the maximal number of inputs processed per wake-up of the worker
+   * thread.
+   * 
+   * @return max batch size
+   */
+  public int getMaxBatchSize()
+  {
+    return mMaxBatchSize;
+  }
+
+  /**
+   * Returns the histogram of times spent by inputs waiting in the input queue.
+   * 
+   * @return queue wait histogram
+   */
+  public LatencyHistogram getQueueWaitHistogram()
+  {
+    return mQueueWaitHistogram;
+  }
+
+  /**
+   * Returns the histogram of times spent processing inputs.
+   * 
+   * @return process time histogram
+   */
+  public LatencyHistogram getProcessTimeHistogram()
+  {
+    return mProcessTimeHistogram;
   }
 
   @Override
@@ -205,6 +411,12 @@ public abstract class AsynchronousProcessorBase<I, O> implements
     }
   }
 
+  /**
+   * Returns the input queue. Inputs should only be passed through the passOrWait
+   * and passOrFail methods, otherwise their queue wait is not recorded.
+   * 
+   * @return input queue
+   */
   protected BlockingQueue<I> getInputQueue()
   {
     return mInputQueue;
@@ -3,16 +3,28 @@ package clearcontrol.core.concurrent.asyncprocs;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
 import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.concurrent.executors.CompletingThreadPoolExecutor;
+import clearcontrol.core.concurrent.timing.LatencyHistogram;
 import clearcontrol.core.log.LoggingFeature;
 
 /**
- * Asynchronous processor pool
+ * Asynchronous processor pool.
+ * 
+ * Inputs are processed in parallel by a pool of threads. By default results are
+ * sent strictly in input order: results completed ahead of earlier inputs are
+ * held in a bounded reorder buffer, and pool threads finishing too far ahead of
+ * the oldest pending input wait (reorder stall) until it completes. Results are
+ * sent outside of the reorder lock by one pool thread at a time, so that a slow
+ * consumer does not hold up the other pool threads. Results can also be sent
+ * as soon as they are available, in completion order.
  *
  * @param <I>
  *          input type
@@ -31,6 +43,24 @@ public class AsynchronousProcessorPool<I, O> extends
 
   private final ProcessorInterface<I, O> mProcessor;
   private CompletingThreadPoolExecutor mThreadPoolExecutor;
+  private volatile Thread mCollectorThread;
+
+  private final Semaphore mSubmissionPermits;
+
+  private volatile boolean mOrderedOutput = true;
+  private final ReentrantLock mReorderLock = new ReentrantLock();
+  private final Condition mReorderSlotFreed = mReorderLock.newCondition();
+  private Object[] mReorderBuffer;
+  private boolean[] mReorderBufferReady;
+  private long mNextInputSequence, mNextOutputSequence;
+  private int mNumberOfHeldResults;
+
+  // true while a pool thread sends results, only that thread uses the send
+  // batch:
+  private boolean mSending;
+  private Object[] mSendBatch;
+  private final LatencyHistogram mReorderStallHistogram =
+                                                        new LatencyHistogram();
 
   /**
    * Instanciates an asynchronous processor pool given a name, max input queue
@@ -59,6 +89,10 @@ public class AsynchronousProcessorPool<I, O> extends
                                                                             pMaxQueueSize);
 
     mProcessor = pProcessor;
+    // bounds pending tasks by the executor's queue capacity so that the
+    // executor never rejects any:
+    mSubmissionPermits = new Semaphore(pMaxQueueSize);
+    setMaxOutOfOrderResults(2 * pThreadPoolSize);
   }
 
   /**
@@ -85,39 +119,51 @@ public class AsynchronousProcessorPool<I, O> extends
   @Override
   public boolean start()
   {
-    final Runnable lRunnable = () -> {
+    if (mCollectorThread == null)
+    {
+      final Thread lCollectorThread =
+                                    ClearControlExecutors.getThreadFactory("AsynchronousProcessorPoolCollector",
+                                                                           Thread.NORM_PRIORITY)
+                                                         .newThread(this::runCollector);
+      mCollectorThread = lCollectorThread;
+      lCollectorThread.start();
+    }
+
+    return super.start();
+  }
+
+  private void runCollector()
+  {
+    final Thread lThisThread = Thread.currentThread();
+    while (mCollectorThread == lThisThread)
+    {
       try
       {
-
-        @SuppressWarnings("unchecked")
-        final Future<O> lFuture =
-                                (Future<O>) mThreadPoolExecutor.getFutur(1,
-                                                                         TimeUnit.NANOSECONDS);
+        // parks until a task is submitted, results themselves are sent by the
+        // pool threads, this only reports failures:
+        final Future<?> lFuture =
+                                mThreadPoolExecutor.getFutur(100,
+                                                             TimeUnit.MILLISECONDS);
         if (lFuture != null)
-        {
-          final O lResult = lFuture.get();
-          send(lResult);
-        }
+          lFuture.get();
       }
       catch (final InterruptedException e)
       {
-        return;
+        continue;
       }
       catch (final ExecutionException e)
       {
         e.printStackTrace();
       }
-    };
-
-    scheduleAtFixedRate(lRunnable, 1, TimeUnit.NANOSECONDS);
-
-    return super.start();
+    }
   }
 
   @Override
   public boolean stop(final long pTimeOut, TimeUnit pTimeUnit)
   {
-    return super.stop(pTimeOut, pTimeUnit);
+    final boolean lStopped = super.stop(pTimeOut, pTimeUnit);
+    mCollectorThread = null;
+    return lStopped;
   }
 
   @Override
@@ -139,14 +185,239 @@ public class AsynchronousProcessorPool<I, O> extends
 
   }
 
+  @Override
+  protected O processInput(final I pInput)
+  {
+    // processing time is recorded by the pool threads:
+    return process(pInput);
+  }
+
   @Override
   public final O process(final I pInput)
   {
+    // waits for room in the executor, this blocks the worker thread and thus
+    // propagates back pressure to the input queue:
+    mSubmissionPermits.acquireUninterruptibly();
+
+    // called from the single worker thread, sequences follow input order:
+    final long lSequence = mNextInputSequence++;
     final Callable<O> lCallable = () -> {
-      return mProcessor.process(pInput);
+      O lResult = null;
+      final long lStart = System.nanoTime();
+      try
+      {
+        lResult = mProcessor.process(pInput);
+        return null;
+      }
+      finally
+      {
+        getProcessTimeHistogram().record(System.nanoTime() - lStart);
+        try
+        {
+          complete(lSequence, lResult);
+        }
+        finally
+        {
+          mSubmissionPermits.release();
+        }
+      }
     };
     mThreadPoolExecutor.submit(lCallable);
     return null;
   }
 
+  private void complete(long pSequence, O pResult)
+  {
+    if (!mOrderedOutput)
+    {
+      if (pResult != null)
+        send(pResult);
+      return;
+    }
+
+    Object[] lBatch;
+    int lBatchLength;
+    mReorderLock.lock();
+    try
+    {
+      final int lCapacity = mReorderBuffer.length;
+      if (pSequence - mNextOutputSequence >= lCapacity)
+      {
+        final long lStallStart = System.nanoTime();
+        while (pSequence - mNextOutputSequence >= lCapacity)
+          mReorderSlotFreed.awaitUninterruptibly();
+        mReorderStallHistogram.record(System.nanoTime() - lStallStart);
+      }
+
+      final int lSlot = (int) (pSequence % lCapacity);
+      mReorderBuffer[lSlot] = pResult;
+      mReorderBufferReady[lSlot] = true;
+      mNumberOfHeldResults++;
+
+      // the thread currently sending results will send this one too:
+      if (mSending)
+        return;
+      lBatch = mSendBatch;
+      lBatchLength = takeReadyResults(lBatch);
+      if (lBatchLength == 0)
+        return;
+      mSending = true;
+    }
+    finally
+    {
+      mReorderLock.unlock();
+    }
+
+    // sends runs of consecutive results, in order, until none is ready:
+    while (lBatchLength > 0)
+    {
+      for (int i = 0; i < lBatchLength; i++)
+      {
+        @SuppressWarnings("unchecked")
+        final O lResult = (O) lBatch[i];
+        lBatch[i] = null;
+        if (lResult != null)
+        {
+          try
+          {
+            send(lResult);
+          }
+          catch (final Throwable e)
+          {
+            e.printStackTrace();
+          }
+        }
+      }
+
+      mReorderLock.lock();
+      try
+      {
+        lBatch = mSendBatch;
+        lBatchLength = takeReadyResults(lBatch);
+        if (lBatchLength == 0)
+          mSending = false;
+      }
+      finally
+      {
+        mReorderLock.unlock();
+      }
+    }
+  }
+
+  // Moves all consecutive results available from the oldest pending input on
+  // to the given batch, called with the reorder lock held:
+  private int takeReadyResults(Object[] pBatch)
+  {
+    final int lCapacity = mReorderBuffer.length;
+    int lBatchLength = 0;
+    int lHead;
+    while (mReorderBufferReady[lHead = (int) (mNextOutputSequence
+                                              % lCapacity)])
+    {
+      pBatch[lBatchLength++] = mReorderBuffer[lHead];
+      mReorderBuffer[lHead] = null;
+      mReorderBufferReady[lHead] = false;
+      mNumberOfHeldResults--;
+      mNextOutputSequence++;
+    }
+    if (lBatchLength > 0)
+      mReorderSlotFreed.signalAll();
+    return lBatchLength;
+  }
+
+  /**
+   * Sets whether results are sent in input order, or as soon as available.
+   * 
+   * @param pOrderedOutput
+   *          true for input order, false for completion order
+   */
+  public void setOrderedOutput(boolean pOrderedOutput)
+  {
+    mOrderedOutput = pOrderedOutput;
+  }
+
+  /**
+   * Returns true if results are sent in input order.
+   * 
+   * @return true for input order, false for completion order
+   */
+  public boolean isOrderedOutput()
+  {
+    return mOrderedOutput;
+  }
+
+  /**
+   * Sets the maximal number of results that can be held in the reorder buffer
+   * while waiting for earlier inputs to complete. This must be set while no
+   * input is being processed.
+   * 
+   * @param pMaxOutOfOrderResults
+   *          max number of out of order results, at least 1
+   */
+  public void setMaxOutOfOrderResults(int pMaxOutOfOrderResults)
+  {
+    mReorderLock.lock();
+    try
+    {
+      if (mNumberOfHeldResults > 0 || mSending)
+        throw new IllegalStateException("Cannot resize reorder buffer while it holds results");
+      final int lCapacity = Math.max(1, pMaxOutOfOrderResults);
+      mReorderBuffer = new Object[lCapacity];
+      mReorderBufferReady = new boolean[lCapacity];
+      mSendBatch = new Object[lCapacity];
+    }
+    finally
+    {
+      mReorderLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the maximal number of results that can be held in the reorder
+   * buffer.
+   * 
+   * @return max number of out of order results
+   */
+  public int getMaxOutOfOrderResults()
+  {
+    mReorderLock.lock();
+    try
+    {
+      return mReorderBuffer.length;
+    }
+    finally
+    {
+      mReorderLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of results currently held in the reorder buffer.
+   * 
+   * @return number of held results
+   */
+  public int getNumberOfHeldResults()
+  {
+    mReorderLock.lock();
+    try
+    {
+      return mNumberOfHeldResults;
+    }
+    finally
+    {
+      mReorderLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the histogram of times spent by pool threads waiting for room in
+   * the reorder buffer.
+   * 
+   * @return reorder stall histogram
+   */
+  public LatencyHistogram getReorderStallHistogram()
+  {
+    return mReorderStallHistogram;
+  }
+
 }
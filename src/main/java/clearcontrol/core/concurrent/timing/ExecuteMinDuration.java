@@ -2,6 +2,8 @@ package clearcontrol.core.concurrent.timing;
 
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.core.concurrent.thread.ThreadSleep;
+
 /**
  * Executes a runnable synchronously and ensures that the call lasts for a given
  * duration.
@@ -27,6 +29,8 @@ public class ExecuteMinDuration
   {
     long lDeadlineTime = System.nanoTime() + pTimeUnit.toNanos(pTime);
     pRunnable.run();
-    WaitingInterface.waitForStatic(() -> System.nanoTime() >= lDeadlineTime);
+    long lRemainingTime = lDeadlineTime - System.nanoTime();
+    if (lRemainingTime > 0)
+      ThreadSleep.sleep(lRemainingTime, TimeUnit.NANOSECONDS);
   }
 }
@@ -0,0 +1,135 @@
+package clearcontrol.core.concurrent.timing;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, allocation-free histogram of durations in nanoseconds. Durations
+ * are counted in power-of-two buckets: bucket i counts durations d such that
+ * 2^(i-1) &lt;= d &lt; 2^i, percentiles are therefore resolved within a factor
+ * of two.
+ *
+ * @author royer
+ */
+public class LatencyHistogram
+{
+  private static final int cNumberOfBuckets = 64;
+
+  private final AtomicLongArray mBuckets =
+                                         new AtomicLongArray(cNumberOfBuckets);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSumInNanoseconds = new AtomicLong();
+  private final AtomicLong mMaxInNanoseconds = new AtomicLong();
+
+  /**
+   * Records a duration
+   *
+   * @param pDurationInNanoseconds
+   *          duration in nanoseconds, negative durations count as zero
+   */
+  public void record(long pDurationInNanoseconds)
+  {
+    final long lDuration = Math.max(0, pDurationInNanoseconds);
+    mBuckets.incrementAndGet(getBucketIndex(lDuration));
+    mCount.incrementAndGet();
+    mSumInNanoseconds.addAndGet(lDuration);
+    mMaxInNanoseconds.accumulateAndGet(lDuration, Math::max);
+  }
+
+  private static int getBucketIndex(long pDuration)
+  {
+    return Math.min(cNumberOfBuckets - 1,
+                    64 - Long.numberOfLeadingZeros(pDuration));
+  }
+
+  /**
+   * Returns the number of recorded durations
+   *
+   * @return number of recorded durations
+   */
+  public long getCount()
+  {
+    return mCount.get();
+  }
+
+  /**
+   * Returns the mean recorded duration
+   *
+   * @return mean duration in nanoseconds, 0 if nothing was recorded
+   */
+  public double getMeanInNanoseconds()
+  {
+    final long lCount = mCount.get();
+    return lCount == 0 ? 0 : ((double) mSumInNanoseconds.get()) / lCount;
+  }
+
+  /**
+   * Returns the longest recorded duration
+   *
+   * @return max duration in nanoseconds
+   */
+  public long getMaxInNanoseconds()
+  {
+    return mMaxInNanoseconds.get();
+  }
+
+  /**
+   * Returns an upper bound for a given percentile of the recorded durations.
+   *
+   * @param pPercentile
+   *          percentile within [0,100]
+   * @return upper bound in nanoseconds of the bucket containing the percentile
+   */
+  public long getPercentileInNanoseconds(double pPercentile)
+  {
+    final long lCount = mCount.get();
+    if (lCount == 0)
+      return 0;
+
+    final long lRank = (long) Math.ceil(lCount * pPercentile / 100);
+    long lAccumulated = 0;
+    for (int i = 0; i < cNumberOfBuckets; i++)
+    {
+      lAccumulated += mBuckets.get(i);
+      if (lAccumulated >= lRank && lAccumulated > 0)
+        return Math.min(getMaxInNanoseconds(),
+                        i == 0 ? 0 : (1L << Math.min(62, i)) - 1);
+    }
+    return getMaxInNanoseconds();
+  }
+
+  /**
+   * Returns the number of durations counted in a given bucket
+   *
+   * @param pBucketIndex
+   *          bucket index within [0,63]
+   * @return count
+   */
+  public long getBucketCount(int pBucketIndex)
+  {
+    return mBuckets.get(pBucketIndex);
+  }
+
+  /**
+   * Clears all recorded durations
+   */
+  public void reset()
+  {
+    for (int i = 0; i < cNumberOfBuckets; i++)
+      mBuckets.set(i, 0);
+    mCount.set(0);
+    mSumInNanoseconds.set(0);
+    mMaxInNanoseconds.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("LatencyHistogram [count=%d, mean=%.1f us, p50<=%.1f us, p99<=%.1f us, max=%.1f us]",
+                         getCount(),
+                         getMeanInNanoseconds() * 1e-3,
+                         getPercentileInNanoseconds(50) * 1e-3,
+                         getPercentileInNanoseconds(99) * 1e-3,
+                         getMaxInNanoseconds() * 1e-3);
+  }
+}
@@ -2,12 +2,14 @@ package clearcontrol.core.concurrent.timing;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
-import clearcontrol.core.concurrent.thread.ThreadSleep;
 
 /**
- *
+ * Interface for objects on which conditions can be waited for. Waiting threads
+ * park until the object signals a state change with signalWaiters(), or until a
+ * time out measured against System.nanoTime() expires. Objects that do not
+ * signal their state changes are still polled every millisecond. Interrupting
+ * a waiting thread does not end its wait, its interrupt status is set again
+ * when the wait returns.
  *
  * @author royer
  */
@@ -41,10 +43,17 @@ public interface WaitingInterface
                                  TimeUnit pTimeUnit,
                                  Callable<Boolean> pCallable)
   {
-    synchronized (this)
-    {
-      return waitForStatic(pTimeOut, pTimeUnit, pCallable);
-    }
+    return waitForStatic(this, pTimeOut, pTimeUnit, pCallable);
+  }
+
+  /**
+   * Wakes up all threads currently waiting for a condition on this object, so
+   * that they re-evaluate it. Implementations should call this whenever state
+   * that waiters may depend on changes.
+   */
+  default public void signalWaiters()
+  {
+    WaitingSignals.signal(this);
   }
 
   /**
@@ -73,24 +82,50 @@ public interface WaitingInterface
   public static Boolean waitForStatic(Long pTimeOut,
                                       TimeUnit pTimeUnit,
                                       Callable<Boolean> pCallable)
+  {
+    return waitForStatic(null, pTimeOut, pTimeUnit, pCallable);
+  }
+
+  /**
+   * Waits until call to Callable returns true, waking up whenever a given
+   * object signals waiters. Static version.
+   * 
+   * @param pObject
+   *          object signaling state changes, or null
+   * @param pTimeOut
+   *          time out
+   * @param pTimeUnit
+   *          time out unit
+   * @param pCallable
+   *          callable returning boolean state
+   * @return last boolean state returned
+   */
+  public static Boolean waitForStatic(Object pObject,
+                                      Long pTimeOut,
+                                      TimeUnit pTimeUnit,
+                                      Callable<Boolean> pCallable)
   {
     try
     {
-      AtomicLong lCounter = new AtomicLong();
-      long lTimeOutInMillis =
-                            pTimeUnit == null ? 0
-                                              : pTimeUnit.toMillis(pTimeOut);
-      while (!pCallable.call()
-             && (pTimeOut == null
-                 || lCounter.incrementAndGet() < lTimeOutInMillis))
-      {
-        ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
-      }
-      return pCallable.call();
+      return WaitingSignals.await(pObject,
+                                  pTimeOut,
+                                  pTimeUnit,
+                                  pCallable);
     }
     catch (Exception e)
     {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * Wakes up all threads waiting for a condition on a given object.
+   * 
+   * @param pObject
+   *          object
+   */
+  public static void signalWaiters(Object pObject)
+  {
+    WaitingSignals.signal(pObject);
+  }
 }
@@ -0,0 +1,98 @@
+package clearcontrol.core.concurrent.timing;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Registry of threads waiting for conditions on given objects. Waiting threads
+ * park until the object they wait on is signaled, or until a polling period
+ * elapses for objects that never signal their state changes.
+ *
+ * @author royer
+ */
+final class WaitingSignals
+{
+  /**
+   * Waiting threads re-evaluate their condition at least at this period, even
+   * if not signaled.
+   */
+  static final long cPollingPeriodInNanoseconds =
+                                                TimeUnit.MILLISECONDS.toNanos(1);
+
+  // weak keys are compared by identity:
+  private static final ConcurrentMap<Object, ConcurrentLinkedQueue<Thread>> cWaitingThreadsMap =
+                                                                                              new MapMaker().weakKeys()
+                                                                                                            .makeMap();
+
+  private WaitingSignals()
+  {
+  }
+
+  static Boolean await(Object pObject,
+                       Long pTimeOut,
+                       TimeUnit pTimeUnit,
+                       Callable<Boolean> pCallable) throws Exception
+  {
+    if (pCallable.call())
+      return true;
+
+    // toNanos saturates, very long time outs are effectively infinite:
+    final long lTimeOutInNanoseconds =
+                                     pTimeOut == null ? Long.MAX_VALUE
+                                                      : pTimeUnit == null ? 0
+                                                                          : pTimeUnit.toNanos(pTimeOut);
+    final long lStartTime = System.nanoTime();
+
+    ConcurrentLinkedQueue<Thread> lWaitingThreads = null;
+    if (pObject != null)
+    {
+      lWaitingThreads =
+                      cWaitingThreadsMap.computeIfAbsent(pObject,
+                                                         (o) -> new ConcurrentLinkedQueue<>());
+      lWaitingThreads.add(Thread.currentThread());
+    }
+
+    boolean lInterrupted = false;
+    try
+    {
+      while (!pCallable.call())
+      {
+        final long lRemaining = lTimeOutInNanoseconds
+                                - (System.nanoTime() - lStartTime);
+        if (lRemaining <= 0)
+          break;
+        LockSupport.parkNanos(pObject,
+                              Math.min(lRemaining,
+                                       cPollingPeriodInNanoseconds));
+
+        // As before, interrupts do not cut waits short. The interrupt status
+        // is cleared so that parking does not spin, and restored once done:
+        if (Thread.interrupted())
+          lInterrupted = true;
+      }
+      return pCallable.call();
+    }
+    finally
+    {
+      if (lWaitingThreads != null)
+        lWaitingThreads.remove(Thread.currentThread());
+      if (lInterrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  static void signal(Object pObject)
+  {
+    final ConcurrentLinkedQueue<Thread> lWaitingThreads =
+                                                        cWaitingThreadsMap.get(pObject);
+    if (lWaitingThreads == null)
+      return;
+    for (Thread lThread : lWaitingThreads)
+      LockSupport.unpark(lThread);
+  }
+}
@@ -1,5 +1,6 @@
 package clearcontrol.core.device.queue;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 /**
@@ -20,6 +21,22 @@ public interface QueueDeviceInterface<Q extends QueueInterface>
    */
   Q requestQueue();
 
+  /**
+   * Prepares a state queue for playback ahead of time, for example by
+   * compiling it while the previous queue is still playing. Queues must then be
+   * played in the order they were prepared. Playing a queue that was not
+   * prepared prepares it first. By default nothing needs to be prepared.
+   * 
+   * @param pQueue
+   *          queue to prepare
+   * 
+   * @return future that represents the preparation of the queue.
+   */
+  default Future<Boolean> prepareQueue(Q pQueue)
+  {
+    return CompletableFuture.completedFuture(true);
+  }
+
   /**
    * Plays back a state queue.
    * 
@@ -1,7 +1,10 @@
 package clearcontrol.core.device.queue;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import clearcontrol.core.variable.Variable;
@@ -12,12 +15,25 @@ import org.apache.commons.math3.analysis.UnivariateFunction;
  * The state of variables register to instances of this class can be recorded
  * into queues.
  *
+ * Queued states are stored column-wise, one column per variable: Double, Long
+ * and Boolean values are stored unboxed in growing double[], long[] and BitSet
+ * columns, other values in growing Object[] columns. Columns keep their
+ * capacity when the queue is cleared, so that building queues of recurring
+ * lengths does not allocate. Queued states can be read back without copying
+ * through primitive accessors and read-only list views.
+ *
  * @author royer
  */
 public class VariableQueueBase implements QueueInterface, Cloneable
 {
-  private ConcurrentHashMap<Variable<?>, ArrayList<Object>> mVariablesToQueueListsMap =
-                                                                                      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Variable<?>, StateColumn> mVariablesToColumnsMap =
+                                                                                   new ConcurrentHashMap<>();
+
+  // variables and their columns in registration order:
+  private final ArrayList<Variable<?>> mVariableList = new ArrayList<>();
+  private final ArrayList<StateColumn> mColumnList = new ArrayList<>();
+
+  private volatile int mQueueLength;
 
   private Object mLock = new Object();
 
@@ -31,7 +47,7 @@ public class VariableQueueBase implements QueueInterface, Cloneable
 
   /**
    * Instanciates a copy of this variable state queue object.
-   * 
+   *
    * @param pVariableStateQueues
    *          state queues object to copy.
    */
@@ -41,15 +57,18 @@ public class VariableQueueBase implements QueueInterface, Cloneable
 
     synchronized (pVariableStateQueues.mLock)
     {
-      for (Entry<Variable<?>, ArrayList<Object>> lEntrySet : pVariableStateQueues.mVariablesToQueueListsMap.entrySet())
+      final int lNumberOfVariables =
+                                   pVariableStateQueues.mVariableList.size();
+      for (int i = 0; i < lNumberOfVariables; i++)
       {
-        Variable<?> lVariable = lEntrySet.getKey();
+        Variable<?> lVariable = pVariableStateQueues.mVariableList.get(i);
 
-        ArrayList<Object> lQueueStatesList =
-                                           new ArrayList<>(lEntrySet.getValue());
+        StateColumn lColumn =
+                            new StateColumn(pVariableStateQueues.mColumnList.get(i));
 
-        mVariablesToQueueListsMap.put(lVariable, lQueueStatesList);
+        putColumn(lVariable, lColumn);
       }
+      mQueueLength = pVariableStateQueues.mQueueLength;
     }
 
   }
@@ -62,7 +81,7 @@ public class VariableQueueBase implements QueueInterface, Cloneable
 
   /**
    * Register a list of variables with normal queueing mode.
-   * 
+   *
    * @param pVariables
    *          var arg list of variables to register
    */
@@ -76,7 +95,7 @@ public class VariableQueueBase implements QueueInterface, Cloneable
 
   /**
    * Register a variable.
-   * 
+   *
    * @param pVariable
    *          variable
    */
@@ -84,15 +103,41 @@ public class VariableQueueBase implements QueueInterface, Cloneable
   {
     synchronized (mLock)
     {
-      ArrayList<Object> lPair = new ArrayList<Object>();
-      mVariablesToQueueListsMap.put(pVariable, lPair);
+      putColumn(pVariable, new StateColumn());
     }
   }
 
+  private void putColumn(Variable<?> pVariable, StateColumn pColumn)
+  {
+    final StateColumn lPreviousColumn =
+                                      mVariablesToColumnsMap.put(pVariable,
+                                                                 pColumn);
+    if (lPreviousColumn == null)
+    {
+      mVariableList.add(pVariable);
+      mColumnList.add(pColumn);
+    }
+    else
+    {
+      final int lIndex = mColumnList.indexOf(lPreviousColumn);
+      mVariableList.set(lIndex, pVariable);
+      mColumnList.set(lIndex, pColumn);
+    }
+  }
+
+  private StateColumn getColumn(Variable<?> pVariable)
+  {
+    final StateColumn lColumn = mVariablesToColumnsMap.get(pVariable);
+    if (lColumn == null)
+      throw new IllegalArgumentException("Variable not registered: "
+                                         + pVariable.getName());
+    return lColumn;
+  }
+
   /**
    * Returns the boolean value of a given variable at a given position of the
    * queue.
-   * 
+   *
    * @param pVariable
    *          variable
    * @param pQueuePositionIndex
@@ -104,14 +149,13 @@ public class VariableQueueBase implements QueueInterface, Cloneable
 
   {
     Boolean lValue =
-                   (Boolean) mVariablesToQueueListsMap.get(pVariable)
-                                                      .get(pQueuePositionIndex);
+                   (Boolean) getColumn(pVariable).get(pQueuePositionIndex);
     return lValue;
   }
 
   /**
    * Returns the value of a given variable at a given position of the queue.
-   * 
+   *
    * @param pVariable
    *          variable
    * @param pQueuePositionIndex
@@ -122,16 +166,14 @@ public class VariableQueueBase implements QueueInterface, Cloneable
                                int pQueuePositionIndex)
 
   {
-    Number lValue =
-                  (Number) mVariablesToQueueListsMap.get(pVariable)
-                                                    .get(pQueuePositionIndex);
+    Number lValue = (Number) getColumn(pVariable).get(pQueuePositionIndex);
     return lValue;
   }
 
   /**
    * Returns the value of a given variable at a given position of the queue
    * after transforming with a given univariate function.
-   * 
+   *
    * @param pFunction
    *          univariate function
    * @param pVariable
@@ -145,26 +187,99 @@ public class VariableQueueBase implements QueueInterface, Cloneable
                                int pQueuePositionIndex)
 
   {
-    Number lValue = getQueuedValue(pVariable, pQueuePositionIndex);
-    Number lTransformedValue = pFunction.value(lValue.doubleValue());
+    double lValue = getQueuedDoubleValue(pVariable, pQueuePositionIndex);
+    Number lTransformedValue = pFunction.value(lValue);
     return lTransformedValue;
   }
 
+  /**
+   * Returns the value of a given numeric or boolean variable at a given
+   * position of the queue as a double, without boxing.
+   *
+   * @param pVariable
+   *          variable
+   * @param pQueuePositionIndex
+   *          position in queue
+   * @return value
+   */
+  public double getQueuedDoubleValue(Variable<?> pVariable,
+                                     int pQueuePositionIndex)
+  {
+    return getColumn(pVariable).getDouble(pQueuePositionIndex);
+  }
+
+  /**
+   * Returns the value of a given numeric or boolean variable at a given
+   * position of the queue as a long, without boxing.
+   *
+   * @param pVariable
+   *          variable
+   * @param pQueuePositionIndex
+   *          position in queue
+   * @return value
+   */
+  public long getQueuedLongValue(Variable<?> pVariable,
+                                 int pQueuePositionIndex)
+  {
+    return getColumn(pVariable).getLong(pQueuePositionIndex);
+  }
+
+  /**
+   * Returns the number of positions of the queue at which a given boolean
+   * variable is true.
+   *
+   * @param pVariable
+   *          boolean variable
+   * @return number of true values
+   */
+  public int getNumberOfTrueValues(Variable<Boolean> pVariable)
+  {
+    return getColumn(pVariable).countTrue();
+  }
+
   /**
    * Returns the list of states from the current queue of a given variable. This
    * is an actual copy of the original list of states, this means that it is not
    * altered by subsequent clearing or modifications of the state queue.
-   * 
+   *
    * @param pVariable
    *          variable
    * @return state queue as list
    */
   public <T> ArrayList<T> getVariableQueue(Variable<T> pVariable)
   {
-    @SuppressWarnings("unchecked")
-    ArrayList<T> lArrayList =
-                            (ArrayList<T>) new ArrayList<>(mVariablesToQueueListsMap.get(pVariable));
-    return lArrayList;
+    return new ArrayList<>(getVariableQueueView(pVariable));
+  }
+
+  /**
+   * Returns a read-only view of the states from the current queue of a given
+   * variable. Contrary to getVariableQueue(...), nothing is copied: the view
+   * reflects subsequent clearing or modifications of the state queue. Numeric
+   * values are boxed on each access to the view, hot paths should use
+   * getQueuedDoubleValue(...) or getQueuedLongValue(...) instead.
+   *
+   * @param pVariable
+   *          variable
+   * @return read-only state queue view
+   */
+  public <T> List<T> getVariableQueueView(Variable<T> pVariable)
+  {
+    final StateColumn lColumn = getColumn(pVariable);
+    return new AbstractList<T>()
+    {
+      @SuppressWarnings("unchecked")
+      @Override
+      public T get(int pIndex)
+      {
+        return (T) lColumn.get(pIndex);
+      }
+
+      @Override
+      public int size()
+      {
+        return lColumn.size();
+      }
+    };
   }
 
   /**
@@ -172,7 +287,7 @@ public class VariableQueueBase implements QueueInterface, Cloneable
    * transforming these values using the given univariate function. This is an
    * actual copy of the original list of states, this means that it is not
    * altered by subsequent clearing or modifications of the state queue.
-   * 
+   *
    * @param pFunction
    *          function to apply to each enqueued state value
    * @param pValueVariable
@@ -184,20 +299,20 @@ public class VariableQueueBase implements QueueInterface, Cloneable
   {
     ArrayList<Number> lTransformedValueList = new ArrayList<Number>();
 
-    ArrayList<Object> lStateList =
-                                 mVariablesToQueueListsMap.get(pValueVariable);
+    StateColumn lStateColumn = getColumn(pValueVariable);
 
-    if (lStateList.size() == 0)
+    final int lSize = lStateColumn.size();
+    if (lSize == 0)
       return lTransformedValueList;
 
-    if (!(lStateList.get(0) instanceof Number))
+    if (!lStateColumn.isNumeric())
       throw new IllegalArgumentException("Should be a variable of type Number");
 
-    for (Object lObject : lStateList)
+    lTransformedValueList.ensureCapacity(lSize);
+    for (int i = 0; i < lSize; i++)
     {
-      Number lNumber = (Number) lObject;
       double lTransformedValue =
-                               pFunction.value(lNumber.doubleValue());
+                               pFunction.value(lStateColumn.getDouble(i));
       lTransformedValueList.add(lTransformedValue);
     }
 
@@ -209,10 +324,11 @@ public class VariableQueueBase implements QueueInterface, Cloneable
   {
     synchronized (mLock)
     {
-      for (ArrayList<Object> lStateList : mVariablesToQueueListsMap.values())
+      for (int i = 0; i < mColumnList.size(); i++)
       {
-        lStateList.clear();
+        mColumnList.get(i).clear();
       }
+      mQueueLength = 0;
     }
   }
 
@@ -221,15 +337,12 @@ public class VariableQueueBase implements QueueInterface, Cloneable
   {
     synchronized (mLock)
     {
-      for (Entry<Variable<?>, ArrayList<Object>> lEntrySet : mVariablesToQueueListsMap.entrySet())
+      for (int i = 0; i < mVariableList.size(); i++)
       {
-        Variable<?> lVariable = lEntrySet.getKey();
-        Object lCurrentValue = lVariable.get();
-
-        ArrayList<Object> lStateList = lEntrySet.getValue();
-
-        lStateList.add(lCurrentValue);
+        Object lCurrentValue = mVariableList.get(i).peek();
+        mColumnList.get(i).add(lCurrentValue);
       }
+      mQueueLength++;
     }
   }
 
@@ -242,12 +355,231 @@ public class VariableQueueBase implements QueueInterface, Cloneable
   @Override
   public int getQueueLength()
   {
-    synchronized (mLock)
+    return mQueueLength;
+  }
+
+  /**
+   * Column of queued states of a single variable. The column starts typed
+   * after the first value added and falls back to storing objects as soon as
+   * a value of a different type is added.
+   */
+  private static final class StateColumn
+  {
+    private static final int cInitialCapacity = 16;
+
+    private static final int cEmpty = 0, cDouble = 1, cLong = 2,
+        cBoolean = 3, cObject = 4;
+
+    private int mKind = cEmpty;
+    private int mSize;
+
+    private double[] mDoubles;
+    private long[] mLongs;
+    private BitSet mBooleans;
+    private Object[] mObjects;
+
+    StateColumn()
+    {
+      super();
+    }
+
+    StateColumn(StateColumn pStateColumn)
+    {
+      super();
+      mKind = pStateColumn.mKind;
+      mSize = pStateColumn.mSize;
+      if (pStateColumn.mDoubles != null)
+        mDoubles = Arrays.copyOf(pStateColumn.mDoubles,
+                                 pStateColumn.mDoubles.length);
+      if (pStateColumn.mLongs != null)
+        mLongs = Arrays.copyOf(pStateColumn.mLongs,
+                               pStateColumn.mLongs.length);
+      if (pStateColumn.mBooleans != null)
+        mBooleans = (BitSet) pStateColumn.mBooleans.clone();
+      if (pStateColumn.mObjects != null)
+        mObjects = Arrays.copyOf(pStateColumn.mObjects,
+                                 pStateColumn.mObjects.length);
+    }
+
+    private static int kindOf(Object pValue)
+    {
+      if (pValue instanceof Double)
+        return cDouble;
+      else if (pValue instanceof Long)
+        return cLong;
+      else if (pValue instanceof Boolean)
+        return cBoolean;
+      return cObject;
+    }
+
+    int size()
+    {
+      return mSize;
+    }
+
+    boolean isNumeric()
+    {
+      if (mKind == cDouble || mKind == cLong)
+        return true;
+      return mKind == cObject && mSize > 0
+             && mObjects[0] instanceof Number;
+    }
+
+    void clear()
+    {
+      if (mObjects != null)
+        Arrays.fill(mObjects, 0, mSize, null);
+      if (mBooleans != null)
+        mBooleans.clear();
+      mSize = 0;
+    }
+
+    void add(Object pValue)
+    {
+      if (mSize == 0)
+        mKind = kindOf(pValue);
+
+      switch (mKind)
+      {
+      case cDouble:
+        if (pValue instanceof Double)
+        {
+          if (mDoubles == null || mSize == mDoubles.length)
+            mDoubles = Arrays.copyOf(mDoubles == null ? new double[0]
+                                                      : mDoubles,
+                                     newCapacity());
+          mDoubles[mSize++] = (Double) pValue;
+          return;
+        }
+        break;
+      case cLong:
+        if (pValue instanceof Long)
+        {
+          if (mLongs == null || mSize == mLongs.length)
+            mLongs = Arrays.copyOf(mLongs == null ? new long[0]
+                                                  : mLongs,
+                                   newCapacity());
+          mLongs[mSize++] = (Long) pValue;
+          return;
+        }
+        break;
+      case cBoolean:
+        if (pValue instanceof Boolean)
+        {
+          if (mBooleans == null)
+            mBooleans = new BitSet(cInitialCapacity);
+          mBooleans.set(mSize++, (Boolean) pValue);
+          return;
+        }
+        break;
+      default:
+        addObject(pValue);
+        return;
+      }
+
+      convertToObjects();
+      addObject(pValue);
+    }
+
+    private int newCapacity()
+    {
+      return Math.max(cInitialCapacity, 2 * mSize);
+    }
+
+    private void addObject(Object pValue)
+    {
+      if (mObjects == null || mSize == mObjects.length)
+        mObjects = Arrays.copyOf(mObjects == null ? new Object[0]
+                                                  : mObjects,
+                                 newCapacity());
+      mObjects[mSize++] = pValue;
+    }
+
+    private void convertToObjects()
+    {
+      final int lSize = mSize;
+      final Object[] lObjects = new Object[Math.max(cInitialCapacity,
+                                                    2 * lSize)];
+      for (int i = 0; i < lSize; i++)
+        lObjects[i] = get(i);
+      mObjects = lObjects;
+      if (mBooleans != null)
+        mBooleans.clear();
+      mKind = cObject;
+    }
+
+    private void checkIndex(int pIndex)
+    {
+      if (pIndex < 0 || pIndex >= mSize)
+        throw new IndexOutOfBoundsException("Index: " + pIndex
+                                            + ", Size: "
+                                            + mSize);
+    }
+
+    Object get(int pIndex)
+    {
+      checkIndex(pIndex);
+      switch (mKind)
+      {
+      case cDouble:
+        return mDoubles[pIndex];
+      case cLong:
+        return mLongs[pIndex];
+      case cBoolean:
+        return mBooleans.get(pIndex);
+      default:
+        return mObjects[pIndex];
+      }
+    }
+
+    double getDouble(int pIndex)
+    {
+      checkIndex(pIndex);
+      switch (mKind)
+      {
+      case cDouble:
+        return mDoubles[pIndex];
+      case cLong:
+        return mLongs[pIndex];
+      case cBoolean:
+        return mBooleans.get(pIndex) ? 1 : 0;
+      default:
+        final Object lObject = mObjects[pIndex];
+        if (lObject instanceof Boolean)
+          return ((Boolean) lObject) ? 1 : 0;
+        return ((Number) lObject).doubleValue();
+      }
+    }
+
+    long getLong(int pIndex)
+    {
+      checkIndex(pIndex);
+      switch (mKind)
+      {
+      case cDouble:
+        return (long) mDoubles[pIndex];
+      case cLong:
+        return mLongs[pIndex];
+      case cBoolean:
+        return mBooleans.get(pIndex) ? 1 : 0;
+      default:
+        final Object lObject = mObjects[pIndex];
+        if (lObject instanceof Boolean)
+          return ((Boolean) lObject) ? 1 : 0;
+        return ((Number) lObject).longValue();
+      }
+    }
+
+    int countTrue()
     {
-      return mVariablesToQueueListsMap.values()
-                                      .iterator()
-                                      .next()
-                                      .size();
+      if (mKind == cBoolean)
+        return mBooleans.cardinality();
+
+      int lCount = 0;
+      for (int i = 0; i < mSize; i++)
+        if (getLong(i) != 0)
+          lCount++;
+      return lCount;
     }
   }
 
@@ -1,6 +1,7 @@
 package clearcontrol.core.file;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
@@ -12,9 +13,8 @@ import org.apache.commons.io.monitor.FileAlterationMonitor;
 import org.apache.commons.io.monitor.FileAlterationObserver;
 
 /**
- * File event notifier.
- * 
- * 
+ * File event notifier. Notifies events on a given file, or on the files of a
+ * folder accepted by a given filter.
  *
  * @author royer
  */
@@ -25,8 +25,8 @@ public class FileEventNotifier implements
 
   private static final long cDefaultMonitoringPeriodInMilliseconds =
                                                                    300;
-  private final File mFileToMonitor;
   private final File mParentFolder;
+  private final FileFilter mFileFilter;
   private final FileAlterationObserver mFileAlterationObserver;
 
   private final CopyOnWriteArrayList<FileEventNotifierListener> mListenerList =
@@ -81,15 +81,58 @@ public class FileEventNotifier implements
   public FileEventNotifier(final File pFileToMonitor,
                            final long pMonitoringPeriod,
                            final TimeUnit pTimeUnit)
+  {
+    this(pFileToMonitor.getParentFile(),
+         (f) -> f.getName().equals(pFileToMonitor.getName()),
+         pMonitoringPeriod,
+         pTimeUnit);
+  }
+
+  /**
+   * Instantiates a file event notifier for the files of a given folder
+   * accepted by a given filter
+   * 
+   * @param pFolderToMonitor
+   *          folder to monitor
+   * @param pFileFilter
+   *          filter deciding which files of the folder are monitored
+   */
+  public FileEventNotifier(final File pFolderToMonitor,
+                           final FileFilter pFileFilter)
+  {
+    this(pFolderToMonitor,
+         pFileFilter,
+         cDefaultMonitoringPeriodInMilliseconds,
+         TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Instantiates a file event notifier for the files of a given folder
+   * accepted by a given filter
+   * 
+   * @param pFolderToMonitor
+   *          folder to monitor
+   * @param pFileFilter
+   *          filter deciding which files of the folder are monitored
+   * @param pMonitoringPeriod
+   *          monitoring period
+   * @param pTimeUnit
+   *          monitoring period time unit
+   */
+  public FileEventNotifier(final File pFolderToMonitor,
+                           final FileFilter pFileFilter,
+                           final long pMonitoringPeriod,
+                           final TimeUnit pTimeUnit)
   {
     super();
-    mFileToMonitor = pFileToMonitor;
-    mParentFolder = mFileToMonitor.getParentFile();
+    mParentFolder = pFolderToMonitor;
+    mFileFilter = pFileFilter;
 
     final FileEventNotifier lThis = this;
 
     mFileAlterationObserver =
-                            new FileAlterationObserver(mParentFolder);
+                            new FileAlterationObserver(mParentFolder,
+                                                       mFileFilter);
     mFileAlterationObserver.addListener(new FileAlterationListener()
     {
 
@@ -184,7 +227,7 @@ public class FileEventNotifier implements
     if (mIgnore)
       return;
     info("Event: %s \t\t %s", pFile, pEventKind);
-    if (pFile.getName().equals(mFileToMonitor.getName()))
+    if (mFileFilter.accept(pFile))
     {
       for (final FileEventNotifierListener lFileEventNotifierListener : mListenerList)
       {
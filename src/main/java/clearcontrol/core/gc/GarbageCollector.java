@@ -101,6 +101,27 @@ public class GarbageCollector implements LoggingFeature
     return listener;
   }
 
+  /**
+   * Returns the average duration of all garbage collections since the JVM
+   * started, or zero if none happened yet
+   * 
+   * @return average collection time in milliseconds
+   */
+  public static double getAverageCollectionTimeInMilliseconds()
+  {
+    long lCount = 0;
+    long lTime = 0;
+    for (GarbageCollectorMXBean lGarbageCollectorMXBean : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans())
+    {
+      if (lGarbageCollectorMXBean.getCollectionCount() > 0)
+      {
+        lCount += lGarbageCollectorMXBean.getCollectionCount();
+        lTime += lGarbageCollectorMXBean.getCollectionTime();
+      }
+    }
+    return lCount == 0 ? 0 : ((double) lTime) / lCount;
+  }
+
   /**
    * Triggers GC
    */
@@ -0,0 +1,190 @@
+package clearcontrol.core.variable;
+
+import clearcontrol.core.variable.events.EventPropagator;
+
+/**
+ * Variable holding a boolean primitive. Contrary to Variable&lt;Boolean&gt;, setting
+ * and getting the value, notifying listeners and propagating the value to
+ * synced boolean variables do not box and therefore do not allocate. Such
+ * a variable can be bound to reference variables through the adapter
+ * returned by asVariable(), values are then boxed for that binding only.
+ * 
+ * @author royer
+ */
+public class BooleanVariable extends
+                       PrimitiveVariableBase<BooleanVariable, Boolean, BooleanVariableSetListener, BooleanVariableEdgeListener>
+{
+  // That where we store the value:
+  private volatile boolean mValue;
+
+  /**
+   * Instantiates a variable with a given name and initial value false
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public BooleanVariable(final String pVariableName)
+  {
+    this(pVariableName, false);
+  }
+
+  /**
+   * Instantiates a variable with given name and initial value.
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public BooleanVariable(final String pVariableName, final boolean pValue)
+  {
+    super(pVariableName);
+    mValue = pValue;
+  }
+
+  /**
+   * Returns the current value.
+   * 
+   * @return current value
+   */
+  public boolean get()
+  {
+    return mValue;
+  }
+
+  /**
+   * Sets the value, listeners and synced variables are notified.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final boolean pNewValue)
+  {
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
+    lEventPropagator.enter();
+    try
+    {
+      setInternal(lEventPropagator, pNewValue);
+    }
+    finally
+    {
+      lEventPropagator.exit();
+    }
+  }
+
+  /**
+   * Sets _again_ the value of the variable, listeners, synced variables and
+   * hooks are called again.
+   */
+  public void setCurrent()
+  {
+    set(mValue);
+  }
+
+  /**
+   * Toggles the value between false and true.
+   */
+  public void toggle()
+  {
+    set(!mValue);
+  }
+
+  private boolean setInternal(final EventPropagator pEventPropagator,
+                              final boolean pNewValue)
+  {
+    if (pEventPropagator.isTraversed(this))
+    {
+      return pNewValue;
+    }
+
+    final boolean lNewValueAfterHook = setEventHook(mValue, pNewValue);
+
+    pEventPropagator.markTraversed(this);
+    for (final BooleanVariable lVariable : mVariablesToSendUpdatesTo)
+    {
+      if (!pEventPropagator.isTraversed(lVariable))
+      {
+        lVariable.setInternal(pEventPropagator, lNewValueAfterHook);
+      }
+    }
+
+    // boxing only happens when the variable is bound to reference variables:
+    final Variable<Boolean> lAdapter = getAdapter();
+    if (lAdapter != null && !pEventPropagator.isTraversed(lAdapter))
+    {
+      lAdapter.setReferenceInternal(pEventPropagator, lNewValueAfterHook);
+    }
+
+    final boolean lOldValue = mValue;
+    mValue = lNewValueAfterHook;
+
+    for (final BooleanVariableSetListener lListener : mSetListeners)
+    {
+      lListener.setEvent(lOldValue, lNewValueAfterHook);
+    }
+    if (lOldValue != lNewValueAfterHook)
+    {
+      for (final BooleanVariableEdgeListener lListener : mEdgeListeners)
+      {
+        lListener.fire(lNewValueAfterHook);
+      }
+    }
+
+    return lNewValueAfterHook;
+  }
+
+  /**
+   * Set event hook, can be overridden by a derived class to intercept set
+   * events and modify the set value before it is propagated.
+   * 
+   * @param pOldValue
+   *          old value
+   * @param pNewValue
+   *          new value
+   * @return possibly modified new value
+   */
+  public boolean setEventHook(final boolean pOldValue, final boolean pNewValue)
+  {
+    return pNewValue;
+  }
+
+  @Override
+  protected Variable<Boolean> createAdapter()
+  {
+    return new Adapter(this);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getName() + "=" + mValue;
+  }
+
+  private static class Adapter extends Variable<Boolean>
+  {
+    private final BooleanVariable mBooleanVariable;
+
+    private Adapter(BooleanVariable pBooleanVariable)
+    {
+      super(pBooleanVariable.getName(), pBooleanVariable.get());
+      mBooleanVariable = pBooleanVariable;
+    }
+
+    @Override
+    public Boolean setEventHook(final Boolean pOldReference,
+                                final Boolean pNewReference)
+    {
+      final EventPropagator lEventPropagator =
+                                             EventPropagator.getEventPropagator();
+      if (pNewReference == null
+          || lEventPropagator.isTraversed(mBooleanVariable))
+        return pNewReference;
+
+      // marked now so that the primitive variable does not set us back:
+      lEventPropagator.markTraversed(this);
+      return mBooleanVariable.setInternal(lEventPropagator, pNewReference);
+    }
+  }
+
+}
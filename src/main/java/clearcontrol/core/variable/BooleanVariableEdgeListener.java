@@ -0,0 +1,17 @@
+package clearcontrol.core.variable;
+
+/**
+ * Boolean variable edge event listener
+ *
+ * @author royer
+ */
+public interface BooleanVariableEdgeListener
+{
+  /**
+   * Called when an edge event occurs
+   * 
+   * @param pNewValue
+   *          new value (after the edge)
+   */
+  void fire(boolean pNewValue);
+}
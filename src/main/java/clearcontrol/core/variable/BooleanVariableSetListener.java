@@ -0,0 +1,19 @@
+package clearcontrol.core.variable;
+
+/**
+ * Boolean variable set listener
+ *
+ * @author royer
+ */
+public interface BooleanVariableSetListener
+{
+  /**
+   * Called when a set event occurs.
+   * 
+   * @param pCurrentValue
+   *          current variable value
+   * @param pNewValue
+   *          new value
+   */
+  void setEvent(boolean pCurrentValue, boolean pNewValue);
+}
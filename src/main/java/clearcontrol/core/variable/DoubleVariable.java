@@ -0,0 +1,190 @@
+package clearcontrol.core.variable;
+
+import clearcontrol.core.variable.events.EventPropagator;
+
+/**
+ * Variable holding a double primitive. Contrary to Variable&lt;Double&gt;, setting
+ * and getting the value, notifying listeners and propagating the value to
+ * synced double variables do not box and therefore do not allocate. Such
+ * a variable can be bound to reference variables through the adapter
+ * returned by asVariable(), values are then boxed for that binding only.
+ * 
+ * @author royer
+ */
+public class DoubleVariable extends
+                       PrimitiveVariableBase<DoubleVariable, Double, DoubleVariableSetListener, DoubleVariableEdgeListener>
+{
+  // That where we store the value:
+  private volatile double mValue;
+
+  /**
+   * Instantiates a variable with a given name and initial value 0
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public DoubleVariable(final String pVariableName)
+  {
+    this(pVariableName, 0);
+  }
+
+  /**
+   * Instantiates a variable with given name and initial value.
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public DoubleVariable(final String pVariableName, final double pValue)
+  {
+    super(pVariableName);
+    mValue = pValue;
+  }
+
+  /**
+   * Returns the current value.
+   * 
+   * @return current value
+   */
+  public double get()
+  {
+    return mValue;
+  }
+
+  /**
+   * Sets the value, listeners and synced variables are notified.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final double pNewValue)
+  {
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
+    lEventPropagator.enter();
+    try
+    {
+      setInternal(lEventPropagator, pNewValue);
+    }
+    finally
+    {
+      lEventPropagator.exit();
+    }
+  }
+
+  /**
+   * Sets _again_ the value of the variable, listeners, synced variables and
+   * hooks are called again.
+   */
+  public void setCurrent()
+  {
+    set(mValue);
+  }
+
+  /**
+   * Changes the sign of the value.
+   */
+  public void toggle()
+  {
+    set(-mValue);
+  }
+
+  private double setInternal(final EventPropagator pEventPropagator,
+                             final double pNewValue)
+  {
+    if (pEventPropagator.isTraversed(this))
+    {
+      return pNewValue;
+    }
+
+    final double lNewValueAfterHook = setEventHook(mValue, pNewValue);
+
+    pEventPropagator.markTraversed(this);
+    for (final DoubleVariable lVariable : mVariablesToSendUpdatesTo)
+    {
+      if (!pEventPropagator.isTraversed(lVariable))
+      {
+        lVariable.setInternal(pEventPropagator, lNewValueAfterHook);
+      }
+    }
+
+    // boxing only happens when the variable is bound to reference variables:
+    final Variable<Double> lAdapter = getAdapter();
+    if (lAdapter != null && !pEventPropagator.isTraversed(lAdapter))
+    {
+      lAdapter.setReferenceInternal(pEventPropagator, lNewValueAfterHook);
+    }
+
+    final double lOldValue = mValue;
+    mValue = lNewValueAfterHook;
+
+    for (final DoubleVariableSetListener lListener : mSetListeners)
+    {
+      lListener.setEvent(lOldValue, lNewValueAfterHook);
+    }
+    if (Double.compare(lOldValue, lNewValueAfterHook) != 0)
+    {
+      for (final DoubleVariableEdgeListener lListener : mEdgeListeners)
+      {
+        lListener.fire(lNewValueAfterHook);
+      }
+    }
+
+    return lNewValueAfterHook;
+  }
+
+  /**
+   * Set event hook, can be overridden by a derived class to intercept set
+   * events and modify the set value before it is propagated.
+   * 
+   * @param pOldValue
+   *          old value
+   * @param pNewValue
+   *          new value
+   * @return possibly modified new value
+   */
+  public double setEventHook(final double pOldValue, final double pNewValue)
+  {
+    return pNewValue;
+  }
+
+  @Override
+  protected Variable<Double> createAdapter()
+  {
+    return new Adapter(this);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getName() + "=" + mValue;
+  }
+
+  private static class Adapter extends Variable<Double>
+  {
+    private final DoubleVariable mDoubleVariable;
+
+    private Adapter(DoubleVariable pDoubleVariable)
+    {
+      super(pDoubleVariable.getName(), pDoubleVariable.get());
+      mDoubleVariable = pDoubleVariable;
+    }
+
+    @Override
+    public Double setEventHook(final Double pOldReference,
+                               final Double pNewReference)
+    {
+      final EventPropagator lEventPropagator =
+                                             EventPropagator.getEventPropagator();
+      if (pNewReference == null
+          || lEventPropagator.isTraversed(mDoubleVariable))
+        return pNewReference;
+
+      // marked now so that the primitive variable does not set us back:
+      lEventPropagator.markTraversed(this);
+      return mDoubleVariable.setInternal(lEventPropagator, pNewReference);
+    }
+  }
+
+}
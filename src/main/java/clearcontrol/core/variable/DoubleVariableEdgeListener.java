@@ -0,0 +1,17 @@
+package clearcontrol.core.variable;
+
+/**
+ * Double variable edge event listener
+ *
+ * @author royer
+ */
+public interface DoubleVariableEdgeListener
+{
+  /**
+   * Called when an edge event occurs
+   * 
+   * @param pNewValue
+   *          new value (after the edge)
+   */
+  void fire(double pNewValue);
+}
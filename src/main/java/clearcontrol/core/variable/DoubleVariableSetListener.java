@@ -0,0 +1,19 @@
+package clearcontrol.core.variable;
+
+/**
+ * Double variable set listener
+ *
+ * @author royer
+ */
+public interface DoubleVariableSetListener
+{
+  /**
+   * Called when a set event occurs.
+   * 
+   * @param pCurrentValue
+   *          current variable value
+   * @param pNewValue
+   *          new value
+   */
+  void setEvent(double pCurrentValue, double pNewValue);
+}
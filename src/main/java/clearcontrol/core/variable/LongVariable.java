@@ -0,0 +1,206 @@
+package clearcontrol.core.variable;
+
+import clearcontrol.core.variable.events.EventPropagator;
+
+/**
+ * Variable holding a long primitive. Contrary to Variable&lt;Long&gt;, setting
+ * and getting the value, notifying listeners and propagating the value to
+ * synced long variables do not box and therefore do not allocate. Such
+ * a variable can be bound to reference variables through the adapter
+ * returned by asVariable(), values are then boxed for that binding only.
+ * 
+ * @author royer
+ */
+public class LongVariable extends
+                       PrimitiveVariableBase<LongVariable, Long, LongVariableSetListener, LongVariableEdgeListener>
+{
+  // That where we store the value:
+  private volatile long mValue;
+
+  /**
+   * Instantiates a variable with a given name and initial value 0
+   * 
+   * @param pVariableName
+   *          variable name
+   */
+  public LongVariable(final String pVariableName)
+  {
+    this(pVariableName, 0);
+  }
+
+  /**
+   * Instantiates a variable with given name and initial value.
+   * 
+   * @param pVariableName
+   *          variable name
+   * @param pValue
+   *          initial value
+   */
+  public LongVariable(final String pVariableName, final long pValue)
+  {
+    super(pVariableName);
+    mValue = pValue;
+  }
+
+  /**
+   * Returns the current value.
+   * 
+   * @return current value
+   */
+  public long get()
+  {
+    return mValue;
+  }
+
+  /**
+   * Sets the value, listeners and synced variables are notified.
+   * 
+   * @param pNewValue
+   *          new value
+   */
+  public void set(final long pNewValue)
+  {
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
+    lEventPropagator.enter();
+    try
+    {
+      setInternal(lEventPropagator, pNewValue);
+    }
+    finally
+    {
+      lEventPropagator.exit();
+    }
+  }
+
+  /**
+   * Sets _again_ the value of the variable, listeners, synced variables and
+   * hooks are called again.
+   */
+  public void setCurrent()
+  {
+    set(mValue);
+  }
+
+  /**
+   * Changes the sign of the value.
+   */
+  public void toggle()
+  {
+    set(-mValue);
+  }
+
+  /**
+   * Increments the value by 1
+   */
+  public void increment()
+  {
+    set(mValue + 1);
+  }
+
+  /**
+   * Decrements the value by 1
+   */
+  public void decrement()
+  {
+    set(mValue - 1);
+  }
+
+  private long setInternal(final EventPropagator pEventPropagator,
+                           final long pNewValue)
+  {
+    if (pEventPropagator.isTraversed(this))
+    {
+      return pNewValue;
+    }
+
+    final long lNewValueAfterHook = setEventHook(mValue, pNewValue);
+
+    pEventPropagator.markTraversed(this);
+    for (final LongVariable lVariable : mVariablesToSendUpdatesTo)
+    {
+      if (!pEventPropagator.isTraversed(lVariable))
+      {
+        lVariable.setInternal(pEventPropagator, lNewValueAfterHook);
+      }
+    }
+
+    // boxing only happens when the variable is bound to reference variables:
+    final Variable<Long> lAdapter = getAdapter();
+    if (lAdapter != null && !pEventPropagator.isTraversed(lAdapter))
+    {
+      lAdapter.setReferenceInternal(pEventPropagator, lNewValueAfterHook);
+    }
+
+    final long lOldValue = mValue;
+    mValue = lNewValueAfterHook;
+
+    for (final LongVariableSetListener lListener : mSetListeners)
+    {
+      lListener.setEvent(lOldValue, lNewValueAfterHook);
+    }
+    if (lOldValue != lNewValueAfterHook)
+    {
+      for (final LongVariableEdgeListener lListener : mEdgeListeners)
+      {
+        lListener.fire(lNewValueAfterHook);
+      }
+    }
+
+    return lNewValueAfterHook;
+  }
+
+  /**
+   * Set event hook, can be overridden by a derived class to intercept set
+   * events and modify the set value before it is propagated.
+   * 
+   * @param pOldValue
+   *          old value
+   * @param pNewValue
+   *          new value
+   * @return possibly modified new value
+   */
+  public long setEventHook(final long pOldValue, final long pNewValue)
+  {
+    return pNewValue;
+  }
+
+  @Override
+  protected Variable<Long> createAdapter()
+  {
+    return new Adapter(this);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getName() + "=" + mValue;
+  }
+
+  private static class Adapter extends Variable<Long>
+  {
+    private final LongVariable mLongVariable;
+
+    private Adapter(LongVariable pLongVariable)
+    {
+      super(pLongVariable.getName(), pLongVariable.get());
+      mLongVariable = pLongVariable;
+    }
+
+    @Override
+    public Long setEventHook(final Long pOldReference,
+                             final Long pNewReference)
+    {
+      final EventPropagator lEventPropagator =
+                                             EventPropagator.getEventPropagator();
+      if (pNewReference == null
+          || lEventPropagator.isTraversed(mLongVariable))
+        return pNewReference;
+
+      // marked now so that the primitive variable does not set us back:
+      lEventPropagator.markTraversed(this);
+      return mLongVariable.setInternal(lEventPropagator, pNewReference);
+    }
+  }
+
+}
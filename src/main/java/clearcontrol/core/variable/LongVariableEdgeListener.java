@@ -0,0 +1,17 @@
+package clearcontrol.core.variable;
+
+/**
+ * Long variable edge event listener
+ *
+ * @author royer
+ */
+public interface LongVariableEdgeListener
+{
+  /**
+   * Called when an edge event occurs
+   * 
+   * @param pNewValue
+   *          new value (after the edge)
+   */
+  void fire(long pNewValue);
+}
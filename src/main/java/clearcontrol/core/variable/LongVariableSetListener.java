@@ -0,0 +1,19 @@
+package clearcontrol.core.variable;
+
+/**
+ * Long variable set listener
+ *
+ * @author royer
+ */
+public interface LongVariableSetListener
+{
+  /**
+   * Called when a set event occurs.
+   * 
+   * @param pCurrentValue
+   *          current variable value
+   * @param pNewValue
+   *          new value
+   */
+  void setEvent(long pCurrentValue, long pNewValue);
+}
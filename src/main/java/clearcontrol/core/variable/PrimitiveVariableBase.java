@@ -0,0 +1,224 @@
+package clearcontrol.core.variable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Base class for variables holding a primitive value. It keeps the listeners,
+ * the variables to send updates to and the reference variable adapter, derived
+ * classes hold the value and propagate it without boxing.
+ *
+ * @param <V>
+ *          primitive variable type
+ * @param <R>
+ *          reference type of the adapter
+ * @param <S>
+ *          set listener type
+ * @param <E>
+ *          edge listener type
+ * @author royer
+ */
+public abstract class PrimitiveVariableBase<V extends PrimitiveVariableBase<V, R, S, E>, R, S, E>
+{
+  private final String mVariableName;
+
+  // list of variable to send updates to:
+  protected final CopyOnWriteArrayList<V> mVariablesToSendUpdatesTo =
+                                                                    new CopyOnWriteArrayList<>();
+
+  protected final CopyOnWriteArrayList<S> mSetListeners =
+                                                        new CopyOnWriteArrayList<>();
+  protected final CopyOnWriteArrayList<E> mEdgeListeners =
+                                                         new CopyOnWriteArrayList<>();
+
+  // reference variable adapter, created on demand:
+  private volatile Variable<R> mAdapter;
+
+  /**
+   * Instantiates a variable with a given name
+   *
+   * @param pVariableName
+   *          variable name
+   */
+  public PrimitiveVariableBase(final String pVariableName)
+  {
+    super();
+    mVariableName = pVariableName;
+  }
+
+  /**
+   * Returns the variable name
+   *
+   * @return variable name
+   */
+  public String getName()
+  {
+    return mVariableName;
+  }
+
+  /**
+   * Adds a set listener
+   *
+   * @param pListener
+   *          set listener
+   */
+  public void addSetListener(final S pListener)
+  {
+    mSetListeners.addIfAbsent(pListener);
+  }
+
+  /**
+   * Removes a set listener
+   *
+   * @param pListener
+   *          set listener
+   */
+  public void removeSetListener(final S pListener)
+  {
+    mSetListeners.remove(pListener);
+  }
+
+  /**
+   * Adds an edge listener, edge listeners are notified when the value changes
+   *
+   * @param pListener
+   *          edge listener
+   */
+  public void addEdgeListener(final E pListener)
+  {
+    mEdgeListeners.addIfAbsent(pListener);
+  }
+
+  /**
+   * Removes an edge listener
+   *
+   * @param pListener
+   *          edge listener
+   */
+  public void removeEdgeListener(final E pListener)
+  {
+    mEdgeListeners.remove(pListener);
+  }
+
+  /**
+   * Removes all listeners
+   */
+  public void removeAllListeners()
+  {
+    mSetListeners.clear();
+    mEdgeListeners.clear();
+  }
+
+  /**
+   * Sends updates of this variable to the given variable
+   *
+   * @param pVariable
+   *          variable to send updates to
+   */
+  public void sendUpdatesTo(final V pVariable)
+  {
+    mVariablesToSendUpdatesTo.addIfAbsent(pVariable);
+  }
+
+  /**
+   * Stops sending updates of this variable to the given variable
+   *
+   * @param pVariable
+   *          variable to stop sending updates to
+   */
+  public void doNotSendUpdatesTo(final V pVariable)
+  {
+    mVariablesToSendUpdatesTo.remove(pVariable);
+  }
+
+  /**
+   * Syncs this variable with the given variable: updates go both ways.
+   *
+   * @param pVariable
+   *          variable to sync with
+   */
+  @SuppressWarnings("unchecked")
+  public void syncWith(final V pVariable)
+  {
+    sendUpdatesTo(pVariable);
+    pVariable.sendUpdatesTo((V) this);
+  }
+
+  /**
+   * Stops syncing this variable with the given variable
+   *
+   * @param pVariable
+   *          variable to stop syncing with
+   */
+  @SuppressWarnings("unchecked")
+  public void doNotSyncWith(final V pVariable)
+  {
+    doNotSendUpdatesTo(pVariable);
+    pVariable.doNotSendUpdatesTo((V) this);
+  }
+
+  /**
+   * Sends updates of this variable to the given reference variable, through
+   * the adapter of this variable.
+   *
+   * @param pVariable
+   *          reference variable to send updates to
+   */
+  public void sendUpdatesTo(final Variable<R> pVariable)
+  {
+    asVariable().sendUpdatesTo(pVariable);
+  }
+
+  /**
+   * Syncs this variable with the given reference variable, through the
+   * adapter of this variable.
+   *
+   * @param pVariable
+   *          reference variable to sync with
+   */
+  public void syncWith(final Variable<R> pVariable)
+  {
+    asVariable().syncWith(pVariable);
+  }
+
+  /**
+   * Returns a reference variable bound to this variable: setting either one
+   * sets the other. The adapter can be synced with, or passed to, code that
+   * expects a reference variable. Null values set to the adapter are not
+   * passed on to this variable.
+   *
+   * @return reference variable adapter
+   */
+  public Variable<R> asVariable()
+  {
+    Variable<R> lAdapter = mAdapter;
+    if (lAdapter == null)
+    {
+      synchronized (this)
+      {
+        if (mAdapter == null)
+          mAdapter = createAdapter();
+        lAdapter = mAdapter;
+      }
+    }
+    return lAdapter;
+  }
+
+  /**
+   * Returns the reference variable adapter if it has been created, null
+   * otherwise.
+   *
+   * @return adapter or null
+   */
+  protected Variable<R> getAdapter()
+  {
+    return mAdapter;
+  }
+
+  /**
+   * Creates the reference variable adapter, called once on first use.
+   *
+   * @return new adapter
+   */
+  protected abstract Variable<R> createAdapter();
+
+}
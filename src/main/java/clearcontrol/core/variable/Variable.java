@@ -1,6 +1,5 @@
 package clearcontrol.core.variable;
 
-import java.util.ArrayList;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import clearcontrol.core.concurrent.executors.ClearControlExecutors;
@@ -134,9 +133,17 @@ public class Variable<O> extends VariableBase<O> implements
   @Override
   public void set(final O pNewReference)
   {
-    EventPropagator.clear();
-    setReferenceInternal(pNewReference);
-    EventPropagator.clear();
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
+    lEventPropagator.enter();
+    try
+    {
+      setReferenceInternal(lEventPropagator, pNewReference);
+    }
+    finally
+    {
+      lEventPropagator.exit();
+    }
   }
 
   /**
@@ -152,39 +159,54 @@ public class Variable<O> extends VariableBase<O> implements
   }
 
   /**
-   * Toggles the value, fou double it simply changes the sign, for boolean
-   * values it toggles between false and true.
+   * Toggles the value, for numbers it simply changes the sign (keeping the
+   * number type), for boolean values it toggles between false and true.
    */
   @SuppressWarnings("unchecked")
   public void toggle()
   {
-    if (mValue instanceof Number)
+    final O lValue = mValue;
+    if (lValue instanceof Double)
+    {
+      set((O) Double.valueOf(-((Double) lValue).doubleValue()));
+    }
+    else if (lValue instanceof Float)
+    {
+      set((O) Float.valueOf(-((Float) lValue).floatValue()));
+    }
+    else if (lValue instanceof Long)
+    {
+      set((O) Long.valueOf(-((Long) lValue).longValue()));
+    }
+    else if (lValue instanceof Integer)
     {
-      set((O) new Double(-(Double) get()));
+      set((O) Integer.valueOf(-((Integer) lValue).intValue()));
     }
-    else if (mValue instanceof Boolean)
+    else if (lValue instanceof Boolean)
     {
-      set((O) new Boolean(!(Boolean) get()));
+      set((O) Boolean.valueOf(!((Boolean) lValue).booleanValue()));
     }
   }
 
-  private boolean setReferenceInternal(final O pNewReference)
+  boolean setReferenceInternal(final EventPropagator pEventPropagator,
+                               final O pNewReference)
   {
-    if (EventPropagator.hasBeenTraversed(this))
+    if (pEventPropagator.isTraversed(this))
     {
       return false;
     }
 
     final O lNewValueAfterHook = setEventHook(mValue, pNewReference);
 
-    EventPropagator.add(this);
+    pEventPropagator.markTraversed(this);
     if (mVariablesToSendUpdatesTo != null)
     {
       for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
       {
-        if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+        if (!pEventPropagator.isTraversed(lObjectVariable))
         {
-          lObjectVariable.setReferenceInternal(lNewValueAfterHook);
+          lObjectVariable.setReferenceInternal(pEventPropagator,
+                                               lNewValueAfterHook);
         }
       }
     }
@@ -212,29 +234,32 @@ public class Variable<O> extends VariableBase<O> implements
    */
   public void sync(final O pNewValue, final boolean pClearEventQueue)
   {
+    final EventPropagator lEventPropagator =
+                                           EventPropagator.getEventPropagator();
     if (pClearEventQueue)
     {
-      EventPropagator.clear();
+      lEventPropagator.clearTraversed();
     }
 
-    // We protect ourselves from called code that might clear the Thread
-    // traversal list:
-    final ArrayList<Object> lCopyOfListOfTraversedObjects =
-                                                          EventPropagator.getCopyOfListOfTraversedObjects();
+    // Each synced variable starts from the same traversed objects, a mark lets
+    // us go back to them without copying:
+    final int lMark = lEventPropagator.mark();
 
     if (mVariablesToSendUpdatesTo != null)
     {
       for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
       {
-        EventPropagator.setListOfTraversedObjects(lCopyOfListOfTraversedObjects);
-        if (EventPropagator.hasNotBeenTraversed(lObjectVariable))
+        lEventPropagator.resetTo(lMark);
+        if (!lEventPropagator.isTraversed(lObjectVariable))
         {
-          lObjectVariable.setReferenceInternal(pNewValue);
+          lObjectVariable.setReferenceInternal(lEventPropagator,
+                                               pNewValue);
         }
       }
+      lEventPropagator.resetTo(lMark);
+      for (final Variable<O> lObjectVariable : mVariablesToSendUpdatesTo)
+        lEventPropagator.markTraversed(lObjectVariable);
     }
-    EventPropagator.setListOfTraversedObjects(lCopyOfListOfTraversedObjects);
-    EventPropagator.addAllToListOfTraversedObjects(mVariablesToSendUpdatesTo);
 
   }
 
@@ -266,6 +291,17 @@ public class Variable<O> extends VariableBase<O> implements
     return pCurrentReference;
   }
 
+  /**
+   * Returns the current value without notifying get listeners. This is meant
+   * for code that records variable values at high rate, such as queues.
+   * 
+   * @return current value
+   */
+  public O peek()
+  {
+    return getEventHook(mValue);
+  }
+
   @Override
   public O get()
   {
@@ -1,135 +1,348 @@
 package clearcontrol.core.variable.events;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 /**
  * Event propagator.
- * 
+ *
  * This is used for example to prevent variable updates to pass twice through
  * the same variable -- and thus to go on forever -- which is not good.
  *
+ * Traversed objects are tracked per thread in an identity hash table that is
+ * reused from one propagation to the next: traversal checks are O(1) and, once
+ * the table has grown to the size of the largest propagation, propagating does
+ * not allocate. Propagations are nested in frames: a propagation started while
+ * another one is under way (for example from a listener) sees its own
+ * traversed objects only, and leaves those of the enclosing propagation
+ * untouched when it ends.
+ *
  * @author royer
  */
 public class EventPropagator
 {
   private static final ThreadLocal<EventPropagator> sEventPropagatorThreadLocal =
-                                                                                new ThreadLocal<EventPropagator>();
+                                                                                ThreadLocal.withInitial(EventPropagator::new);
+
+  private static final int cAbsent = 0;
 
   /**
    * Returns a thread-local event propagator.
-   * 
+   *
    * @return thread-local event propagator
    */
   public static final EventPropagator getEventPropagator()
   {
-    EventPropagator lEventPropagator =
-                                     sEventPropagatorThreadLocal.get();
-    if (lEventPropagator == null)
-    {
-      lEventPropagator = new EventPropagator();
-      sEventPropagatorThreadLocal.set(lEventPropagator);
-    }
-    return lEventPropagator;
+    return sEventPropagatorThreadLocal.get();
   }
 
   /**
-   * Clears the traversed object list
+   * Clears the traversed objects of the current propagation
    */
   public static final void clear()
   {
-    getEventPropagator().mTraversedObjectList.clear();
+    getEventPropagator().clearTraversed();
   }
 
   /**
-   * Adds the given object to the list of traversed objects.
-   * 
+   * Adds the given object to the traversed objects.
+   *
    * @param pObject
    *          traversed object to add
    */
   public static final void add(final Object pObject)
   {
-    getEventPropagator().mTraversedObjectList.add(pObject);
+    getEventPropagator().markTraversed(pObject);
   }
 
   /**
    * Returns true if the given object has already been traversed.
-   * 
+   *
    * @param pObject
    *          object to test for traversal
    * @return true if traversed
    */
   public static final boolean hasBeenTraversed(final Object pObject)
   {
-    return getEventPropagator().mTraversedObjectList.contains(pObject);
+    return getEventPropagator().isTraversed(pObject);
   }
 
   /**
    * Returns true if the given object has not been traversed.
-   * 
+   *
    * @param pObject
    *          object to test for traversal
    * @return true if not yet traversed
    */
   public static final boolean hasNotBeenTraversed(final Object pObject)
   {
-    return !getEventPropagator().mTraversedObjectList.contains(pObject);
+    return !getEventPropagator().isTraversed(pObject);
   }
 
   /**
-   * Returns the list of traversed objects
-   * 
+   * Returns a new list containing the traversed objects
+   *
    * @return list of traversed objects
    */
   public static final ArrayList<Object> getListOfTraversedObjects()
   {
-    return getEventPropagator().mTraversedObjectList;
+    return getEventPropagator().getTraversed();
   }
 
   /**
-   * Returns the list of traversed objects
-   * 
+   * Returns a new list containing the traversed objects
+   *
    * @return list of traversed objects
    */
   public static final ArrayList<Object> getCopyOfListOfTraversedObjects()
   {
-    return new ArrayList<Object>(getEventPropagator().mTraversedObjectList);
+    return getEventPropagator().getTraversed();
   }
 
   /**
    * Sets the list of traversed objects.
-   * 
+   *
    * @param pListOfTraversedObjects
    *          new list of traversed objects.
    */
   public static void setListOfTraversedObjects(final List<Object> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.clear();
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    lEventPropagator.clearTraversed();
+    for (Object lObject : pListOfTraversedObjects)
+      lEventPropagator.markTraversed(lObject);
   }
 
   /**
    * Adds all the elements of the given list to the list of traversed objects.
-   * 
+   *
    * @param pListOfTraversedObjects
    *          list of traversed objects
    */
   public static void addAllToListOfTraversedObjects(final Collection<?> pListOfTraversedObjects)
   {
-    final ArrayList<Object> lTraversedObjectList =
-                                                 getEventPropagator().mTraversedObjectList;
-    lTraversedObjectList.addAll(pListOfTraversedObjects);
+    final EventPropagator lEventPropagator = getEventPropagator();
+    for (Object lObject : pListOfTraversedObjects)
+      lEventPropagator.markTraversed(lObject);
   }
 
-  private final ArrayList<Object> mTraversedObjectList =
-                                                       new ArrayList<Object>();
+  // open addressing identity hash table, the stamp of a key is the id of the
+  // frame in which it was traversed:
+  private Object[] mKeys = new Object[64];
+  private int[] mStamps = new int[64];
+  private int mSize;
+
+  // log of changes to the table, undone when frames end or are reset:
+  private Object[] mLogKeys = new Object[32];
+  private int[] mLogPreviousStamps = new int[32];
+  private int mLogSize;
+
+  // stack of frames, each with its id and log size at the beginning:
+  private int[] mFrameIds = new int[8];
+  private int[] mFrameLogSizes = new int[8];
+  private int mFrameDepth;
+  private int mCurrentFrameId = 1;
+  private int mLastFrameId = 1;
 
   EventPropagator()
   {
     super();
   }
 
+  /**
+   * Begins a new propagation nested in the current one.
+   */
+  public void enter()
+  {
+    if (mFrameDepth == mFrameIds.length)
+    {
+      mFrameIds = Arrays.copyOf(mFrameIds, 2 * mFrameDepth);
+      mFrameLogSizes = Arrays.copyOf(mFrameLogSizes,
+                                     2 * mFrameDepth);
+    }
+    mFrameIds[mFrameDepth] = mCurrentFrameId;
+    mFrameLogSizes[mFrameDepth] = mLogSize;
+    mFrameDepth++;
+
+    if (++mLastFrameId == cAbsent)
+      mLastFrameId++;
+    mCurrentFrameId = mLastFrameId;
+  }
+
+  /**
+   * Ends the current propagation and returns to the enclosing one.
+   */
+  public void exit()
+  {
+    if (mFrameDepth == 0)
+    {
+      resetTo(0);
+      return;
+    }
+    mFrameDepth--;
+    resetTo(mFrameLogSizes[mFrameDepth]);
+    mCurrentFrameId = mFrameIds[mFrameDepth];
+  }
+
+  /**
+   * Returns a mark that can be used to later reset the traversed objects of
+   * the current propagation to their current state.
+   *
+   * @return mark
+   */
+  public int mark()
+  {
+    return mLogSize;
+  }
+
+  /**
+   * Resets the traversed objects to the state they had when the given mark
+   * was obtained.
+   *
+   * @param pMark
+   *          mark
+   */
+  public void resetTo(int pMark)
+  {
+    while (mLogSize > pMark)
+    {
+      mLogSize--;
+      final Object lKey = mLogKeys[mLogSize];
+      final int lPreviousStamp = mLogPreviousStamps[mLogSize];
+      mLogKeys[mLogSize] = null;
+      if (lPreviousStamp == cAbsent)
+        remove(lKey);
+      else
+        mStamps[indexOf(lKey)] = lPreviousStamp;
+    }
+  }
+
+  /**
+   * Clears the traversed objects of the current propagation.
+   */
+  public void clearTraversed()
+  {
+    resetTo(mFrameDepth == 0 ? 0 : mFrameLogSizes[mFrameDepth - 1]);
+  }
+
+  /**
+   * Returns true if the given object has been traversed in the current
+   * propagation
+   *
+   * @param pObject
+   *          object
+   * @return true if traversed
+   */
+  public boolean isTraversed(Object pObject)
+  {
+    final int lIndex = indexOf(pObject);
+    return mKeys[lIndex] != null && mStamps[lIndex] == mCurrentFrameId;
+  }
+
+  /**
+   * Marks the given object as traversed in the current propagation.
+   *
+   * @param pObject
+   *          object
+   */
+  public void markTraversed(Object pObject)
+  {
+    int lIndex = indexOf(pObject);
+    final int lPreviousStamp = mKeys[lIndex] == null ? cAbsent
+                                                     : mStamps[lIndex];
+    if (lPreviousStamp == mCurrentFrameId)
+      return;
+
+    if (lPreviousStamp == cAbsent)
+    {
+      if (2 * (mSize + 1) > mKeys.length)
+      {
+        rehash(2 * mKeys.length);
+        lIndex = indexOf(pObject);
+      }
+      mKeys[lIndex] = pObject;
+      mSize++;
+    }
+    mStamps[lIndex] = mCurrentFrameId;
+
+    if (mLogSize == mLogKeys.length)
+    {
+      mLogKeys = Arrays.copyOf(mLogKeys, 2 * mLogSize);
+      mLogPreviousStamps = Arrays.copyOf(mLogPreviousStamps,
+                                         2 * mLogSize);
+    }
+    mLogKeys[mLogSize] = pObject;
+    mLogPreviousStamps[mLogSize] = lPreviousStamp;
+    mLogSize++;
+  }
+
+  private ArrayList<Object> getTraversed()
+  {
+    final ArrayList<Object> lTraversed = new ArrayList<>();
+    for (int i = 0; i < mKeys.length; i++)
+      if (mKeys[i] != null && mStamps[i] == mCurrentFrameId)
+        lTraversed.add(mKeys[i]);
+    return lTraversed;
+  }
+
+  private static int hash(Object pObject, int pMask)
+  {
+    final int h = System.identityHashCode(pObject);
+    return (h ^ (h >>> 16)) & pMask;
+  }
+
+  // index of the key, or of the empty slot where it would be inserted:
+  private int indexOf(Object pObject)
+  {
+    final int lMask = mKeys.length - 1;
+    int lIndex = hash(pObject, lMask);
+    Object lKey;
+    while ((lKey = mKeys[lIndex]) != null && lKey != pObject)
+      lIndex = (lIndex + 1) & lMask;
+    return lIndex;
+  }
+
+  private void remove(Object pObject)
+  {
+    final int lMask = mKeys.length - 1;
+    int lIndex = indexOf(pObject);
+    if (mKeys[lIndex] == null)
+      return;
+    mKeys[lIndex] = null;
+    mSize--;
+
+    // backward shift deletion keeps probe sequences unbroken:
+    int lNext = (lIndex + 1) & lMask;
+    Object lKey;
+    while ((lKey = mKeys[lNext]) != null)
+    {
+      final int lHome = hash(lKey, lMask);
+      if (((lNext - lHome) & lMask) >= ((lNext - lIndex) & lMask))
+      {
+        mKeys[lIndex] = lKey;
+        mStamps[lIndex] = mStamps[lNext];
+        mKeys[lNext] = null;
+        lIndex = lNext;
+      }
+      lNext = (lNext + 1) & lMask;
+    }
+  }
+
+  private void rehash(int pCapacity)
+  {
+    final Object[] lKeys = mKeys;
+    final int[] lStamps = mStamps;
+    mKeys = new Object[pCapacity];
+    mStamps = new int[pCapacity];
+    for (int i = 0; i < lKeys.length; i++)
+      if (lKeys[i] != null)
+      {
+        final int lIndex = indexOf(lKeys[i]);
+        mKeys[lIndex] = lKeys[i];
+        mStamps[lIndex] = lStamps[i];
+      }
+  }
+
 }
@@ -1,15 +1,25 @@
 package clearcontrol.core.variable.persistence;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
 import java.util.Formatter;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.VariableListener;
 import clearcontrol.core.variable.bundle.VariableBundle;
@@ -17,13 +27,21 @@ import clearcontrol.core.variable.bundle.VariableBundle;
 /**
  * Variable bundle as file
  *
+ * The file is always written to a temporary file first which is then renamed
+ * atomically, readers never see a partially written file. In write-behind
+ * mode, set events only mark the bundle dirty and the file is written
+ * asynchronously, at most once per write-behind period. The last parsed
+ * content of the file is kept in memory together with the file's modification
+ * time and size, the file is parsed again only when these change.
+ *
  * @author royer
  */
 public class VariableBundleAsFile extends VariableBundle
                                   implements AutoCloseable
 {
-  private final ExecutorService cSingleThreadExecutor =
-                                                      Executors.newSingleThreadExecutor();
+  private final ScheduledExecutorService mWriteBehindExecutor =
+                                                            Executors.newSingleThreadScheduledExecutor(ClearControlExecutors.getThreadFactory("VariableBundleAsFile",
+                                                                                                                                               Thread.NORM_PRIORITY));
 
   private final ConcurrentSkipListMap<String, Variable<?>> mPrefixWithNameToVariableMap =
                                                                                         new ConcurrentSkipListMap<String, Variable<?>>();
@@ -35,6 +53,21 @@ public class VariableBundleAsFile extends VariableBundle
 
   private final Object mLock = new Object();
 
+  private final long mWriteBehindPeriodInMilliseconds;
+  private final AtomicBoolean mDirty = new AtomicBoolean();
+  private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+  private final AtomicLong mNumberOfWrites = new AtomicLong();
+  private volatile long mLastFlushTimeInMilliseconds = Long.MIN_VALUE / 2;
+
+  // snapshot of the file content, valid as long as the file signature holds:
+  private final HashMap<String, String> mSnapshot = new HashMap<>();
+  private FileTime mSnapshotLastModifiedTime;
+  private long mSnapshotSize = -1;
+
+  // thread currently reading or writing the file, its own get and set events
+  // are ignored:
+  private volatile Thread mFileAccessThread;
+
   /**
    * Instantiates a variable-bundle-as-file with a given bundle name and file.
    * 
@@ -55,17 +88,42 @@ public class VariableBundleAsFile extends VariableBundle
    * @param pBundleName
    *          bundle name
    * @param pFile
-   *          file to useto store and retrieve the bundle's variable values.
+   *          file to use to store and retrieve the bundle's variable values.
    * @param pAutoReadOnGet
-   *          if true the file will be read for every get
+   *          if true, gets update the variables from the file if it has been
+   *          modified since last read
    */
-  @SuppressWarnings("rawtypes")
   public VariableBundleAsFile(final String pBundleName,
                               final File pFile,
                               final boolean pAutoReadOnGet)
+  {
+    this(pBundleName, pFile, pAutoReadOnGet, 0);
+  }
+
+  /**
+   * Instantiates a variable-bundle-as-file object.
+   * 
+   * @param pBundleName
+   *          bundle name
+   * @param pFile
+   *          file to use to store and retrieve the bundle's variable values.
+   * @param pAutoReadOnGet
+   *          if true, gets update the variables from the file if it has been
+   *          modified since last read
+   * @param pWriteBehindPeriodInMilliseconds
+   *          if strictly positive, set events are coalesced and the file is
+   *          written asynchronously at most once per period, otherwise the
+   *          file is written for each set event.
+   */
+  @SuppressWarnings("rawtypes")
+  public VariableBundleAsFile(final String pBundleName,
+                              final File pFile,
+                              final boolean pAutoReadOnGet,
+                              final long pWriteBehindPeriodInMilliseconds)
   {
     super(pBundleName);
     mFile = pFile;
+    mWriteBehindPeriodInMilliseconds = pWriteBehindPeriodInMilliseconds;
 
     mVariableListener = new VariableListener()
     {
@@ -73,9 +131,10 @@ public class VariableBundleAsFile extends VariableBundle
       @Override
       public void getEvent(final Object pCurrentValue)
       {
-        if (pAutoReadOnGet)
+        if (pAutoReadOnGet
+            && mFileAccessThread != Thread.currentThread())
         {
-          read();
+          readIfModified();
         }
       }
 
@@ -83,7 +142,13 @@ public class VariableBundleAsFile extends VariableBundle
       public void setEvent(final Object pCurrentValue,
                            final Object pNewValue)
       {
-        write();
+        if (mFileAccessThread == Thread.currentThread())
+          return;
+
+        if (mWriteBehindPeriodInMilliseconds > 0)
+          scheduleWrite();
+        else
+          write();
       }
     };
 
@@ -165,63 +230,149 @@ public class VariableBundleAsFile extends VariableBundle
    */
   public boolean read()
   {
+    try
+    {
+      synchronized (mLock)
+      {
+        if (!refreshSnapshot())
+          return false;
+        applySnapshot();
+        return true;
+      }
+    }
+    catch (final Exception e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
 
+  /**
+   * Reads file to update variable values only if it has been modified since it
+   * was last read or written. Nothing is read while variable values are
+   * waiting to be written.
+   * 
+   * @return true if variables were updated
+   */
+  public boolean readIfModified()
+  {
     try
     {
       synchronized (mLock)
       {
-        Scanner lScanner = null;
-        if (mFile.exists())
+        if (mDirty.get() || !hasFileBeenModified())
+          return false;
+        if (!refreshSnapshot())
+          return false;
+        applySnapshot();
+        return true;
+      }
+    }
+    catch (final Exception e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private boolean hasFileBeenModified() throws IOException
+  {
+    if (!mFile.exists())
+      return mSnapshotSize != -1;
+
+    final BasicFileAttributes lAttributes =
+                                          Files.readAttributes(mFile.toPath(),
+                                                               BasicFileAttributes.class);
+    return mSnapshotSize != lAttributes.size()
+           || !lAttributes.lastModifiedTime()
+                          .equals(mSnapshotLastModifiedTime);
+  }
+
+  private void updateSnapshotSignature() throws IOException
+  {
+    final BasicFileAttributes lAttributes =
+                                          Files.readAttributes(mFile.toPath(),
+                                                               BasicFileAttributes.class);
+    mSnapshotLastModifiedTime = lAttributes.lastModifiedTime();
+    mSnapshotSize = lAttributes.size();
+  }
+
+  private boolean refreshSnapshot() throws IOException
+  {
+    if (!mFile.exists())
+    {
+      mSnapshot.clear();
+      mSnapshotLastModifiedTime = null;
+      mSnapshotSize = -1;
+      return true;
+    }
+
+    if (!hasFileBeenModified())
+      return true;
+
+    final HashMap<String, String> lSnapshot = new HashMap<>();
+    Scanner lScanner = null;
+    try
+    {
+      updateSnapshotSignature();
+      lScanner = new Scanner(mFile);
+
+      while (lScanner.hasNextLine())
+      {
+        final String lLine = lScanner.nextLine();
+        final String[] lEqualsSplitStringArray =
+                                               lLine.split("\t?=\t?");
+
+        final String lKey = lEqualsSplitStringArray[0].trim();
+        final String lValue = lEqualsSplitStringArray[1].trim();
+        lSnapshot.put(lKey, lValue);
+      }
+    }
+    catch (final Exception e)
+    {
+      e.printStackTrace();
+      mSnapshotSize = -1;
+      return false;
+    }
+    finally
+    {
+      if (lScanner != null)
+        lScanner.close();
+    }
+
+    mSnapshot.clear();
+    mSnapshot.putAll(lSnapshot);
+    return true;
+  }
+
+  private void applySnapshot()
+  {
+    mFileAccessThread = Thread.currentThread();
+    try
+    {
+      for (final Map.Entry<String, String> lEntry : mSnapshot.entrySet())
+      {
+        final Variable<?> lVariable =
+                                    mPrefixWithNameToVariableMap.get(lEntry.getKey());
+
+        if (lVariable != null)
         {
-          try
-          {
-            lScanner = new Scanner(mFile);
-
-            while (lScanner.hasNextLine())
-            {
-              final String lLine = lScanner.nextLine();
-              final String[] lEqualsSplitStringArray =
-                                                     lLine.split("\t?=\t?");
-
-              final String lKey = lEqualsSplitStringArray[0].trim();
-              final String lValue = lEqualsSplitStringArray[1].trim();
-
-              final Variable<?> lVariable =
-                                          mPrefixWithNameToVariableMap.get(lKey);
-
-              if (lVariable != null)
-              {
-                if (lVariable.get() instanceof Number)
-                {
-                  readDoubleVariable(lValue, lVariable);
-                }
-                else if (lVariable instanceof Variable<?>)
-                {
-                  readObjectVariable(lValue, lVariable);
-                }
-              }
-            }
-          }
-          catch (final Exception e)
+          final String lValue = lEntry.getValue();
+          if (lVariable.get() instanceof Number)
           {
-            e.printStackTrace();
-            return false;
+            readDoubleVariable(lValue, lVariable);
           }
-          finally
+          else if (lVariable instanceof Variable<?>)
           {
-            lScanner.close();
+            readObjectVariable(lValue, lVariable);
           }
         }
-
-        return true;
       }
     }
-    catch (final Exception e)
+    finally
     {
-      e.printStackTrace();
-      return false;
+      mFileAccessThread = null;
     }
-
   }
 
   private void readDoubleVariable(final String lValue,
@@ -264,6 +415,43 @@ public class VariableBundleAsFile extends VariableBundle
     lStringVariable.set(lValue);
   }
 
+  private void scheduleWrite()
+  {
+    mDirty.set(true);
+    if (!mFlushScheduled.compareAndSet(false, true))
+      return;
+
+    final long lDelay = mLastFlushTimeInMilliseconds
+                        + mWriteBehindPeriodInMilliseconds
+                        - System.currentTimeMillis();
+    try
+    {
+      mWriteBehindExecutor.schedule(() -> {
+        mFlushScheduled.set(false);
+        flush();
+      }, Math.max(0, lDelay), TimeUnit.MILLISECONDS);
+    }
+    catch (final Throwable e)
+    {
+      // executor shut down, we write synchronously instead:
+      mFlushScheduled.set(false);
+      flush();
+    }
+  }
+
+  /**
+   * Writes the values of the variables in this bundle to the file if some of
+   * them have been set since the last write.
+   * 
+   * @return true for success or if nothing needed to be written
+   */
+  public boolean flush()
+  {
+    if (!mDirty.get())
+      return true;
+    return write();
+  }
+
   /**
    * Writes the values of the variables in this bundle to the file
    * 
@@ -273,10 +461,17 @@ public class VariableBundleAsFile extends VariableBundle
   {
     synchronized (mLock)
     {
+      mDirty.set(false);
+      mLastFlushTimeInMilliseconds = System.currentTimeMillis();
+
+      final File lTempFile = new File(mFile.getParentFile(),
+                                      "." + mFile.getName() + ".tmp");
+      final HashMap<String, String> lSnapshot = new HashMap<>();
       Formatter lFormatter = null;
+      mFileAccessThread = Thread.currentThread();
       try
       {
-        lFormatter = new Formatter(mFile);
+        lFormatter = new Formatter(lTempFile);
         for (final Map.Entry<String, Variable<?>> lVariableEntry : mPrefixWithNameToVariableMap.entrySet())
         {
           final String lVariablePrefixAndName =
@@ -285,55 +480,101 @@ public class VariableBundleAsFile extends VariableBundle
 
           // System.out.println(lVariable);
 
+          final String lValue;
           if (lVariable.get() instanceof Number)
           {
             @SuppressWarnings("unchecked")
             final Variable<Number> lDoubleVariable =
                                                    (Variable<Number>) lVariable;
 
-            lFormatter.format("%s\t=\t%g\n",
-                              lVariablePrefixAndName,
-                              lDoubleVariable.get().doubleValue());
+            lValue = String.format("%g",
+                                   lDoubleVariable.get().doubleValue());
 
           }
-          else if (lVariable instanceof Variable<?>)
+          else
           {
-            final Variable<?> lObjectVariable = lVariable;
-
-            lFormatter.format("%s\t=\t%s\n",
-                              lVariablePrefixAndName,
-                              lObjectVariable.get());
+            lValue = String.valueOf(lVariable.get());
           }
+          lFormatter.format("%s\t=\t%s\n", lVariablePrefixAndName, lValue);
+          lSnapshot.put(lVariablePrefixAndName, lValue.trim());
         }
 
         lFormatter.flush();
-        if (lFormatter != null)
+        lFormatter.close();
+        lFormatter = null;
+
+        try
         {
-          // System.out.println("close formatter");
-          lFormatter.close();
+          Files.move(lTempFile.toPath(),
+                     mFile.toPath(),
+                     StandardCopyOption.ATOMIC_MOVE,
+                     StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (final AtomicMoveNotSupportedException e)
+        {
+          Files.move(lTempFile.toPath(),
+                     mFile.toPath(),
+                     StandardCopyOption.REPLACE_EXISTING);
         }
+
+        mNumberOfWrites.incrementAndGet();
+
+        // what we just wrote does not need to be read back:
+        mSnapshot.clear();
+        mSnapshot.putAll(lSnapshot);
+        updateSnapshotSignature();
         return true;
       }
       catch (final Throwable e)
       {
         e.printStackTrace();
+        mDirty.set(true);
         return false;
       }
+      finally
+      {
+        mFileAccessThread = null;
+        if (lFormatter != null)
+          lFormatter.close();
+      }
 
     }
 
   }
 
+  /**
+   * Returns true if some variables have been set but not yet written to the
+   * file
+   * 
+   * @return true if dirty
+   */
+  public boolean isDirty()
+  {
+    return mDirty.get();
+  }
+
+  /**
+   * Returns the number of times the file has been written
+   * 
+   * @return number of writes
+   */
+  public long getNumberOfWrites()
+  {
+    return mNumberOfWrites.get();
+  }
+
+  @Override
   public void close()
   {
-    cSingleThreadExecutor.shutdown();
+    mWriteBehindExecutor.shutdown();
     try
     {
-      cSingleThreadExecutor.awaitTermination(100, TimeUnit.SECONDS);
+      mWriteBehindExecutor.awaitTermination(100, TimeUnit.SECONDS);
     }
     catch (final InterruptedException e)
     {
     }
+    flush();
   }
 
 }
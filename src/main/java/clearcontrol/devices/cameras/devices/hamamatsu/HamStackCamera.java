@@ -211,7 +211,7 @@ public class HamStackCamera extends
       long lAcquiredPlanesDepth = pQueue.getQueueLength();
 
       long lKeptPlanesDepth =
-                            countKeptPlanes(pQueue.getVariableQueue(pQueue.getKeepPlaneVariable()));
+                            pQueue.getNumberOfTrueValues(pQueue.getKeepPlaneVariable());
 
       if (mSequence == null || mSequence.getWidth() != lWidth
           || mSequence.getHeight() != lHeight
@@ -328,13 +328,4 @@ public class HamStackCamera extends
     return mLineReadOutTimeInMicrosecondsVariable;
   }
 
-  private long countKeptPlanes(ArrayList<Boolean> pKeptPlanesList)
-  {
-    long lKeptPlanes = 0;
-    for (Boolean lKeptPlane : pKeptPlanesList)
-      if (lKeptPlane)
-        lKeptPlanes++;
-    return lKeptPlanes;
-  }
-
 }
@@ -2,7 +2,10 @@ package clearcontrol.devices.cameras.devices.sim;
 
 import static java.lang.Math.max;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.device.queue.VariableQueueBase;
@@ -11,7 +14,9 @@ import clearcontrol.stack.StackRequest;
 import coremem.recycling.RecyclerInterface;
 
 /**
- *
+ * Base class for stack camera simulation providers. Subclasses can generate
+ * stacks plane by plane, in parallel, with
+ * {@link #fillPlanes(List, long, long, long, StackInterface, long, PlaneGenerator)}.
  *
  * @author royer
  */
@@ -46,10 +51,11 @@ public abstract class StackCameraSimulationProviderBase implements
   {
     VariableQueueBase lVariableStateQueues = pQueue;
 
-    ArrayList<Boolean> lKeepPlaneList =
-                                      lVariableStateQueues.getVariableQueue(pQueue.getKeepPlaneVariable());
+    List<Boolean> lKeepPlaneList =
+                                 lVariableStateQueues.getVariableQueueView(pQueue.getKeepPlaneVariable());
 
-    long lNumberOfKeptImages = sum(lKeepPlaneList);
+    long lNumberOfKeptImages =
+                             lVariableStateQueues.getNumberOfTrueValues(pQueue.getKeepPlaneVariable());
 
     final long lWidth = max(1,
                             pQueue.getStackWidthVariable()
@@ -73,35 +79,172 @@ public abstract class StackCameraSimulationProviderBase implements
 
     if (lStack != null)
     {
-      fillStackData(pQueue,
-                    lKeepPlaneList,
-                    lWidth,
-                    lHeight,
-                    lDepth,
-                    lStack);
+      try
+      {
+        fillStackData(pQueue,
+                      lKeepPlaneList,
+                      lWidth,
+                      lHeight,
+                      lDepth,
+                      lStack);
+      }
+      catch (RuntimeException | Error e)
+      {
+        // the stack is not handed out, it goes back to the recycler:
+        lStack.release();
+        throw e;
+      }
     }
 
     return lStack;
   }
 
   protected abstract void fillStackData(StackCameraSimulationQueue pQueue,
-                                        ArrayList<Boolean> pKeepPlaneList,
+                                        List<Boolean> pKeepPlaneList,
                                         long pWidth,
                                         long pHeight,
                                         long pDepth,
                                         StackInterface pStack);
 
   /**
+   * Generates the kept planes of a stack in parallel. Each plane is generated
+   * into a short array, one row after the other, and then copied in bulk to
+   * the stack's plane. Each plane gets its own random generator, split from a
+   * generator with the given seed, so that stacks are reproducible whatever
+   * the number of threads.
+   * 
    * @param pKeepPlaneList
-   * @return
+   *          keep plane list, the kept planes are stored one after the other
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   * @param pStack
+   *          stack to fill
+   * @param pSeed
+   *          random seed
+   * @param pPlaneGenerator
+   *          plane generator
    */
-  private long sum(ArrayList<Boolean> pKeepPlaneList)
+  protected void fillPlanes(List<Boolean> pKeepPlaneList,
+                            long pWidth,
+                            long pHeight,
+                            long pDepth,
+                            StackInterface pStack,
+                            long pSeed,
+                            PlaneGenerator pPlaneGenerator)
   {
-    int lLength = pKeepPlaneList.size();
-    long sum = 0;
-    for (int i = 0; i < lLength; i++)
-      sum += pKeepPlaneList.get(i) ? 1 : 0;
-    return sum;
+    final int[] lKeptPlanes = new int[(int) pDepth];
+    int lNumberOfKeptPlanes = 0;
+    for (int z = 0; z < pDepth; z++)
+      if (pKeepPlaneList.get(z))
+        lKeptPlanes[lNumberOfKeptPlanes++] = z;
+
+    final SplittableRandom lRandom = new SplittableRandom(pSeed);
+    final SplittableRandom[] lRandoms =
+                                      new SplittableRandom[lNumberOfKeptPlanes];
+    for (int i = 0; i < lNumberOfKeptPlanes; i++)
+      lRandoms[i] = lRandom.split();
+
+    ForkJoinPool.commonPool()
+                .invoke(new PlaneGenerationTask(pPlaneGenerator,
+                                                pStack,
+                                                lKeptPlanes,
+                                                lRandoms,
+                                                Math.toIntExact(pWidth
+                                                                * pHeight),
+                                                0,
+                                                lNumberOfKeptPlanes));
+  }
+
+  /**
+   * Plane generator
+   */
+  @FunctionalInterface
+  protected interface PlaneGenerator
+  {
+    /**
+     * Generates a plane
+     * 
+     * @param pZ
+     *          plane index in the queue
+     * @param pPlane
+     *          plane values, row after row
+     * @param pRandom
+     *          random generator for this plane
+     */
+    void generatePlane(int pZ, short[] pPlane, SplittableRandom pRandom);
+  }
+
+  private static class PlaneGenerationTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadLocal<short[]> cPlaneArray =
+                                                         new ThreadLocal<>();
+
+    private final PlaneGenerator mPlaneGenerator;
+    private final StackInterface mStack;
+    private final int[] mKeptPlanes;
+    private final SplittableRandom[] mRandoms;
+    private final int mPlaneLength;
+    private final int mBeginPlane, mEndPlane;
+
+    PlaneGenerationTask(PlaneGenerator pPlaneGenerator,
+                        StackInterface pStack,
+                        int[] pKeptPlanes,
+                        SplittableRandom[] pRandoms,
+                        int pPlaneLength,
+                        int pBeginPlane,
+                        int pEndPlane)
+    {
+      mPlaneGenerator = pPlaneGenerator;
+      mStack = pStack;
+      mKeptPlanes = pKeptPlanes;
+      mRandoms = pRandoms;
+      mPlaneLength = pPlaneLength;
+      mBeginPlane = pBeginPlane;
+      mEndPlane = pEndPlane;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (mEndPlane - mBeginPlane == 1)
+      {
+        short[] lPlane = cPlaneArray.get();
+        if (lPlane == null || lPlane.length != mPlaneLength)
+        {
+          lPlane = new short[mPlaneLength];
+          cPlaneArray.set(lPlane);
+        }
+        mPlaneGenerator.generatePlane(mKeptPlanes[mBeginPlane],
+                                      lPlane,
+                                      mRandoms[mBeginPlane]);
+        mStack.getContiguousMemory(mBeginPlane).copyFrom(lPlane);
+        return;
+      }
+      if (mEndPlane <= mBeginPlane)
+        return;
+
+      final int lMiddlePlane = (mBeginPlane + mEndPlane) >>> 1;
+      invokeAll(new PlaneGenerationTask(mPlaneGenerator,
+                                        mStack,
+                                        mKeptPlanes,
+                                        mRandoms,
+                                        mPlaneLength,
+                                        mBeginPlane,
+                                        lMiddlePlane),
+                new PlaneGenerationTask(mPlaneGenerator,
+                                        mStack,
+                                        mKeptPlanes,
+                                        mRandoms,
+                                        mPlaneLength,
+                                        lMiddlePlane,
+                                        mEndPlane));
+    }
   }
 
   protected double fract(double x)
@@ -85,27 +85,30 @@ public class StackCameraSimulationQueue extends
   {
     if (getStackCameraSimulator().isSimLogging())
       getStackCameraSimulator().info("Received Trigger");
-    final long lExposuretimeInSeconds =
-                                      getStackCameraSimulator().getExposureInSecondsVariable()
-                                                               .get()
-                                                               .longValue();
+    final double lExposuretimeInSeconds =
+                                        getStackCameraSimulator().getExposureInSecondsVariable()
+                                                                 .get()
+                                                                 .doubleValue();
     final long lDepth = getQueueLength();
 
-    final long lAquisitionTimeInSeconds = lDepth
-                                          * lExposuretimeInSeconds;
+    // sub-second exposures must not be truncated:
+    final long lAquisitionTimeInNanoseconds =
+                                            (long) (lDepth
+                                                    * lExposuretimeInSeconds
+                                                    * 1e9);
 
     if (mTriggerCounter.incrementAndGet() >= lDepth)
     {
       mTriggerCounter.set(0);
 
       getStackCameraSimulator().executeAsynchronously(() -> {
-        acquisition(lAquisitionTimeInSeconds);
+        acquisition(lAquisitionTimeInNanoseconds);
       });
     }
 
   }
 
-  private void acquisition(final long lAquisitionTimeInSeconds)
+  private void acquisition(final long pAquisitionTimeInNanoseconds)
   {
     Runnable lSimulatedAquisition = () -> {
 
@@ -125,8 +128,8 @@ public class StackCameraSimulationQueue extends
         e.printStackTrace();
       }
     };
-    ExecuteMinDuration.execute(lAquisitionTimeInSeconds,
-                               TimeUnit.SECONDS,
+    ExecuteMinDuration.execute(pAquisitionTimeInNanoseconds,
+                               TimeUnit.NANOSECONDS,
                                lSimulatedAquisition);
     getStackCameraSimulator().getCurrentIndexVariable().increment();
 
@@ -0,0 +1,219 @@
+package clearcontrol.devices.cameras.devices.sim.providers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.source.FileStackSourceInterface;
+import clearcontrol.stack.sourcesink.source.PrefetchingFileStackSource;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.BasicRecycler;
+
+/**
+ * Stack provider for stack camera simulator that replays a recorded dataset
+ * from a file stack source (raw, sqeazy, ...). The n-th acquired stack is the
+ * dataset's stack n modulo the number of stacks. Kept planes are taken from
+ * the corresponding planes of the recorded stack, modulo its depth, and
+ * recorded planes are center cropped or zero padded to the requested width
+ * and height. Only non-empty recordings of the camera's voxel type (16 bit)
+ * can be replayed, other recordings are rejected when read.
+ *
+ * Upcoming stacks are read ahead on a background thread by a
+ * {@link PrefetchingFileStackSource}, so that replay keeps pace with the
+ * camera's exposure.
+ *
+ * @author royer
+ */
+public class FileStackSourceStackProvider extends
+                                          StackCameraSimulationProviderBase
+                                          implements
+                                          StackCameraSimulationProvider,
+                                          AutoCloseable
+{
+  private static final int cDefaultReadAheadCount = 4;
+  private static final long cDefaultBudgetInBytes = 1L << 30;
+  private static final long cReadTimeOutInSeconds = 10;
+
+  private final PrefetchingFileStackSource mFileStackSource;
+  private final String mChannel;
+
+  /**
+   * Instantiates a provider replaying the default channel of a file stack
+   * source, reading four stacks ahead. The location of the source must be set.
+   *
+   * @param pFileStackSource
+   *          file stack source
+   */
+  public FileStackSourceStackProvider(FileStackSourceInterface pFileStackSource)
+  {
+    this(pFileStackSource,
+         StackSinkSourceInterface.cDefaultChannel,
+         cDefaultReadAheadCount,
+         cDefaultBudgetInBytes);
+  }
+
+  /**
+   * Instantiates a provider replaying a given channel of a file stack source.
+   * The location of the source must be set.
+   *
+   * @param pFileStackSource
+   *          file stack source
+   * @param pChannel
+   *          channel to replay
+   * @param pReadAheadCount
+   *          number of stacks to read ahead
+   * @param pBudgetInBytes
+   *          maximal number of bytes held by stacks read ahead
+   */
+  public FileStackSourceStackProvider(FileStackSourceInterface pFileStackSource,
+                                      String pChannel,
+                                      int pReadAheadCount,
+                                      long pBudgetInBytes)
+  {
+    super();
+    mChannel = pChannel;
+    mFileStackSource =
+                     new PrefetchingFileStackSource(pFileStackSource,
+                                                    pReadAheadCount,
+                                                    pBudgetInBytes);
+    // recorded stacks are copied and released right away, the read-ahead
+    // window plus the stack being copied are live at most:
+    mFileStackSource.setStackRecycler(new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                      pReadAheadCount
+                                                                                                                         + 2));
+  }
+
+  /**
+   * Returns the number of stacks of the replayed channel
+   *
+   * @return number of stacks
+   */
+  public long getNumberOfStacks()
+  {
+    return mFileStackSource.getNumberOfStacks(mChannel);
+  }
+
+  /**
+   * Returns the prefetching source reading the recorded stacks
+   *
+   * @return prefetching file stack source
+   */
+  public PrefetchingFileStackSource getFileStackSource()
+  {
+    return mFileStackSource;
+  }
+
+  @Override
+  protected void fillStackData(StackCameraSimulationQueue pQueue,
+                               List<Boolean> pKeepPlaneList,
+                               final long pWidth,
+                               final long pHeight,
+                               final long pDepth,
+                               final StackInterface pStack)
+  {
+    final long lNumberOfStacks = getNumberOfStacks();
+    if (lNumberOfStacks <= 0)
+      return;
+
+    final long lStackIndex = pQueue.getStackCamera()
+                                   .getCurrentStackIndex()
+                             % lNumberOfStacks;
+
+    final StackInterface lRecordedStack =
+                                        mFileStackSource.getStack(mChannel,
+                                                                  lStackIndex,
+                                                                  cReadTimeOutInSeconds,
+                                                                  TimeUnit.SECONDS);
+    if (lRecordedStack == null)
+      return;
+
+    try
+    {
+      final long lRecordedWidth = lRecordedStack.getWidth();
+      final long lRecordedHeight = lRecordedStack.getHeight();
+      final long lRecordedDepth = lRecordedStack.getDepth();
+
+      // voxels are copied as is, and planes are taken modulo the depth:
+      if (lRecordedStack.getDataType() != pStack.getDataType())
+        throw new IllegalArgumentException(String.format("Recorded stack %d of channel '%s' has voxels of type %s, only %s recordings can be replayed",
+                                                         lStackIndex,
+                                                         mChannel,
+                                                         lRecordedStack.getDataType(),
+                                                         pStack.getDataType()));
+      if (lRecordedWidth <= 0 || lRecordedHeight <= 0
+          || lRecordedDepth <= 0)
+        throw new IllegalArgumentException(String.format("Recorded stack %d of channel '%s' is empty (%dx%dx%d) and can't be replayed",
+                                                         lStackIndex,
+                                                         mChannel,
+                                                         lRecordedWidth,
+                                                         lRecordedHeight,
+                                                         lRecordedDepth));
+      final long lBytesPerVoxel = lRecordedStack.getBytesPerVoxel();
+
+      // center cropping (positive offsets) or padding (negative offsets):
+      final long lOffsetX = (lRecordedWidth - pWidth) / 2;
+      final long lOffsetY = (lRecordedHeight - pHeight) / 2;
+      final long lCopyWidth = Math.min(pWidth, lRecordedWidth);
+      final long lCopyHeight = Math.min(pHeight, lRecordedHeight);
+      final boolean lPadded = pWidth > lRecordedWidth
+                              || pHeight > lRecordedHeight;
+
+      int lPlaneIndex = 0;
+      for (int z = 0; z < pDepth; z++)
+        if (pKeepPlaneList.get(z))
+        {
+          final ContiguousMemoryInterface lPlane =
+                                                 pStack.getContiguousMemory(lPlaneIndex++);
+          final ContiguousMemoryInterface lRecordedPlane =
+                                                         lRecordedStack.getContiguousMemory((int) (z
+                                                                                                   % lRecordedDepth));
+
+          if (!lPadded && lRecordedWidth == pWidth)
+          {
+            lRecordedPlane.copyRangeTo(lOffsetY * pWidth
+                                       * lBytesPerVoxel,
+                                       lPlane,
+                                       0,
+                                       pWidth * pHeight
+                                          * lBytesPerVoxel);
+            continue;
+          }
+
+          if (lPadded)
+            lPlane.setMemory((byte) 0);
+
+          for (long y = 0; y < lCopyHeight; y++)
+          {
+            final long lRecordedX = Math.max(0, lOffsetX);
+            final long lRecordedY = y + Math.max(0, lOffsetY);
+            final long lX = Math.max(0, -lOffsetX);
+            final long lY = y + Math.max(0, -lOffsetY);
+            lRecordedPlane.copyRangeTo((lRecordedY * lRecordedWidth
+                                        + lRecordedX)
+                                       * lBytesPerVoxel,
+                                       lPlane,
+                                       (lY * pWidth + lX)
+                                               * lBytesPerVoxel,
+                                       lCopyWidth * lBytesPerVoxel);
+          }
+        }
+    }
+    finally
+    {
+      lRecordedStack.release();
+    }
+  }
+
+  @Override
+  public void close() throws Exception
+  {
+    mFileStackSource.close();
+  }
+
+}
@@ -1,13 +1,11 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
 import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Fractal stack provider for stack camera simulator
@@ -22,7 +20,7 @@ public class FractalStackProvider extends
 
   @Override
   protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
+                               List<Boolean> pKeepPlaneList,
                                final long pWidth,
                                final long pHeight,
                                final long pDepth,
@@ -31,24 +29,29 @@ public class FractalStackProvider extends
     final byte time = (byte) pQueue.getStackCamera()
                                    .getCurrentStackIndex();
 
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
+    final int lWidth = (int) pWidth;
+    final int lHeight = (int) pHeight;
 
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) (((byte) (x + time)
-                                     ^ (byte) (y + (pHeight) / 3)
-                                     ^ (byte) z
-                                     ^ (time)));/**/
-            if (lValue < 32)
-              lValue = 0;
-            lContiguousBuffer.writeShort(lValue);
-          }
+    fillPlanes(pKeepPlaneList,
+               pWidth,
+               pHeight,
+               pDepth,
+               pStack,
+               time,
+               (z, pPlane, pRandom) -> {
+                 int i = 0;
+                 for (int y = 0; y < lHeight; y++)
+                   for (int x = 0; x < lWidth; x++)
+                   {
+                     short lValue = (short) (((byte) (x + time)
+                                              ^ (byte) (y + (lHeight) / 3)
+                                              ^ (byte) z
+                                              ^ (time)));/**/
+                     if (lValue < 32)
+                       lValue = 0;
+                     pPlane[i++] = lValue;
+                   }
+               });
   }
 
 }
@@ -1,13 +1,11 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
 import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Random stack provider for stack camera simulator
@@ -23,7 +21,7 @@ public class RandomStackProvider extends
 
   @Override
   protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
+                               List<Boolean> pKeepPlaneList,
                                final long pWidth,
                                final long pHeight,
                                final long pDepth,
@@ -32,23 +30,21 @@ public class RandomStackProvider extends
     final byte time = (byte) pQueue.getStackCamera()
                                    .getCurrentStackIndex();
 
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
-
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) (256
-                                    * fract(Math.cos(x + y + z + time)
-                                            * 1000000));/**/
-            if (lValue < 32)
-              lValue = 0;
-            lContiguousBuffer.writeShort(lValue);
-          }
+    fillPlanes(pKeepPlaneList,
+               pWidth,
+               pHeight,
+               pDepth,
+               pStack,
+               time,
+               (z, pPlane, pRandom) -> {
+                 for (int i = 0; i < pPlane.length; i++)
+                 {
+                   short lValue = (short) pRandom.nextInt(256);
+                   if (lValue < 32)
+                     lValue = 0;
+                   pPlane[i] = lValue;
+                 }
+               });
   }
 
 }
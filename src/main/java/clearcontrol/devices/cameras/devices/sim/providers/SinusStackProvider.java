@@ -1,13 +1,11 @@
 package clearcontrol.devices.cameras.devices.sim.providers;
 
-import java.util.ArrayList;
+import java.util.List;
 
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProviderBase;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
 import clearcontrol.stack.StackInterface;
-import coremem.ContiguousMemoryInterface;
-import coremem.buffers.ContiguousBuffer;
 
 /**
  * Sinus stack provider for stack camera simulator
@@ -22,7 +20,7 @@ public class SinusStackProvider extends
 
   @Override
   protected void fillStackData(StackCameraSimulationQueue pQueue,
-                               ArrayList<Boolean> pKeepPlaneList,
+                               List<Boolean> pKeepPlaneList,
                                final long pWidth,
                                final long pHeight,
                                final long pDepth,
@@ -31,25 +29,36 @@ public class SinusStackProvider extends
     final byte time = (byte) pQueue.getStackCamera()
                                    .getCurrentStackIndex();
 
-    final ContiguousMemoryInterface lContiguousMemory =
-                                                      pStack.getContiguousMemory();
-    final ContiguousBuffer lContiguousBuffer =
-                                             new ContiguousBuffer(lContiguousMemory);
-
-    for (int z = 0; z < pDepth; z++)
-      if (pKeepPlaneList.get(z))
-        for (int y = 0; y < pHeight; y++)
-          for (int x = 0; x < pWidth; x++)
-          {
-            short lValue = (short) clamp(Math.sin(x / 11)
-                                         + Math.sin(y / 17)
-                                         + Math.sin(z / 31)
-                                         + Math.sin(time / 117),
-                                         0,
-                                         256);/**/
-
-            lContiguousBuffer.writeShort(lValue);
-          }
+    final int lWidth = (int) pWidth;
+    final int lHeight = (int) pHeight;
+
+    // the sums of sines are separable, rows and columns are tabulated once:
+    final double[] lSinX = new double[lWidth];
+    for (int x = 0; x < lWidth; x++)
+      lSinX[x] = Math.sin(x / 11);
+    final double[] lSinY = new double[lHeight];
+    for (int y = 0; y < lHeight; y++)
+      lSinY[y] = Math.sin(y / 17);
+
+    fillPlanes(pKeepPlaneList,
+               pWidth,
+               pHeight,
+               pDepth,
+               pStack,
+               time,
+               (z, pPlane, pRandom) -> {
+                 final double lSinZT = Math.sin(z / 31)
+                                       + Math.sin(time / 117);
+                 int i = 0;
+                 for (int y = 0; y < lHeight; y++)
+                   for (int x = 0; x < lWidth; x++)
+                   {
+                     pPlane[i++] = (short) clamp(lSinX[x] + lSinY[y]
+                                                 + lSinZT,
+                                                 0,
+                                                 256);/**/
+                   }
+               });
   }
 
 }
@@ -2,17 +2,25 @@ package clearcontrol.devices.signalgen;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
 import clearcontrol.core.device.VirtualDevice;
 import clearcontrol.core.variable.Variable;
+import clearcontrol.devices.signalgen.SignalGeneratorQueue.Preparation;
 import clearcontrol.devices.signalgen.movement.MovementInterface;
 import clearcontrol.devices.signalgen.movement.TransitionMovement;
+import clearcontrol.devices.signalgen.score.Score;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
 
 /**
- *
+ * Base class for signal generators. Queues are played in two stages: scores
+ * are first prepared (transition movement, compilation) on a preparation
+ * thread, and then played on the playback thread. Preparing the next queue
+ * while the current one plays hides the compilation time between consecutive
+ * queues, the remaining dead time is measured and published.
  *
  * @author royer
  */
@@ -22,6 +30,9 @@ public abstract class SignalGeneratorBase extends VirtualDevice
                                           AsynchronousExecutorFeature
 {
 
+  private static final String cTransitionMovementName =
+                                                      "TransitionMovement";
+
   protected final Variable<Boolean> mTriggerVariable =
                                                      new Variable<Boolean>("Trigger",
                                                                            false);
@@ -34,6 +45,14 @@ public abstract class SignalGeneratorBase extends VirtualDevice
                                                                   new Variable<>("PlayedScore",
                                                                                  null);
 
+  private final Variable<Double> mDeadTimeInMillisecondsVariable =
+                                                                new Variable<>("DeadTimeInMilliseconds",
+                                                                               0.0);
+
+  private final ScorePreparer mScorePreparer = new ScorePreparer();
+  private ScoreInterface mLastScheduledScore;
+  private volatile long mLastPlayEndTimeInNanoseconds;
+
   protected volatile boolean mIsPlaying;
 
   /**
@@ -64,17 +83,27 @@ public abstract class SignalGeneratorBase extends VirtualDevice
                                            long pDuration,
                                            TimeUnit pTimeUnit)
   {
-    if (getLastPlayedScoreVariable().get() == null || pDuration == 0)
+    prependTransitionMovement(getLastPlayedScoreVariable().get(),
+                              pScore,
+                              pDuration,
+                              pTimeUnit);
+  }
+
+  protected void prependTransitionMovement(ScoreInterface pPreviousScore,
+                                           ScoreInterface pScore,
+                                           long pDuration,
+                                           TimeUnit pTimeUnit)
+  {
+    if (pPreviousScore == null || pDuration == 0)
       return;
 
     MovementInterface lFirstMovementOfGivenScore =
                                                  pScore.getMovement(0);
 
     MovementInterface lLastMovementFromPreviouslyPlayedScore =
-                                                             getLastPlayedScoreVariable().get()
-                                                                                         .getLastMovement();
+                                                             pPreviousScore.getLastMovement();
     if (lFirstMovementOfGivenScore.getName()
-                                  .equals("TransitionMovement"))
+                                  .equals(cTransitionMovementName))
     {
       TransitionMovement.adjust(lFirstMovementOfGivenScore,
                                 lLastMovementFromPreviouslyPlayedScore,
@@ -96,16 +125,73 @@ public abstract class SignalGeneratorBase extends VirtualDevice
     }
   }
 
+  @Override
+  public Future<Boolean> prepareQueue(SignalGeneratorQueue pSignalGeneratorRealTimeQueue)
+  {
+    return prepare(pSignalGeneratorRealTimeQueue).mFuture;
+  }
+
+  private synchronized Preparation prepare(SignalGeneratorQueue pQueue)
+  {
+    // the preparation is kept by the queue, which drops it when its content
+    // changes, so that a rebuilt queue is prepared again:
+    Preparation lPreparation = pQueue.getPreparation();
+    if (lPreparation != null)
+      return lPreparation;
+
+    // the preparation thread works on a copy of the movement list, the queue
+    // can be cleared or rebuilt meanwhile. Movements are shared, queued
+    // movements are never modified:
+    final Score lScore = new Score("preparedscore");
+    lScore.addScore(pQueue.getQueuedScore());
+
+    // scores are played in the order they are scheduled, the transition is
+    // computed from the score scheduled just before:
+    final ScoreInterface lPreviousScore = mLastScheduledScore;
+    mLastScheduledScore = lScore;
+    final Callable<Boolean> lCall =
+                                  () -> prepareScore(lPreviousScore == null ? getLastPlayedScoreVariable().get()
+                                                                            : lPreviousScore,
+                                                     lScore);
+    lPreparation = new Preparation(lScore,
+                                   getPreparationExecutor().submit(lCall));
+    pQueue.setPreparation(lPreparation);
+    return lPreparation;
+  }
+
+  private ThreadPoolExecutor getPreparationExecutor()
+  {
+    return ClearControlExecutors.getOrCreateThreadPoolExecutor(mScorePreparer,
+                                                               Thread.NORM_PRIORITY,
+                                                               1,
+                                                               1,
+                                                               Integer.MAX_VALUE);
+  }
+
   @Override
   public Future<Boolean> playQueue(SignalGeneratorQueue pSignalGeneratorRealTimeQueue)
   {
+    final long lRequestTime = System.nanoTime();
+    final Preparation lPreparation;
+    synchronized (this)
+    {
+      // a preparation is played once, playing the queue again prepares it
+      // again:
+      lPreparation = prepare(pSignalGeneratorRealTimeQueue);
+      pSignalGeneratorRealTimeQueue.setPreparation(null);
+    }
+    final ScoreInterface lScore = lPreparation.mScore;
+
     final Callable<Boolean> lCall = () -> {
+      // swap point: waits for the score to be prepared
+      final boolean lPrepared = lPreparation.mFuture.get();
       final Thread lCurrentThread = Thread.currentThread();
       final int lCurrentThreadPriority = lCurrentThread.getPriority();
       lCurrentThread.setPriority(Thread.MAX_PRIORITY);
       mIsPlaying = true;
-      final boolean lPlayed =
-                            playScore(pSignalGeneratorRealTimeQueue.getQueuedScore());
+      updateDeadTime(lRequestTime);
+      final boolean lPlayed = lPrepared && playPreparedScore(lScore);
+      mLastPlayEndTimeInNanoseconds = System.nanoTime();
       mIsPlaying = false;
       lCurrentThread.setPriority(lCurrentThreadPriority);
       return lPlayed;
@@ -114,13 +200,78 @@ public abstract class SignalGeneratorBase extends VirtualDevice
     return lFuture;
   }
 
+  private void updateDeadTime(long pRequestTime)
+  {
+    // time during which nothing was played although a queue was requested,
+    // idle time before the request is not counted:
+    final long lDeadTimeInNanoseconds =
+                                      System.nanoTime()
+                                        - Math.max(pRequestTime,
+                                                   mLastPlayEndTimeInNanoseconds);
+    mDeadTimeInMillisecondsVariable.set(lDeadTimeInNanoseconds * 1e-6);
+  }
+
   @Override
   public boolean playScore(ScoreInterface pScore)
   {
-    mLastPlayedScoreVariable.set(pScore.duplicate());
+    return prepareScore(getLastPlayedScoreVariable().get(), pScore)
+           && playPreparedScore(pScore);
+  }
+
+  /**
+   * Prepares a score for playback, for example by prepending a transition
+   * movement and compiling it. Called on the preparation thread, possibly while
+   * the previous score is playing. Scores are played in the order they are
+   * prepared.
+   * 
+   * @param pPreviousScore
+   *          score that will be played just before, or null
+   * @param pScore
+   *          score to prepare
+   * @return true if prepared successfully
+   */
+  protected boolean prepareScore(ScoreInterface pPreviousScore,
+                                 ScoreInterface pScore)
+  {
+    return true;
+  }
+
+  /**
+   * Plays a score previously prepared with
+   * {@link #prepareScore(ScoreInterface, ScoreInterface)}.
+   * 
+   * @param pScore
+   *          prepared score
+   * @return true if played successfully
+   */
+  protected boolean playPreparedScore(ScoreInterface pScore)
+  {
+    // queued staging and finalization movements are shared snapshots that are
+    // never modified and are kept by reference. Transition movements are
+    // adjusted in place by TransitionMovement.adjust when the same score is
+    // played again with playScore(...), so they are copied:
+    final Score lPlayedScore = new Score("playedscore");
+    for (final MovementInterface lMovement : pScore.getMovements())
+      if (cTransitionMovementName.equals(lMovement.getName()))
+        lPlayedScore.addMovement(lMovement.duplicate());
+      else
+        lPlayedScore.addMovement(lMovement);
+    mLastPlayedScoreVariable.set(lPlayedScore);
     return true;
   }
 
+  /**
+   * Returns the variable holding the last measured dead time: the time between
+   * the end of the previous score, or the request to play a queue if later,
+   * and the start of that queue's playback.
+   * 
+   * @return dead time variable
+   */
+  public Variable<Double> getDeadTimeInMillisecondsVariable()
+  {
+    return mDeadTimeInMillisecondsVariable;
+  }
+
   @Override
   public boolean isPlaying()
   {
@@ -147,4 +298,8 @@ public abstract class SignalGeneratorBase extends VirtualDevice
                                                                                   pTimeUnit));
   }
 
-}
\ No newline at end of file
+  private static class ScorePreparer
+  {
+  }
+
+}
@@ -1,15 +1,26 @@
 package clearcontrol.devices.signalgen;
 
+import java.util.ArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.device.queue.QueueInterface;
 import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.movement.MovementSignature;
 import clearcontrol.devices.signalgen.score.Score;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
 
 /**
  * Real time queue for signal generator devices
  *
+ * Movements are enqueued copy-on-write: a staging or finalization movement is
+ * copied only if it has changed since it was last enqueued, otherwise the
+ * previous copy is enqueued again. Queued staging and finalization movements
+ * are thus shared and must not be modified. Signatures are matched in place,
+ * checking an unchanged movement does not allocate. Signal generators never
+ * modify the queued score: each preparation works on a copy of its movement
+ * list, to which the transition movement is prepended.
+ *
  * @author royer
  */
 public class SignalGeneratorQueue implements QueueInterface
@@ -21,6 +32,15 @@ public class SignalGeneratorQueue implements QueueInterface
   protected final ScoreInterface mStagingScore;
   protected final ScoreInterface mFinalizationScore;
 
+  private final ArrayList<MovementSnapshot> mStagingSnapshots =
+                                                              new ArrayList<>();
+  private final ArrayList<MovementSnapshot> mFinalizationSnapshots =
+                                                                   new ArrayList<>();
+
+  // preparation of the current content of the queue, cleared when the queue
+  // changes or is played:
+  private volatile Preparation mPreparation;
+
   /**
    * Instantiates a real-time signal generator queue
    * 
@@ -98,6 +118,7 @@ public class SignalGeneratorQueue implements QueueInterface
   @Override
   public void clearQueue()
   {
+    mPreparation = null;
     mEnqueuedStateCounter = 0;
     mQueuedScore.clear();
   }
@@ -105,14 +126,38 @@ public class SignalGeneratorQueue implements QueueInterface
   @Override
   public void addCurrentStateToQueue()
   {
-    mQueuedScore.addScoreCopy(mStagingScore);
+    mPreparation = null;
+    addScoreSnapshot(mStagingScore, mStagingSnapshots);
     mEnqueuedStateCounter++;
   }
 
   @Override
   public void finalizeQueue()
   {
-    mQueuedScore.addScoreCopy(mFinalizationScore);
+    mPreparation = null;
+    addScoreSnapshot(mFinalizationScore, mFinalizationSnapshots);
+  }
+
+  /**
+   * Returns the preparation of the current content of this queue, or null if
+   * the queue has not been prepared since it last changed or was played.
+   * 
+   * @return preparation or null
+   */
+  Preparation getPreparation()
+  {
+    return mPreparation;
+  }
+
+  /**
+   * Sets the preparation of the current content of this queue
+   * 
+   * @param pPreparation
+   *          preparation, or null to clear it
+   */
+  void setPreparation(Preparation pPreparation)
+  {
+    mPreparation = pPreparation;
   }
 
   @Override
@@ -121,4 +166,66 @@ public class SignalGeneratorQueue implements QueueInterface
     return mEnqueuedStateCounter;
   }
 
+  private void addScoreSnapshot(ScoreInterface pScore,
+                                ArrayList<MovementSnapshot> pSnapshots)
+  {
+    final ArrayList<MovementInterface> lMovements = pScore.getMovements();
+    for (int i = 0; i < lMovements.size(); i++)
+    {
+      final MovementInterface lMovement = lMovements.get(i);
+      MovementSnapshot lSnapshot = null;
+      if (i < pSnapshots.size())
+        lSnapshot = pSnapshots.get(i);
+      if (lSnapshot == null || !lSnapshot.isSnapshotOf(lMovement))
+      {
+        lSnapshot = new MovementSnapshot(lMovement);
+        if (i < pSnapshots.size())
+          pSnapshots.set(i, lSnapshot);
+        else
+          pSnapshots.add(lSnapshot);
+      }
+      mQueuedScore.addMovement(lSnapshot.mCopy);
+    }
+  }
+
+  /**
+   * Preparation of a queue: the copy of the queued score that is prepared and
+   * played, and the future of its preparation.
+   */
+  static class Preparation
+  {
+    final ScoreInterface mScore;
+    final Future<Boolean> mFuture;
+
+    Preparation(ScoreInterface pScore, Future<Boolean> pFuture)
+    {
+      mScore = pScore;
+      mFuture = pFuture;
+    }
+  }
+
+  private static class MovementSnapshot
+  {
+    private final MovementInterface mSource;
+    private final String mName;
+    private final MovementSignature mSignature;
+    private final MovementInterface mCopy;
+
+    MovementSnapshot(MovementInterface pSource)
+    {
+      mSource = pSource;
+      mName = pSource.getName();
+      mSignature = MovementSignature.of(pSource);
+      mCopy = pSource.duplicate();
+    }
+
+    boolean isSnapshotOf(MovementInterface pMovement)
+    {
+      // movements without signatures are copied every time:
+      return mSignature != null && pMovement == mSource
+             && mName.equals(pMovement.getName())
+             && mSignature.matches(pMovement);
+    }
+  }
+
 }
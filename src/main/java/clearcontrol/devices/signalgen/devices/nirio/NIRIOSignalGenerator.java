@@ -6,11 +6,12 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import nirioj.direttore.Direttore;
+import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.signalgen.SignalGeneratorBase;
 import clearcontrol.devices.signalgen.SignalGeneratorInterface;
 import clearcontrol.devices.signalgen.SignalGeneratorQueue;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScore;
-import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScoreBuffers;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
 
 /**
@@ -25,8 +26,11 @@ public class NIRIOSignalGenerator extends SignalGeneratorBase
 
   double mWaitTimeInMilliseconds = 0;
   private final Direttore mDirettore;
-  private final NIRIOCompiledScore mNIRIOCompiledScore =
-                                                       new NIRIOCompiledScore();
+  private final NIRIOCompiledScoreBuffers mNIRIOCompiledScoreBuffers =
+                                                                     new NIRIOCompiledScoreBuffers();
+  private final Variable<Double> mCompiledMovementCacheHitRateVariable =
+                                                                       new Variable<>("CompiledMovementCacheHitRate",
+                                                                                      0.0);
 
   /**
    * 
@@ -51,7 +55,22 @@ public class NIRIOSignalGenerator extends SignalGeneratorBase
   }
 
   @Override
-  public boolean playScore(ScoreInterface pScore)
+  protected boolean prepareScore(ScoreInterface pPreviousScore,
+                                 ScoreInterface pScore)
+  {
+    prependTransitionMovement(pPreviousScore,
+                              pScore,
+                              getTransitionDurationInNanosecondsVariable().get(),
+                              TimeUnit.NANOSECONDS);
+
+    mNIRIOCompiledScoreBuffers.compile(pScore);
+    mCompiledMovementCacheHitRateVariable.set(mNIRIOCompiledScoreBuffers.getMovementCache()
+                                                                        .getHitRate());
+    return true;
+  }
+
+  @Override
+  protected boolean playPreparedScore(ScoreInterface pScore)
   {
     final Thread lCurrentThread = Thread.currentThread();
     final int lCurrentThreadPriority = lCurrentThread.getPriority();
@@ -60,31 +79,45 @@ public class NIRIOSignalGenerator extends SignalGeneratorBase
 
     boolean lPlayed = false;
 
-    prependTransitionMovement(pScore,
-                              getTransitionDurationInNanosecondsVariable().get(),
-                              TimeUnit.NANOSECONDS);
-
-    NIRIOScoreCompiler.compile(mNIRIOCompiledScore, pScore);
-
-    lPlayed = mDirettore.play(
-                              mNIRIOCompiledScore.getDeltaTimeBuffer()
-                                                 .getContiguousMemory()
-                                                 .getBridJPointer(Integer.class),
-                              mNIRIOCompiledScore.getNumberOfTimePointsBuffer()
-                                                 .getContiguousMemory()
-                                                 .getBridJPointer(Integer.class),
-                              mNIRIOCompiledScore.getSyncBuffer()
-                                                 .getContiguousMemory()
-                                                 .getBridJPointer(Integer.class),
-                              toIntExact(mNIRIOCompiledScore.getNumberOfMovements()),
-                              mNIRIOCompiledScore.getScoreBuffer()
-                                                 .getContiguousMemory()
-                                                 .getBridJPointer(Short.class));
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 mNIRIOCompiledScoreBuffers.acquire(pScore);
+    try
+    {
+      lPlayed = mDirettore.play(
+                                lNIRIOCompiledScore.getDeltaTimeBuffer()
+                                                   .getContiguousMemory()
+                                                   .getBridJPointer(Integer.class),
+                                lNIRIOCompiledScore.getNumberOfTimePointsBuffer()
+                                                   .getContiguousMemory()
+                                                   .getBridJPointer(Integer.class),
+                                lNIRIOCompiledScore.getSyncBuffer()
+                                                   .getContiguousMemory()
+                                                   .getBridJPointer(Integer.class),
+                                toIntExact(lNIRIOCompiledScore.getNumberOfMovements()),
+                                lNIRIOCompiledScore.getScoreBuffer()
+                                                   .getContiguousMemory()
+                                                   .getBridJPointer(Short.class));
+    }
+    finally
+    {
+      mNIRIOCompiledScoreBuffers.release(lNIRIOCompiledScore);
+    }
 
     lCurrentThread.setPriority(lCurrentThreadPriority);
     mTriggerVariable.set(false);
 
-    return lPlayed && super.playScore(pScore);
+    return lPlayed && super.playPreparedScore(pScore);
+  }
+
+  /**
+   * Returns the variable holding the ratio of movements that were found in the
+   * compiled movement cache instead of being recompiled.
+   *
+   * @return compiled movement cache hit rate variable
+   */
+  public Variable<Double> getCompiledMovementCacheHitRateVariable()
+  {
+    return mCompiledMovementCacheHitRateVariable;
   }
 
   @Override
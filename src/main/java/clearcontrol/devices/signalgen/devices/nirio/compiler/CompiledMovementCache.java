@@ -0,0 +1,312 @@
+package clearcontrol.devices.signalgen.devices.nirio.compiler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.movement.MovementSignature;
+
+/**
+ * Cache of compiled movements keyed by movement content: the key of a movement
+ * is its structural signature (see {@link MovementSignature}) and number of
+ * time points. Movements with equal keys compile to the same buffer, whether
+ * they are the same objects or not. Movements that can't be given a signature
+ * are never cached.
+ *
+ * Movements are looked up in place, keys are only created when compiled
+ * movements are put in the cache.
+ *
+ * The cache is bounded by a total number of cached time points, least recently
+ * used movements are evicted first.
+ *
+ * @author royer
+ */
+public class CompiledMovementCache
+{
+  private static final long cDefaultBudgetInShorts = 16 * 1024 * 1024;
+
+  private final long mBudgetInShorts;
+  // keyed by MovementKey, looked up with the MovementProbe:
+  private final LinkedHashMap<Object, short[]> mCache =
+                                                           new LinkedHashMap<>(16,
+                                                                               0.75f,
+                                                                               true);
+  private final MovementProbe mProbe = new MovementProbe();
+  private long mCachedShorts;
+
+  private final AtomicLong mNumberOfHits = new AtomicLong();
+  private final AtomicLong mNumberOfMisses = new AtomicLong();
+  private final AtomicLong mNumberOfUncacheable = new AtomicLong();
+
+  /**
+   * Instantiates a compiled movement cache holding up to 16M shorts (32 MB)
+   */
+  public CompiledMovementCache()
+  {
+    this(cDefaultBudgetInShorts);
+  }
+
+  /**
+   * Instantiates a compiled movement cache with a given budget
+   *
+   * @param pBudgetInShorts
+   *          maximal number of shorts held by the cache
+   */
+  public CompiledMovementCache(long pBudgetInShorts)
+  {
+    super();
+    mBudgetInShorts = pBudgetInShorts;
+  }
+
+  /**
+   * Returns the compiled movement for a given movement and number of time
+   * points, or null if not cached. The movement is hashed and compared in
+   * place, no key is created.
+   *
+   * @param pMovement
+   *          movement
+   * @param pNumberOfTimePoints
+   *          number of time points the movement is compiled to
+   * @return compiled movement or null
+   */
+  public short[] get(MovementInterface pMovement,
+                     long pNumberOfTimePoints)
+  {
+    final long lSignatureHashCode =
+                                  MovementSignature.hashCodeOf(pMovement);
+    if (lSignatureHashCode < 0)
+    {
+      mNumberOfUncacheable.incrementAndGet();
+      return null;
+    }
+
+    short[] lCompiledMovement;
+    synchronized (mCache)
+    {
+      mProbe.set(pMovement,
+                 pNumberOfTimePoints,
+                 (int) lSignatureHashCode);
+      try
+      {
+        lCompiledMovement = mCache.get(mProbe);
+      }
+      finally
+      {
+        mProbe.set(null, 0, 0);
+      }
+    }
+    if (lCompiledMovement == null)
+      mNumberOfMisses.incrementAndGet();
+    else
+      mNumberOfHits.incrementAndGet();
+    return lCompiledMovement;
+  }
+
+  /**
+   * Puts a compiled movement in the cache, unless the movement can't be given
+   * a signature. The array must not be modified afterwards.
+   *
+   * @param pMovement
+   *          movement
+   * @param pNumberOfTimePoints
+   *          number of time points the movement is compiled to
+   * @param pCompiledMovement
+   *          compiled movement
+   */
+  public void put(MovementInterface pMovement,
+                  long pNumberOfTimePoints,
+                  short[] pCompiledMovement)
+  {
+    if (pCompiledMovement.length > mBudgetInShorts)
+      return;
+
+    final MovementSignature lSignature = MovementSignature.of(pMovement);
+    if (lSignature == null)
+      return;
+    final MovementKey lKey = new MovementKey(lSignature,
+                                             pNumberOfTimePoints);
+
+    synchronized (mCache)
+    {
+      final short[] lPrevious = mCache.put(lKey, pCompiledMovement);
+      if (lPrevious != null)
+        mCachedShorts -= lPrevious.length;
+      mCachedShorts += pCompiledMovement.length;
+
+      final Iterator<Map.Entry<Object, short[]>> lIterator =
+                                                          mCache.entrySet()
+                                                                .iterator();
+      while (mCachedShorts > mBudgetInShorts && lIterator.hasNext())
+      {
+        mCachedShorts -= lIterator.next().getValue().length;
+        lIterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Clears the cache
+   */
+  public void clear()
+  {
+    synchronized (mCache)
+    {
+      mCache.clear();
+      mCachedShorts = 0;
+    }
+  }
+
+  /**
+   * Returns the number of cached movements
+   *
+   * @return number of cached movements
+   */
+  public int getNumberOfCachedMovements()
+  {
+    synchronized (mCache)
+    {
+      return mCache.size();
+    }
+  }
+
+  /**
+   * Returns the number of movements found in the cache
+   *
+   * @return number of hits
+   */
+  public long getNumberOfHits()
+  {
+    return mNumberOfHits.get();
+  }
+
+  /**
+   * Returns the number of movements that were not found in the cache
+   *
+   * @return number of misses
+   */
+  public long getNumberOfMisses()
+  {
+    return mNumberOfMisses.get();
+  }
+
+  /**
+   * Returns the number of movements that could not be cached
+   *
+   * @return number of uncacheable movements
+   */
+  public long getNumberOfUncacheable()
+  {
+    return mNumberOfUncacheable.get();
+  }
+
+  /**
+   * Returns the ratio of hits over all compiled movements
+   *
+   * @return hit rate within [0,1]
+   */
+  public double getHitRate()
+  {
+    final long lHits = mNumberOfHits.get();
+    final long lTotal = lHits + mNumberOfMisses.get()
+                        + mNumberOfUncacheable.get();
+    return lTotal == 0 ? 0 : ((double) lHits) / lTotal;
+  }
+
+  /**
+   * Resets hit and miss counters
+   */
+  public void resetStatistics()
+  {
+    mNumberOfHits.set(0);
+    mNumberOfMisses.set(0);
+    mNumberOfUncacheable.set(0);
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("CompiledMovementCache [movements=%d, hits=%d, misses=%d, uncacheable=%d, hitrate=%.3f]",
+                         getNumberOfCachedMovements(),
+                         getNumberOfHits(),
+                         getNumberOfMisses(),
+                         getNumberOfUncacheable(),
+                         getHitRate());
+  }
+
+  /**
+   * Movement key: movement signature and number of time points
+   */
+  private static final class MovementKey
+  {
+    private final MovementSignature mSignature;
+    private final long mNumberOfTimePoints;
+
+    private MovementKey(MovementSignature pSignature,
+                        long pNumberOfTimePoints)
+    {
+      mSignature = pSignature;
+      mNumberOfTimePoints = pNumberOfTimePoints;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * mSignature.hashCode()
+             + Long.hashCode(mNumberOfTimePoints);
+    }
+
+    @Override
+    public boolean equals(Object pObject)
+    {
+      if (this == pObject)
+        return true;
+      if (!(pObject instanceof MovementKey))
+        return false;
+      final MovementKey lOther = (MovementKey) pObject;
+      return mNumberOfTimePoints == lOther.mNumberOfTimePoints
+             && mSignature.equals(lOther.mSignature);
+    }
+  }
+
+  /**
+   * Lookup key matching a movement in place against cached keys: it hashes
+   * like the key the movement would have, and equals keys whose signature the
+   * movement matches. Only used under the cache lock.
+   */
+  private static final class MovementProbe
+  {
+    private MovementInterface mMovement;
+    private long mNumberOfTimePoints;
+    private int mSignatureHashCode;
+
+    private void set(MovementInterface pMovement,
+                     long pNumberOfTimePoints,
+                     int pSignatureHashCode)
+    {
+      mMovement = pMovement;
+      mNumberOfTimePoints = pNumberOfTimePoints;
+      mSignatureHashCode = pSignatureHashCode;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * mSignatureHashCode
+             + Long.hashCode(mNumberOfTimePoints);
+    }
+
+    @Override
+    public boolean equals(Object pObject)
+    {
+      if (!(pObject instanceof MovementKey))
+        return false;
+      final MovementKey lKey = (MovementKey) pObject;
+      return mNumberOfTimePoints == lKey.mNumberOfTimePoints
+             && mSignatureHashCode == lKey.mSignature.hashCode()
+             && lKey.mSignature.matches(mMovement);
+    }
+  }
+
+}
@@ -13,11 +13,18 @@ public class NIRIOCompiledScore
   private ContiguousBuffer mSyncBuffer;
   private ContiguousBuffer mNumberOfTimePointsBuffer;
   private ContiguousBuffer mScoreBuffer;
+  private final CompiledMovementCache mMovementCache;
 
   public ReentrantLock mReentrantLock = new ReentrantLock();
 
   public NIRIOCompiledScore()
   {
+    this(new CompiledMovementCache());
+  }
+
+  public NIRIOCompiledScore(CompiledMovementCache pMovementCache)
+  {
+    mMovementCache = pMovementCache;
   }
 
   @Override
@@ -71,6 +78,11 @@ public class NIRIOCompiledScore
     mScoreBuffer = pScoreBuffer;
   }
 
+  public CompiledMovementCache getMovementCache()
+  {
+    return mMovementCache;
+  }
+
   public void setNumberOfMovements(long pNumberOfMovements)
   {
     mNumberOfMovements = pNumberOfMovements;
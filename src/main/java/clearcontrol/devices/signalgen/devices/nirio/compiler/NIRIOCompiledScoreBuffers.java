@@ -0,0 +1,156 @@
+package clearcontrol.devices.signalgen.devices.nirio.compiler;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+
+/**
+ * Compiled score buffers for double-buffered playback: the next score is
+ * compiled into a free buffer while the current score plays from the other
+ * one. Buffers are swapped when the next score is acquired for playback, and
+ * returned once played. Two buffers are enough when scores are compiled at
+ * most one ahead, more are allocated if needed. Scores are identified by
+ * reference and acquired in the order they were compiled: acquiring a score
+ * releases the buffers of the scores compiled before it that were never
+ * played. All buffers share the same compiled movement cache.
+ *
+ * @author royer
+ */
+public class NIRIOCompiledScoreBuffers
+{
+  private final CompiledMovementCache mMovementCache =
+                                                     new CompiledMovementCache();
+  private final ConcurrentLinkedQueue<NIRIOCompiledScore> mFreeBuffers =
+                                                                       new ConcurrentLinkedQueue<>();
+  // compiled scores in compilation order, and their buffers:
+  private final ArrayList<ScoreInterface> mCompiledScores =
+                                                          new ArrayList<>();
+  private final ArrayList<NIRIOCompiledScore> mCompiledScoreBuffers =
+                                                                    new ArrayList<>();
+  private final AtomicInteger mNumberOfBuffers = new AtomicInteger();
+
+  /**
+   * Instantiates a pair of compiled score buffers
+   */
+  public NIRIOCompiledScoreBuffers()
+  {
+    for (int i = 0; i < 2; i++)
+      mFreeBuffers.add(newBuffer());
+  }
+
+  private NIRIOCompiledScore newBuffer()
+  {
+    mNumberOfBuffers.incrementAndGet();
+    return new NIRIOCompiledScore(mMovementCache);
+  }
+
+  /**
+   * Compiles a score into a free buffer, the buffer is kept until the score is
+   * acquired for playback.
+   *
+   * @param pScore
+   *          score to compile
+   */
+  public void compile(ScoreInterface pScore)
+  {
+    NIRIOCompiledScore lCompiledScore = mFreeBuffers.poll();
+    if (lCompiledScore == null)
+      lCompiledScore = newBuffer();
+
+    NIRIOScoreCompiler.compile(lCompiledScore, pScore);
+
+    synchronized (mCompiledScores)
+    {
+      // a score compiled again is moved to the end:
+      final int lIndex = indexOf(pScore);
+      if (lIndex >= 0)
+      {
+        mCompiledScores.remove(lIndex);
+        release(mCompiledScoreBuffers.remove(lIndex));
+      }
+      mCompiledScores.add(pScore);
+      mCompiledScoreBuffers.add(lCompiledScore);
+    }
+  }
+
+  /**
+   * Returns the buffer holding a given compiled score, compiling the score
+   * first if needed. The buffer must be released after playback.
+   *
+   * @param pScore
+   *          score
+   * @return compiled score buffer
+   */
+  public NIRIOCompiledScore acquire(ScoreInterface pScore)
+  {
+    NIRIOCompiledScore lCompiledScore = take(pScore);
+    if (lCompiledScore == null)
+    {
+      compile(pScore);
+      lCompiledScore = take(pScore);
+    }
+    return lCompiledScore;
+  }
+
+  private NIRIOCompiledScore take(ScoreInterface pScore)
+  {
+    synchronized (mCompiledScores)
+    {
+      final int lIndex = indexOf(pScore);
+      if (lIndex < 0)
+        return null;
+
+      // scores compiled before this one have been dropped without being
+      // played:
+      for (int i = 0; i < lIndex; i++)
+        release(mCompiledScoreBuffers.get(i));
+      mCompiledScores.subList(0, lIndex + 1).clear();
+      final NIRIOCompiledScore lCompiledScore =
+                                              mCompiledScoreBuffers.get(lIndex);
+      mCompiledScoreBuffers.subList(0, lIndex + 1).clear();
+      return lCompiledScore;
+    }
+  }
+
+  private int indexOf(ScoreInterface pScore)
+  {
+    for (int i = 0; i < mCompiledScores.size(); i++)
+      if (mCompiledScores.get(i) == pScore)
+        return i;
+    return -1;
+  }
+
+  /**
+   * Releases a buffer previously acquired
+   *
+   * @param pCompiledScore
+   *          compiled score buffer
+   */
+  public void release(NIRIOCompiledScore pCompiledScore)
+  {
+    mFreeBuffers.add(pCompiledScore);
+  }
+
+  /**
+   * Returns the number of allocated buffers
+   *
+   * @return number of buffers
+   */
+  public int getNumberOfBuffers()
+  {
+    return mNumberOfBuffers.get();
+  }
+
+  /**
+   * Returns the compiled movement cache shared by all buffers
+   *
+   * @return compiled movement cache
+   */
+  public CompiledMovementCache getMovementCache()
+  {
+    return mMovementCache;
+  }
+
+}
@@ -6,6 +6,9 @@ import static java.lang.Math.round;
 import static java.lang.Math.toIntExact;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 import nirioj.direttore.Direttore;
@@ -13,7 +16,6 @@ import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.devices.signalgen.movement.Movement;
 import clearcontrol.devices.signalgen.movement.MovementInterface;
 import clearcontrol.devices.signalgen.score.ScoreInterface;
-import clearcontrol.devices.signalgen.staves.ConstantStave;
 import clearcontrol.devices.signalgen.staves.IntervalStave;
 import clearcontrol.devices.signalgen.staves.StaveInterface;
 import clearcontrol.devices.signalgen.staves.ZeroStave;
@@ -21,6 +23,8 @@ import coremem.buffers.ContiguousBuffer;
 
 public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
 {
+  // movements with fewer values are rendered on the calling thread:
+  private static final long cParallelRenderingThreshold = 8192;
 
   public static void compile(NIRIOCompiledScore pNIRIOCompiledScore,
                              ScoreInterface pScore)
@@ -110,144 +114,181 @@ public class NIRIOScoreCompiler implements AsynchronousExecutorFeature
     pNIRIOCompiledScore.getNumberOfTimePointsBuffer()
                        .writeInt(toIntExact(lNumberOfTimePoints));
 
-    addMovementToBuffer(pNIRIOCompiledScore.getScoreBuffer(),
-                        pMovement);
+    addMovementToBuffer(pNIRIOCompiledScore, pMovement);
 
     pNIRIOCompiledScore.setNumberOfMovements(pNIRIOCompiledScore.getNumberOfMovements()
                                              + 1);
   }
 
-  private static void addMovementToBuffer(ContiguousBuffer pScoreBuffer,
+  private static void addMovementToBuffer(NIRIOCompiledScore pNIRIOCompiledScore,
                                           MovementInterface pMovement)
   {
+    final CompiledMovementCache lCache =
+                                       pNIRIOCompiledScore.getMovementCache();
     final long lNumberOfTimePoints = getNumberOfTimePoints(pMovement);
-    final int lNumberOfStaves = pMovement.getNumberOfStaves();
-
-    pScoreBuffer.pushPosition();
-    long lNumberOfShortsInMovement = lNumberOfTimePoints
-                                     * lNumberOfStaves;
-    pScoreBuffer.writeBytes(2 * lNumberOfShortsInMovement, (byte) 0);
-    pScoreBuffer.popPosition();
 
-    pScoreBuffer.pushPosition();
-    for (int s = 0; s < lNumberOfStaves; s++)
+    short[] lCompiledMovement = lCache.get(pMovement,
+                                           lNumberOfTimePoints);
+    if (lCompiledMovement == null)
     {
+      lCompiledMovement = renderMovement(pMovement,
+                                         lNumberOfTimePoints);
+      lCache.put(pMovement, lNumberOfTimePoints, lCompiledMovement);
+    }
 
-      pScoreBuffer.pushPosition();
-      final StaveInterface lStave = pMovement.getStave(s);
+    final ContiguousBuffer lScoreBuffer =
+                                        pNIRIOCompiledScore.getScoreBuffer();
+    lScoreBuffer.getContiguousMemory()
+                .subRegion(lScoreBuffer.getPosition(),
+                           2L * lCompiledMovement.length)
+                .copyFrom(lCompiledMovement);
+    lScoreBuffer.skipShorts(lCompiledMovement.length);
+  }
 
-      if (lStave instanceof ZeroStave)
-      {
-        addZeroStaveToBuffer(pScoreBuffer,
-                             lNumberOfTimePoints,
-                             lNumberOfStaves);
-      }
-      else if (lStave instanceof ConstantStave)
-      {
-        final ConstantStave lConstantStave = (ConstantStave) lStave;
-        addConstantStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lConstantStave.getConstantValue());
-      }
-      else if (lStave instanceof IntervalStave)
-      {
-        final IntervalStave lIntervalStave = (IntervalStave) lStave;
-        addIntervalStaveToBuffer(pScoreBuffer,
-                                 lNumberOfTimePoints,
-                                 lNumberOfStaves,
-                                 lIntervalStave);
-      } /**/
-      else
+  /**
+   * Renders a movement into an array of interleaved stave values: the value of
+   * stave s at time point t is at index t*numberOfStaves+s. Staves are rendered
+   * in parallel into per-stave arrays which are then interleaved in one pass.
+   *
+   * @param pMovement
+   *          movement
+   * @param pNumberOfTimePoints
+   *          number of time points
+   * @return rendered movement
+   */
+  public static short[] renderMovement(MovementInterface pMovement,
+                                       long pNumberOfTimePoints)
+  {
+    final int lNumberOfTimePoints = toIntExact(pNumberOfTimePoints);
+    final int lNumberOfStaves = pMovement.getNumberOfStaves();
+
+    final float[] lNormalizedTimes = new float[lNumberOfTimePoints];
+    final float lInvNumberOfTimepoints = 1f / lNumberOfTimePoints;
+    for (int t = 0; t < lNumberOfTimePoints; t++)
+      lNormalizedTimes[t] = t * lInvNumberOfTimepoints;
+
+    // zero staves are left null:
+    final float[][] lStaveValues = new float[lNumberOfStaves][];
+    final StaveRenderingTask lStaveRenderingTask =
+                                                 new StaveRenderingTask(pMovement,
+                                                                        lNormalizedTimes,
+                                                                        lStaveValues,
+                                                                        0,
+                                                                        lNumberOfStaves);
+    if (lNumberOfStaves > 1
+        && ((long) lNumberOfStaves)
+           * lNumberOfTimePoints >= cParallelRenderingThreshold)
+      ForkJoinPool.commonPool().invoke(lStaveRenderingTask);
+    else
+      lStaveRenderingTask.compute();
+
+    final short[] lArray =
+                         new short[toIntExact(pNumberOfTimePoints
+                                              * lNumberOfStaves)];
+    for (int t = 0, i = 0; t < lNumberOfTimePoints; t++)
+      for (int s = 0; s < lNumberOfStaves; s++, i++)
       {
-        addStaveToBuffer(pScoreBuffer,
-                         lNumberOfTimePoints,
-                         lNumberOfStaves,
-                         lStave);
+        final float[] lValues = lStaveValues[s];
+        if (lValues != null)
+          lArray[i] = getShortForFloat(lValues[t]);
       }
 
-      pScoreBuffer.popPosition();
-      pScoreBuffer.skipShorts(1);
-    }
-    pScoreBuffer.popPosition();
-
-    pScoreBuffer.skipShorts(lNumberOfShortsInMovement);
+    return lArray;
+  }
 
+  private static float[] renderStave(StaveInterface pStave,
+                                     float[] pNormalizedTimes)
+  {
+    if (pStave == null || pStave instanceof ZeroStave)
+      return null;
+
+    final float[] lValues = new float[pNormalizedTimes.length];
+    if (pStave instanceof IntervalStave)
+      renderIntervalStave((IntervalStave) pStave,
+                          pNormalizedTimes,
+                          lValues);
+    else
+      pStave.render(pNormalizedTimes, lValues);
+    return lValues;
   }
 
-  private static void addIntervalStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               long pNumberOfTimePoints,
-                                               int pNumberOfStaves,
-                                               IntervalStave pIntervalStave)
+  // interval staves (and their subclasses) are always rendered as intervals
+  // and are kept low on the last time point when starting at zero:
+  private static void renderIntervalStave(IntervalStave pIntervalStave,
+                                          float[] pNormalizedTimes,
+                                          float[] pValues)
   {
     final float lSyncStart = pIntervalStave.getStart();
     final float lSyncStop = pIntervalStave.getStop();
-    final short lInsideValue =
-                             getShortForFloat(pIntervalStave.getInsideValue());
-    final short lOutsideValue =
-                              getShortForFloat(pIntervalStave.getOutsideValue());
-    final boolean lEnabled = pIntervalStave.isEnabled();
-
-    final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    final float lInsideValue = pIntervalStave.getInsideValue();
+    final float lOutsideValue = pIntervalStave.getOutsideValue();
+    final int lNumberOfTimePoints = pNormalizedTimes.length;
+
+    if (!pIntervalStave.isEnabled())
     {
-      final float lNormalizedTime = t * lInvNumberOfTimepoints;
+      Arrays.fill(pValues, 0, lNumberOfTimePoints, lOutsideValue);
+      return;
+    }
 
-      if (!lEnabled)
-      {
-        pScoreBuffer.writeShort(lOutsideValue);
-      }
-      else if (t == pNumberOfTimePoints - 1 && lSyncStart == 0)
-      {
-        pScoreBuffer.writeShort(lOutsideValue);
-      }
+    for (int t = 0; t < lNumberOfTimePoints; t++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[t];
+      if (lNormalizedTime < lSyncStart || lNormalizedTime > lSyncStop)
+        pValues[t] = lOutsideValue;
       else
-      {
-        if (lNormalizedTime < lSyncStart
-            || lNormalizedTime > lSyncStop)
-          pScoreBuffer.writeShort(lOutsideValue);
-        else
-          pScoreBuffer.writeShort(lInsideValue);
-      }
-
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
+        pValues[t] = lInsideValue;
     }
 
+    if (lSyncStart == 0 && lNumberOfTimePoints > 0)
+      pValues[lNumberOfTimePoints - 1] = lOutsideValue;
   }
 
-  private static void addConstantStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                               final long pNumberOfTimePoints,
-                                               final int pNumberOfStaves,
-                                               final float pFloatConstant)
+  private static class StaveRenderingTask extends RecursiveAction
   {
-    final short lShortValue = getShortForFloat(pFloatConstant);
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    private static final long serialVersionUID = 1L;
+
+    private final MovementInterface mMovement;
+    private final float[] mNormalizedTimes;
+    private final float[][] mStaveValues;
+    private final int mBeginStave, mEndStave;
+
+    StaveRenderingTask(MovementInterface pMovement,
+                       float[] pNormalizedTimes,
+                       float[][] pStaveValues,
+                       int pBeginStave,
+                       int pEndStave)
     {
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
+      mMovement = pMovement;
+      mNormalizedTimes = pNormalizedTimes;
+      mStaveValues = pStaveValues;
+      mBeginStave = pBeginStave;
+      mEndStave = pEndStave;
     }
-  }
-
-  private static void addZeroStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                           final long pNumberOfTimePoints,
-                                           final int pNumberOfStaves)
-  {
-    // do nothing - already 0
-  }
 
-  private static void addStaveToBuffer(ContiguousBuffer pScoreBuffer,
-                                       final long pNumberOfTimePoints,
-                                       final int pNumberOfStaves,
-                                       final StaveInterface pStave)
-  {
-    final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
-    for (int t = 0; t < pNumberOfTimePoints; t++)
+    @Override
+    protected void compute()
     {
-      final float lNormalizedTime = t * lInvNumberOfTimepoints;
-      final float lFloatValue = pStave.getValue(lNormalizedTime);
-      final short lShortValue = getShortForFloat(lFloatValue);
-      pScoreBuffer.writeShort(lShortValue);
-      pScoreBuffer.skipShorts(pNumberOfStaves - 1);
+      if (mEndStave - mBeginStave == 1 || !inForkJoinPool())
+      {
+        for (int s = mBeginStave; s < mEndStave; s++)
+          mStaveValues[s] = renderStave(mMovement.getStave(s),
+                                        mNormalizedTimes);
+        return;
+      }
+      if (mEndStave <= mBeginStave)
+        return;
+
+      final int lMiddleStave = (mBeginStave + mEndStave) >>> 1;
+      invokeAll(new StaveRenderingTask(mMovement,
+                                       mNormalizedTimes,
+                                       mStaveValues,
+                                       mBeginStave,
+                                       lMiddleStave),
+                new StaveRenderingTask(mMovement,
+                                       mNormalizedTimes,
+                                       mStaveValues,
+                                       lMiddleStave,
+                                       mEndStave));
     }
   }
 
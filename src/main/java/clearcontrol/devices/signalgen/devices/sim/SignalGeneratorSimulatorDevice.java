@@ -1,5 +1,7 @@
 package clearcontrol.devices.signalgen.devices.sim;
 
+import static java.lang.Math.max;
+
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -25,13 +27,25 @@ public class SignalGeneratorSimulatorDevice extends
 {
 
   private volatile int mQueueLength;
+  private volatile boolean mRealTime = true;
 
   /**
    * Signal generator device simulator
    */
   public SignalGeneratorSimulatorDevice()
   {
-    super(SignalGeneratorSimulatorDevice.class.getSimpleName());
+    this(SignalGeneratorSimulatorDevice.class.getSimpleName());
+  }
+
+  /**
+   * Signal generator device simulator of given name
+   * 
+   * @param pDeviceName
+   *          device name
+   */
+  public SignalGeneratorSimulatorDevice(String pDeviceName)
+  {
+    super(pDeviceName);
 
     mTriggerVariable.addSetListener((o, n) -> {
       if (isSimLogging())
@@ -59,23 +73,45 @@ public class SignalGeneratorSimulatorDevice extends
   }
 
   @Override
-  public boolean playScore(ScoreInterface pScore)
+  protected boolean playPreparedScore(ScoreInterface pScore)
   {
 
     final long lDurationInMilliseconds =
                                        pScore.getDuration(TimeUnit.MILLISECONDS);
 
     long ltriggerPeriodInMilliseconds = lDurationInMilliseconds
-                                        / mQueueLength;
+                                        / max(1, mQueueLength);
 
     for (int i = 0; i < mQueueLength; i++)
     {
       mTriggerVariable.setEdge(false, true);
-      ThreadSleep.sleep(ltriggerPeriodInMilliseconds,
-                        TimeUnit.MILLISECONDS);
+      if (mRealTime)
+        ThreadSleep.sleep(ltriggerPeriodInMilliseconds,
+                          TimeUnit.MILLISECONDS);
     }
 
-    return super.playScore(pScore);
+    return super.playPreparedScore(pScore);
+  }
+
+  /**
+   * Sets whether scores are played in real time, or as fast as possible.
+   * 
+   * @param pRealTime
+   *          true for real time, false otherwise
+   */
+  public void setRealTime(boolean pRealTime)
+  {
+    mRealTime = pRealTime;
+  }
+
+  /**
+   * Returns true if scores are played in real time.
+   * 
+   * @return true if real time
+   */
+  public boolean isRealTime()
+  {
+    return mRealTime;
   }
 
   @Override
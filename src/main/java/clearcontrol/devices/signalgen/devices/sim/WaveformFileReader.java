@@ -0,0 +1,300 @@
+package clearcontrol.devices.signalgen.devices.sim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+
+import nirioj.direttore.Direttore;
+
+/**
+ * Reader for the waveform files written by a
+ * {@link WaveformFileSignalGeneratorSimulatorDevice}. Records are memory-mapped
+ * and decoded lazily, per-channel traces are reconstructed from the compiled
+ * buffers.
+ *
+ * @author royer
+ */
+public class WaveformFileReader implements Closeable
+{
+  private final RandomAccessFile mRandomAccessFile;
+  private final FileChannel mFileChannel;
+  private final ArrayList<Record> mRecords = new ArrayList<>();
+
+  /**
+   * Opens a waveform file and indexes its records.
+   *
+   * @param pFile
+   *          waveform file
+   * @throws IOException
+   *           if the file can't be read or is not a waveform file
+   */
+  public WaveformFileReader(File pFile) throws IOException
+  {
+    mRandomAccessFile = new RandomAccessFile(pFile, "r");
+    mFileChannel = mRandomAccessFile.getChannel();
+
+    final long lFileLength = mFileChannel.size();
+    long lPosition = 0;
+    final ByteBuffer lHeader =
+                             ByteBuffer.allocate(WaveformFileSignalGeneratorSimulatorDevice.cRecordHeaderLengthInBytes)
+                                       .order(ByteOrder.nativeOrder());
+    while (lPosition < lFileLength)
+    {
+      lHeader.clear();
+      while (lHeader.hasRemaining())
+        if (mFileChannel.read(lHeader,
+                              lPosition + lHeader.position()) < 0)
+          throw new IOException("Truncated waveform file record at "
+                                + lPosition);
+      lHeader.flip();
+
+      if (lHeader.getInt() != WaveformFileSignalGeneratorSimulatorDevice.cRecordMagic)
+        throw new IOException("Invalid waveform file record at "
+                              + lPosition);
+      final int lNumberOfMovements = lHeader.getInt();
+      final long lScoreLengthInBytes = lHeader.getLong();
+      final long lRecordLengthInBytes =
+                                      WaveformFileSignalGeneratorSimulatorDevice.cRecordHeaderLengthInBytes
+                                        + 16L * lNumberOfMovements
+                                        + lScoreLengthInBytes;
+
+      mRecords.add(new Record(lPosition,
+                              lRecordLengthInBytes,
+                              lNumberOfMovements));
+      lPosition += lRecordLengthInBytes;
+    }
+  }
+
+  /**
+   * Returns the number of records, i.e. played scores, in the file
+   *
+   * @return number of records
+   */
+  public int getNumberOfRecords()
+  {
+    return mRecords.size();
+  }
+
+  /**
+   * Returns the number of movements of a given record
+   *
+   * @param pRecordIndex
+   *          record index
+   * @return number of movements
+   */
+  public int getNumberOfMovements(int pRecordIndex)
+  {
+    return mRecords.get(pRecordIndex).mNumberOfMovements;
+  }
+
+  /**
+   * Returns the delta time in ticks of a given movement
+   *
+   * @param pRecordIndex
+   *          record index
+   * @param pMovementIndex
+   *          movement index
+   * @return delta time in ticks
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public int getDeltaTimeInTicks(int pRecordIndex, int pMovementIndex) throws IOException
+  {
+    return getRecordBuffer(pRecordIndex).getInt(getIntArrayOffset(0,
+                                                                  pRecordIndex,
+                                                                  pMovementIndex));
+  }
+
+  /**
+   * Returns the sync word of a given movement
+   *
+   * @param pRecordIndex
+   *          record index
+   * @param pMovementIndex
+   *          movement index
+   * @return sync word
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public int getSync(int pRecordIndex, int pMovementIndex) throws IOException
+  {
+    return getRecordBuffer(pRecordIndex).getInt(getIntArrayOffset(1,
+                                                                  pRecordIndex,
+                                                                  pMovementIndex));
+  }
+
+  /**
+   * Returns the number of time points of a given movement
+   *
+   * @param pRecordIndex
+   *          record index
+   * @param pMovementIndex
+   *          movement index
+   * @return number of time points
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public int getNumberOfTimePoints(int pRecordIndex, int pMovementIndex) throws IOException
+  {
+    return getRecordBuffer(pRecordIndex).getInt(getIntArrayOffset(2,
+                                                                  pRecordIndex,
+                                                                  pMovementIndex));
+  }
+
+  /**
+   * Returns the number of staves of a given movement
+   *
+   * @param pRecordIndex
+   *          record index
+   * @param pMovementIndex
+   *          movement index
+   * @return number of staves
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public int getNumberOfStaves(int pRecordIndex, int pMovementIndex) throws IOException
+  {
+    return getRecordBuffer(pRecordIndex).getInt(getIntArrayOffset(3,
+                                                                  pRecordIndex,
+                                                                  pMovementIndex));
+  }
+
+  /**
+   * Returns the total number of time points of a given record
+   *
+   * @param pRecordIndex
+   *          record index
+   * @return number of time points
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public int getNumberOfTimePoints(int pRecordIndex) throws IOException
+  {
+    int lNumberOfTimePoints = 0;
+    for (int m = 0; m < getNumberOfMovements(pRecordIndex); m++)
+      lNumberOfTimePoints += getNumberOfTimePoints(pRecordIndex, m);
+    return lNumberOfTimePoints;
+  }
+
+  /**
+   * Returns the times in nanoseconds, since the beginning of the score, of
+   * all time points of a given record
+   *
+   * @param pRecordIndex
+   *          record index
+   * @return times in nanoseconds
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public double[] getTimesInNanoseconds(int pRecordIndex) throws IOException
+  {
+    final double[] lTimes =
+                          new double[getNumberOfTimePoints(pRecordIndex)];
+    double lTime = 0;
+    int i = 0;
+    for (int m = 0; m < getNumberOfMovements(pRecordIndex); m++)
+    {
+      final double lDeltaTime =
+                              getDeltaTimeInTicks(pRecordIndex, m)
+                                * (double) Direttore.cNanosecondsPerTicks;
+      for (int t = 0; t < getNumberOfTimePoints(pRecordIndex, m); t++)
+      {
+        lTimes[i++] = lTime;
+        lTime += lDeltaTime;
+      }
+    }
+    return lTimes;
+  }
+
+  /**
+   * Returns the trace of a given channel (stave index) for all time points of
+   * a given record. Values are normalized within [-1,1], channels beyond the
+   * number of staves of a movement are zero.
+   *
+   * @param pRecordIndex
+   *          record index
+   * @param pChannel
+   *          channel
+   * @return channel trace
+   * @throws IOException
+   *           if the record can't be read
+   */
+  public float[] getTrace(int pRecordIndex, int pChannel) throws IOException
+  {
+    final ByteBuffer lRecordBuffer = getRecordBuffer(pRecordIndex);
+    final float[] lTrace =
+                         new float[getNumberOfTimePoints(pRecordIndex)];
+    final int lNumberOfMovements = getNumberOfMovements(pRecordIndex);
+
+    long lOffset = WaveformFileSignalGeneratorSimulatorDevice.cRecordHeaderLengthInBytes
+                   + 16L * lNumberOfMovements;
+    int i = 0;
+    for (int m = 0; m < lNumberOfMovements; m++)
+    {
+      final int lNumberOfTimePoints =
+                                    getNumberOfTimePoints(pRecordIndex,
+                                                          m);
+      final int lNumberOfStaves = getNumberOfStaves(pRecordIndex, m);
+      if (pChannel < lNumberOfStaves)
+        for (int t = 0; t < lNumberOfTimePoints; t++)
+          lTrace[i + t] =
+                        lRecordBuffer.getShort((int) (lOffset
+                                                      + 2L
+                                                        * (t * lNumberOfStaves
+                                                           + pChannel)))
+                          / (float) Short.MAX_VALUE;
+      i += lNumberOfTimePoints;
+      lOffset += 2L * lNumberOfTimePoints * lNumberOfStaves;
+    }
+    return lTrace;
+  }
+
+  private int getIntArrayOffset(int pArrayIndex,
+                                int pRecordIndex,
+                                int pMovementIndex)
+  {
+    return WaveformFileSignalGeneratorSimulatorDevice.cRecordHeaderLengthInBytes
+           + 4 * (pArrayIndex * getNumberOfMovements(pRecordIndex)
+                  + pMovementIndex);
+  }
+
+  private ByteBuffer getRecordBuffer(int pRecordIndex) throws IOException
+  {
+    final Record lRecord = mRecords.get(pRecordIndex);
+    if (lRecord.mBuffer == null)
+      lRecord.mBuffer = mFileChannel.map(MapMode.READ_ONLY,
+                                         lRecord.mPosition,
+                                         lRecord.mLengthInBytes)
+                                    .order(ByteOrder.nativeOrder());
+    return lRecord.mBuffer;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mRecords.clear();
+    mRandomAccessFile.close();
+  }
+
+  private static class Record
+  {
+    final long mPosition;
+    final long mLengthInBytes;
+    final int mNumberOfMovements;
+    ByteBuffer mBuffer;
+
+    Record(long pPosition, long pLengthInBytes, int pNumberOfMovements)
+    {
+      mPosition = pPosition;
+      mLengthInBytes = pLengthInBytes;
+      mNumberOfMovements = pNumberOfMovements;
+    }
+  }
+
+}
@@ -0,0 +1,314 @@
+package clearcontrol.devices.signalgen.devices.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScore;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScoreBuffers;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+import coremem.ContiguousMemoryInterface;
+import coremem.offheap.OffHeapMemory;
+
+/**
+ * Signal generator device simulator that compiles scores with the NI RIO score
+ * compiler and appends the compiled buffers to a waveform file, exactly as they
+ * would be sent to the hardware. Like the hardware signal generator, scores are
+ * compiled when prepared and written when played. Waveform files can be read
+ * back with a {@link WaveformFileReader}.
+ *
+ * The file is a sequence of records in native byte order, one per played
+ * score:
+ *
+ * <pre>
+ * int   record magic number
+ * int   number of movements n
+ * long  length in bytes of the score buffer
+ * int[n] delta times in ticks
+ * int[n] sync words
+ * int[n] numbers of time points
+ * int[n] numbers of staves
+ * short[] score buffer: for each movement, time points of interleaved staves
+ * </pre>
+ *
+ * @author royer
+ */
+public class WaveformFileSignalGeneratorSimulatorDevice extends
+                                                        SignalGeneratorSimulatorDevice
+{
+  static final int cRecordMagic = 0x43435746;
+  static final int cRecordHeaderLengthInBytes = 16;
+
+  private final File mFile;
+  private final NIRIOCompiledScoreBuffers mNIRIOCompiledScoreBuffers =
+                                                                     new NIRIOCompiledScoreBuffers();
+
+  private RandomAccessFile mRandomAccessFile;
+  private FileChannel mFileChannel;
+  private long mFilePosition;
+  private ByteBuffer mRecordBuffer;
+
+  private volatile long mNumberOfRecords;
+  private volatile long mPlayedDurationInNanoseconds;
+  private volatile long mCompileTimeInNanoseconds;
+  private volatile long mWriteTimeInNanoseconds;
+
+  /**
+   * Instantiates a simulator writing to the given waveform file. The file is
+   * overwritten when the device is opened.
+   *
+   * @param pFile
+   *          waveform file
+   */
+  public WaveformFileSignalGeneratorSimulatorDevice(File pFile)
+  {
+    super(WaveformFileSignalGeneratorSimulatorDevice.class.getSimpleName());
+    mFile = pFile;
+  }
+
+  /**
+   * Returns the waveform file
+   *
+   * @return waveform file
+   */
+  public File getFile()
+  {
+    return mFile;
+  }
+
+  @Override
+  public synchronized boolean open()
+  {
+    try
+    {
+      mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+      mRandomAccessFile.setLength(0);
+      mFileChannel = mRandomAccessFile.getChannel();
+      mFilePosition = 0;
+      mNumberOfRecords = 0;
+      return super.open();
+    }
+    catch (IOException e)
+    {
+      severe("Could not open waveform file %s: %s", mFile, e);
+      return false;
+    }
+  }
+
+  @Override
+  public synchronized boolean close()
+  {
+    try
+    {
+      if (mRandomAccessFile != null)
+      {
+        mFileChannel.force(false);
+        mRandomAccessFile.close();
+        mRandomAccessFile = null;
+        mFileChannel = null;
+      }
+      return super.close();
+    }
+    catch (IOException e)
+    {
+      severe("Could not close waveform file %s: %s", mFile, e);
+      return false;
+    }
+  }
+
+  @Override
+  protected boolean prepareScore(ScoreInterface pPreviousScore,
+                                 ScoreInterface pScore)
+  {
+    prependTransitionMovement(pPreviousScore,
+                              pScore,
+                              getTransitionDurationInNanosecondsVariable().get(),
+                              TimeUnit.NANOSECONDS);
+
+    final long lCompileStartTime = System.nanoTime();
+    mNIRIOCompiledScoreBuffers.compile(pScore);
+    mCompileTimeInNanoseconds += System.nanoTime() - lCompileStartTime;
+    return true;
+  }
+
+  @Override
+  protected boolean playPreparedScore(ScoreInterface pScore)
+  {
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 mNIRIOCompiledScoreBuffers.acquire(pScore);
+    try
+    {
+      if (!writeScore(lNIRIOCompiledScore, pScore))
+        return false;
+    }
+    finally
+    {
+      mNIRIOCompiledScoreBuffers.release(lNIRIOCompiledScore);
+    }
+
+    return super.playPreparedScore(pScore);
+  }
+
+  private synchronized boolean writeScore(NIRIOCompiledScore pNIRIOCompiledScore,
+                                          ScoreInterface pScore)
+  {
+    if (mFileChannel == null)
+    {
+      severe("Waveform file %s is not open", mFile);
+      return false;
+    }
+
+    final long lWriteStartTime = System.nanoTime();
+
+    final int lNumberOfMovements =
+                                 (int) pNIRIOCompiledScore.getNumberOfMovements();
+    long lScoreLengthInBytes = 0;
+    for (int m = 0; m < lNumberOfMovements; m++)
+      lScoreLengthInBytes += 2L
+                             * NIRIOScoreCompiler.getNumberOfTimePoints(pScore.getMovement(m))
+                             * pScore.getMovement(m)
+                                     .getNumberOfStaves();
+
+    final long lIntArrayLengthInBytes = 4L * lNumberOfMovements;
+    final long lRecordLengthInBytes = cRecordHeaderLengthInBytes
+                                      + 4 * lIntArrayLengthInBytes
+                                      + lScoreLengthInBytes;
+
+    try
+    {
+      // records are assembled in a reused direct buffer and written with a
+      // single call, nothing stays mapped and keeps the file from being
+      // truncated or deleted:
+      if (mRecordBuffer == null
+          || mRecordBuffer.capacity() < lRecordLengthInBytes)
+        mRecordBuffer =
+                      ByteBuffer.allocateDirect((int) lRecordLengthInBytes)
+                                .order(ByteOrder.nativeOrder());
+      final ByteBuffer lRecordBuffer = mRecordBuffer;
+      lRecordBuffer.clear();
+      lRecordBuffer.putInt(0, cRecordMagic);
+      lRecordBuffer.putInt(4, lNumberOfMovements);
+      lRecordBuffer.putLong(8, lScoreLengthInBytes);
+
+      final OffHeapMemory lRecordMemory =
+                                        OffHeapMemory.wrapBuffer(lRecordBuffer);
+      long lOffset = cRecordHeaderLengthInBytes;
+      lOffset = copy(pNIRIOCompiledScore.getDeltaTimeBuffer()
+                                        .getContiguousMemory(),
+                     lRecordMemory,
+                     lOffset,
+                     lIntArrayLengthInBytes);
+      lOffset = copy(pNIRIOCompiledScore.getSyncBuffer()
+                                        .getContiguousMemory(),
+                     lRecordMemory,
+                     lOffset,
+                     lIntArrayLengthInBytes);
+      lOffset = copy(pNIRIOCompiledScore.getNumberOfTimePointsBuffer()
+                                        .getContiguousMemory(),
+                     lRecordMemory,
+                     lOffset,
+                     lIntArrayLengthInBytes);
+      for (int m = 0; m < lNumberOfMovements; m++)
+      {
+        lRecordMemory.setIntAligned(lOffset / 4,
+                                    pScore.getMovement(m)
+                                          .getNumberOfStaves());
+        lOffset += 4;
+      }
+      copy(pNIRIOCompiledScore.getScoreBuffer().getContiguousMemory(),
+           lRecordMemory,
+           lOffset,
+           lScoreLengthInBytes);
+
+      lRecordBuffer.limit((int) lRecordLengthInBytes);
+      while (lRecordBuffer.hasRemaining())
+        mFilePosition += mFileChannel.write(lRecordBuffer, mFilePosition);
+      mNumberOfRecords++;
+    }
+    catch (IOException e)
+    {
+      severe("Could not write to waveform file %s: %s", mFile, e);
+      return false;
+    }
+
+    final long lEndTime = System.nanoTime();
+    final long lDuration = pScore.getDuration(TimeUnit.NANOSECONDS);
+    mWriteTimeInNanoseconds += lEndTime - lWriteStartTime;
+    mPlayedDurationInNanoseconds += lDuration;
+
+    if (lEndTime - lWriteStartTime > lDuration)
+      warning("Writing score took %d us, longer than its duration of %d us",
+              (lEndTime - lWriteStartTime) / 1000,
+              lDuration / 1000);
+    return true;
+  }
+
+  private static long copy(ContiguousMemoryInterface pSource,
+                           ContiguousMemoryInterface pDestination,
+                           long pDestinationOffset,
+                           long pLengthInBytes)
+  {
+    if (pLengthInBytes > 0)
+      pDestination.subRegion(pDestinationOffset, pLengthInBytes)
+                  .copyFrom(pSource.subRegion(0, pLengthInBytes));
+    return pDestinationOffset + pLengthInBytes;
+  }
+
+  /**
+   * Returns the number of records (played scores) written to the file
+   *
+   * @return number of records
+   */
+  public long getNumberOfRecords()
+  {
+    return mNumberOfRecords;
+  }
+
+  /**
+   * Returns the total time spent compiling scores in the given time unit
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return compile time
+   */
+  public long getCompileTime(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mCompileTimeInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the total time spent writing compiled scores in the given time
+   * unit
+   *
+   * @param pTimeUnit
+   *          time unit
+   * @return write time
+   */
+  public long getWriteTime(TimeUnit pTimeUnit)
+  {
+    return pTimeUnit.convert(mWriteTimeInNanoseconds,
+                             TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the ratio of the total duration of the written scores over the
+   * time spent compiling and writing them. Values above one mean that the
+   * simulator keeps up with real-time playback.
+   *
+   * @return real-time factor
+   */
+  public double getRealTimeFactor()
+  {
+    final long lTime = mCompileTimeInNanoseconds
+                       + mWriteTimeInNanoseconds;
+    return lTime == 0 ? 0
+                      : ((double) mPlayedDurationInNanoseconds) / lTime;
+  }
+
+}
@@ -0,0 +1,381 @@
+package clearcontrol.devices.signalgen.movement;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.device.name.NameableBase;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+
+/**
+ * Structural signature of a movement: its duration and sync parameters, and
+ * for each stave its class and the values of all its fields (names excepted).
+ * Two movements with equal signatures produce the same signals. Signatures are
+ * compared exactly, two different movements never have equal signatures.
+ *
+ * Creating a signature copies these values, movements can then be hashed and
+ * matched against it in place, without allocating: field accessors are cached
+ * per stave class.
+ *
+ * Staves holding references to objects other than strings, enums and arrays of
+ * primitives (for example closures) can't be given a signature.
+ *
+ * @author royer
+ */
+public final class MovementSignature
+{
+  private static final ClassValue<FieldAccessor[]> cFieldAccessors =
+                                                                   new ClassValue<FieldAccessor[]>()
+                                                                   {
+                                                                     @Override
+                                                                     protected FieldAccessor[] computeValue(Class<?> pClass)
+                                                                     {
+                                                                       return getFieldAccessors(pClass);
+                                                                     }
+                                                                   };
+
+  private static final int cNumberOfMovementValues = 5;
+
+  private final Class<?>[] mClasses;
+  private final long[] mSignature;
+  private final int mHashCode;
+
+  /**
+   * Returns the signature of a given movement, or null if the movement can't
+   * be given a signature.
+   *
+   * @param pMovement
+   *          movement
+   * @return signature or null
+   */
+  public static MovementSignature of(MovementInterface pMovement)
+  {
+    final int lNumberOfStaves = pMovement.getNumberOfStaves();
+    final Class<?>[] lClasses = new Class<?>[lNumberOfStaves];
+    long[] lSignature = new long[64];
+    int lLength = 0;
+
+    lSignature[lLength++] = pMovement.getDuration(TimeUnit.NANOSECONDS);
+    lSignature[lLength++] = pMovement.isSync() ? 1 : 0;
+    lSignature[lLength++] = pMovement.isSyncOnRisingEdge() ? 1 : 0;
+    lSignature[lLength++] = pMovement.getSyncChannel();
+    lSignature[lLength++] = lNumberOfStaves;
+
+    try
+    {
+      for (int s = 0; s < lNumberOfStaves; s++)
+      {
+        final StaveInterface lStave = pMovement.getStave(s);
+        if (lStave == null)
+          continue;
+        lClasses[s] = lStave.getClass();
+        for (final FieldAccessor lAccessor : cFieldAccessors.get(lStave.getClass()))
+        {
+          if (lAccessor.isPrimitive())
+          {
+            if (lLength == lSignature.length)
+              lSignature = Arrays.copyOf(lSignature, 2 * lLength);
+            lSignature[lLength++] = lAccessor.getLong(lStave);
+            continue;
+          }
+          final Object lValue = lAccessor.get(lStave);
+          final int lSize = getSize(lValue);
+          if (lSize < 0)
+            return null;
+          if (lLength + lSize > lSignature.length)
+            lSignature = Arrays.copyOf(lSignature,
+                                       2 * (lLength + lSize));
+          for (int i = 0; i < lSize; i++)
+            lSignature[lLength++] = getValue(lValue, i);
+        }
+      }
+    }
+    catch (final IllegalAccessException e)
+    {
+      return null;
+    }
+
+    return new MovementSignature(lClasses,
+                                 Arrays.copyOf(lSignature, lLength));
+  }
+
+  /**
+   * Returns the hash code that the signature of the given movement would have,
+   * computed in place, or -1 if the movement can't be given a signature. Valid
+   * hash codes are within [0, 2^32-1].
+   *
+   * @param pMovement
+   *          movement
+   * @return signature hash code as an unsigned int, or -1
+   */
+  public static long hashCodeOf(MovementInterface pMovement)
+  {
+    final int lNumberOfStaves = pMovement.getNumberOfStaves();
+    int lClassesHash = 1;
+    int lSignatureHash = 1;
+
+    lSignatureHash = 31 * lSignatureHash
+                     + Long.hashCode(pMovement.getDuration(TimeUnit.NANOSECONDS));
+    lSignatureHash = 31 * lSignatureHash
+                     + Long.hashCode(pMovement.isSync() ? 1 : 0);
+    lSignatureHash = 31 * lSignatureHash
+                     + Long.hashCode(pMovement.isSyncOnRisingEdge() ? 1
+                                                                     : 0);
+    lSignatureHash = 31 * lSignatureHash
+                     + Long.hashCode(pMovement.getSyncChannel());
+    lSignatureHash = 31 * lSignatureHash + Long.hashCode(lNumberOfStaves);
+
+    try
+    {
+      for (int s = 0; s < lNumberOfStaves; s++)
+      {
+        final StaveInterface lStave = pMovement.getStave(s);
+        if (lStave == null)
+        {
+          lClassesHash = 31 * lClassesHash;
+          continue;
+        }
+        lClassesHash = 31 * lClassesHash + lStave.getClass().hashCode();
+        for (final FieldAccessor lAccessor : cFieldAccessors.get(lStave.getClass()))
+        {
+          if (lAccessor.isPrimitive())
+          {
+            lSignatureHash = 31 * lSignatureHash
+                             + Long.hashCode(lAccessor.getLong(lStave));
+            continue;
+          }
+          final Object lValue = lAccessor.get(lStave);
+          final int lSize = getSize(lValue);
+          if (lSize < 0)
+            return -1;
+          for (int i = 0; i < lSize; i++)
+            lSignatureHash = 31 * lSignatureHash
+                             + Long.hashCode(getValue(lValue, i));
+        }
+      }
+    }
+    catch (final IllegalAccessException e)
+    {
+      return -1;
+    }
+
+    return (31 * lClassesHash + lSignatureHash) & 0xFFFFFFFFL;
+  }
+
+  private MovementSignature(Class<?>[] pClasses, long[] pSignature)
+  {
+    mClasses = pClasses;
+    mSignature = pSignature;
+    mHashCode = 31 * Arrays.hashCode(pClasses)
+                + Arrays.hashCode(pSignature);
+  }
+
+  /**
+   * Returns true if the given movement currently has this signature. The
+   * movement is compared in place, no signature is created.
+   *
+   * @param pMovement
+   *          movement
+   * @return true if the movement has this signature
+   */
+  public boolean matches(MovementInterface pMovement)
+  {
+    final long[] lSignature = mSignature;
+    final int lNumberOfStaves = pMovement.getNumberOfStaves();
+    if (lNumberOfStaves != mClasses.length
+        || lSignature[0] != pMovement.getDuration(TimeUnit.NANOSECONDS)
+        || lSignature[1] != (pMovement.isSync() ? 1 : 0)
+        || lSignature[2] != (pMovement.isSyncOnRisingEdge() ? 1 : 0)
+        || lSignature[3] != pMovement.getSyncChannel())
+      return false;
+
+    int lPosition = cNumberOfMovementValues;
+    try
+    {
+      for (int s = 0; s < lNumberOfStaves; s++)
+      {
+        final StaveInterface lStave = pMovement.getStave(s);
+        final Class<?> lClass = lStave == null ? null : lStave.getClass();
+        if (lClass != mClasses[s])
+          return false;
+        if (lStave == null)
+          continue;
+        for (final FieldAccessor lAccessor : cFieldAccessors.get(lClass))
+        {
+          if (lAccessor.isPrimitive())
+          {
+            if (lPosition == lSignature.length
+                || lSignature[lPosition++] != lAccessor.getLong(lStave))
+              return false;
+            continue;
+          }
+          final Object lValue = lAccessor.get(lStave);
+          final int lSize = getSize(lValue);
+          if (lSize < 0 || lPosition + lSize > lSignature.length)
+            return false;
+          for (int i = 0; i < lSize; i++)
+            if (lSignature[lPosition++] != getValue(lValue, i))
+              return false;
+        }
+      }
+    }
+    catch (final IllegalAccessException e)
+    {
+      return false;
+    }
+    return lPosition == lSignature.length;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return mHashCode;
+  }
+
+  @Override
+  public boolean equals(Object pObject)
+  {
+    if (this == pObject)
+      return true;
+    if (!(pObject instanceof MovementSignature))
+      return false;
+    final MovementSignature lOther = (MovementSignature) pObject;
+    return mHashCode == lOther.mHashCode
+           && Arrays.equals(mSignature, lOther.mSignature)
+           && Arrays.equals(mClasses, lOther.mClasses);
+  }
+
+  private static int getSize(Object pValue)
+  {
+    if (pValue == null || pValue instanceof Enum)
+      return 1;
+    else if (pValue instanceof String)
+      return 1 + ((String) pValue).length();
+    else if (pValue instanceof float[])
+      return 1 + ((float[]) pValue).length;
+    else if (pValue instanceof double[])
+      return 1 + ((double[]) pValue).length;
+    else if (pValue instanceof int[])
+      return 1 + ((int[]) pValue).length;
+    else if (pValue instanceof long[])
+      return 1 + ((long[]) pValue).length;
+    else if (pValue instanceof boolean[])
+      return 1 + ((boolean[]) pValue).length;
+    return -1;
+  }
+
+  private static long getValue(Object pValue, int pIndex)
+  {
+    if (pValue == null)
+      return -1;
+    else if (pValue instanceof Enum)
+      return ((Enum<?>) pValue).ordinal();
+    else if (pValue instanceof String)
+    {
+      final String lString = (String) pValue;
+      return pIndex == 0 ? lString.length()
+                         : lString.charAt(pIndex - 1);
+    }
+    else if (pValue instanceof float[])
+    {
+      final float[] lArray = (float[]) pValue;
+      return pIndex == 0 ? lArray.length
+                         : Float.floatToIntBits(lArray[pIndex - 1]);
+    }
+    else if (pValue instanceof double[])
+    {
+      final double[] lArray = (double[]) pValue;
+      return pIndex == 0 ? lArray.length
+                         : Double.doubleToLongBits(lArray[pIndex - 1]);
+    }
+    else if (pValue instanceof int[])
+    {
+      final int[] lArray = (int[]) pValue;
+      return pIndex == 0 ? lArray.length : lArray[pIndex - 1];
+    }
+    else if (pValue instanceof long[])
+    {
+      final long[] lArray = (long[]) pValue;
+      return pIndex == 0 ? lArray.length : lArray[pIndex - 1];
+    }
+    else
+    {
+      final boolean[] lArray = (boolean[]) pValue;
+      return pIndex == 0 ? lArray.length : (lArray[pIndex - 1] ? 1 : 0);
+    }
+  }
+
+  private static FieldAccessor[] getFieldAccessors(Class<?> pClass)
+  {
+    final ArrayList<FieldAccessor> lAccessors = new ArrayList<>();
+    for (Class<?> lClass = pClass; lClass != null
+                                   && lClass != Object.class
+                                   && lClass != NameableBase.class; lClass =
+                                                                          lClass.getSuperclass())
+    {
+      for (final Field lField : lClass.getDeclaredFields())
+      {
+        if (Modifier.isStatic(lField.getModifiers())
+            || lField.isSynthetic())
+          continue;
+        lField.setAccessible(true);
+        lAccessors.add(new FieldAccessor(lField));
+      }
+    }
+    return lAccessors.toArray(new FieldAccessor[lAccessors.size()]);
+  }
+
+  private static final class FieldAccessor
+  {
+    private static final int cReference = 0, cFloat = 1, cDouble = 2,
+        cBoolean = 3, cIntegral = 4;
+
+    private final Field mField;
+    private final int mKind;
+
+    FieldAccessor(Field pField)
+    {
+      mField = pField;
+      final Class<?> lType = pField.getType();
+      if (lType == float.class)
+        mKind = cFloat;
+      else if (lType == double.class)
+        mKind = cDouble;
+      else if (lType == boolean.class)
+        mKind = cBoolean;
+      else if (lType.isPrimitive())
+        mKind = cIntegral;
+      else
+        mKind = cReference;
+    }
+
+    boolean isPrimitive()
+    {
+      return mKind != cReference;
+    }
+
+    long getLong(Object pObject) throws IllegalAccessException
+    {
+      switch (mKind)
+      {
+      case cFloat:
+        return Float.floatToIntBits(mField.getFloat(pObject));
+      case cDouble:
+        return Double.doubleToLongBits(mField.getDouble(pObject));
+      case cBoolean:
+        return mField.getBoolean(pObject) ? 1 : 0;
+      default:
+        // byte, short, char, int and long fields widen to long:
+        return mField.getLong(pObject);
+      }
+    }
+
+    Object get(Object pObject) throws IllegalAccessException
+    {
+      return mField.get(pObject);
+    }
+  }
+
+}
@@ -120,6 +120,56 @@ public class BezierStave extends StaveAbstract
     return lValue;
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != BezierStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    final float lValueStart = getValueStart();
+    final float lValueStop = getValueStop();
+    final float lSlopeStart = getSlopeStart();
+    final float lSlopeEnd = getSlopeEnd();
+    final float lMargin = getMargin();
+    final float lBezierLength = 1 - 2 * lMargin;
+
+    final float lBezierValueStart = lValueStart + lSlopeStart * lMargin;
+    final float lBezierValueStop = lValueStop - lSlopeEnd * (lMargin);
+    final float lControlValueStart = lBezierValueStart
+                                     + lSlopeStart * getSmoothness()
+                                       * lBezierLength;
+    final float lControlValueEnd = lBezierValueStop
+                                   - lSlopeEnd * getSmoothness()
+                                     * lBezierLength;
+
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[i];
+      if (lNormalizedTime < lMargin)
+      {
+        pValues[i] = lValueStart + lSlopeStart * lNormalizedTime;
+      }
+      else if (lNormalizedTime > 1 - lMargin)
+      {
+        pValues[i] = lValueStop - lSlopeEnd * (1 - lNormalizedTime);
+      }
+      else
+      {
+        // same evaluation as getValue, so that values match exactly:
+        final float lBezierTime = (lNormalizedTime - lMargin)
+                                  / lBezierLength;
+        pValues[i] = (float) Bezier.bezier(lBezierValueStart,
+                                           lControlValueStart,
+                                           lControlValueEnd,
+                                           lBezierValueStop,
+                                           lBezierTime);
+      }
+    }
+  }
+
   /**
    * Returns the value at the beginning of the stave.
    * 
@@ -1,5 +1,7 @@
 package clearcontrol.devices.signalgen.staves;
 
+import java.util.Arrays;
+
 public class ConstantStave extends StaveAbstract
                            implements StaveInterface
 {
@@ -23,6 +25,19 @@ public class ConstantStave extends StaveAbstract
     return mConstantValue;
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != ConstantStave.class
+        && getClass() != ZeroStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    Arrays.fill(pValues, 0, pNormalizedTimes.length, mConstantValue);
+  }
+
   public float getConstantValue()
   {
     return mConstantValue;
@@ -32,6 +32,24 @@ public class EdgeStave extends IntervalStave implements StaveInterface
       return getValueBefore();
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != EdgeStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    final float lEdgePosition = getEdgePosition();
+    final float lValueBefore = getValueBefore();
+    final float lValueAfter = isEnabled() ? getValueAfter()
+                                          : lValueBefore;
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+      pValues[i] = pNormalizedTimes[i] > lEdgePosition ? lValueAfter
+                                                       : lValueBefore;
+  }
+
   public float getEdgePosition()
   {
     return getStart();
@@ -47,6 +47,31 @@ public class IntervalStave extends StaveAbstract
       return getInsideValue();
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != IntervalStave.class
+        && getClass() != TriggerStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    final float lStart = getStart();
+    final float lStop = getStop();
+    final float lInsideValue = isEnabled() ? getInsideValue()
+                                           : getOutsideValue();
+    final float lOutsideValue = getOutsideValue();
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[i];
+      if (lNormalizedTime < lStart || lNormalizedTime > lStop)
+        pValues[i] = lOutsideValue;
+      else
+        pValues[i] = lInsideValue;
+    }
+  }
+
   public float getStart()
   {
     return mStart;
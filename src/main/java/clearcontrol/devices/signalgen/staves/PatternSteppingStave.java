@@ -2,6 +2,8 @@ package clearcontrol.devices.signalgen.staves;
 
 import static java.lang.Math.floor;
 
+import java.util.Arrays;
+
 public abstract class PatternSteppingStave extends StaveAbstract
                                            implements StaveInterface
 {
@@ -51,6 +53,43 @@ public abstract class PatternSteppingStave extends StaveAbstract
     return function(lNormalizedSteppingRampTime);
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != BinaryPatternSteppingStave.class
+        && getClass() != ClosurePatternSteppingStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    if (!isEnabled())
+    {
+      Arrays.fill(pValues, 0, pNormalizedTimes.length, 1);
+      return;
+    }
+
+    final float lSyncStart = getSyncStart();
+    final float lSyncStop = getSyncStop();
+    final float lSyncLength = lSyncStop - lSyncStart;
+    final int lNumberOfSteps = getNumberOfSteps();
+
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[i];
+      if (lNormalizedTime < lSyncStart || lNormalizedTime > lSyncStop)
+      {
+        pValues[i] = 0;
+        continue;
+      }
+
+      final float lNormalizedRampTime = (lNormalizedTime - lSyncStart)
+                                        / lSyncLength;
+      pValues[i] = function((int) floor(lNumberOfSteps
+                                        * lNormalizedRampTime));
+    }
+  }
+
   public abstract float function(int pIndex);
 
   public float getSyncStart()
@@ -100,6 +100,53 @@ public class RampContinuousStave extends StaveAbstract
     }
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != RampContinuousStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+    renderContinuousRamp(pNormalizedTimes, pValues);
+  }
+
+  /**
+   * Renders the continuous ramp in closed form.
+   * 
+   * @param pNormalizedTimes
+   *          normalized times within [0,1]
+   * @param pValues
+   *          array receiving the values
+   */
+  protected void renderContinuousRamp(float[] pNormalizedTimes,
+                                      float[] pValues)
+  {
+    final float lSyncStart = getSyncStart();
+    final float lSyncStop = getSyncStop();
+    final float lStartValue = getStartValue();
+    final float lRampHeight = getStopValue() - lStartValue;
+    final float lRampLength = lSyncStop - lSyncStart;
+    final float lOutsideValue = getOutsideValue();
+    final float lExponent = getExponent();
+
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[i];
+      if (lNormalizedTime < lSyncStart || lNormalizedTime > lSyncStop)
+      {
+        pValues[i] = lOutsideValue;
+        continue;
+      }
+
+      float lNormalizedRampTime = (lNormalizedTime - lSyncStart)
+                                  / lRampLength;
+      if (lExponent != 1)
+        lNormalizedRampTime = abspow(lNormalizedRampTime, lExponent);
+      pValues[i] = lStartValue + lRampHeight * lNormalizedRampTime;
+    }
+  }
+
   public float abspow(float pValue, float pExponent)
   {
     return (float) (signum(pValue) * pow(abs(pValue), pExponent));
@@ -102,6 +102,53 @@ public class RampSteppingStave extends RampContinuousStave
 
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != RampSteppingStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    if (!isStepping())
+    {
+      renderContinuousRamp(pNormalizedTimes, pValues);
+      return;
+    }
+
+    final float lSyncStart = getSyncStart();
+    final float lSyncStop = getSyncStop();
+    final float lStartValue = getStartValue();
+    final float lRampHeight = getStopValue() - lStartValue;
+    final float lRampLength = lSyncStop - lSyncStart;
+    final float lOutsideValue = getOutsideValue();
+    final float lExponent = getExponent();
+    final int lNumberOfSteps = getNumberOfSteps();
+
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+    {
+      final float lNormalizedTime = pNormalizedTimes[i];
+      if (lNormalizedTime < lSyncStart || lNormalizedTime > lSyncStop)
+      {
+        pValues[i] = lOutsideValue;
+        continue;
+      }
+
+      float lNormalizedRampTime = (lNormalizedTime - lSyncStart)
+                                  / lRampLength;
+      if (lExponent != 1)
+        lNormalizedRampTime = abspow(lNormalizedRampTime, lExponent);
+
+      final float lNormalizedSteppingRampTime =
+                                              (float) (floor(lNumberOfSteps
+                                                             * lNormalizedRampTime)
+                                                       / lNumberOfSteps);
+      pValues[i] = lStartValue + lRampHeight
+                                 * lNormalizedSteppingRampTime;
+    }
+  }
+
   public float getStepHeight()
   {
     return mStepHeight;
@@ -45,6 +45,23 @@ public class SinusStave extends StaveAbstract
     return lValue;
   }
 
+  @Override
+  public void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    if (getClass() != SinusStave.class)
+    {
+      renderPointWise(pNormalizedTimes, pValues);
+      return;
+    }
+
+    final float lAmplitude = getSinusAmplitude();
+    final float lPhase = getSinusPhase();
+    final float lOmega = mOmega;
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+      pValues[i] = (float) (lAmplitude
+                            * sin((pNormalizedTimes[i] + lPhase) * lOmega));
+  }
+
   public float getSinusPeriod()
   {
     return mSinusPeriod;
@@ -32,6 +32,22 @@ public abstract class StaveAbstract extends NameableBase
     mEnabled = pEnabled;
   }
 
+  /**
+   * Renders the values of this stave by calling getValue for each time point.
+   * Closed-form render implementations fall back to this for derived classes.
+   * 
+   * @param pNormalizedTimes
+   *          normalized times within [0,1]
+   * @param pValues
+   *          array receiving the values
+   */
+  protected final void renderPointWise(float[] pNormalizedTimes,
+                                       float[] pValues)
+  {
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+      pValues[i] = getValue(pNormalizedTimes[i]);
+  }
+
   @Override
   public int hashCode()
   {
@@ -45,4 +45,23 @@ public interface StaveInterface extends NameableInterface, Cloneable
    */
   float getValue(float pNormalizedTime);
 
+  /**
+   * Renders the values of this stave at the given normalized times. The default
+   * implementation calls getValue for each time point, staves override it with
+   * faster closed-form implementations that give the same values. These
+   * closed forms are only used by the stave classes they were written for,
+   * derived classes fall back to calling getValue.
+   * 
+   * @param pNormalizedTimes
+   *          normalized times within [0,1]
+   * @param pValues
+   *          array receiving the values, at least as long as the array of
+   *          times
+   */
+  default void render(float[] pNormalizedTimes, float[] pValues)
+  {
+    for (int i = 0; i < pNormalizedTimes.length; i++)
+      pValues[i] = getValue(pNormalizedTimes[i]);
+  }
+
 }
@@ -244,6 +244,7 @@ public class StageDeviceSimulator extends StageDeviceBase implements
     lReadyVariable.addSetListener((o, n) -> {
       if (isSimLogging())
         info("new ready state: " + n);
+      signalWaiters();
     });
 
     mHomingVariables.add(new Variable<Boolean>("Homing" + pDOFName,
@@ -291,6 +292,7 @@ public class StageDeviceSimulator extends StageDeviceBase implements
     lCurrentPositionVariable.addSetListener((o, n) -> {
       if (isSimLogging())
         info("new current position: " + n);
+      signalWaiters();
     });
 
     mMinPositionVariables.add(new Variable<Double>("MinPosition"
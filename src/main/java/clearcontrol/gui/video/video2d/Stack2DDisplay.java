@@ -1,6 +1,7 @@
 package clearcontrol.gui.video.video2d;
 
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -12,8 +13,10 @@ import clearcontrol.gui.video.StackDisplayInterface;
 import clearcontrol.gui.video.util.MinMaxControlDialog;
 import clearcontrol.gui.video.video2d.videowindow.VideoWindow;
 import clearcontrol.stack.EmptyStack;
+import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.imglib2.ImageJStackDisplay;
+import clearcontrol.stack.processor.StackProjections;
 import cleargl.ClearGLWindow;
 
 import com.jogamp.newt.event.KeyAdapter;
@@ -27,7 +30,11 @@ import coremem.enums.NativeTypeEnum;
 import coremem.exceptions.FreedException;
 
 /**
- * Stack 2D display
+ * Stack 2D display. Only the displayed plane, or a downsampled maximum
+ * projection, is extracted from each received stack into a small ring of plane
+ * buffers. Received stacks are retained until they have been displayed and are
+ * otherwise forwarded right away, the last displayed stack stays retained until
+ * the next one is displayed.
  *
  * @author royer
  */
@@ -41,9 +48,19 @@ public class Stack2DDisplay extends VirtualDevice implements
   private boolean mFlipX = false;
   private Variable<StackInterface> mOutputStackVariable;
 
-  private volatile StackInterface mReceivedStackCopy;
+  private static final int cPlaneRingLength = 3;
+
+  private final StackInterface[] mPlaneRing =
+                                            new StackInterface[cPlaneRingLength];
+  private int mPlaneRingIndex;
+  private volatile StackInterface mDisplayedPlane;
+  private short[] mProjectionArray;
+
+  // last displayed stack, retained, guarded by the display lock:
+  private StackInterface mLastStack;
 
   private final Variable<Boolean> mDisplayOn;
+  private final Variable<Boolean> mDisplayMaxProjection;
   private final Variable<Boolean> mManualMinMaxIntensity;
   private final Variable<Double> mMinimumIntensity;
   private final Variable<Double> mMaximumIntensity;
@@ -137,7 +154,7 @@ public class Stack2DDisplay extends VirtualDevice implements
           final double nx = ((double) pMouseEvent.getX())
                             / mVideoWindow.getWindowWidth();
           mStackSliceNormalizedIndex.set(nx);
-          displayStack(mReceivedStackCopy, true);
+          displayStack(mDisplayedPlane, true);
         }
 
         super.mouseDragged(pMouseEvent);
@@ -156,9 +173,20 @@ public class Stack2DDisplay extends VirtualDevice implements
         case KeyEvent.VK_I:
           try
           {
+            StackInterface lStack = null;
             mDisplayLock.lock();
-            ImageJStackDisplay.show(mReceivedStackCopy);
-            mDisplayLock.unlock();
+            try
+            {
+              // ImageJ may keep the stack, it gets a copy:
+              if (mLastStack != null)
+                lStack = mLastStack.duplicate();
+            }
+            finally
+            {
+              mDisplayLock.unlock();
+            }
+            if (lStack != null)
+              ImageJStackDisplay.show(lStack);
           }
           catch (Throwable e)
           {
@@ -169,6 +197,9 @@ public class Stack2DDisplay extends VirtualDevice implements
         case KeyEvent.VK_V:
           openVisualisationOptionsDialog();
           break;
+        case KeyEvent.VK_M:
+          mDisplayMaxProjection.set(!mDisplayMaxProjection.get());
+          break;
         }
 
       }
@@ -192,15 +223,19 @@ public class Stack2DDisplay extends VirtualDevice implements
                                     if (pStack instanceof EmptyStack)
                                       return null;
 
+                                    // the stack was retained on reception:
+                                    boolean lDisplayed = false;
                                     try
                                     {
+                                      forwardStack(pStack);
                                       if (mVideoWindow.isVisible())
                                       {
-                                        makeCopyOfReceivedStack(pStack);
-                                        displayStack(mReceivedStackCopy,
+                                        extractDisplayedPlane(pStack);
+                                        keepLastStack(pStack);
+                                        lDisplayed = true;
+                                        displayStack(mDisplayedPlane,
                                                      false);
                                       }
-                                      forwardStack(pStack);
                                     }
                                     catch (FreedException e)
                                     {
@@ -208,6 +243,11 @@ public class Stack2DDisplay extends VirtualDevice implements
                                                              .getSimpleName()
                                                          + ": Underlying ressource has been freed while processing last stack");
                                     }
+                                    finally
+                                    {
+                                      if (!lDisplayed)
+                                        pStack.release();
+                                    }
 
                                     return null;
                                   }
@@ -224,8 +264,18 @@ public class Stack2DDisplay extends VirtualDevice implements
       public StackInterface setEventHook(final StackInterface pOldStack,
                                          final StackInterface pNewStack)
       {
+        // retained until displayed, the producer may release it as soon as
+        // it has been handed over:
+        final boolean lRetained = pNewStack != null
+                                  && !(pNewStack instanceof EmptyStack);
+        if (lRetained)
+          pNewStack.retain();
         if (!mAsynchronousDisplayUpdater.passOrFail(pNewStack))
+        {
+          if (lRetained)
+            pNewStack.release();
           forwardStack(pNewStack);
+        }
         return super.setEventHook(pOldStack, pNewStack);
       }
 
@@ -243,6 +293,10 @@ public class Stack2DDisplay extends VirtualDevice implements
       }
     };
 
+    mDisplayMaxProjection =
+                          new Variable<Boolean>("DisplayMaxProjection",
+                                                false);
+
     mManualMinMaxIntensity =
                            new Variable<Boolean>("ManualMinMaxIntensity",
                                                  false)
@@ -292,12 +346,11 @@ public class Stack2DDisplay extends VirtualDevice implements
       try
       {
         lTryLock = mDisplayLock.tryLock(1, TimeUnit.MILLISECONDS);
-        if (lTryLock && mReceivedStackCopy != null)
+        final StackInterface lDisplayedPlane = mDisplayedPlane;
+        if (lTryLock && lDisplayedPlane != null)
         {
-          int lStackZIndex =
-                           getCurrentStackPlaneIndex(mReceivedStackCopy);
           ContiguousMemoryInterface lContiguousMemory =
-                                                      mReceivedStackCopy.getContiguousMemory(lStackZIndex);
+                                                      lDisplayedPlane.getContiguousMemory(0);
 
           if (mVideoWindow != null)
             mVideoWindow.fastMinMaxSampling(lContiguousMemory);
@@ -330,35 +383,92 @@ public class Stack2DDisplay extends VirtualDevice implements
     MinMaxControlDialog.showDialog(mVideoWindow);
   }
 
-  private void makeCopyOfReceivedStack(final StackInterface pStack)
+  private void extractDisplayedPlane(final StackInterface pStack)
   {
-    if (mReceivedStackCopy == null
-        || mReceivedStackCopy.getWidth() != pStack.getWidth()
-        || mReceivedStackCopy.getHeight() != pStack.getHeight()
-        || mReceivedStackCopy.getDepth() != pStack.getDepth()
-        || mReceivedStackCopy.getSizeInBytes() != pStack.getSizeInBytes())
+    final int lWidth = (int) pStack.getWidth();
+    final int lHeight = (int) pStack.getHeight();
+
+    // projections are only computed for 16 bit stacks:
+    final boolean lMaxProjection = mDisplayMaxProjection.get()
+                                   && pStack.getBytesPerVoxel() == 2;
+    final int lBinning =
+                       lMaxProjection ? getProjectionBinning(lWidth,
+                                                             lHeight)
+                                      : 1;
+    final int lPlaneWidth = lWidth / lBinning;
+    final int lPlaneHeight = lHeight / lBinning;
+
+    // the next buffer in the ring is neither displayed nor being uploaded:
+    final int lRingIndex = (mPlaneRingIndex + 1) % cPlaneRingLength;
+    StackInterface lPlane = mPlaneRing[lRingIndex];
+    if (lPlane == null || lPlane.getWidth() != lPlaneWidth
+        || lPlane.getHeight() != lPlaneHeight
+        || lPlane.getDataType() != pStack.getDataType())
     {
-      if (mReceivedStackCopy != null)
+      mDisplayLock.lock();
+      try
+      {
+        if (lPlane != null)
+          lPlane.free();
+        lPlane = new OffHeapPlanarStack(false,
+                                        0,
+                                        pStack.getDataType(),
+                                        1,
+                                        lPlaneWidth,
+                                        lPlaneHeight,
+                                        1);
+        mPlaneRing[lRingIndex] = lPlane;
+      }
+      finally
       {
-        mDisplayLock.lock();
-        final StackInterface lStackToFree = mReceivedStackCopy;
-        mReceivedStackCopy = pStack.allocateSameSize();
-        lStackToFree.free();
         mDisplayLock.unlock();
-
       }
-      else
-        mReceivedStackCopy = pStack.allocateSameSize();
     }
 
-    if (!mReceivedStackCopy.isFree())
+    if (lMaxProjection)
     {
-      mDisplayLock.lock();
-      mReceivedStackCopy.getContiguousMemory()
-                        .copyFrom(pStack.getContiguousMemory());
-      mDisplayLock.unlock();
+      if (mProjectionArray == null
+          || mProjectionArray.length != lPlaneWidth * lPlaneHeight)
+        mProjectionArray = new short[lPlaneWidth * lPlaneHeight];
+      StackProjections.maxProjectionXY(ForkJoinPool.commonPool(),
+                                       pStack,
+                                       lBinning,
+                                       mProjectionArray);
+      lPlane.getContiguousMemory().copyFrom(mProjectionArray);
+    }
+    else
+      lPlane.getContiguousMemory()
+            .copyFrom(pStack.getContiguousMemory(getCurrentStackPlaneIndex(pStack)));
+    lPlane.copyMetaDataFrom(pStack);
+
+    mPlaneRingIndex = lRingIndex;
+    mDisplayedPlane = lPlane;
+  }
 
+  private int getProjectionBinning(int pWidth, int pHeight)
+  {
+    final int lBinningX = pWidth
+                          / Math.max(1, mVideoWindow.getWindowWidth());
+    final int lBinningY = pHeight
+                          / Math.max(1, mVideoWindow.getWindowHeight());
+    return Math.max(1, Math.min(lBinningX, lBinningY));
+  }
+
+  private void keepLastStack(final StackInterface pStack)
+  {
+    final StackInterface lPreviousStack;
+    mDisplayLock.lock();
+    try
+    {
+      lPreviousStack = mLastStack;
+      mLastStack = pStack;
     }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
+    if (lPreviousStack != null)
+      lPreviousStack.release();
   }
 
   private void displayStack(final StackInterface pStack,
@@ -523,6 +633,27 @@ public class Stack2DDisplay extends VirtualDevice implements
       mVideoWindow.setVisible(false);
       mVideoWindow.close();
 
+      mDisplayLock.lock();
+      try
+      {
+        mDisplayedPlane = null;
+        if (mLastStack != null)
+        {
+          mLastStack.release();
+          mLastStack = null;
+        }
+        for (int i = 0; i < cPlaneRingLength; i++)
+          if (mPlaneRing[i] != null)
+          {
+            mPlaneRing[i].free();
+            mPlaneRing[i] = null;
+          }
+      }
+      finally
+      {
+        mDisplayLock.unlock();
+      }
+
       return true;
     }
     catch (final IOException e)
@@ -547,9 +678,35 @@ public class Stack2DDisplay extends VirtualDevice implements
     return mVideoWindow.getGLWindow();
   }
 
+  /**
+   * Returns the variable that switches between displaying the current plane
+   * and a downsampled maximum projection of the received stacks. Can also be
+   * toggled with the 'M' key.
+   * 
+   * @return display max projection variable
+   */
+  public Variable<Boolean> getDisplayMaxProjectionVariable()
+  {
+    return mDisplayMaxProjection;
+  }
+
+  /**
+   * Returns the last displayed stack. It is retained by this display until the
+   * next stack is displayed, callers that keep it must retain it themselves.
+   * 
+   * @return last displayed stack
+   */
   public StackInterface getLastViewedStack()
   {
-    return mReceivedStackCopy;
+    mDisplayLock.lock();
+    try
+    {
+      return mLastStack;
+    }
+    finally
+    {
+      mDisplayLock.unlock();
+    }
   }
 
   public boolean isFlipX()
@@ -23,7 +23,6 @@ import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.core.device.queue.QueueDeviceInterface;
 import clearcontrol.core.device.queue.QueueInterface;
 import clearcontrol.core.device.startstop.StartStopDeviceInterface;
-import clearcontrol.core.gc.GarbageCollector;
 import clearcontrol.core.log.LoggingFeature;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.VariableSetListener;
@@ -39,6 +38,7 @@ import clearcontrol.stack.processor.AsynchronousPoolStackProcessorPipeline;
 import clearcontrol.stack.processor.AsynchronousStackProcessorPipeline;
 import clearcontrol.stack.processor.StackProcessingPipelineInterface;
 import clearcontrol.stack.processor.StackProcessorInterface;
+import clearcontrol.stack.processor.preview.StackPreviewStage;
 import coremem.recycling.RecyclerInterface;
 
 /**
@@ -75,6 +75,9 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
   // Stack processing pipeline:
   protected volatile StackProcessingPipelineInterface mStackProcessingPipeline;
 
+  // Stack preview stage:
+  protected final StackPreviewStage mStackPreviewStage;
+
   // Lock:
   protected ReentrantLock mMasterLock = new ReentrantLock();
 
@@ -154,6 +157,11 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
                             });/**/
 
     addDevice(0, mStackProcessingPipeline);
+
+    mStackPreviewStage = new StackPreviewStage("Stack Preview");
+    mStackProcessingPipeline.getOutputVariable()
+                            .sendUpdatesTo(mStackPreviewStage.getInputStackVariable());
+    addDevice(0, mStackPreviewStage);
   }
 
   @Override
@@ -327,6 +335,17 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
     return mStackProcessingPipeline.getOutputVariable();
   }
 
+  /**
+   * Returns the stage computing max projections and binned previews of the
+   * stacks coming out of the stack processing pipeline.
+   * 
+   * @return stack preview stage
+   */
+  public StackPreviewStage getStackPreviewStage()
+  {
+    return mStackPreviewStage;
+  }
+
   @Override
   public boolean open()
   {
@@ -543,11 +562,41 @@ public abstract class MicroscopeBase<M extends MicroscopeBase<M, Q>, Q extends M
   @Override
   public abstract Q requestQueue();
 
+  @Override
+  public FutureBooleanList prepareQueue(Q pQueue)
+  {
+    // not locked: the next queue is prepared while the current one plays
+    final FutureBooleanList lFutureBooleanList =
+                                               new FutureBooleanList();
+
+    for (final Object lDevice : mDeviceLists.getAllDeviceList())
+    {
+      if (lDevice instanceof QueueDeviceInterface)
+      {
+        @SuppressWarnings("unchecked")
+        final QueueDeviceInterface<QueueInterface> lStateQueueDeviceInterface =
+                                                                              (QueueDeviceInterface<QueueInterface>) lDevice;
+
+        QueueInterface lDeviceQueue =
+                                    pQueue.getDeviceQueue(lStateQueueDeviceInterface);
+
+        final Future<Boolean> lPrepareQueueFuture =
+                                                  lStateQueueDeviceInterface.prepareQueue(lDeviceQueue);
+
+        if (lPrepareQueueFuture != null)
+          lFutureBooleanList.addFuture(lDevice.toString(),
+                                       lPrepareQueueFuture);
+      }
+    }
+
+    return lFutureBooleanList;
+  }
+
   @Override
   public FutureBooleanList playQueue(Q pQueue)
   {
     return lock(() -> {
-      GarbageCollector.trigger();
+      mStackRecyclerManager.reclaimMemory();
 
       getPlayedQueueVariable().set(pQueue);
 
@@ -38,6 +38,7 @@ import clearcontrol.scripting.lang.ScriptingLanguageInterface;
 import clearcontrol.scripting.lang.groovy.GroovyScripting;
 import clearcontrol.scripting.lang.jython.JythonScripting;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.processor.preview.StackPreviewStage;
 import halcyon.HalcyonFrame;
 import halcyon.model.node.HalcyonNodeType;
 
@@ -441,6 +442,31 @@ public class MicroscopeGUI extends VirtualDevice implements
     lStack2dDisplay.setOutputStackVariable(new Variable<StackInterface>("Null"));
   }
 
+  /**
+   * Connects the XY max projections of the stack preview stage to a 2D display
+   * and activates the stage.
+   * 
+   * @param p2DDisplayIndex
+   *          2D display index
+   */
+  public void connectPreviewTo2D(int p2DDisplayIndex)
+  {
+    StackPreviewStage lStackPreviewStage =
+                                         mMicroscope.getDevice(StackPreviewStage.class,
+                                                               0);
+    if (lStackPreviewStage == null)
+      return;
+
+    Stack2DDisplay lStack2dDisplay =
+                                   mStack2DDisplayList.get(p2DDisplayIndex);
+
+    lStackPreviewStage.getMaxProjectionXYVariable()
+                      .sendUpdatesTo(lStack2dDisplay.getInputStackVariable());
+    lStackPreviewStage.getActiveVariable().set(true);
+
+    lStack2dDisplay.setOutputStackVariable(new Variable<StackInterface>("Null"));
+  }
+
   /**
    * Connects Stack cameras to 3D display.
    *
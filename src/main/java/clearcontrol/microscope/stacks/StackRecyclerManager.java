@@ -1,8 +1,15 @@
 package clearcontrol.microscope.stacks;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 
 import clearcontrol.core.device.VirtualDevice;
+import clearcontrol.core.gc.GarbageCollector;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
@@ -13,10 +20,20 @@ import coremem.recycling.RecyclerInterface;
  * StackRecyclerManager handle a collection of named stack recyclers used for
  * different purposes. Methods are available to clear all recyclers.
  * 
+ * The manager also keeps account of the off-heap memory of all stacks: when
+ * more memory than the budget is allocated, stacks cached by the recyclers are
+ * freed, and garbage collection is only requested if some of the memory is no
+ * longer held by any recycler and may thus be unreachable.
+ * 
  * @author royer
  */
 public class StackRecyclerManager extends VirtualDevice
+                                  implements LoggingFeature
 {
+  private static final long cDefaultOffHeapBudgetInBytes =
+                                                         8L * 1024
+                                                           * 1024
+                                                           * 1024;
 
   final private ContiguousOffHeapPlanarStackFactory mOffHeapPlanarStackFactory =
                                                                                new ContiguousOffHeapPlanarStackFactory();
@@ -26,6 +43,26 @@ public class StackRecyclerManager extends VirtualDevice
 
   private boolean mAutoFree = false;
 
+  private final Variable<Long> mOffHeapBudgetInBytesVariable =
+                                                             new Variable<>("OffHeapBudgetInBytes",
+                                                                            getDefaultOffHeapBudgetInBytes());
+
+  private final Variable<Long> mAllocatedOffHeapBytesVariable =
+                                                              new Variable<>("AllocatedOffHeapBytes",
+                                                                             0L);
+
+  private final Variable<Long> mUnreachableOffHeapBytesVariable =
+                                                                new Variable<>("UnreachableOffHeapBytes",
+                                                                               0L);
+
+  private final Variable<Double> mAvoidedGCPauseTimeInMillisecondsVariable =
+                                                                         new Variable<>("AvoidedGCPauseTimeInMilliseconds",
+                                                                                        0.0);
+
+  private long mUnreachableBytesAfterLastGC;
+  private long mNumberOfRequestedGCs;
+  private double mRequestedGCPauseTimeInMilliseconds;
+
   /**
    * Creates StackRecyclerManager
    */
@@ -73,26 +110,196 @@ public class StackRecyclerManager extends VirtualDevice
   }
 
   /**
-   * Clears recyclers with given name.
+   * Clears recyclers with given name. Stacks cached by the recycler are freed.
    * 
    * @param pName
    *          recycler name
    */
   public void clear(String pName)
   {
-    getRecyclerMap().remove(pName);
+    RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                              getRecyclerMap().remove(pName);
+    if (lRecycler != null)
+      lRecycler.clearReleased();
     notifyListeners(this);
   }
 
   /**
-   * Clears all recyclers.
+   * Clears all recyclers. Stacks cached by the recyclers are freed.
    */
   public void clearAll()
   {
-    getRecyclerMap().clear();
+    for (String lName : new ArrayList<>(getRecyclerMap().keySet()))
+    {
+      RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                getRecyclerMap().remove(lName);
+      if (lRecycler != null)
+        lRecycler.clearReleased();
+    }
     notifyListeners(this);
   }
 
+  /**
+   * Brings the allocated off-heap memory back within budget, if possible. This
+   * is cheap when within budget and can be called before each acquisition.
+   * Stacks cached by recyclers are freed first, largest caches first. Garbage
+   * collection is requested only if this is not enough and more memory than
+   * after the last collection is held by no recycler.
+   */
+  public synchronized void reclaimMemory()
+  {
+    final long lBudget = getOffHeapBudgetInBytesVariable().get();
+    long lAllocatedBytes = mOffHeapPlanarStackFactory.getAllocatedBytes();
+
+    if (lAllocatedBytes > lBudget)
+    {
+      final ArrayList<RecyclerInterface<StackInterface, StackRequest>> lRecyclers =
+                                                                                 new ArrayList<>(getRecyclerMap().values());
+      lRecyclers.sort(Comparator.comparingLong((RecyclerInterface<StackInterface, StackRequest> r) -> r.computeAvailableMemorySizeInBytes())
+                                .reversed());
+      for (RecyclerInterface<StackInterface, StackRequest> lRecycler : lRecyclers)
+      {
+        if (lAllocatedBytes <= lBudget)
+          break;
+        lRecycler.clearReleased();
+        lAllocatedBytes = mOffHeapPlanarStackFactory.getAllocatedBytes();
+      }
+    }
+
+    long lUnreachableBytes = getUnreachableBytes(lAllocatedBytes);
+    // collections since the last one requested may have reclaimed memory:
+    mUnreachableBytesAfterLastGC = Math.min(mUnreachableBytesAfterLastGC,
+                                            lUnreachableBytes);
+
+    if (lAllocatedBytes > lBudget
+        && lUnreachableBytes > mUnreachableBytesAfterLastGC)
+    {
+      final long lStartTime = System.nanoTime();
+      GarbageCollector.trigger();
+      final double lPauseTimeInMilliseconds = (System.nanoTime()
+                                               - lStartTime)
+                                              * 1e-6;
+      mNumberOfRequestedGCs++;
+      mRequestedGCPauseTimeInMilliseconds += lPauseTimeInMilliseconds;
+      info("Requested GC for %d unreachable bytes out of %d allocated bytes, pause: %g ms",
+           lUnreachableBytes,
+           lAllocatedBytes,
+           lPauseTimeInMilliseconds);
+
+      lAllocatedBytes = mOffHeapPlanarStackFactory.getAllocatedBytes();
+      lUnreachableBytes = getUnreachableBytes(lAllocatedBytes);
+      mUnreachableBytesAfterLastGC = lUnreachableBytes;
+    }
+    else
+    {
+      final double lEstimatedPauseTimeInMilliseconds =
+                                                     mNumberOfRequestedGCs > 0 ? mRequestedGCPauseTimeInMilliseconds
+                                                                                 / mNumberOfRequestedGCs
+                                                                               : GarbageCollector.getAverageCollectionTimeInMilliseconds();
+      mAvoidedGCPauseTimeInMillisecondsVariable.set(mAvoidedGCPauseTimeInMillisecondsVariable.get()
+                                                    + lEstimatedPauseTimeInMilliseconds);
+    }
+
+    mAllocatedOffHeapBytesVariable.set(lAllocatedBytes);
+    mUnreachableOffHeapBytesVariable.set(lUnreachableBytes);
+  }
+
+  private long getUnreachableBytes(long pAllocatedBytes)
+  {
+    long lHeldBytes = 0;
+    for (RecyclerInterface<StackInterface, StackRequest> lRecycler : getRecyclerMap().values())
+      lHeldBytes += lRecycler.computeLiveMemorySizeInBytes()
+                    + lRecycler.computeAvailableMemorySizeInBytes();
+    return Math.max(0, pAllocatedBytes - lHeldBytes);
+  }
+
+  /**
+   * Returns the number of bytes held by the live (in use) stacks of a given
+   * recycler
+   * 
+   * @param pName
+   *          recycler name
+   * @return live bytes, zero if no such recycler
+   */
+  public long getLiveMemorySizeInBytes(String pName)
+  {
+    RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                              getRecyclerMap().get(pName);
+    return lRecycler == null ? 0
+                             : lRecycler.computeLiveMemorySizeInBytes();
+  }
+
+  /**
+   * Returns the number of bytes held by the available (cached) stacks of a
+   * given recycler
+   * 
+   * @param pName
+   *          recycler name
+   * @return available bytes, zero if no such recycler
+   */
+  public long getAvailableMemorySizeInBytes(String pName)
+  {
+    RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                              getRecyclerMap().get(pName);
+    return lRecycler == null ? 0
+                             : lRecycler.computeAvailableMemorySizeInBytes();
+  }
+
+  /**
+   * Returns the variable holding the off-heap memory budget in bytes
+   * 
+   * @return off-heap budget variable
+   */
+  public Variable<Long> getOffHeapBudgetInBytesVariable()
+  {
+    return mOffHeapBudgetInBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of off-heap bytes allocated for
+   * stacks, as of the last call to {@link #reclaimMemory()}
+   * 
+   * @return allocated off-heap bytes variable
+   */
+  public Variable<Long> getAllocatedOffHeapBytesVariable()
+  {
+    return mAllocatedOffHeapBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the number of off-heap bytes allocated for
+   * stacks that are held by no recycler, as of the last call to
+   * {@link #reclaimMemory()}
+   * 
+   * @return unreachable off-heap bytes variable
+   */
+  public Variable<Long> getUnreachableOffHeapBytesVariable()
+  {
+    return mUnreachableOffHeapBytesVariable;
+  }
+
+  /**
+   * Returns the variable holding the estimated total GC pause time avoided by
+   * not requesting garbage collection before each acquisition
+   * 
+   * @return avoided GC pause time variable
+   */
+  public Variable<Double> getAvoidedGCPauseTimeInMillisecondsVariable()
+  {
+    return mAvoidedGCPauseTimeInMillisecondsVariable;
+  }
+
+  private static long getDefaultOffHeapBudgetInBytes()
+  {
+    // half of the physical memory, if known:
+    final OperatingSystemMXBean lOperatingSystemMXBean =
+                                                       ManagementFactory.getOperatingSystemMXBean();
+    if (lOperatingSystemMXBean instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) lOperatingSystemMXBean).getTotalPhysicalMemorySize()
+             / 2;
+    return cDefaultOffHeapBudgetInBytes;
+  }
+
   /**
    * Returns recycler map
    * 
@@ -11,6 +11,9 @@ import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.microscope.timelapse.TimelapseBase;
 import clearcontrol.microscope.timelapse.TimelapseInterface;
 import clearcontrol.microscope.timelapse.gui.TimelapseToolbar;
+import clearcontrol.stack.sourcesink.sink.BufferedRawFileStackSink;
+import clearcontrol.stack.sourcesink.sink.MappedFileStackSink;
+import clearcontrol.stack.sourcesink.sink.PipelinedSqeazyFileStackSink;
 import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
 import clearcontrol.stack.sourcesink.sink.SqeazyFileStackSink;
 
@@ -46,7 +49,10 @@ public class TimeLapseToolBarDemo extends Application
     };
 
     lTimelapse.addFileStackSinkType(RawFileStackSink.class);
+    lTimelapse.addFileStackSinkType(BufferedRawFileStackSink.class);
+    lTimelapse.addFileStackSinkType(MappedFileStackSink.class);
     lTimelapse.addFileStackSinkType(SqeazyFileStackSink.class);
+    lTimelapse.addFileStackSinkType(PipelinedSqeazyFileStackSink.class);
 
     TimelapseToolbar lTimelapseToolbar =
                                        new TimelapseToolbar(lTimelapse);
@@ -1,5 +1,13 @@
 package clearcontrol.stack;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 import coremem.ContiguousMemoryInterface;
 import coremem.enums.NativeTypeEnum;
 import coremem.offheap.OffHeapMemory;
@@ -9,12 +17,22 @@ import coremem.util.Size;
 /**
  * Stack factory that returns contiguous off-heap memory backed stacks
  *
+ * The factory keeps account of the off-heap memory of the stacks it created:
+ * memory is accounted for until the stack is either explicitly freed or found
+ * unreachable by the garbage collector.
+ *
  * @author royer
  */
 public class ContiguousOffHeapPlanarStackFactory implements
                                                  RecyclableFactoryInterface<StackInterface, StackRequest>
 {
 
+  private final ReferenceQueue<OffHeapPlanarStack> mReferenceQueue =
+                                                                   new ReferenceQueue<>();
+  private final Set<StackReference> mStackReferences =
+                                                     ConcurrentHashMap.newKeySet();
+  private final AtomicLong mAllocatedBytes = new AtomicLong();
+
   @Override
   public OffHeapPlanarStack create(StackRequest pStackRequest)
   {
@@ -31,12 +49,71 @@ public class ContiguousOffHeapPlanarStackFactory implements
                                                                                                   lBufferSizeInBytesWithMetaData,
                                                                                                   pStackRequest.getAlignment());
 
-    return new OffHeapPlanarStack(lContiguousMemoryInterface,
-                                  false,
-                                  NativeTypeEnum.UnsignedShort,
-                                  1,
-                                  pStackRequest.getWidth(),
-                                  pStackRequest.getHeight(),
-                                  pStackRequest.getDepth());
+    final OffHeapPlanarStack lStack =
+                                    new OffHeapPlanarStack(lContiguousMemoryInterface,
+                                                           false,
+                                                           NativeTypeEnum.UnsignedShort,
+                                                           1,
+                                                           pStackRequest.getWidth(),
+                                                           pStackRequest.getHeight(),
+                                                           pStackRequest.getDepth());
+
+    // accounted as recyclers do, without metadata:
+    final long lSizeInBytes = lStack.getSizeInBytes();
+    final StackReference lStackReference =
+                                         new StackReference(lStack,
+                                                            lSizeInBytes);
+    mStackReferences.add(lStackReference);
+    mAllocatedBytes.addAndGet(lSizeInBytes);
+    lStack.setFreeListener(lStackReference::release);
+
+    return lStack;
+  }
+
+  /**
+   * Returns the number of bytes of off-heap memory held by stacks created by
+   * this factory that have not been freed or garbage collected yet.
+   * 
+   * @return allocated bytes
+   */
+  public long getAllocatedBytes()
+  {
+    Reference<? extends OffHeapPlanarStack> lReference;
+    while ((lReference = mReferenceQueue.poll()) != null)
+      ((StackReference) lReference).release();
+    return mAllocatedBytes.get();
+  }
+
+  /**
+   * Returns the number of stacks created by this factory that have not been
+   * freed or garbage collected yet.
+   * 
+   * @return number of allocated stacks
+   */
+  public int getNumberOfAllocatedStacks()
+  {
+    getAllocatedBytes();
+    return mStackReferences.size();
+  }
+
+  private class StackReference extends WeakReference<OffHeapPlanarStack>
+  {
+    private final long mSizeInBytes;
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
+    StackReference(OffHeapPlanarStack pStack, long pSizeInBytes)
+    {
+      super(pStack, mReferenceQueue);
+      mSizeInBytes = pSizeInBytes;
+    }
+
+    void release()
+    {
+      if (mReleased.compareAndSet(false, true))
+      {
+        mAllocatedBytes.addAndGet(-mSizeInBytes);
+        mStackReferences.remove(this);
+      }
+    }
   }
 }
@@ -30,6 +30,9 @@ public class OffHeapPlanarStack extends StackBase
 
   private boolean mIsSafe;
 
+  // notified when freed, used for off-heap memory accounting:
+  private volatile Runnable mFreeListener;
+
   /**
    * Instantiates a stack given a recycler, wait time, and stack dimensions. A
    * stack request is built and the recycler is asked to provide a stack within
@@ -279,6 +282,14 @@ public class OffHeapPlanarStack extends StackBase
   public void free()
   {
     mContiguousMemory.free();
+    final Runnable lFreeListener = mFreeListener;
+    if (lFreeListener != null)
+      lFreeListener.run();
+  }
+
+  void setFreeListener(Runnable pFreeListener)
+  {
+    mFreeListener = pFreeListener;
   }
 
   @Override
@@ -1,6 +1,7 @@
 package clearcontrol.stack;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.stack.metadata.StackMetaData;
 import coremem.enums.NativeTypeEnum;
@@ -19,6 +20,7 @@ public abstract class StackBase extends FreeableBase
 
   protected RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
   protected volatile boolean mIsReleased;
+  private final AtomicInteger mRetainCount = new AtomicInteger();
 
   protected StackMetaData mMetaData = new StackMetaData();
 
@@ -166,9 +168,22 @@ public abstract class StackBase extends FreeableBase
     mIsReleased = isReleased;
   }
 
+  @Override
+  public void retain()
+  {
+    if (isReleased())
+      throw new IllegalStateException("Released stacks can't be retained: "
+                                      + this);
+    mRetainCount.incrementAndGet();
+  }
+
   @Override
   public void release()
   {
+    // other holders have retained this stack, only drop one reference:
+    if (mRetainCount.getAndUpdate(pCount -> pCount > 0 ? pCount - 1
+                                                        : 0) > 0)
+      return;
     if (mStackRecycler != null)
       mStackRecycler.release(this);
   }
@@ -182,6 +197,7 @@ public abstract class StackBase extends FreeableBase
   @Override
   public void recycle(StackRequest pRequest)
   {
+    mRetainCount.set(0);
     getMetaData().clear();
   }
 
@@ -149,4 +149,16 @@ public interface StackInterface extends
    * @return data type
    */
   NativeTypeEnum getDataType();
+
+  /**
+   * Retains this stack: the next call to release() only drops this additional
+   * reference. The stack goes back to its recycler once every holder has
+   * released it. This lets a consumer keep reading a stack after handing it
+   * downstream without copying it. Stacks that have already been released
+   * can't be retained.
+   *
+   * @throws IllegalStateException
+   *           if this stack has been released
+   */
+  void retain();
 }
@@ -3,6 +3,7 @@ package clearcontrol.stack.processor;
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorPool;
 import clearcontrol.core.concurrent.asyncprocs.ProcessorInterface;
+import clearcontrol.core.concurrent.timing.LatencyHistogram;
 import clearcontrol.core.device.openclose.OpenCloseDeviceInterface;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.StackInterface;
@@ -58,10 +59,7 @@ public class AsynchronousPoolStackProcessorPipeline extends
       {
         try
         {
-          StackInterface lProcessedStack = doProcess(pInput);
-          if (lProcessedStack != null)
-            getOutputVariable().set(lProcessedStack);
-          return lProcessedStack;
+          return doProcess(pInput);
         }
         catch (Throwable e)
         {
@@ -76,14 +74,58 @@ public class AsynchronousPoolStackProcessorPipeline extends
                                                                         new Processor(pName,
                                                                                       pMaxQueueSize);
 
+    // processed stacks are sent through the pool's reorder buffer so that they
+    // reach the output in acquisition order:
     mAsynchStackProcessorPool =
-                              new AsynchronousProcessorPool<>(pName,
-                                                              pMaxQueueSize,
-                                                              pThreadPoolSize,
-                                                              lProcessor);
+                              new AsynchronousProcessorPool<StackInterface, StackInterface>(pName,
+                                                                                            pMaxQueueSize,
+                                                                                            pThreadPoolSize,
+                                                                                            lProcessor)
+                              {
+                                @Override
+                                protected void send(StackInterface pProcessedStack)
+                                {
+                                  getOutputVariable().set(pProcessedStack);
+                                }
+                              };
 
   }
 
+  /**
+   * Sets whether processed stacks are sent to the output in acquisition order,
+   * or as soon as they are processed.
+   * 
+   * @param pOrderedOutput
+   *          true for acquisition order
+   */
+  public void setOrderedOutput(boolean pOrderedOutput)
+  {
+    mAsynchStackProcessorPool.setOrderedOutput(pOrderedOutput);
+  }
+
+  /**
+   * Sets the maximal number of processed stacks held back while waiting for
+   * earlier stacks to be processed.
+   * 
+   * @param pMaxOutOfOrderStacks
+   *          max number of out of order stacks
+   */
+  public void setMaxOutOfOrderStacks(int pMaxOutOfOrderStacks)
+  {
+    mAsynchStackProcessorPool.setMaxOutOfOrderResults(pMaxOutOfOrderStacks);
+  }
+
+  /**
+   * Returns the histogram of times spent by processing threads waiting for
+   * earlier stacks to be processed.
+   * 
+   * @return reorder stall histogram
+   */
+  public LatencyHistogram getReorderStallHistogram()
+  {
+    return mAsynchStackProcessorPool.getReorderStallHistogram();
+  }
+
   @Override
   public boolean open()
   {
@@ -0,0 +1,89 @@
+package clearcontrol.stack.processor;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * Interface for plane-separable stack processors: each plane of the output
+ * stack only depends on the plane of same index of the input stack. Pipelines
+ * can therefore process the planes of a single stack in parallel.
+ *
+ * @author royer
+ */
+public interface PlaneStackProcessorInterface extends
+                                              StackProcessorInterface
+{
+
+  /**
+   * Returns the request for the output stack given an input stack. The output
+   * stack must have the same depth as the input stack. By default the output
+   * stack has the same dimensions as the input stack.
+   *
+   * @param pInputStack
+   *          input stack
+   * @return output stack request
+   */
+  default StackRequest getOutputStackRequest(StackInterface pInputStack)
+  {
+    return StackRequest.buildFrom(pInputStack);
+  }
+
+  /**
+   * Processes one plane. This method is called concurrently for different
+   * planes of the same stack and must therefore be thread-safe.
+   *
+   * @param pInputStack
+   *          input stack
+   * @param pPlaneIndex
+   *          plane index
+   * @param pInputPlane
+   *          input plane memory
+   * @param pOutputPlane
+   *          output plane memory
+   */
+  void processPlane(StackInterface pInputStack,
+                    int pPlaneIndex,
+                    ContiguousMemoryInterface pInputPlane,
+                    ContiguousMemoryInterface pOutputPlane);
+
+  /**
+   * Processes a given stack plane by plane, sequentially. The output stack is
+   * obtained from the given recycler and the input stack is released.
+   *
+   * @param pStack
+   *          stack to process
+   * @param pStackRecycler
+   *          stack recycler
+   * @return processed stack, or null if no output stack could be obtained
+   */
+  @Override
+  default StackInterface process(StackInterface pStack,
+                                 RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    final StackInterface lOutputStack =
+                                      pStackRecycler.getOrWait(1,
+                                                               TimeUnit.SECONDS,
+                                                               getOutputStackRequest(pStack));
+    if (lOutputStack == null)
+    {
+      pStack.release();
+      return null;
+    }
+    lOutputStack.copyMetaDataFrom(pStack);
+
+    final int lDepth = (int) pStack.getDepth();
+    for (int z = 0; z < lDepth; z++)
+      processPlane(pStack,
+                   z,
+                   pStack.getContiguousMemory(z),
+                   lOutputStack.getContiguousMemory(z));
+
+    pStack.release();
+    return lOutputStack;
+  }
+
+}
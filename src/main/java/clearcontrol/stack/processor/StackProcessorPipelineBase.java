@@ -1,12 +1,16 @@
 package clearcontrol.stack.processor;
 
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import clearcontrol.core.device.name.NameableBase;
 import clearcontrol.core.variable.Variable;
 import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import coremem.fragmented.FragmentedMemoryInterface;
 import coremem.recycling.RecyclerInterface;
 
 /**
@@ -28,6 +32,9 @@ public class StackProcessorPipelineBase extends NameableBase
   private Variable<StackInterface> mInputVariable;
   private Variable<StackInterface> mOutputVariable;
 
+  private volatile ForkJoinPool mPlaneProcessingPool =
+                                                     ForkJoinPool.commonPool();
+
   /**
    * Instantiates a stack processor given a stack recycler manager
    * 
@@ -102,13 +109,141 @@ public class StackProcessorPipelineBase extends NameableBase
         if (lStack == null)
           return null;
 
-        lStack = lProcessor.process(lStack, lRecycler);
+        if (lProcessor instanceof PlaneStackProcessorInterface)
+          lStack =
+                 processPlanes((PlaneStackProcessorInterface) lProcessor,
+                               lStack,
+                               lRecycler);
+        else
+          lStack = lProcessor.process(lStack, lRecycler);
 
       }
     }
     return lStack;
   }
 
+  /**
+   * Processes a stack with a plane-separable processor, the planes are
+   * distributed over the plane processing fork/join pool.
+   * 
+   * @param pProcessor
+   *          plane-separable processor
+   * @param pInput
+   *          input stack, released once processed
+   * @param pRecycler
+   *          recycler for the output stack
+   * @return output stack, or null if no output stack could be obtained
+   */
+  protected StackInterface processPlanes(PlaneStackProcessorInterface pProcessor,
+                                         StackInterface pInput,
+                                         RecyclerInterface<StackInterface, StackRequest> pRecycler)
+  {
+    final StackInterface lOutput =
+                                 pRecycler.getOrWait(1,
+                                                     TimeUnit.SECONDS,
+                                                     pProcessor.getOutputStackRequest(pInput));
+    if (lOutput == null)
+    {
+      pInput.release();
+      return null;
+    }
+    lOutput.copyMetaDataFrom(pInput);
+
+    try
+    {
+      mPlaneProcessingPool.invoke(new PlaneProcessingTask(pProcessor,
+                                                          pInput,
+                                                          pInput.getFragmentedMemory(),
+                                                          lOutput.getFragmentedMemory(),
+                                                          0,
+                                                          (int) pInput.getDepth()));
+    }
+    catch (RuntimeException e)
+    {
+      lOutput.release();
+      throw e;
+    }
+
+    pInput.release();
+    return lOutput;
+  }
+
+  /**
+   * Sets the fork/join pool used to process the planes of stacks in parallel
+   * for plane-separable processors. The common pool is used by default.
+   * 
+   * @param pPlaneProcessingPool
+   *          fork/join pool
+   */
+  public void setPlaneProcessingPool(ForkJoinPool pPlaneProcessingPool)
+  {
+    mPlaneProcessingPool = pPlaneProcessingPool;
+  }
+
+  /**
+   * Returns the fork/join pool used to process planes in parallel.
+   * 
+   * @return fork/join pool
+   */
+  public ForkJoinPool getPlaneProcessingPool()
+  {
+    return mPlaneProcessingPool;
+  }
+
+  private static class PlaneProcessingTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final PlaneStackProcessorInterface mProcessor;
+    private final StackInterface mInput;
+    private final FragmentedMemoryInterface mInputPlanes, mOutputPlanes;
+    private final int mBeginPlane, mEndPlane;
+
+    PlaneProcessingTask(PlaneStackProcessorInterface pProcessor,
+                        StackInterface pInput,
+                        FragmentedMemoryInterface pInputPlanes,
+                        FragmentedMemoryInterface pOutputPlanes,
+                        int pBeginPlane,
+                        int pEndPlane)
+    {
+      mProcessor = pProcessor;
+      mInput = pInput;
+      mInputPlanes = pInputPlanes;
+      mOutputPlanes = pOutputPlanes;
+      mBeginPlane = pBeginPlane;
+      mEndPlane = pEndPlane;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (mEndPlane - mBeginPlane == 1)
+      {
+        mProcessor.processPlane(mInput,
+                                mBeginPlane,
+                                mInputPlanes.get(mBeginPlane),
+                                mOutputPlanes.get(mBeginPlane));
+        return;
+      }
+      if (mEndPlane <= mBeginPlane)
+        return;
+
+      final int lMiddlePlane = (mBeginPlane + mEndPlane) >>> 1;
+      invokeAll(new PlaneProcessingTask(mProcessor,
+                                        mInput,
+                                        mInputPlanes,
+                                        mOutputPlanes,
+                                        mBeginPlane,
+                                        lMiddlePlane),
+                new PlaneProcessingTask(mProcessor,
+                                        mInput,
+                                        mInputPlanes,
+                                        mOutputPlanes,
+                                        lMiddlePlane,
+                                        mEndPlane));
+    }
+  }
+
   @Deprecated
   public RecyclerInterface<StackInterface, StackRequest> getRecyclerOfProcessor(StackProcessorInterface pProcessor)
   {
@@ -0,0 +1,132 @@
+package clearcontrol.stack.processor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import clearcontrol.stack.StackInterface;
+import coremem.ContiguousMemoryInterface;
+
+/**
+ * Stack projections computed in parallel on a fork/join pool
+ *
+ * @author royer
+ */
+public class StackProjections
+{
+
+  /**
+   * Computes the XY maximum projection of a given 16 bit stack into a given
+   * array, binned by taking the maximum over blocks of pBinning x pBinning
+   * pixels. The projection is (width / pBinning) x (height / pBinning) pixels,
+   * remaining pixels are ignored. Rows of the projection are distributed over
+   * the given fork/join pool, planes are read in place.
+   *
+   * @param pPool
+   *          fork/join pool
+   * @param pStack
+   *          16 bit stack
+   * @param pBinning
+   *          binning
+   * @param pProjection
+   *          projection array
+   */
+  public static void maxProjectionXY(ForkJoinPool pPool,
+                                     StackInterface pStack,
+                                     int pBinning,
+                                     short[] pProjection)
+  {
+    final int lProjectionHeight = (int) pStack.getHeight() / pBinning;
+    final int lRowsPerTask =
+                           Math.max(1,
+                                    lProjectionHeight
+                                       / (4 * pPool.getParallelism()));
+    Arrays.fill(pProjection, (short) 0);
+    pPool.invoke(new ProjectionRowsTask(pStack,
+                                        pBinning,
+                                        pProjection,
+                                        0,
+                                        lProjectionHeight,
+                                        lRowsPerTask));
+  }
+
+  private static class ProjectionRowsTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final StackInterface mStack;
+    private final int mBinning;
+    private final short[] mProjection;
+    private final int mBeginRow, mEndRow, mRowsPerTask;
+
+    ProjectionRowsTask(StackInterface pStack,
+                       int pBinning,
+                       short[] pProjection,
+                       int pBeginRow,
+                       int pEndRow,
+                       int pRowsPerTask)
+    {
+      mStack = pStack;
+      mBinning = pBinning;
+      mProjection = pProjection;
+      mBeginRow = pBeginRow;
+      mEndRow = pEndRow;
+      mRowsPerTask = pRowsPerTask;
+    }
+
+    @Override
+    protected void compute()
+    {
+      final int lNumberOfRows = mEndRow - mBeginRow;
+      if (lNumberOfRows <= mRowsPerTask)
+      {
+        projectRows();
+        return;
+      }
+
+      // tasks own disjoint rows of the projection, nothing is shared:
+      final int lMiddleRow = mBeginRow + lNumberOfRows / 2;
+      invokeAll(new ProjectionRowsTask(mStack,
+                                       mBinning,
+                                       mProjection,
+                                       mBeginRow,
+                                       lMiddleRow,
+                                       mRowsPerTask),
+                new ProjectionRowsTask(mStack,
+                                       mBinning,
+                                       mProjection,
+                                       lMiddleRow,
+                                       mEndRow,
+                                       mRowsPerTask));
+    }
+
+    private void projectRows()
+    {
+      final int lWidth = (int) mStack.getWidth();
+      final int lDepth = (int) mStack.getDepth();
+      final int lProjectionWidth = lWidth / mBinning;
+      final short[] lProjection = mProjection;
+
+      for (int z = 0; z < lDepth; z++)
+      {
+        final ContiguousMemoryInterface lPlane =
+                                               mStack.getContiguousMemory(z);
+        for (int y = mBeginRow * mBinning; y < mEndRow * mBinning; y++)
+        {
+          final long lRowOffset = (long) y * lWidth;
+          final int lProjectionRowOffset = (y / mBinning)
+                                           * lProjectionWidth;
+          for (int x = 0; x < lProjectionWidth * mBinning; x++)
+          {
+            final int lValue = lPlane.getShortAligned(lRowOffset + x)
+                               & 0xFFFF;
+            final int lIndex = lProjectionRowOffset + x / mBinning;
+            if (lValue > (lProjection[lIndex] & 0xFFFF))
+              lProjection[lIndex] = (short) lValue;
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,647 @@
+package clearcontrol.stack.processor.preview;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
+import clearcontrol.core.device.VirtualDevice;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.core.variable.Variable;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.EmptyStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.exceptions.FreedException;
+import coremem.recycling.BasicRecycler;
+
+/**
+ * Stack preview stage. For each received stack, the XY, XZ and ZY maximum
+ * projections and the 2x, 4x and 8x binned previews (voxel averages over
+ * blocks binned along X, Y and Z) are computed in a single pass over the stack
+ * memory, planes being distributed over a fork/join pool. They are published
+ * as small stacks on their own variables: any number of displays can listen to
+ * these variables without adding to the cost of computing the previews.
+ *
+ * Stacks received while the previous stack is still being processed are
+ * skipped, only 16 bit stacks are supported. Received stacks are retained
+ * while they are processed.
+ *
+ * Published stacks come from recyclers: a published stack stays valid until the
+ * next one is published on the same variable, consumers that need it for longer
+ * must retain it and release it when done. Previews are skipped while
+ * consumers hold too many published stacks.
+ *
+ * @author royer
+ */
+public class StackPreviewStage extends VirtualDevice implements
+                               LoggingFeature
+{
+  private static final int cMaximumNumberOfLiveOutputStacks = 16;
+  private static final int cMaximumNumberOfAvailableOutputStacks = 4;
+  private static final int cNumberOfBinningLevels = 3;
+
+  // blocks of planes processed by one task are aligned to the largest binning:
+  private static final int cPlaneBlockAlignment =
+                                                1 << cNumberOfBinningLevels;
+
+  private final Variable<StackInterface> mInputStackVariable;
+  private final Variable<Boolean> mActiveVariable;
+  private final Variable<Double> mPreviewTimeInMillisecondsVariable;
+
+  private final Output mMaxProjectionXY, mMaxProjectionXZ,
+      mMaxProjectionZY;
+  private final Output[] mBinnedPreviews =
+                                         new Output[cNumberOfBinningLevels];
+
+  private final AsynchronousProcessorBase<StackInterface, Object> mPreviewProcessor;
+
+  private volatile ForkJoinPool mPlaneProcessingPool =
+                                                     ForkJoinPool.commonPool();
+
+  // only accessed from the preview processor thread:
+  private short[] mProjectionXY, mProjectionXZ, mProjectionZY;
+
+  // scratch buffers of plane tasks, there are at most as many as there are
+  // tasks running at once:
+  private final ConcurrentLinkedQueue<Scratch> mScratches =
+                                                          new ConcurrentLinkedQueue<>();
+
+  /**
+   * Instantiates a stack preview stage. The stage is inactive until its active
+   * variable is set to true.
+   *
+   * @param pName
+   *          stage name
+   */
+  public StackPreviewStage(String pName)
+  {
+    super(pName);
+
+    mActiveVariable = new Variable<Boolean>(pName + "Active", false);
+    mPreviewTimeInMillisecondsVariable =
+                                       new Variable<Double>(pName
+                                                            + "PreviewTimeInMilliseconds",
+                                                            0.0);
+
+    mMaxProjectionXY = new Output(pName + "MaxProjectionXY");
+    mMaxProjectionXZ = new Output(pName + "MaxProjectionXZ");
+    mMaxProjectionZY = new Output(pName + "MaxProjectionZY");
+    for (int l = 0; l < cNumberOfBinningLevels; l++)
+      mBinnedPreviews[l] = new Output(pName + "BinnedPreview"
+                                      + getBinning(l)
+                                      + "x");
+
+    mPreviewProcessor =
+                      new AsynchronousProcessorBase<StackInterface, Object>(pName,
+                                                                            1)
+                      {
+                        @Override
+                        public Object process(StackInterface pStack)
+                        {
+                          try
+                          {
+                            if (mActiveVariable.get())
+                              computePreviews(pStack);
+                          }
+                          catch (FreedException e)
+                          {
+                            warning("Underlying ressource has been freed while computing previews");
+                          }
+                          finally
+                          {
+                            pStack.release();
+                          }
+                          return null;
+                        }
+                      };
+
+    mInputStackVariable = new Variable<StackInterface>(pName
+                                                       + "StackInput")
+    {
+      @Override
+      public StackInterface setEventHook(final StackInterface pOldStack,
+                                         final StackInterface pNewStack)
+      {
+        if (pNewStack != null && !(pNewStack instanceof EmptyStack)
+            && mActiveVariable.get()
+            && pNewStack.getBytesPerVoxel() == 2)
+        {
+          pNewStack.retain();
+          if (!mPreviewProcessor.passOrFail(pNewStack))
+            pNewStack.release();
+        }
+        return super.setEventHook(pOldStack, pNewStack);
+      }
+    };
+  }
+
+  @Override
+  public boolean open()
+  {
+    return mPreviewProcessor.start();
+  }
+
+  @Override
+  public boolean close()
+  {
+    final boolean lStopped = mPreviewProcessor.stop();
+    mMaxProjectionXY.close();
+    mMaxProjectionXZ.close();
+    mMaxProjectionZY.close();
+    for (int l = 0; l < cNumberOfBinningLevels; l++)
+      mBinnedPreviews[l].close();
+    mScratches.clear();
+    return lStopped;
+  }
+
+  /**
+   * Computes and publishes the projections and binned previews of a given 16
+   * bit stack. This is normally called from the stage's own thread for each
+   * stack received on the input variable. Previews are skipped if consumers
+   * hold too many previously published stacks.
+   *
+   * @param pStack
+   *          stack
+   */
+  public void computePreviews(StackInterface pStack)
+  {
+    final long lStartTime = System.nanoTime();
+
+    final int lWidth = (int) pStack.getWidth();
+    final int lHeight = (int) pStack.getHeight();
+    final int lDepth = (int) pStack.getDepth();
+
+    final StackInterface lProjectionXY = mMaxProjectionXY.next(lWidth,
+                                                               lHeight,
+                                                               1);
+    final StackInterface lProjectionXZ = mMaxProjectionXZ.next(lWidth,
+                                                               lDepth,
+                                                               1);
+    final StackInterface lProjectionZY = mMaxProjectionZY.next(lDepth,
+                                                               lHeight,
+                                                               1);
+    final StackInterface[] lBinnedStacks =
+                                         new StackInterface[cNumberOfBinningLevels];
+    boolean lAvailable = lProjectionXY != null && lProjectionXZ != null
+                         && lProjectionZY != null;
+    for (int l = 0; l < cNumberOfBinningLevels; l++)
+    {
+      final int lBinning = getBinning(l);
+      lBinnedStacks[l] =
+                       mBinnedPreviews[l].next(getBinnedLength(lWidth,
+                                                               lBinning),
+                                               getBinnedLength(lHeight,
+                                                               lBinning),
+                                               getBinnedLength(lDepth,
+                                                               lBinning));
+      lAvailable &= lBinnedStacks[l] != null;
+    }
+    if (!lAvailable)
+    {
+      warning("Consumers hold too many previews, skipping stack");
+      release(lProjectionXY);
+      release(lProjectionXZ);
+      release(lProjectionZY);
+      for (int l = 0; l < cNumberOfBinningLevels; l++)
+        release(lBinnedStacks[l]);
+      return;
+    }
+
+    if (mProjectionXY == null
+        || mProjectionXY.length != lWidth * lHeight)
+      mProjectionXY = new short[lWidth * lHeight];
+    if (mProjectionXZ == null
+        || mProjectionXZ.length != lWidth * lDepth)
+      mProjectionXZ = new short[lWidth * lDepth];
+    if (mProjectionZY == null
+        || mProjectionZY.length != lDepth * lHeight)
+      mProjectionZY = new short[lDepth * lHeight];
+    Arrays.fill(mProjectionXY, (short) 0);
+
+    final Pass lPass = new Pass(pStack,
+                                lWidth,
+                                lHeight,
+                                lDepth,
+                                mProjectionXY,
+                                mProjectionXZ,
+                                mProjectionZY,
+                                lBinnedStacks,
+                                mScratches);
+
+    final ForkJoinPool lPool = mPlaneProcessingPool;
+    final int lNumberOfBlocks = Math.max(1,
+                                         (lDepth + cPlaneBlockAlignment
+                                          - 1) / cPlaneBlockAlignment);
+    final int lBlocksPerTask =
+                             Math.max(1,
+                                      lNumberOfBlocks
+                                         / (4 * lPool.getParallelism()));
+    lPool.invoke(new PlaneBlockTask(lPass,
+                                    0,
+                                    lDepth,
+                                    lBlocksPerTask
+                                            * cPlaneBlockAlignment));
+
+    lProjectionXY.getContiguousMemory().copyFrom(mProjectionXY);
+    lProjectionXZ.getContiguousMemory().copyFrom(mProjectionXZ);
+    lProjectionZY.getContiguousMemory().copyFrom(mProjectionZY);
+
+    mPreviewTimeInMillisecondsVariable.set((System.nanoTime()
+                                            - lStartTime)
+                                           * 1e-6);
+
+    mMaxProjectionXY.publish(lProjectionXY, pStack);
+    mMaxProjectionXZ.publish(lProjectionXZ, pStack);
+    mMaxProjectionZY.publish(lProjectionZY, pStack);
+    for (int l = 0; l < cNumberOfBinningLevels; l++)
+      mBinnedPreviews[l].publish(lBinnedStacks[l], pStack);
+  }
+
+  private static void release(StackInterface pStack)
+  {
+    if (pStack != null)
+      pStack.release();
+  }
+
+  private static int getBinning(int pLevel)
+  {
+    return 2 << pLevel;
+  }
+
+  private static int getBinnedLength(int pLength, int pBinning)
+  {
+    return (pLength + pBinning - 1) / pBinning;
+  }
+
+  /**
+   * Sets the fork/join pool used to process planes in parallel. The common
+   * pool is used by default.
+   *
+   * @param pPlaneProcessingPool
+   *          fork/join pool
+   */
+  public void setPlaneProcessingPool(ForkJoinPool pPlaneProcessingPool)
+  {
+    mPlaneProcessingPool = pPlaneProcessingPool;
+  }
+
+  /**
+   * Returns the input stack variable, typically fed by the output of a stack
+   * processing pipeline.
+   *
+   * @return input stack variable
+   */
+  public Variable<StackInterface> getInputStackVariable()
+  {
+    return mInputStackVariable;
+  }
+
+  /**
+   * Returns the variable deciding whether previews are computed
+   *
+   * @return active variable
+   */
+  public Variable<Boolean> getActiveVariable()
+  {
+    return mActiveVariable;
+  }
+
+  /**
+   * Returns the variable holding the time it took to compute the last previews
+   *
+   * @return preview time variable
+   */
+  public Variable<Double> getPreviewTimeInMillisecondsVariable()
+  {
+    return mPreviewTimeInMillisecondsVariable;
+  }
+
+  /**
+   * Returns the variable on which XY maximum projections (width x height) are
+   * published
+   *
+   * @return XY max projection variable
+   */
+  public Variable<StackInterface> getMaxProjectionXYVariable()
+  {
+    return mMaxProjectionXY.mVariable;
+  }
+
+  /**
+   * Returns the variable on which XZ maximum projections (width x depth) are
+   * published
+   *
+   * @return XZ max projection variable
+   */
+  public Variable<StackInterface> getMaxProjectionXZVariable()
+  {
+    return mMaxProjectionXZ.mVariable;
+  }
+
+  /**
+   * Returns the variable on which ZY maximum projections (depth x height) are
+   * published
+   *
+   * @return ZY max projection variable
+   */
+  public Variable<StackInterface> getMaxProjectionZYVariable()
+  {
+    return mMaxProjectionZY.mVariable;
+  }
+
+  /**
+   * Returns the variable on which binned previews of a given binning are
+   * published
+   *
+   * @param pBinning
+   *          binning: 2, 4 or 8
+   * @return binned preview variable
+   */
+  public Variable<StackInterface> getBinnedPreviewVariable(int pBinning)
+  {
+    for (int l = 0; l < cNumberOfBinningLevels; l++)
+      if (getBinning(l) == pBinning)
+        return mBinnedPreviews[l].mVariable;
+    throw new IllegalArgumentException("Unsupported binning: "
+                                       + pBinning);
+  }
+
+  private static class Output
+  {
+    private final Variable<StackInterface> mVariable;
+    private final BasicRecycler<StackInterface, StackRequest> mRecycler;
+
+    // the stage holds the last published stack until the next one:
+    private StackInterface mPublishedStack;
+
+    Output(String pName)
+    {
+      mVariable = new Variable<StackInterface>(pName);
+      mRecycler =
+                new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                cMaximumNumberOfLiveOutputStacks,
+                                                                cMaximumNumberOfAvailableOutputStacks,
+                                                                true);
+    }
+
+    StackInterface next(long pWidth, long pHeight, long pDepth)
+    {
+      return mRecycler.getOrFail(StackRequest.build(pWidth,
+                                                    pHeight,
+                                                    pDepth));
+    }
+
+    synchronized void publish(StackInterface pStack,
+                              StackInterface pSourceStack)
+    {
+      pStack.copyMetaDataFrom(pSourceStack);
+      final StackInterface lPreviousStack = mPublishedStack;
+      mPublishedStack = pStack;
+      mVariable.set(pStack);
+      if (lPreviousStack != null)
+        lPreviousStack.release();
+    }
+
+    synchronized void close()
+    {
+      if (mPublishedStack != null)
+        mPublishedStack.release();
+      mPublishedStack = null;
+      mRecycler.clearReleased();
+    }
+  }
+
+  private static class Pass
+  {
+    final StackInterface mStack;
+    final int mWidth, mHeight, mDepth;
+    final short[] mProjectionXY, mProjectionXZ, mProjectionZY;
+    final StackInterface[] mBinnedStacks;
+    final ConcurrentLinkedQueue<Scratch> mScratches;
+
+    Pass(StackInterface pStack,
+         int pWidth,
+         int pHeight,
+         int pDepth,
+         short[] pProjectionXY,
+         short[] pProjectionXZ,
+         short[] pProjectionZY,
+         StackInterface[] pBinnedStacks,
+         ConcurrentLinkedQueue<Scratch> pScratches)
+    {
+      mStack = pStack;
+      mWidth = pWidth;
+      mHeight = pHeight;
+      mDepth = pDepth;
+      mProjectionXY = pProjectionXY;
+      mProjectionXZ = pProjectionXZ;
+      mProjectionZY = pProjectionZY;
+      mBinnedStacks = pBinnedStacks;
+      mScratches = pScratches;
+    }
+  }
+
+  private static class Scratch
+  {
+    short[] mPlane, mProjectionXY, mRowXZ;
+    final int[][] mSums = new int[cNumberOfBinningLevels][];
+    final short[][] mBinnedPlanes = new short[cNumberOfBinningLevels][];
+
+    void ensure(int pWidth, int pHeight)
+    {
+      mPlane = ensure(mPlane, pWidth * pHeight);
+      mProjectionXY = ensure(mProjectionXY, pWidth * pHeight);
+      mRowXZ = ensure(mRowXZ, pWidth);
+      for (int l = 0; l < cNumberOfBinningLevels; l++)
+      {
+        final int lBinning = getBinning(l);
+        final int lLength = getBinnedLength(pWidth, lBinning)
+                            * getBinnedLength(pHeight, lBinning);
+        if (mSums[l] == null || mSums[l].length != lLength)
+          mSums[l] = new int[lLength];
+        mBinnedPlanes[l] = ensure(mBinnedPlanes[l], lLength);
+      }
+    }
+
+    private static short[] ensure(short[] pArray, int pLength)
+    {
+      return pArray == null || pArray.length != pLength ? new short[pLength]
+                                                        : pArray;
+    }
+  }
+
+  private static class PlaneBlockTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Pass mPass;
+    private final int mBeginPlane, mEndPlane, mPlanesPerTask;
+
+    PlaneBlockTask(Pass pPass,
+                   int pBeginPlane,
+                   int pEndPlane,
+                   int pPlanesPerTask)
+    {
+      mPass = pPass;
+      mBeginPlane = pBeginPlane;
+      mEndPlane = pEndPlane;
+      mPlanesPerTask = pPlanesPerTask;
+    }
+
+    @Override
+    protected void compute()
+    {
+      final int lNumberOfPlanes = mEndPlane - mBeginPlane;
+      if (lNumberOfPlanes <= mPlanesPerTask)
+      {
+        processPlanes();
+        return;
+      }
+
+      // split on a block boundary so that binned blocks are never shared:
+      final int lMiddlePlane = mBeginPlane
+                               + (lNumberOfPlanes / 2
+                                  / cPlaneBlockAlignment)
+                                 * cPlaneBlockAlignment;
+      if (lMiddlePlane == mBeginPlane)
+      {
+        processPlanes();
+        return;
+      }
+      invokeAll(new PlaneBlockTask(mPass,
+                                   mBeginPlane,
+                                   lMiddlePlane,
+                                   mPlanesPerTask),
+                new PlaneBlockTask(mPass,
+                                   lMiddlePlane,
+                                   mEndPlane,
+                                   mPlanesPerTask));
+    }
+
+    private void processPlanes()
+    {
+      Scratch lScratch = mPass.mScratches.poll();
+      if (lScratch == null)
+        lScratch = new Scratch();
+      try
+      {
+        processPlanes(lScratch);
+      }
+      finally
+      {
+        mPass.mScratches.offer(lScratch);
+      }
+    }
+
+    private void processPlanes(Scratch pScratch)
+    {
+      final int lWidth = mPass.mWidth;
+      final int lHeight = mPass.mHeight;
+      final int lDepth = mPass.mDepth;
+      final int lWidth2 = getBinnedLength(lWidth, 2);
+
+      pScratch.ensure(lWidth, lHeight);
+      final short[] lPlane = pScratch.mPlane;
+      final short[] lProjectionXY = pScratch.mProjectionXY;
+      final short[] lRowXZ = pScratch.mRowXZ;
+      final int[] lSums2 = pScratch.mSums[0];
+      final short[] lProjectionZY = mPass.mProjectionZY;
+      Arrays.fill(lProjectionXY, (short) 0);
+      for (int l = 0; l < cNumberOfBinningLevels; l++)
+        Arrays.fill(pScratch.mSums[l], 0);
+
+      for (int z = mBeginPlane; z < mEndPlane; z++)
+      {
+        mPass.mStack.getContiguousMemory(z).copyTo(lPlane);
+        Arrays.fill(lRowXZ, (short) 0);
+
+        for (int y = 0; y < lHeight; y++)
+        {
+          final int lRowOffset = y * lWidth;
+          final int lSumsRowOffset = (y >> 1) * lWidth2;
+          int lRowMaximum = 0;
+          for (int x = 0; x < lWidth; x++)
+          {
+            final int i = lRowOffset + x;
+            final int lValue = lPlane[i] & 0xFFFF;
+            if (lValue > (lProjectionXY[i] & 0xFFFF))
+              lProjectionXY[i] = (short) lValue;
+            if (lValue > (lRowXZ[x] & 0xFFFF))
+              lRowXZ[x] = (short) lValue;
+            if (lValue > lRowMaximum)
+              lRowMaximum = lValue;
+            lSums2[lSumsRowOffset + (x >> 1)] += lValue;
+          }
+          lProjectionZY[y * lDepth + z] = (short) lRowMaximum;
+        }
+        System.arraycopy(lRowXZ,
+                         0,
+                         mPass.mProjectionXZ,
+                         z * lWidth,
+                         lWidth);
+
+        flushBinnedBlocks(pScratch, z);
+      }
+
+      final short[] lSharedProjectionXY = mPass.mProjectionXY;
+      synchronized (lSharedProjectionXY)
+      {
+        for (int i = 0; i < lSharedProjectionXY.length; i++)
+          if ((lProjectionXY[i]
+               & 0xFFFF) > (lSharedProjectionXY[i] & 0xFFFF))
+            lSharedProjectionXY[i] = lProjectionXY[i];
+      }
+    }
+
+    // Writes the binned planes of all blocks ending at plane z, the sums of
+    // each level are folded into the next coarser level before being cleared:
+    private void flushBinnedBlocks(Scratch pScratch, int z)
+    {
+      final boolean lLastPlane = z == mPass.mDepth - 1;
+      for (int l = 0; l < cNumberOfBinningLevels; l++)
+      {
+        final int lBinning = getBinning(l);
+        if ((z + 1) % lBinning != 0 && !lLastPlane)
+          return;
+
+        final int lBinnedWidth = getBinnedLength(mPass.mWidth, lBinning);
+        final int lBinnedHeight = getBinnedLength(mPass.mHeight,
+                                                  lBinning);
+        final int lBlockDepth = z % lBinning + 1;
+        final int[] lSums = pScratch.mSums[l];
+        final short[] lBinnedPlane = pScratch.mBinnedPlanes[l];
+
+        for (int y = 0; y < lBinnedHeight; y++)
+        {
+          final int lBlockHeight = Math.min(lBinning,
+                                            mPass.mHeight - y * lBinning);
+          for (int x = 0; x < lBinnedWidth; x++)
+          {
+            final int lBlockWidth = Math.min(lBinning,
+                                             mPass.mWidth - x * lBinning);
+            final int i = y * lBinnedWidth + x;
+            lBinnedPlane[i] = (short) (lSums[i] / (lBlockWidth
+                                                   * lBlockHeight
+                                                   * lBlockDepth));
+          }
+        }
+        mPass.mBinnedStacks[l].getContiguousMemory(z / lBinning)
+                              .copyFrom(lBinnedPlane);
+
+        if (l + 1 < cNumberOfBinningLevels)
+        {
+          final int[] lCoarserSums = pScratch.mSums[l + 1];
+          final int lCoarserWidth = getBinnedLength(lBinnedWidth, 2);
+          for (int y = 0; y < lBinnedHeight; y++)
+            for (int x = 0; x < lBinnedWidth; x++)
+              lCoarserSums[(y >> 1) * lCoarserWidth
+                           + (x >> 1)] += lSums[y * lBinnedWidth + x];
+        }
+        Arrays.fill(lSums, 0);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,515 @@
+package clearcontrol.stack.sourcesink;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Binary stack index. A binary index file mirrors the index and metadata text
+ * files of a channel with one fixed-width record per stack, so that it can be
+ * memory-mapped and looked up by stack index without any parsing. The metadata
+ * itself stays in the metadata text file, records only point to the stack's
+ * line in that file.
+ *
+ * <pre>
+ * header : magic (long), version (long)
+ * records: stack index (long), time stamp in seconds (double), width, height,
+ *          depth, metadata line offset, metadata line length (longs)
+ * </pre>
+ *
+ * @author royer
+ */
+public class BinaryStackIndex implements AutoCloseable
+{
+  /**
+   * Magic number found at the beginning of binary index files
+   */
+  public static final long cMagic = 0x434353544B494431L; // "CCSTKID1"
+
+  /**
+   * Binary index file format version
+   */
+  public static final long cVersion = 1;
+
+  /**
+   * Size in bytes of the header
+   */
+  public static final int cHeaderSizeInBytes = 2 * Long.BYTES;
+
+  /**
+   * Size in bytes of one record
+   */
+  public static final int cRecordSizeInBytes = 7 * Long.BYTES;
+
+  /**
+   * Byte order used for binary index files
+   */
+  public static final ByteOrder cByteOrder = ByteOrder.LITTLE_ENDIAN;
+
+  private final ByteBuffer mRecords;
+  private final int mNumberOfStacks;
+  private final FileChannel mMetaDataFileChannel;
+
+  private BinaryStackIndex(ByteBuffer pRecords,
+                           int pNumberOfStacks,
+                           FileChannel pMetaDataFileChannel)
+  {
+    mRecords = pRecords;
+    mNumberOfStacks = pNumberOfStacks;
+    mMetaDataFileChannel = pMetaDataFileChannel;
+  }
+
+  /**
+   * Opens and memory-maps a binary index file. Returns null if the file does
+   * not exist or is not consistent with the metadata file, for example because
+   * one of them is still being written to.
+   *
+   * @param pBinaryIndexFile
+   *          binary index file
+   * @param pMetaDataFile
+   *          metadata text file
+   * @return binary index or null
+   * @throws IOException
+   *           if the files could not be read
+   */
+  public static BinaryStackIndex open(File pBinaryIndexFile,
+                                      File pMetaDataFile) throws IOException
+  {
+    return open(pBinaryIndexFile, pMetaDataFile, 0);
+  }
+
+  /**
+   * Opens and memory-maps a binary index file of which a given number of
+   * records have already been validated when opening a previous, shorter,
+   * version of this append-only file. Only the records appended since are
+   * validated. Returns null if the file does not exist or is not consistent
+   * with the metadata file.
+   *
+   * @param pBinaryIndexFile
+   *          binary index file
+   * @param pMetaDataFile
+   *          metadata text file
+   * @param pNumberOfValidatedStacks
+   *          number of records already validated, zero to validate all records
+   * @return binary index or null
+   * @throws IOException
+   *           if the files could not be read
+   */
+  public static BinaryStackIndex open(File pBinaryIndexFile,
+                                      File pMetaDataFile,
+                                      int pNumberOfValidatedStacks) throws IOException
+  {
+    if (!pBinaryIndexFile.exists() || !pMetaDataFile.exists())
+      return null;
+
+    final MappedByteBuffer lMappedByteBuffer;
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(pBinaryIndexFile.toPath(),
+                                                   StandardOpenOption.READ))
+    {
+      long lLength = lFileChannel.size();
+      if (lLength < cHeaderSizeInBytes || lLength > Integer.MAX_VALUE
+          || (lLength - cHeaderSizeInBytes) % cRecordSizeInBytes != 0)
+        return null;
+
+      lMappedByteBuffer = lFileChannel.map(MapMode.READ_ONLY,
+                                           0,
+                                           lLength);
+    }
+    lMappedByteBuffer.order(cByteOrder);
+
+    if (lMappedByteBuffer.getLong(0) != cMagic
+        || lMappedByteBuffer.getLong(Long.BYTES) != cVersion)
+      return null;
+
+    int lNumberOfStacks = (lMappedByteBuffer.capacity()
+                           - cHeaderSizeInBytes)
+                          / cRecordSizeInBytes;
+
+    FileChannel lMetaDataFileChannel =
+                                     FileChannel.open(pMetaDataFile.toPath(),
+                                                      StandardOpenOption.READ);
+
+    BinaryStackIndex lBinaryStackIndex =
+                                       new BinaryStackIndex(lMappedByteBuffer,
+                                                            lNumberOfStacks,
+                                                            lMetaDataFileChannel);
+
+    if (!lBinaryStackIndex.isConsistent(lMetaDataFileChannel.size(),
+                                        pNumberOfValidatedStacks))
+    {
+      lBinaryStackIndex.close();
+      return null;
+    }
+
+    return lBinaryStackIndex;
+  }
+
+  private boolean isConsistent(long pMetaDataFileLength,
+                               int pNumberOfValidatedStacks)
+  {
+    // Records must start at stack index zero and be contiguous, and their
+    // metadata lines must follow each other and cover the metadata file
+    // exactly. If the file has shrunk, all records are validated again:
+    if (mNumberOfStacks == 0)
+      return pMetaDataFileLength == 0;
+
+    int lFirst = pNumberOfValidatedStacks <= mNumberOfStacks
+                                                             ? Math.max(0,
+                                                                        pNumberOfValidatedStacks
+                                                                           - 1)
+                                                             : 0;
+    long lNextMetaDataOffset = lFirst == 0 ? 0
+                                           : getMetaDataOffset(lFirst);
+    for (int i = lFirst; i < mNumberOfStacks; i++)
+    {
+      if (getStackIndex(i) != i
+          || getMetaDataOffset(i) != lNextMetaDataOffset
+          || getMetaDataLength(i) <= 0)
+        return false;
+      lNextMetaDataOffset += getMetaDataLength(i);
+    }
+    return lNextMetaDataOffset == pMetaDataFileLength;
+  }
+
+  /**
+   * Builds a binary index file from existing index and metadata text files.
+   * The binary index file is first written to a temporary file which is then
+   * atomically renamed.
+   *
+   * @param pIndexFile
+   *          index text file
+   * @param pMetaDataFile
+   *          metadata text file
+   * @param pBinaryIndexFile
+   *          binary index file to write
+   * @throws IOException
+   *           if the text files could not be read, are inconsistent, or if the
+   *           binary index could not be written
+   */
+  public static void build(File pIndexFile,
+                           File pMetaDataFile,
+                           File pBinaryIndexFile) throws IOException
+  {
+    final TDoubleArrayList lTimeStamps = new TDoubleArrayList();
+    final TLongArrayList lDimensions = new TLongArrayList();
+    try (BufferedReader lReader =
+                                new BufferedReader(new FileReader(pIndexFile)))
+    {
+      String lLine;
+      while ((lLine = lReader.readLine()) != null)
+      {
+        final String[] lSplittedLine = lLine.split("\t", -1);
+        final String[] lDimensionsStringArray =
+                                              lSplittedLine[2].split(", ");
+        lTimeStamps.add(Double.parseDouble(lSplittedLine[1].trim()));
+        lDimensions.add(Long.parseLong(lDimensionsStringArray[0]));
+        lDimensions.add(Long.parseLong(lDimensionsStringArray[1]));
+        lDimensions.add(Long.parseLong(lDimensionsStringArray[2]));
+      }
+    }
+
+    final TLongArrayList lLineEnds = new TLongArrayList();
+    try (InputStream lInputStream =
+                                  new BufferedInputStream(new FileInputStream(pMetaDataFile)))
+    {
+      long lPosition = 0;
+      int lByte;
+      while ((lByte = lInputStream.read()) >= 0)
+      {
+        lPosition++;
+        if (lByte == '\n')
+          lLineEnds.add(lPosition);
+      }
+    }
+
+    final int lNumberOfStacks = lTimeStamps.size();
+    if (lLineEnds.size() != lNumberOfStacks)
+      throw new IOException(String.format("Index file %s and metadata file %s have a different number of entries",
+                                          pIndexFile,
+                                          pMetaDataFile));
+
+    Appender lAppender = new Appender(0, 0);
+    ByteBuffer lByteBuffer =
+                           ByteBuffer.allocate(cHeaderSizeInBytes
+                                               + lNumberOfStacks
+                                                 * cRecordSizeInBytes)
+                                     .order(cByteOrder);
+    if (lNumberOfStacks == 0)
+    {
+      lByteBuffer.putLong(cMagic);
+      lByteBuffer.putLong(cVersion);
+    }
+    long lLineStart = 0;
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      lAppender.addMetaDataEntry(lLineEnds.get(i) - lLineStart);
+      lLineStart = lLineEnds.get(i);
+      lByteBuffer.put(lAppender.getEntry(i,
+                                         lTimeStamps.get(i),
+                                         lDimensions.get(3 * i),
+                                         lDimensions.get(3 * i + 1),
+                                         lDimensions.get(3 * i + 2)));
+    }
+    lByteBuffer.flip();
+
+    File lTemporaryFile = new File(pBinaryIndexFile.getParentFile(),
+                                   pBinaryIndexFile.getName() + ".tmp");
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lTemporaryFile.toPath(),
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE))
+    {
+      while (lByteBuffer.hasRemaining())
+        lFileChannel.write(lByteBuffer);
+      lFileChannel.force(true);
+    }
+    Files.move(lTemporaryFile.toPath(),
+               pBinaryIndexFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns the number of stacks in this index
+   *
+   * @return number of stacks
+   */
+  public int getNumberOfStacks()
+  {
+    return mNumberOfStacks;
+  }
+
+  private long getField(int pStackIndex, int pField)
+  {
+    return mRecords.getLong(cHeaderSizeInBytes
+                            + pStackIndex * cRecordSizeInBytes
+                            + pField * Long.BYTES);
+  }
+
+  /**
+   * Returns the stack index stored in a given record
+   *
+   * @param pStackIndex
+   *          record index
+   * @return stack index
+   */
+  public long getStackIndex(int pStackIndex)
+  {
+    return getField(pStackIndex, 0);
+  }
+
+  /**
+   * Returns the time stamp in seconds of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return time stamp in seconds
+   */
+  public double getTimeStampInSeconds(int pStackIndex)
+  {
+    return Double.longBitsToDouble(getField(pStackIndex, 1));
+  }
+
+  /**
+   * Returns the stack request (dimensions) of a given stack
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return stack request
+   */
+  public StackRequest getStackRequest(int pStackIndex)
+  {
+    return StackRequest.build(getField(pStackIndex, 2),
+                              getField(pStackIndex, 3),
+                              getField(pStackIndex, 4));
+  }
+
+  /**
+   * Returns a given stack's width, height or depth
+   *
+   * @param pStackIndex
+   *          stack index
+   * @param pDimension
+   *          dimension: 0 for width, 1 for height and 2 for depth
+   * @return length along that dimension
+   */
+  public long getStackDimension(int pStackIndex, int pDimension)
+  {
+    return getField(pStackIndex, 2 + pDimension);
+  }
+
+  /**
+   * Returns the offset in bytes of a given stack's line in the metadata file
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return metadata line offset in bytes
+   */
+  public long getMetaDataOffset(int pStackIndex)
+  {
+    return getField(pStackIndex, 5);
+  }
+
+  /**
+   * Returns the length in bytes of a given stack's line in the metadata file,
+   * including the end-of-line character
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return metadata line length in bytes
+   */
+  public long getMetaDataLength(int pStackIndex)
+  {
+    return getField(pStackIndex, 6);
+  }
+
+  /**
+   * Reads and parses the metadata of a given stack from the metadata file.
+   *
+   * @param pStackIndex
+   *          stack index
+   * @return stack metadata, or null if it could not be read
+   */
+  public StackMetaData readStackMetaData(int pStackIndex)
+  {
+    try
+    {
+      ByteBuffer lLineBuffer =
+                             ByteBuffer.allocate((int) getMetaDataLength(pStackIndex));
+      long lPosition = getMetaDataOffset(pStackIndex);
+      while (lLineBuffer.hasRemaining())
+      {
+        int lRead = mMetaDataFileChannel.read(lLineBuffer, lPosition);
+        if (lRead < 0)
+          return null;
+        lPosition += lRead;
+      }
+
+      StackMetaData lStackMetaData = new StackMetaData();
+      if (!lStackMetaData.fromString(new String(lLineBuffer.array()).trim()))
+        return null;
+      return lStackMetaData;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mMetaDataFileChannel.close();
+  }
+
+  /**
+   * Encodes binary index records for a channel being written. Metadata line
+   * offsets follow from the lengths of the metadata lines appended so far.
+   */
+  public static class Appender
+  {
+    private boolean mHeaderPending;
+    private long mNextMetaDataOffset;
+    private long mMetaDataOffset;
+    private long mMetaDataLength;
+
+    /**
+     * Instantiates an appender for binary index and metadata files of given
+     * current lengths.
+     *
+     * @param pBinaryIndexFileLength
+     *          current length in bytes of the binary index file, zero if the
+     *          header still needs to be written
+     * @param pMetaDataFileLength
+     *          current length in bytes of the metadata file
+     */
+    public Appender(long pBinaryIndexFileLength,
+                    long pMetaDataFileLength)
+    {
+      mHeaderPending = pBinaryIndexFileLength == 0;
+      mNextMetaDataOffset = pMetaDataFileLength;
+    }
+
+    /**
+     * Records the length of the line appended to the metadata file for the
+     * next stack.
+     *
+     * @param pLengthInBytes
+     *          metadata line length in bytes, including the end-of-line
+     *          character
+     */
+    public void addMetaDataEntry(long pLengthInBytes)
+    {
+      mMetaDataOffset = mNextMetaDataOffset;
+      mMetaDataLength = pLengthInBytes;
+      mNextMetaDataOffset += pLengthInBytes;
+    }
+
+    /**
+     * Returns the bytes to append to the binary index file for the next stack,
+     * preceded by the header if this is the first record of the file. The
+     * metadata line of that stack must have been recorded with
+     * addMetaDataEntry before.
+     *
+     * @param pStackIndex
+     *          stack index
+     * @param pTimeStampInSeconds
+     *          time stamp in seconds
+     * @param pWidth
+     *          width
+     * @param pHeight
+     *          height
+     * @param pDepth
+     *          depth
+     * @return buffer ready to be written
+     */
+    public ByteBuffer getEntry(long pStackIndex,
+                               double pTimeStampInSeconds,
+                               long pWidth,
+                               long pHeight,
+                               long pDepth)
+    {
+      ByteBuffer lByteBuffer =
+                             ByteBuffer.allocate((mHeaderPending ? cHeaderSizeInBytes
+                                                                 : 0)
+                                                 + cRecordSizeInBytes)
+                                       .order(cByteOrder);
+      if (mHeaderPending)
+      {
+        lByteBuffer.putLong(cMagic);
+        lByteBuffer.putLong(cVersion);
+        mHeaderPending = false;
+      }
+      lByteBuffer.putLong(pStackIndex);
+      lByteBuffer.putLong(Double.doubleToLongBits(pTimeStampInSeconds));
+      lByteBuffer.putLong(pWidth);
+      lByteBuffer.putLong(pHeight);
+      lByteBuffer.putLong(pDepth);
+      lByteBuffer.putLong(mMetaDataOffset);
+      lByteBuffer.putLong(mMetaDataLength);
+      lByteBuffer.flip();
+      return lByteBuffer;
+    }
+  }
+
+}
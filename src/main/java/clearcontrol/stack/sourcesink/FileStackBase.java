@@ -7,6 +7,8 @@ import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.server.StackServerBase;
 
 /**
@@ -30,6 +32,13 @@ public abstract class FileStackBase extends StackServerBase
   protected ConcurrentHashMap<String, File> mChannelToMetadataFileMap =
                                                                       new ConcurrentHashMap<>();
 
+  private final ConcurrentHashMap<String, BinaryStackIndex.Appender> mChannelToBinaryIndexAppenderMap =
+                                                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, BinaryStackIndex> mChannelToBinaryIndexMap =
+                                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Integer> mChannelToNumberOfValidatedStacksMap =
+                                                                                        new ConcurrentHashMap<>();
+
   /**
    * Instantiates a local file stack source or sink. The method setLocation must
    * be called to set a folder location
@@ -125,6 +134,220 @@ public abstract class FileStackBase extends StackServerBase
     return lMetadataFile;
   }
 
+  protected File getBinaryIndexFile(String pChannel)
+  {
+    return new File(mFolder, pChannel + cBinaryIndexFileExtension);
+  }
+
+  /**
+   * Returns the binary index appender for a given channel, used by sinks to
+   * encode the binary index records of the stacks they append.
+   * 
+   * @param pChannel
+   *          channel
+   * @return binary index appender
+   */
+  protected BinaryStackIndex.Appender getBinaryIndexAppender(String pChannel)
+  {
+    return mChannelToBinaryIndexAppenderMap.computeIfAbsent(pChannel,
+                                                            (c) -> new BinaryStackIndex.Appender(getBinaryIndexFile(c).length(),
+                                                                                                 getMetadataFile(c).length()));
+  }
+
+  /**
+   * Opens the binary index file of a given channel, building that file from
+   * the text files if it does not exist yet. Time stamps, stack requests and
+   * metadata of the stacks it covers are then looked up in the memory-mapped
+   * index on demand, nothing is copied. Only the records appended since the
+   * index was last opened are validated. Returns false if the binary index is
+   * missing and could not be built, or if it is not consistent with the text
+   * files, in which case the text files should be read instead.
+   * 
+   * @param pChannel
+   *          channel
+   * @return true if the binary index could be used
+   */
+  protected boolean readBinaryIndexFile(String pChannel)
+  {
+    File lBinaryIndexFile = getBinaryIndexFile(pChannel);
+    File lMetaDataFile = getMetadataFile(pChannel);
+    try
+    {
+      if (!lBinaryIndexFile.exists())
+        BinaryStackIndex.build(getIndexFile(pChannel),
+                               lMetaDataFile,
+                               lBinaryIndexFile);
+
+      BinaryStackIndex lBinaryStackIndex =
+                                         BinaryStackIndex.open(lBinaryIndexFile,
+                                                               lMetaDataFile,
+                                                               mChannelToNumberOfValidatedStacksMap.getOrDefault(pChannel,
+                                                                                                                 0));
+      if (lBinaryStackIndex == null)
+      {
+        mChannelToNumberOfValidatedStacksMap.remove(pChannel);
+        return false;
+      }
+      mChannelToNumberOfValidatedStacksMap.put(pChannel,
+                                               lBinaryStackIndex.getNumberOfStacks());
+
+      BinaryStackIndex lPreviousBinaryStackIndex =
+                                                 mChannelToBinaryIndexMap.put(pChannel,
+                                                                              lBinaryStackIndex);
+      if (lPreviousBinaryStackIndex != null)
+        lPreviousBinaryStackIndex.close();
+
+      return true;
+    }
+    catch (IOException e)
+    {
+      // no usable binary index, text files will be read instead.
+      return false;
+    }
+  }
+
+  private BinaryStackIndex getBinaryIndex(String pChannel,
+                                          long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex =
+                                       mChannelToBinaryIndexMap.get(pChannel);
+    if (lBinaryStackIndex == null
+        || pStackIndex >= lBinaryStackIndex.getNumberOfStacks())
+      return null;
+    return lBinaryStackIndex;
+  }
+
+  @Override
+  public long getNumberOfStacks(String pChannel)
+  {
+    long lNumberOfStacks = super.getNumberOfStacks(pChannel);
+    BinaryStackIndex lBinaryStackIndex =
+                                       mChannelToBinaryIndexMap.get(pChannel);
+    if (lBinaryStackIndex != null)
+      lNumberOfStacks = Math.max(lNumberOfStacks,
+                                 lBinaryStackIndex.getNumberOfStacks());
+    return lNumberOfStacks;
+  }
+
+  @Override
+  public Double getStackTimeStampInSeconds(String pChannel,
+                                           final long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return super.getStackTimeStampInSeconds(pChannel, pStackIndex);
+    return lBinaryStackIndex.getTimeStampInSeconds((int) pStackIndex);
+  }
+
+  @Override
+  public double getStackTimeStampInSeconds(String pChannel,
+                                           final long pStackIndex,
+                                           double pDefaultValue)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return super.getStackTimeStampInSeconds(pChannel,
+                                              pStackIndex,
+                                              pDefaultValue);
+    return lBinaryStackIndex.getTimeStampInSeconds((int) pStackIndex);
+  }
+
+  @Override
+  public long getStackDimension(String pChannel,
+                                final long pStackIndex,
+                                int pDimension)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return super.getStackDimension(pChannel, pStackIndex, pDimension);
+    return lBinaryStackIndex.getStackDimension((int) pStackIndex,
+                                               pDimension);
+  }
+
+  @Override
+  public StackRequest getStackRequest(String pChannel,
+                                      final long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return super.getStackRequest(pChannel, pStackIndex);
+    return lBinaryStackIndex.getStackRequest((int) pStackIndex);
+  }
+
+  @Override
+  public long getStackSizeInBytes(String pChannel,
+                                  final long pStackIndex)
+  {
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return super.getStackSizeInBytes(pChannel, pStackIndex);
+    return lBinaryStackIndex.getStackDimension((int) pStackIndex, 0)
+           * lBinaryStackIndex.getStackDimension((int) pStackIndex, 1)
+           * lBinaryStackIndex.getStackDimension((int) pStackIndex, 2)
+           * Short.BYTES;
+  }
+
+  /**
+   * Returns the binary index currently used for a given channel, if any.
+   * 
+   * @param pChannel
+   *          channel
+   * @return binary index or null
+   */
+  protected BinaryStackIndex getBinaryIndex(String pChannel)
+  {
+    return mChannelToBinaryIndexMap.get(pChannel);
+  }
+
+  @Override
+  public StackMetaData getStackMetaData(String pChannel,
+                                        final long pStackIndex)
+  {
+    StackMetaData lStackMetaData = super.getStackMetaData(pChannel,
+                                                          pStackIndex);
+    if (lStackMetaData != null)
+      return lStackMetaData;
+
+    BinaryStackIndex lBinaryStackIndex = getBinaryIndex(pChannel,
+                                                        pStackIndex);
+    if (lBinaryStackIndex == null)
+      return null;
+
+    lStackMetaData =
+                   lBinaryStackIndex.readStackMetaData((int) pStackIndex);
+    if (lStackMetaData != null)
+      setStackMetaData(pChannel, pStackIndex, lStackMetaData);
+    return lStackMetaData;
+  }
+
+  @Override
+  protected void clear()
+  {
+    super.clear();
+    closeBinaryIndices();
+  }
+
+  private void closeBinaryIndices()
+  {
+    for (BinaryStackIndex lBinaryStackIndex : mChannelToBinaryIndexMap.values())
+    {
+      try
+      {
+        lBinaryStackIndex.close();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+    mChannelToBinaryIndexMap.clear();
+  }
+
   protected File getChannelFolder(String pChannel)
   {
     File lChannelFolder = mChannelToFolderMap.get(pChannel);
@@ -138,6 +361,12 @@ public abstract class FileStackBase extends StackServerBase
     return lChannelFolder;
   }
 
+  protected File getMappedFile(String pChannel)
+  {
+    return new File(mStacksFolder,
+                    pChannel + cMappedFileExtension);
+  }
+
   protected FileChannel getFileChannel(File pFile,
                                        final boolean pReadOnly) throws IOException
   {
@@ -183,6 +412,7 @@ public abstract class FileStackBase extends StackServerBase
   @Override
   public void close() throws IOException
   {
+    closeBinaryIndices();
   }
 
 }
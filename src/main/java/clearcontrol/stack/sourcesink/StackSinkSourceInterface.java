@@ -36,6 +36,16 @@ public interface StackSinkSourceInterface
    */
   public static final String cSqeazyHDF5FileExtension = ".h5";
 
+  /**
+   * Filename suffix for single-file containers holding all stacks of a channel
+   */
+  public static final String cMappedFileExtension = ".stacks";
+
+  /**
+   * Filename suffix for binary index files, next to the index text files
+   */
+  public static final String cBinaryIndexFileExtension = ".index.bin";
+
   /**
    * Format used to write the stacks filenames
    */
@@ -2,17 +2,24 @@ package clearcontrol.stack.sourcesink.server;
 
 import static java.lang.Math.toIntExact;
 
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
 import gnu.trove.list.array.TDoubleArrayList;
-
-import org.apache.commons.lang3.tuple.Pair;
+import gnu.trove.list.array.TLongArrayList;
 
 /**
- * Stack server base
+ * Stack server base.
+ * 
+ * Time stamps, dimensions and metadata are stored per channel in columns
+ * indexed by stack index: primitive arrays for time stamps and dimensions, so
+ * that datasets of millions of stacks stay compact. The primitive accessors
+ * getStackTimeStampInSeconds(channel, index, default), getStackDimension and
+ * getStackSizeInBytes do not allocate, unlike the boxed time stamp accessors
+ * and getStackRequest.
  *
  * @author royer
  */
@@ -20,14 +27,8 @@ public abstract class StackServerBase implements
                                       StackSinkSourceInterface,
                                       AutoCloseable
 {
-  private final ConcurrentHashMap<String, TDoubleArrayList> mChannelIndexToTimeStampInSecondsMap =
-                                                                                                 new ConcurrentHashMap<>();
-
-  private final ConcurrentHashMap<Pair<String, Long>, StackRequest> mChannelIndexToStackRequestMap =
-                                                                                                   new ConcurrentHashMap<>();
-
-  private final ConcurrentHashMap<Pair<String, Long>, StackMetaData> mChannelIndexToMetaDataMap =
-                                                                                                new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StackColumns> mChannelToStackColumnsMap =
+                                                                                  new ConcurrentHashMap<>();
 
   /**
    * Instantiates a stack server base
@@ -39,8 +40,17 @@ public abstract class StackServerBase implements
 
   protected void clear()
   {
-    mChannelIndexToTimeStampInSecondsMap.clear();
-    mChannelIndexToStackRequestMap.clear();
+    mChannelToStackColumnsMap.clear();
+  }
+
+  private StackColumns getStackColumns(String pChannel)
+  {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null)
+      lStackColumns =
+                    mChannelToStackColumnsMap.computeIfAbsent(pChannel,
+                                                              (c) -> new StackColumns());
+    return lStackColumns;
   }
 
   /**
@@ -50,8 +60,7 @@ public abstract class StackServerBase implements
    */
   public long getNumberOfStacks()
   {
-    return mChannelIndexToTimeStampInSecondsMap.get(cDefaultChannel)
-                                               .size();
+    return getNumberOfStacks(cDefaultChannel);
   }
 
   /**
@@ -64,7 +73,10 @@ public abstract class StackServerBase implements
    */
   public long getNumberOfStacks(String pChannel)
   {
-    return mChannelIndexToTimeStampInSecondsMap.get(pChannel).size();
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null)
+      return 0;
+    return lStackColumns.getNumberOfStacks();
   }
 
   /**
@@ -82,17 +94,8 @@ public abstract class StackServerBase implements
                                          final long pStackIndex,
                                          double pTimeStampInSeconds)
   {
-    TDoubleArrayList lTimeStampList =
-                                    mChannelIndexToTimeStampInSecondsMap.get(pChannel);
-
-    if (lTimeStampList == null)
-    {
-      lTimeStampList = new TDoubleArrayList();
-      mChannelIndexToTimeStampInSecondsMap.put(pChannel,
-                                               lTimeStampList);
-    }
-
-    lTimeStampList.add(pTimeStampInSeconds);
+    getStackColumns(pChannel).setTimeStampInSeconds(toIntExact(pStackIndex),
+                                                    pTimeStampInSeconds);
   }
 
   /**
@@ -122,13 +125,36 @@ public abstract class StackServerBase implements
   public Double getStackTimeStampInSeconds(String pChannel,
                                            final long pStackIndex)
   {
-    TDoubleArrayList lTimeStampList =
-                                    mChannelIndexToTimeStampInSecondsMap.get(pChannel);
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
 
-    if (lTimeStampList == null)
+    if (lStackColumns == null)
       return null;
 
-    return new Double(lTimeStampList.get(toIntExact(pStackIndex)));
+    return lStackColumns.getTimeStampInSeconds(toIntExact(pStackIndex));
+  }
+
+  /**
+   * Returns - for a given channel and stack index - the stack's time stamp in
+   * seconds, without boxing.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pDefaultValue
+   *          value returned if the time stamp is unknown
+   * @return stack's time stamp in seconds, or the default value
+   */
+  public double getStackTimeStampInSeconds(String pChannel,
+                                           final long pStackIndex,
+                                           double pDefaultValue)
+  {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null
+        || pStackIndex >= lStackColumns.getNumberOfStacks())
+      return pDefaultValue;
+
+    return lStackColumns.getTimeStampInSeconds(toIntExact(pStackIndex));
   }
 
   /**
@@ -145,8 +171,37 @@ public abstract class StackServerBase implements
                               final long pStackIndex,
                               StackRequest pStackRequest)
   {
-    mChannelIndexToStackRequestMap.put(Pair.of(pChannel, pStackIndex),
-                                       pStackRequest);
+    setStackDimensions(pChannel,
+                       pStackIndex,
+                       pStackRequest.getWidth(),
+                       pStackRequest.getHeight(),
+                       pStackRequest.getDepth());
+  }
+
+  /**
+   * Sets - for a given channel and stack index - the stack's dimensions.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pWidth
+   *          width
+   * @param pHeight
+   *          height
+   * @param pDepth
+   *          depth
+   */
+  public void setStackDimensions(String pChannel,
+                                 final long pStackIndex,
+                                 long pWidth,
+                                 long pHeight,
+                                 long pDepth)
+  {
+    getStackColumns(pChannel).setDimensions(toIntExact(pStackIndex),
+                                            pWidth,
+                                            pHeight,
+                                            pDepth);
   }
 
   /**
@@ -162,9 +217,66 @@ public abstract class StackServerBase implements
   public StackRequest getStackRequest(String pChannel,
                                       final long pStackIndex)
   {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null
+        || !lStackColumns.hasDimensions(toIntExact(pStackIndex)))
+      return null;
 
-    return mChannelIndexToStackRequestMap.get(Pair.of(pChannel,
-                                                      pStackIndex));
+    return StackRequest.build(lStackColumns.getDimension(toIntExact(pStackIndex),
+                                                         0),
+                              lStackColumns.getDimension(toIntExact(pStackIndex),
+                                                         1),
+                              lStackColumns.getDimension(toIntExact(pStackIndex),
+                                                         2));
+  }
+
+  /**
+   * Returns - for a given channel and stack index - the stack's width, height
+   * or depth, without allocating a stack request.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pDimension
+   *          dimension: 0 for width, 1 for height and 2 for depth
+   * @return length along that dimension, or -1 if unknown
+   */
+  public long getStackDimension(String pChannel,
+                                final long pStackIndex,
+                                int pDimension)
+  {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null
+        || !lStackColumns.hasDimensions(toIntExact(pStackIndex)))
+      return -1;
+
+    return lStackColumns.getDimension(toIntExact(pStackIndex),
+                                      pDimension);
+  }
+
+  /**
+   * Returns - for a given channel and stack index - the stack's size in bytes,
+   * assuming 16 bit voxels, without allocating a stack request.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @return stack size in bytes, or -1 if unknown
+   */
+  public long getStackSizeInBytes(String pChannel,
+                                  final long pStackIndex)
+  {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null
+        || !lStackColumns.hasDimensions(toIntExact(pStackIndex)))
+      return -1;
+
+    return lStackColumns.getDimension(toIntExact(pStackIndex), 0)
+           * lStackColumns.getDimension(toIntExact(pStackIndex), 1)
+           * lStackColumns.getDimension(toIntExact(pStackIndex), 2)
+           * Short.BYTES;
   }
 
   /**
@@ -181,8 +293,8 @@ public abstract class StackServerBase implements
                                final long pStackIndex,
                                StackMetaData pStackMetaData)
   {
-    mChannelIndexToMetaDataMap.put(Pair.of(pChannel, pStackIndex),
-                                   pStackMetaData);
+    getStackColumns(pChannel).setMetaData(toIntExact(pStackIndex),
+                                          pStackMetaData);
   }
 
   /**
@@ -197,9 +309,81 @@ public abstract class StackServerBase implements
   public StackMetaData getStackMetaData(String pChannel,
                                         final long pStackIndex)
   {
+    StackColumns lStackColumns = mChannelToStackColumnsMap.get(pChannel);
+    if (lStackColumns == null)
+      return null;
+
+    return lStackColumns.getMetaData(toIntExact(pStackIndex));
+  }
+
+  /**
+   * Per-channel columns of stack information, indexed by stack index. Columns
+   * grow as needed when values are set for stack indices beyond their current
+   * size, the number of stacks is given by the time stamps column.
+   */
+  private static final class StackColumns
+  {
+    private final TDoubleArrayList mTimeStampsInSeconds =
+                                                        new TDoubleArrayList();
+    // width, height and depth, interleaved:
+    private final TLongArrayList mDimensions = new TLongArrayList();
+    private final ArrayList<StackMetaData> mMetaData = new ArrayList<>();
+
+    synchronized int getNumberOfStacks()
+    {
+      return mTimeStampsInSeconds.size();
+    }
+
+    synchronized void setTimeStampInSeconds(int pStackIndex,
+                                            double pTimeStampInSeconds)
+    {
+      while (mTimeStampsInSeconds.size() <= pStackIndex)
+        mTimeStampsInSeconds.add(Double.NaN);
+      mTimeStampsInSeconds.set(pStackIndex, pTimeStampInSeconds);
+    }
 
-    return mChannelIndexToMetaDataMap.get(Pair.of(pChannel,
-                                                  pStackIndex));
+    synchronized double getTimeStampInSeconds(int pStackIndex)
+    {
+      return mTimeStampsInSeconds.get(pStackIndex);
+    }
+
+    synchronized void setDimensions(int pStackIndex,
+                                    long pWidth,
+                                    long pHeight,
+                                    long pDepth)
+    {
+      while (mDimensions.size() < 3 * (pStackIndex + 1))
+        mDimensions.add(0);
+      mDimensions.set(3 * pStackIndex, pWidth);
+      mDimensions.set(3 * pStackIndex + 1, pHeight);
+      mDimensions.set(3 * pStackIndex + 2, pDepth);
+    }
+
+    synchronized boolean hasDimensions(int pStackIndex)
+    {
+      return 3 * pStackIndex < mDimensions.size()
+             && mDimensions.get(3 * pStackIndex) != 0;
+    }
+
+    synchronized long getDimension(int pStackIndex, int pDimension)
+    {
+      return mDimensions.get(3 * pStackIndex + pDimension);
+    }
+
+    synchronized void setMetaData(int pStackIndex,
+                                  StackMetaData pStackMetaData)
+    {
+      while (mMetaData.size() <= pStackIndex)
+        mMetaData.add(null);
+      mMetaData.set(pStackIndex, pStackMetaData);
+    }
+
+    synchronized StackMetaData getMetaData(int pStackIndex)
+    {
+      if (pStackIndex >= mMetaData.size())
+        return null;
+      return mMetaData.get(pStackIndex);
+    }
   }
 
 }
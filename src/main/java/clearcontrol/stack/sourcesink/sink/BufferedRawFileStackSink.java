@@ -0,0 +1,347 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.concurrent.executors.AsynchronousSchedulerFeature;
+import clearcontrol.core.concurrent.executors.ClearControlExecutors;
+import clearcontrol.core.concurrent.executors.WaitingScheduledFuture;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.fragmented.FragmentedMemoryInterface;
+
+/**
+ * Raw file stack sink that keeps the index and metadata files of each channel
+ * open for the life of the sink. Index and metadata lines are accumulated in
+ * off-heap buffers, and written and forced to disk together with the pending
+ * stack data files every N stacks, every T milliseconds, or on close -
+ * whichever comes first. The files written are identical to those written by
+ * {@link RawFileStackSink} and can be read with a RawFileStackSource.
+ *
+ * @author royer
+ */
+public class BufferedRawFileStackSink extends RawFileStackSink
+                                      implements
+                                      AsynchronousSchedulerFeature
+{
+  private static final int cDefaultForceEveryNStacks = 16;
+  private static final long cDefaultForcePeriodInMilliseconds = 1000;
+  private static final int cMaxNumberOfPendingDataFiles = 64;
+  private static final int cInitialLineBufferSizeInBytes = 64 * 1024;
+
+  private final int mForceEveryNStacks;
+  private final long mForcePeriodInMilliseconds;
+
+  private final ConcurrentHashMap<String, FileChannel> mChannelToIndexFileChannelMap =
+                                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileChannel> mChannelToMetaDataFileChannelMap =
+                                                                                        new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ByteBuffer> mChannelToIndexLinesBufferMap =
+                                                                                    new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ByteBuffer> mChannelToMetaDataLinesBufferMap =
+                                                                                       new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileChannel> mChannelToBinaryIndexFileChannelMap =
+                                                                                           new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ByteBuffer> mChannelToBinaryIndexBufferMap =
+                                                                                     new ConcurrentHashMap<>();
+
+  private final ArrayList<FileChannel> mPendingDataFileChannelList =
+                                                                   new ArrayList<>();
+
+  private int mNumberOfStacksSinceLastForce = 0;
+  private long mLastForceTimeInNanoseconds = System.nanoTime();
+  private volatile WaitingScheduledFuture<?> mPeriodicForceFuture;
+
+  /**
+   * Instantiates a buffered raw file stack sink that forces data to disk every
+   * 16 stacks or every second, whichever comes first.
+   */
+  public BufferedRawFileStackSink()
+  {
+    this(cDefaultForceEveryNStacks,
+         cDefaultForcePeriodInMilliseconds);
+  }
+
+  /**
+   * Instantiates a buffered raw file stack sink with a given force policy.
+   * Setting both parameters to zero means that data is only forced to disk
+   * when the sink is flushed explicitly or closed.
+   *
+   * @param pForceEveryNStacks
+   *          number of stacks after which data is forced to disk, zero to
+   *          disable
+   * @param pForcePeriodInMilliseconds
+   *          period in milliseconds after which data is forced to disk, zero
+   *          to disable
+   */
+  public BufferedRawFileStackSink(int pForceEveryNStacks,
+                                  long pForcePeriodInMilliseconds)
+  {
+    super();
+    mForceEveryNStacks = pForceEveryNStacks;
+    mForcePeriodInMilliseconds = pForcePeriodInMilliseconds;
+  }
+
+  @Override
+  public synchronized boolean appendStack(String pChannel,
+                                          final StackInterface pStack)
+  {
+    ensurePeriodicForceStarted();
+
+    boolean lSuccess = super.appendStack(pChannel, pStack);
+
+    if (lSuccess)
+    {
+      mNumberOfStacksSinceLastForce++;
+      if (isForceDue())
+        lSuccess &= flush();
+    }
+
+    return lSuccess;
+  }
+
+  @Override
+  protected void writeStackData(long pIndex,
+                                String pChannel,
+                                final StackInterface pStack) throws IOException
+  {
+    String lFileName = String.format(StackSinkSourceInterface.cFormat,
+                                     pIndex);
+    File lFile = new File(getChannelFolder(pChannel), lFileName);
+    FileChannel lBinnaryFileChannel = getFileChannel(lFile, false);
+    FragmentedMemoryInterface lFragmentedMemory =
+                                                pStack.getFragmentedMemory();
+
+    lFragmentedMemory.writeBytesToFileChannel(lBinnaryFileChannel, 0);
+
+    // The data file is forced and closed on the next flush, before the index
+    // lines referring to it are written:
+    mPendingDataFileChannelList.add(lBinnaryFileChannel);
+  }
+
+  @Override
+  protected void writeIndexFileEntry(long pIndex,
+                                     String pChannel,
+                                     final StackInterface pStack) throws IOException
+  {
+    final String lIndexLineString = getIndexFileEntry(pIndex,
+                                                      pChannel,
+                                                      pStack);
+    appendToLinesBuffer(mChannelToIndexLinesBufferMap,
+                        pChannel,
+                        lIndexLineString.getBytes());
+  }
+
+  @Override
+  protected void writeMetaDataFileEntry(String pChannel,
+                                        final StackInterface pStack) throws IOException
+  {
+    final String lMetaDataString = getMetaDataFileEntry(pChannel,
+                                                        pStack);
+    appendToLinesBuffer(mChannelToMetaDataLinesBufferMap,
+                        pChannel,
+                        lMetaDataString.getBytes());
+  }
+
+  @Override
+  protected void writeBinaryIndexFileEntry(long pIndex,
+                                           String pChannel,
+                                           final StackInterface pStack) throws IOException
+  {
+    final ByteBuffer lBinaryIndexEntry =
+                                       getBinaryIndexFileEntry(pIndex,
+                                                               pChannel,
+                                                               pStack);
+    appendToLinesBuffer(mChannelToBinaryIndexBufferMap,
+                        pChannel,
+                        lBinaryIndexEntry.array());
+  }
+
+  private void appendToLinesBuffer(ConcurrentHashMap<String, ByteBuffer> pChannelToLinesBufferMap,
+                                   String pChannel,
+                                   byte[] pLineBytes)
+  {
+    ByteBuffer lLinesBuffer = pChannelToLinesBufferMap.get(pChannel);
+
+    if (lLinesBuffer == null
+        || lLinesBuffer.remaining() < pLineBytes.length)
+    {
+      int lCapacity = lLinesBuffer == null ? cInitialLineBufferSizeInBytes
+                                           : lLinesBuffer.capacity();
+      int lRequiredCapacity = pLineBytes.length
+                              + (lLinesBuffer == null ? 0
+                                                      : lLinesBuffer.position());
+      while (lCapacity < lRequiredCapacity)
+        lCapacity *= 2;
+
+      ByteBuffer lNewLinesBuffer = ByteBuffer.allocateDirect(lCapacity);
+      if (lLinesBuffer != null)
+      {
+        lLinesBuffer.flip();
+        lNewLinesBuffer.put(lLinesBuffer);
+      }
+      lLinesBuffer = lNewLinesBuffer;
+      pChannelToLinesBufferMap.put(pChannel, lLinesBuffer);
+    }
+
+    lLinesBuffer.put(pLineBytes);
+  }
+
+  private boolean isForceDue()
+  {
+    if (mPendingDataFileChannelList.size() >= cMaxNumberOfPendingDataFiles)
+      return true;
+
+    if (mForceEveryNStacks > 0
+        && mNumberOfStacksSinceLastForce >= mForceEveryNStacks)
+      return true;
+
+    if (mForcePeriodInMilliseconds > 0
+        && System.nanoTime()
+           - mLastForceTimeInNanoseconds >= TimeUnit.MILLISECONDS.toNanos(mForcePeriodInMilliseconds))
+      return true;
+
+    return false;
+  }
+
+  private void ensurePeriodicForceStarted()
+  {
+    if (mForcePeriodInMilliseconds <= 0 || mPeriodicForceFuture != null)
+      return;
+
+    mPeriodicForceFuture = scheduleAtFixedRate(() -> {
+      synchronized (this)
+      {
+        if (mNumberOfStacksSinceLastForce > 0 && isForceDue())
+          flush();
+      }
+    }, mForcePeriodInMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Forces all pending stack data to disk, then writes and forces all buffered
+   * index and metadata lines, and finally the buffered binary index entries.
+   *
+   * @return true -> success
+   */
+  @Override
+  public synchronized boolean flush()
+  {
+    try
+    {
+      forceStackData();
+
+      for (String lChannel : mChannelToIndexLinesBufferMap.keySet())
+        writeLinesBuffer(mChannelToIndexLinesBufferMap.get(lChannel),
+                         getOpenFileChannel(mChannelToIndexFileChannelMap,
+                                            lChannel,
+                                            getIndexFile(lChannel)));
+
+      for (String lChannel : mChannelToMetaDataLinesBufferMap.keySet())
+        writeLinesBuffer(mChannelToMetaDataLinesBufferMap.get(lChannel),
+                         getOpenFileChannel(mChannelToMetaDataFileChannelMap,
+                                            lChannel,
+                                            getMetadataFile(lChannel)));
+
+      for (String lChannel : mChannelToBinaryIndexBufferMap.keySet())
+        writeLinesBuffer(mChannelToBinaryIndexBufferMap.get(lChannel),
+                         getOpenFileChannel(mChannelToBinaryIndexFileChannelMap,
+                                            lChannel,
+                                            getBinaryIndexFile(lChannel)));
+
+      mNumberOfStacksSinceLastForce = 0;
+      mLastForceTimeInNanoseconds = System.nanoTime();
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Forces all stack data written since the last flush to disk. This is called
+   * before the corresponding index and metadata lines are written.
+   *
+   * @throws IOException
+   *           if the data could not be forced to disk
+   */
+  protected void forceStackData() throws IOException
+  {
+    for (FileChannel lDataFileChannel : mPendingDataFileChannelList)
+    {
+      lDataFileChannel.force(false);
+      lDataFileChannel.close();
+    }
+    mPendingDataFileChannelList.clear();
+  }
+
+  private FileChannel getOpenFileChannel(ConcurrentHashMap<String, FileChannel> pChannelToFileChannelMap,
+                                         String pChannel,
+                                         File pFile) throws IOException
+  {
+    FileChannel lFileChannel = pChannelToFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      lFileChannel = getFileChannel(pFile, false);
+      pChannelToFileChannelMap.put(pChannel, lFileChannel);
+    }
+    return lFileChannel;
+  }
+
+  private void writeLinesBuffer(ByteBuffer pLinesBuffer,
+                                FileChannel pFileChannel) throws IOException
+  {
+    if (pLinesBuffer.position() == 0)
+      return;
+
+    pLinesBuffer.flip();
+    while (pLinesBuffer.hasRemaining())
+      pFileChannel.write(pLinesBuffer);
+    pLinesBuffer.clear();
+
+    pFileChannel.force(true);
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if (mPeriodicForceFuture != null)
+    {
+      mPeriodicForceFuture.cancel(false);
+      mPeriodicForceFuture = null;
+      ScheduledThreadPoolExecutor lScheduledThreadPoolExecutor =
+                                                               ClearControlExecutors.getScheduledThreadPoolExecutor(this);
+      if (lScheduledThreadPoolExecutor != null)
+        lScheduledThreadPoolExecutor.shutdown();
+      ClearControlExecutors.resetScheduledThreadPoolExecutor(this);
+    }
+
+    boolean lFlushed = flush();
+
+    for (FileChannel lFileChannel : mChannelToIndexFileChannelMap.values())
+      lFileChannel.close();
+    mChannelToIndexFileChannelMap.clear();
+
+    for (FileChannel lFileChannel : mChannelToMetaDataFileChannelMap.values())
+      lFileChannel.close();
+    mChannelToMetaDataFileChannelMap.clear();
+
+    for (FileChannel lFileChannel : mChannelToBinaryIndexFileChannelMap.values())
+      lFileChannel.close();
+    mChannelToBinaryIndexFileChannelMap.clear();
+
+    super.close();
+
+    if (!lFlushed)
+      throw new IOException("Could not flush buffered stack data while closing");
+  }
+
+}
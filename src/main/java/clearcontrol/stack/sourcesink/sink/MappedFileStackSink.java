@@ -0,0 +1,241 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import clearcontrol.stack.StackInterface;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Stack sink that appends all stacks of a channel into a single container file
+ * instead of writing one file per stack. The container file is grown in large
+ * pre-allocated chunks, each stack starts on a page boundary, and a binary
+ * footer indexing all stacks is written when the sink is closed. Index and
+ * metadata text files are written as for the buffered raw file stack sink.
+ * Container files can be read with a MappedFileStackSource.
+ *
+ * <pre>
+ * header : magic (long), version (long), zero padding up to cPageSizeInBytes
+ * stacks : stack data, each starting at a multiple of cPageSizeInBytes
+ * footer : per stack: offset, length, width, height, depth (longs)
+ * trailer: footer offset, number of stacks, magic (longs)
+ * </pre>
+ *
+ * @author royer
+ */
+public class MappedFileStackSink extends BufferedRawFileStackSink
+{
+  /**
+   * Magic number found at the beginning and end of container files
+   */
+  public static final long cMagic = 0x434353544B534631L; // "CCSTKSF1"
+
+  /**
+   * Container file format version
+   */
+  public static final long cVersion = 1;
+
+  /**
+   * Alignment of stacks in container files, the header occupies the first page
+   */
+  public static final long cPageSizeInBytes = 4096;
+
+  /**
+   * Size in bytes of one footer entry
+   */
+  public static final int cFooterEntrySizeInBytes = 5 * Long.BYTES;
+
+  /**
+   * Size in bytes of the trailer
+   */
+  public static final int cTrailerSizeInBytes = 3 * Long.BYTES;
+
+  /**
+   * Byte order used for the header, footer and trailer
+   */
+  public static final ByteOrder cByteOrder = ByteOrder.LITTLE_ENDIAN;
+
+  private static final long cDefaultPreAllocationChunkSizeInBytes =
+                                                                  1L << 30;
+
+  private final long mPreAllocationChunkSizeInBytes;
+
+  private final ConcurrentHashMap<String, FileChannel> mChannelToMappedFileChannelMap =
+                                                                                      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, TLongArrayList> mChannelToFooterMap =
+                                                                              new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, long[]> mChannelToEndAndAllocatedLengthMap =
+                                                                                     new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a mapped file stack sink with default force policy and
+   * pre-allocation chunk size (1 GB).
+   */
+  public MappedFileStackSink()
+  {
+    super();
+    mPreAllocationChunkSizeInBytes =
+                                   cDefaultPreAllocationChunkSizeInBytes;
+  }
+
+  /**
+   * Instantiates a mapped file stack sink with given force policy and
+   * pre-allocation chunk size.
+   *
+   * @param pForceEveryNStacks
+   *          number of stacks after which data is forced to disk, zero to
+   *          disable
+   * @param pForcePeriodInMilliseconds
+   *          period in milliseconds after which data is forced to disk, zero
+   *          to disable
+   * @param pPreAllocationChunkSizeInBytes
+   *          size by which container files are grown when full
+   */
+  public MappedFileStackSink(int pForceEveryNStacks,
+                             long pForcePeriodInMilliseconds,
+                             long pPreAllocationChunkSizeInBytes)
+  {
+    super(pForceEveryNStacks, pForcePeriodInMilliseconds);
+    mPreAllocationChunkSizeInBytes = pPreAllocationChunkSizeInBytes;
+  }
+
+  @Override
+  protected void writeStackData(long pIndex,
+                                String pChannel,
+                                final StackInterface pStack) throws IOException
+  {
+    FileChannel lFileChannel = getMappedFileChannel(pChannel);
+    long[] lEndAndAllocatedLength =
+                                  mChannelToEndAndAllocatedLengthMap.get(pChannel);
+
+    final long lOffset = lEndAndAllocatedLength[0];
+    final long lLength = pStack.getSizeInBytes();
+    final long lNewEnd = alignToPage(lOffset + lLength);
+
+    if (lNewEnd > lEndAndAllocatedLength[1])
+    {
+      long lGrowthInBytes = Math.max(mPreAllocationChunkSizeInBytes,
+                                     lNewEnd - lEndAndAllocatedLength[1]);
+      long lNewAllocatedLength = lEndAndAllocatedLength[1]
+                                 + lGrowthInBytes;
+      preAllocate(lFileChannel, lNewAllocatedLength);
+      lEndAndAllocatedLength[1] = lNewAllocatedLength;
+    }
+
+    pStack.getFragmentedMemory().writeBytesToFileChannel(lFileChannel,
+                                                         lOffset);
+
+    lEndAndAllocatedLength[0] = lNewEnd;
+
+    mChannelToFooterMap.get(pChannel).add(new long[]
+    { lOffset,
+      lLength,
+      pStack.getWidth(),
+      pStack.getHeight(),
+      pStack.getDepth() });
+  }
+
+  private FileChannel getMappedFileChannel(String pChannel) throws IOException
+  {
+    FileChannel lFileChannel =
+                             mChannelToMappedFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      lFileChannel = FileChannel.open(getMappedFile(pChannel).toPath(),
+                                      StandardOpenOption.CREATE,
+                                      StandardOpenOption.TRUNCATE_EXISTING,
+                                      StandardOpenOption.READ,
+                                      StandardOpenOption.WRITE);
+
+      ByteBuffer lHeader = ByteBuffer.allocate(2 * Long.BYTES)
+                                     .order(cByteOrder);
+      lHeader.putLong(cMagic);
+      lHeader.putLong(cVersion);
+      lHeader.flip();
+      writeFully(lFileChannel, lHeader, 0);
+
+      mChannelToMappedFileChannelMap.put(pChannel, lFileChannel);
+      mChannelToFooterMap.put(pChannel, new TLongArrayList());
+      mChannelToEndAndAllocatedLengthMap.put(pChannel, new long[]
+      { cPageSizeInBytes, cPageSizeInBytes });
+    }
+    return lFileChannel;
+  }
+
+  private void preAllocate(FileChannel pFileChannel,
+                           long pLengthInBytes) throws IOException
+  {
+    // Writing the last byte extends the file to its new length:
+    ByteBuffer lLastByte = ByteBuffer.allocate(1);
+    writeFully(pFileChannel, lLastByte, pLengthInBytes - 1);
+  }
+
+  @Override
+  protected void forceStackData() throws IOException
+  {
+    super.forceStackData();
+    for (FileChannel lFileChannel : mChannelToMappedFileChannelMap.values())
+      lFileChannel.force(false);
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    super.close();
+
+    for (String lChannel : mChannelToMappedFileChannelMap.keySet())
+    {
+      FileChannel lFileChannel =
+                               mChannelToMappedFileChannelMap.get(lChannel);
+      TLongArrayList lFooter = mChannelToFooterMap.get(lChannel);
+      long lFooterOffset =
+                         mChannelToEndAndAllocatedLengthMap.get(lChannel)[0];
+
+      ByteBuffer lFooterBuffer =
+                               ByteBuffer.allocate(lFooter.size()
+                                                   * Long.BYTES
+                                                   + cTrailerSizeInBytes)
+                                         .order(cByteOrder);
+      for (int i = 0; i < lFooter.size(); i++)
+        lFooterBuffer.putLong(lFooter.get(i));
+      lFooterBuffer.putLong(lFooterOffset);
+      lFooterBuffer.putLong(lFooter.size() * Long.BYTES
+                            / cFooterEntrySizeInBytes);
+      lFooterBuffer.putLong(cMagic);
+      lFooterBuffer.flip();
+
+      writeFully(lFileChannel, lFooterBuffer, lFooterOffset);
+      lFileChannel.truncate(lFooterOffset + lFooterBuffer.limit());
+      lFileChannel.force(true);
+      lFileChannel.close();
+    }
+    mChannelToMappedFileChannelMap.clear();
+  }
+
+  private static void writeFully(FileChannel pFileChannel,
+                                 ByteBuffer pByteBuffer,
+                                 long pPosition) throws IOException
+  {
+    long lPosition = pPosition;
+    while (pByteBuffer.hasRemaining())
+      lPosition += pFileChannel.write(pByteBuffer, lPosition);
+  }
+
+  /**
+   * Rounds up a position in bytes to the next page boundary
+   *
+   * @param pPositionInBytes
+   *          position in bytes
+   * @return aligned position in bytes
+   */
+  public static long alignToPage(long pPositionInBytes)
+  {
+    return ((pPositionInBytes + cPageSizeInBytes - 1) / cPageSizeInBytes)
+           * cPageSizeInBytes;
+  }
+
+}
@@ -0,0 +1,445 @@
+package clearcontrol.stack.sourcesink.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.core.log.LoggingFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import coremem.offheap.OffHeapMemory;
+
+/**
+ * Sqeazy file stack sink that pipelines compression and I/O. Stacks are
+ * compressed on the calling thread into one of a small number of recycled
+ * compressed buffers, and then handed over to a dedicated I/O thread that
+ * writes them to disk in stack order. Compression of a stack can thus overlap
+ * with the writing of the previous stack(s), and several threads can safely
+ * append stacks concurrently. Stack indices are only handed out once a stack
+ * is compressed, a stack that fails to compress is not appended at all. A
+ * stack that fails to be written leaves the sink in error: pending and later
+ * stacks are not written, appendStack(...) returns false and close() throws.
+ * The number of compressed buffers (two by default, i.e. double buffering)
+ * bounds the number of stacks in flight. Compression ratio and compression
+ * and write speeds are recorded per channel.
+ *
+ * @author royer
+ */
+public class PipelinedSqeazyFileStackSink extends SqeazyFileStackSink
+                                          implements
+                                          AsynchronousExecutorFeature,
+                                          LoggingFeature
+{
+  private static final int cDefaultNumberOfCompressedBuffers = 2;
+
+  private final int mNumberOfCompressedBuffers;
+  private final ArrayBlockingQueue<OffHeapMemory> mFreeCompressedBufferQueue;
+  private final AtomicInteger mNumberOfAllocatedCompressedBuffers =
+                                                                  new AtomicInteger();
+
+  private final Object mOrderLock = new Object();
+  private volatile boolean mClosed = false;
+
+  // first write failure, the sink refuses stacks once set:
+  private volatile Throwable mWriteError;
+
+  private final ConcurrentHashMap<String, FileChannel> mChannelToIndexFileChannelMap =
+                                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileChannel> mChannelToMetaDataFileChannelMap =
+                                                                                        new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ChannelStatistics> mChannelToStatisticsMap =
+                                                                                     new ConcurrentHashMap<>();
+
+  /**
+   * Instantiates a pipelined Sqeazy file stack sink with the default pipeline,
+   * number of threads and two compressed buffers.
+   */
+  public PipelinedSqeazyFileStackSink()
+  {
+    super();
+    mNumberOfCompressedBuffers = cDefaultNumberOfCompressedBuffers;
+    mFreeCompressedBufferQueue =
+                               new ArrayBlockingQueue<>(mNumberOfCompressedBuffers);
+    initializeSerialExecutor();
+  }
+
+  /**
+   * Instantiates a pipelined Sqeazy file stack sink with given pipeline,
+   * number of compression threads and number of compressed buffers.
+   *
+   * @param pPipelineName
+   *          Sqeazy pipeline name
+   * @param pNumThreads
+   *          number of threads used by Sqeazy for each compression
+   * @param pNumberOfCompressedBuffers
+   *          number of recycled compressed buffers, that is the maximal number
+   *          of stacks being compressed or waiting to be written
+   */
+  public PipelinedSqeazyFileStackSink(String pPipelineName,
+                                      int pNumThreads,
+                                      int pNumberOfCompressedBuffers)
+  {
+    super(pPipelineName, pNumThreads);
+    mNumberOfCompressedBuffers = pNumberOfCompressedBuffers;
+    mFreeCompressedBufferQueue =
+                               new ArrayBlockingQueue<>(mNumberOfCompressedBuffers);
+    initializeSerialExecutor();
+  }
+
+  @Override
+  public boolean appendStack(String pChannel,
+                             final StackInterface pStack)
+  {
+    if (mClosed || mWriteError != null)
+      return false;
+
+    final OffHeapMemory lCompressedData;
+    final long lCompressedLength;
+    final long lCompressionTimeInNanoseconds;
+    try
+    {
+      lCompressedData =
+                      acquireCompressedBuffer(getMaxCompressedLengthInBytes(pStack));
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+
+    try
+    {
+      long lStartTime = System.nanoTime();
+      lCompressedLength = compress(pStack, lCompressedData);
+      lCompressionTimeInNanoseconds = System.nanoTime() - lStartTime;
+    }
+    catch (final Throwable e)
+    {
+      // no index has been handed out yet, the stack leaves no trace:
+      severe("Compression failed for a stack of channel %s, stack not appended",
+             pChannel);
+      e.printStackTrace();
+      mFreeCompressedBufferQueue.offer(lCompressedData);
+      return false;
+    }
+
+    try
+    {
+      // Indices, time stamps, metadata offsets and I/O tasks are handed out in
+      // the same order, the serial I/O thread thus writes stacks in index
+      // order:
+      synchronized (mOrderLock)
+      {
+        if (mClosed || mWriteError != null)
+        {
+          mFreeCompressedBufferQueue.offer(lCompressedData);
+          return false;
+        }
+
+        AtomicLong lNextFreeStackIndex = getIndexForChannel(pChannel);
+        long lIndex = lNextFreeStackIndex.getAndIncrement();
+
+        final WriteJob lWriteJob =
+                                 new WriteJob(pChannel,
+                                              lIndex,
+                                              getIndexFileEntry(lIndex,
+                                                                pChannel,
+                                                                pStack),
+                                              getMetaDataFileEntry(pChannel,
+                                                                   pStack),
+                                              getBinaryIndexFileEntry(lIndex,
+                                                                      pChannel,
+                                                                      pStack),
+                                              pStack.getSizeInBytes(),
+                                              lCompressedData,
+                                              lCompressedLength,
+                                              lCompressionTimeInNanoseconds);
+
+        setStackRequest(pChannel, lIndex, StackRequest.buildFrom(pStack));
+
+        executeAsynchronously(() -> write(lWriteJob));
+      }
+      return true;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      mFreeCompressedBufferQueue.offer(lCompressedData);
+      return false;
+    }
+  }
+
+  private OffHeapMemory acquireCompressedBuffer(long pMinimalSizeInBytes) throws InterruptedException
+  {
+    OffHeapMemory lCompressedBuffer = mFreeCompressedBufferQueue.poll();
+
+    if (lCompressedBuffer == null)
+    {
+      if (mNumberOfAllocatedCompressedBuffers.incrementAndGet() <= mNumberOfCompressedBuffers)
+        return OffHeapMemory.allocateBytes(pMinimalSizeInBytes);
+
+      mNumberOfAllocatedCompressedBuffers.decrementAndGet();
+      lCompressedBuffer = mFreeCompressedBufferQueue.take();
+    }
+
+    if (lCompressedBuffer.getSizeInBytes() < pMinimalSizeInBytes)
+    {
+      lCompressedBuffer.free();
+      lCompressedBuffer = OffHeapMemory.allocateBytes(pMinimalSizeInBytes);
+    }
+
+    return lCompressedBuffer;
+  }
+
+  private void write(WriteJob pWriteJob)
+  {
+    try
+    {
+      // after a failure, the index would no longer match the data:
+      if (mWriteError != null)
+        return;
+
+      long lStartTime = System.nanoTime();
+
+      String lFileName =
+                       String.format(StackSinkSourceInterface.cBasename
+                                     + StackSinkSourceInterface.cSqeazyFileExtension,
+                                     pWriteJob.mIndex);
+      File lFile = new File(getChannelFolder(pWriteJob.mChannel),
+                            lFileName);
+      FileChannel lBinaryFileChannel = getFileChannel(lFile, false);
+      pWriteJob.mCompressedData.subRegion(0, pWriteJob.mCompressedLength)
+                               .writeBytesToFileChannel(lBinaryFileChannel,
+                                                        0);
+      lBinaryFileChannel.force(false);
+      lBinaryFileChannel.close();
+
+      long lWriteTimeInNanoseconds = System.nanoTime() - lStartTime;
+
+      getStatistics(pWriteJob.mChannel).add(pWriteJob.mUncompressedLength,
+                                            pWriteJob.mCompressedLength,
+                                            pWriteJob.mCompressionTimeInNanoseconds,
+                                            lWriteTimeInNanoseconds);
+
+      // index and metadata lines and binary index entries are written after
+      // the stack data, so that readers never see entries without data:
+      writeLine(mChannelToIndexFileChannelMap,
+                pWriteJob.mChannel,
+                getIndexFile(pWriteJob.mChannel),
+                ByteBuffer.wrap(pWriteJob.mIndexLine.getBytes()));
+      writeLine(mChannelToMetaDataFileChannelMap,
+                pWriteJob.mChannel,
+                getMetadataFile(pWriteJob.mChannel),
+                ByteBuffer.wrap(pWriteJob.mMetaDataLine.getBytes()));
+      // binary index entries are only forced on flush or close:
+      FileChannel lBinaryIndexFileChannel =
+                                          getBinaryIndexFileChannel(pWriteJob.mChannel);
+      while (pWriteJob.mBinaryIndexEntry.hasRemaining())
+        lBinaryIndexFileChannel.write(pWriteJob.mBinaryIndexEntry);
+    }
+    catch (final Throwable e)
+    {
+      mWriteError = e;
+      severe("Writing stack %d of channel %s failed, no further stacks are written: %s",
+             pWriteJob.mIndex,
+             pWriteJob.mChannel,
+             e);
+      e.printStackTrace();
+    }
+    finally
+    {
+      mFreeCompressedBufferQueue.offer(pWriteJob.mCompressedData);
+    }
+  }
+
+  private void writeLine(ConcurrentHashMap<String, FileChannel> pChannelToFileChannelMap,
+                         String pChannel,
+                         File pFile,
+                         ByteBuffer pLine) throws IOException
+  {
+    FileChannel lFileChannel = pChannelToFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      lFileChannel = getFileChannel(pFile, false);
+      pChannelToFileChannelMap.put(pChannel, lFileChannel);
+    }
+
+    while (pLine.hasRemaining())
+      lFileChannel.write(pLine);
+    lFileChannel.force(true);
+  }
+
+  private ChannelStatistics getStatistics(String pChannel)
+  {
+    return mChannelToStatisticsMap.computeIfAbsent(pChannel,
+                                                   (c) -> new ChannelStatistics());
+  }
+
+  /**
+   * Returns the compression ratio (uncompressed size over compressed size) of
+   * all stacks written so far for a given channel.
+   *
+   * @param pChannel
+   *          channel
+   * @return compression ratio
+   */
+  public double getCompressionRatio(String pChannel)
+  {
+    return getStatistics(pChannel).getCompressionRatio();
+  }
+
+  /**
+   * Returns the compression speed in MB/s (of uncompressed data) for a given
+   * channel.
+   *
+   * @param pChannel
+   *          channel
+   * @return compression speed in MB/s
+   */
+  public double getCompressionSpeedInMBPerSecond(String pChannel)
+  {
+    return getStatistics(pChannel).getCompressionSpeedInMBPerSecond();
+  }
+
+  /**
+   * Returns the write speed in MB/s (of compressed data) for a given channel.
+   *
+   * @param pChannel
+   *          channel
+   * @return write speed in MB/s
+   */
+  public double getWriteSpeedInMBPerSecond(String pChannel)
+  {
+    return getStatistics(pChannel).getWriteSpeedInMBPerSecond();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    synchronized (mOrderLock)
+    {
+      if (mClosed)
+        return;
+      mClosed = true;
+    }
+
+    try
+    {
+      resetThreadPoolAndWaitForCompletion(1, TimeUnit.HOURS);
+    }
+    catch (InterruptedException e)
+    {
+      throw new IOException("Interrupted while waiting for pending stacks to be written",
+                            e);
+    }
+
+    for (String lChannel : mChannelToStatisticsMap.keySet())
+      info("Channel %s: compression ratio %.2f, compression speed %.1f MB/s, write speed %.1f MB/s",
+           lChannel,
+           getCompressionRatio(lChannel),
+           getCompressionSpeedInMBPerSecond(lChannel),
+           getWriteSpeedInMBPerSecond(lChannel));
+
+    for (FileChannel lFileChannel : mChannelToIndexFileChannelMap.values())
+      lFileChannel.close();
+    for (FileChannel lFileChannel : mChannelToMetaDataFileChannelMap.values())
+      lFileChannel.close();
+
+    OffHeapMemory lCompressedBuffer;
+    while ((lCompressedBuffer =
+                              mFreeCompressedBufferQueue.poll()) != null)
+      lCompressedBuffer.free();
+
+    super.close();
+
+    final Throwable lWriteError = mWriteError;
+    if (lWriteError != null)
+      throw new IOException("Stacks could not be written, the dataset is incomplete",
+                            lWriteError);
+  }
+
+  private static class WriteJob
+  {
+    final String mChannel;
+    final long mIndex;
+    final String mIndexLine;
+    final String mMetaDataLine;
+    final ByteBuffer mBinaryIndexEntry;
+    final long mUncompressedLength;
+    final OffHeapMemory mCompressedData;
+    final long mCompressedLength;
+    final long mCompressionTimeInNanoseconds;
+
+    WriteJob(String pChannel,
+             long pIndex,
+             String pIndexLine,
+             String pMetaDataLine,
+             ByteBuffer pBinaryIndexEntry,
+             long pUncompressedLength,
+             OffHeapMemory pCompressedData,
+             long pCompressedLength,
+             long pCompressionTimeInNanoseconds)
+    {
+      mChannel = pChannel;
+      mIndex = pIndex;
+      mIndexLine = pIndexLine;
+      mMetaDataLine = pMetaDataLine;
+      mBinaryIndexEntry = pBinaryIndexEntry;
+      mUncompressedLength = pUncompressedLength;
+      mCompressedData = pCompressedData;
+      mCompressedLength = pCompressedLength;
+      mCompressionTimeInNanoseconds = pCompressionTimeInNanoseconds;
+    }
+  }
+
+  private static class ChannelStatistics
+  {
+    private long mUncompressedBytes;
+    private long mCompressedBytes;
+    private long mCompressionTimeInNanoseconds;
+    private long mWriteTimeInNanoseconds;
+
+    synchronized void add(long pUncompressedBytes,
+                          long pCompressedBytes,
+                          long pCompressionTimeInNanoseconds,
+                          long pWriteTimeInNanoseconds)
+    {
+      mUncompressedBytes += pUncompressedBytes;
+      mCompressedBytes += pCompressedBytes;
+      mCompressionTimeInNanoseconds += pCompressionTimeInNanoseconds;
+      mWriteTimeInNanoseconds += pWriteTimeInNanoseconds;
+    }
+
+    synchronized double getCompressionRatio()
+    {
+      if (mCompressedBytes == 0)
+        return 0;
+      return ((double) mUncompressedBytes) / mCompressedBytes;
+    }
+
+    synchronized double getCompressionSpeedInMBPerSecond()
+    {
+      if (mCompressionTimeInNanoseconds == 0)
+        return 0;
+      return (mUncompressedBytes * 1e-6)
+             / (mCompressionTimeInNanoseconds * 1e-9);
+    }
+
+    synchronized double getWriteSpeedInMBPerSecond()
+    {
+      if (mWriteTimeInNanoseconds == 0)
+        return 0;
+      return (mCompressedBytes * 1e-6)
+             / (mWriteTimeInNanoseconds * 1e-9);
+    }
+  }
+
+}
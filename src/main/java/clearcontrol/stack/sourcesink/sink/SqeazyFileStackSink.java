@@ -39,6 +39,8 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                                               new AtomicLong();
   private final ConcurrentHashMap<String, AtomicLong> mNextFreeStackIndexMap =
                                                                              new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, FileChannel> mChannelToBinaryIndexFileChannelMap =
+                                                                                           new ConcurrentHashMap<>();
 
   private final AtomicReference<String> mPipelineName =
                                                       new AtomicReference<String>("rmestbkrd->lz4");
@@ -91,6 +93,9 @@ public class SqeazyFileStackSink extends FileStackBase implements
                           pChannel,
                           pStack);
       writeMetaDataFileEntry(pChannel, pStack);
+      writeBinaryIndexFileEntry(lNextFreeStackIndex.get(),
+                                pChannel,
+                                pStack);
 
       setStackRequest(pChannel,
                       lNextFreeStackIndex.get(),
@@ -130,29 +135,69 @@ public class SqeazyFileStackSink extends FileStackBase implements
     File lFile = new File(getChannelFolder(pChannel), lFileName);
     FileChannel lBinnaryFileChannel = getFileChannel(lFile, false);
 
+    final long lMaxEncodedBytes = getMaxCompressedLengthInBytes(pStack);
+
+    if (mCompressedData == null
+        || mCompressedData.getSizeInBytes() != lMaxEncodedBytes)
+    {
+      mCompressedData = OffHeapMemory.allocateBytes(lMaxEncodedBytes);
+    }
+
+    final long lEncodedBytes = compress(pStack, mCompressedData);
+
+    mCompressedData.subRegion(0, lEncodedBytes)
+                   .writeBytesToFileChannel(lBinnaryFileChannel, 0);
+
+    lBinnaryFileChannel.force(false);
+    lBinnaryFileChannel.close();
+  }
+
+  /**
+   * Returns the maximal length in bytes of the compressed data for a given
+   * stack and the current pipeline.
+   * 
+   * @param pStack
+   *          stack
+   * @return maximal compressed length in bytes
+   */
+  protected long getMaxCompressedLengthInBytes(final StackInterface pStack)
+  {
     final Pointer<Byte> bPipelineName =
                                       Pointer.pointerToCString(mPipelineName.get());
 
-    final long[] lShape = pStack.getDimensions();
     final long lBufferLengthInByte = pStack.getSizeInBytes();
 
-    final Pointer<CLong> lSourceShape =
-                                      Pointer.pointerToCLongs(lShape[2],
-                                                              lShape[1],
-                                                              lShape[0]);
     final Pointer<CLong> lMaxEncodedBytes = Pointer.allocateCLong();
     lMaxEncodedBytes.setCLong(lBufferLengthInByte);
     SqeazyLibrary.SQY_Pipeline_Max_Compressed_Length_UI16(bPipelineName,
                                                           mPipelineName.get()
                                                                        .length(),
                                                           lMaxEncodedBytes);
+    return lMaxEncodedBytes.getCLong();
+  }
 
-    if (mCompressedData == null
-        || mCompressedData.getSizeInBytes() != lMaxEncodedBytes.getCLong())
-    {
-      mCompressedData =
-                      OffHeapMemory.allocateBytes(lMaxEncodedBytes.getCLong());
-    }
+  /**
+   * Compresses a stack with the current pipeline into a given buffer.
+   * 
+   * @param pStack
+   *          stack to compress
+   * @param pCompressedData
+   *          buffer receiving the compressed data, must be at least of the
+   *          size returned by getMaxCompressedLengthInBytes
+   * @return number of compressed bytes written to the buffer
+   */
+  protected long compress(final StackInterface pStack,
+                          final OffHeapMemory pCompressedData)
+  {
+    final Pointer<Byte> bPipelineName =
+                                      Pointer.pointerToCString(mPipelineName.get());
+
+    final long[] lShape = pStack.getDimensions();
+
+    final Pointer<CLong> lSourceShape =
+                                      Pointer.pointerToCLongs(lShape[2],
+                                                              lShape[1],
+                                                              lShape[0]);
 
     final Pointer<Short> bInputData =
                                     pStack.getContiguousMemory()
@@ -167,7 +212,7 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                                            bInputData.as(Byte.class),
                                                            lSourceShape,
                                                            lShape.length,
-                                                           (Pointer<Byte>) mCompressedData.getBridJPointer(Byte.class),
+                                                           (Pointer<Byte>) pCompressedData.getBridJPointer(Byte.class),
                                                            lEncodedBytes,
                                                            mNumThreads.get());
 
@@ -177,26 +222,50 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                  + lReturnValue);
     }
 
-    mCompressedData.subRegion(0, lEncodedBytes.getCLong())
-                   .writeBytesToFileChannel(lBinnaryFileChannel, 0);
-
-    lBinnaryFileChannel.force(false);
-    lBinnaryFileChannel.close();
+    return lEncodedBytes.getCLong();
   }
 
   protected void writeIndexFileEntry(long pIndex,
                                      String pChannel,
                                      final StackInterface pStack) throws IOException
   {
-    long[] lDimensions = pStack.getDimensions();
-
-    final String lDimensionsString = Arrays.toString(lDimensions);
+    final String lIndexLineString = getIndexFileEntry(pIndex,
+                                                      pChannel,
+                                                      pStack);
 
     final FileChannel lIndexFileChannel =
                                         getFileChannel(getIndexFile(pChannel),
 
                                                        false);
 
+    final byte[] lIndexLineStringBytes = lIndexLineString.getBytes();
+    final ByteBuffer lIndexLineStringByteBuffer =
+                                                ByteBuffer.wrap(lIndexLineStringBytes);
+    lIndexFileChannel.write(lIndexLineStringByteBuffer);
+    lIndexFileChannel.force(true);
+    lIndexFileChannel.close();
+  }
+
+  /**
+   * Returns the line to append to the index file for a given stack. This also
+   * records the stack's time stamp for this sink.
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @return index file line (including the end-of-line character)
+   */
+  protected String getIndexFileEntry(long pIndex,
+                                     String pChannel,
+                                     final StackInterface pStack)
+  {
+    long[] lDimensions = pStack.getDimensions();
+
+    final String lDimensionsString = Arrays.toString(lDimensions);
+
     long lTimeStampInNanoseconds;
 
     if (pStack.getMetaData() != null
@@ -222,12 +291,7 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                                 lDimensionsString.substring(1,
                                                                             lDimensionsString.length()
                                                                                - 1));
-    final byte[] lIndexLineStringBytes = lIndexLineString.getBytes();
-    final ByteBuffer lIndexLineStringByteBuffer =
-                                                ByteBuffer.wrap(lIndexLineStringBytes);
-    lIndexFileChannel.write(lIndexLineStringByteBuffer);
-    lIndexFileChannel.force(true);
-    lIndexFileChannel.close();
+    return lIndexLineString;
   }
 
   protected void writeMetaDataFileEntry(String pChannel,
@@ -237,9 +301,8 @@ public class SqeazyFileStackSink extends FileStackBase implements
                                            getFileChannel(getMetadataFile(pChannel),
                                                           false);
 
-    StackMetaData lMetaData = pStack.getMetaData();
-
-    final String lMetaDataString = lMetaData.toString() + "\n";
+    final String lMetaDataString = getMetaDataFileEntry(pChannel,
+                                                        pStack);
     final byte[] lMetaDataStringBytes = lMetaDataString.getBytes();
     final ByteBuffer lMetaDataStringByteBuffer =
                                                ByteBuffer.wrap(lMetaDataStringBytes);
@@ -248,9 +311,121 @@ public class SqeazyFileStackSink extends FileStackBase implements
     lMetaDataFileChannel.close();
   }
 
+  /**
+   * Returns the line to append to the metadata file for a given stack. This
+   * also records the line's length for the stack's binary index entry.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @return metadata file line (including the end-of-line character)
+   */
+  protected String getMetaDataFileEntry(String pChannel,
+                                        final StackInterface pStack)
+  {
+    StackMetaData lMetaData = pStack.getMetaData();
+
+    final String lMetaDataString = lMetaData.toString() + "\n";
+    getBinaryIndexAppender(pChannel).addMetaDataEntry(lMetaDataString.getBytes().length);
+    return lMetaDataString;
+  }
+
+  protected void writeBinaryIndexFileEntry(long pIndex,
+                                           String pChannel,
+                                           final StackInterface pStack) throws IOException
+  {
+    final FileChannel lBinaryIndexFileChannel =
+                                              getBinaryIndexFileChannel(pChannel);
+
+    final ByteBuffer lBinaryIndexEntry =
+                                       getBinaryIndexFileEntry(pIndex,
+                                                               pChannel,
+                                                               pStack);
+    while (lBinaryIndexEntry.hasRemaining())
+      lBinaryIndexFileChannel.write(lBinaryIndexEntry);
+  }
+
+  /**
+   * Returns the binary index file channel of a given channel. These channels
+   * stay open and are only forced to disk on flush or close: a binary index
+   * lagging behind the text files after a crash is detected as inconsistent by
+   * sources, which then read the text files.
+   * 
+   * @param pChannel
+   *          channel
+   * @return binary index file channel
+   * @throws IOException
+   *           if the file could not be opened
+   */
+  protected FileChannel getBinaryIndexFileChannel(String pChannel) throws IOException
+  {
+    FileChannel lFileChannel =
+                             mChannelToBinaryIndexFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      lFileChannel = getFileChannel(getBinaryIndexFile(pChannel), false);
+      mChannelToBinaryIndexFileChannelMap.put(pChannel, lFileChannel);
+    }
+    return lFileChannel;
+  }
+
+  /**
+   * Forces the binary index entries written so far to disk. Stack data, index
+   * and metadata files are forced as each stack is appended.
+   * 
+   * @return true -> success
+   */
+  public boolean flush()
+  {
+    try
+    {
+      for (FileChannel lFileChannel : mChannelToBinaryIndexFileChannelMap.values())
+        lFileChannel.force(true);
+      return true;
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Returns the bytes to append to the binary index file for a given stack.
+   * The index and metadata file entries of that stack must have been obtained
+   * before.
+   * 
+   * @param pIndex
+   *          stack index
+   * @param pChannel
+   *          channel
+   * @param pStack
+   *          stack
+   * @return binary index entry, ready to be written
+   */
+  protected ByteBuffer getBinaryIndexFileEntry(long pIndex,
+                                               String pChannel,
+                                               final StackInterface pStack)
+  {
+    return getBinaryIndexAppender(pChannel).getEntry(pIndex,
+                                                     getStackTimeStampInSeconds(pChannel,
+                                                                                pIndex,
+                                                                                Double.NaN),
+                                                     pStack.getWidth(),
+                                                     pStack.getHeight(),
+                                                     pStack.getDepth());
+  }
+
   @Override
   public void close() throws IOException
   {
+    for (FileChannel lFileChannel : mChannelToBinaryIndexFileChannelMap.values())
+    {
+      lFileChannel.force(true);
+      lFileChannel.close();
+    }
+    mChannelToBinaryIndexFileChannelMap.clear();
     super.close();
   }
 
@@ -2,6 +2,7 @@ package clearcontrol.stack.sourcesink.source;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 import clearcontrol.stack.StackInterface;
@@ -50,6 +51,16 @@ public class FileStackSource extends FileStackBase implements
 
   private void discoverType(File pRootFolder, String pName)
   {
+    // the mapped source also reads the channels stored as raw files:
+    ArrayList<String> lChannelList = getChannelList();
+    for (String lChannel : lChannelList)
+      if (getMappedFile(lChannel).exists())
+      {
+        mDelegatedFileStackSource =
+                                  new MappedFileStackSource(mStackRecycler);
+        return;
+      }
+
     String lExampleDataFileName = getExampleDataFile().getName();
 
     if (lExampleDataFileName.contains(".raw"))
@@ -70,6 +81,29 @@ public class FileStackSource extends FileStackBase implements
     return mDelegatedFileStackSource.update();
   }
 
+  /**
+   * Starts following the files of this source so that stacks appended while
+   * the dataset is being written become visible, see
+   * RawFileStackSource.startFollowing().
+   * 
+   * @return true if following could be started
+   */
+  public boolean startFollowing()
+  {
+    if (mDelegatedFileStackSource instanceof RawFileStackSource)
+      return ((RawFileStackSource) mDelegatedFileStackSource).startFollowing();
+    return false;
+  }
+
+  /**
+   * Stops following the files of this source.
+   */
+  public void stopFollowing()
+  {
+    if (mDelegatedFileStackSource instanceof RawFileStackSource)
+      ((RawFileStackSource) mDelegatedFileStackSource).stopFollowing();
+  }
+
   @Override
   public long getNumberOfStacks()
   {
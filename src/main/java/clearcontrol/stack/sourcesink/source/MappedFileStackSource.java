@@ -0,0 +1,390 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.sink.MappedFileStackSink;
+import coremem.offheap.OffHeapMemory;
+import coremem.recycling.RecyclerInterface;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Stack source reading the single-file stack containers written by a
+ * MappedFileStackSink. Stacks are returned as views of memory-mapped regions
+ * of the container file, no data is copied. These stacks are not managed by
+ * the stack recycler and should not be freed explicitly. Each stack region is
+ * mapped once and unmapped when the source is closed, stacks obtained from
+ * this source must therefore not be used after close(). When update() finds
+ * that a container has been rewritten, its regions are dropped but not
+ * unmapped: they stay mapped as long as stacks still refer to them. Such
+ * stacks keep showing the old content, or the new content in place of it, as
+ * long as the file is not truncated below them. Stacks larger than what can be
+ * mapped in one region (2 GB) are read into recycled stacks instead. Channels
+ * without container file are read as raw files.
+ *
+ * @author royer
+ */
+public class MappedFileStackSource extends RawFileStackSource
+{
+
+  private final ConcurrentHashMap<String, FileChannel> mChannelToMappedFileChannelMap =
+                                                                                      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ContainerIndex> mChannelToContainerIndexMap =
+                                                                                       new ConcurrentHashMap<>();
+
+  /**
+   * Stack offsets and mapped regions of a channel's container file, guarded by
+   * the source's lock.
+   */
+  private static class ContainerIndex
+  {
+    final TLongArrayList mOffsets = new TLongArrayList();
+    final ArrayList<MappedByteBuffer> mMappedRegions = new ArrayList<>();
+
+    // container length when the offsets were last updated, and when they have
+    // been read from the footer (-1 if not):
+    long mContainerLength;
+    long mFooterContainerLength = -1;
+  }
+
+  /**
+   * Instantiates a mapped file stack source
+   *
+   * @param pStackRecycler
+   *          stack recycler, only used for stacks too large to be mapped
+   */
+  public MappedFileStackSource(final RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    super(pStackRecycler);
+  }
+
+  @Override
+  public StackInterface getStack(final String pChannel,
+                                 final long pStackIndex,
+                                 final long pTime,
+                                 final TimeUnit pTimeUnit)
+  {
+    try
+    {
+      if (!mChannelToContainerIndexMap.containsKey(pChannel))
+        return super.getStack(pChannel, pStackIndex, pTime, pTimeUnit);
+
+      final long lWidth, lHeight, lDepth, lLength, lOffset;
+      MappedByteBuffer lMappedByteBuffer = null;
+      synchronized (this)
+      {
+        ContainerIndex lContainerIndex =
+                                       mChannelToContainerIndexMap.get(pChannel);
+        if (lContainerIndex == null
+            || pStackIndex >= lContainerIndex.mOffsets.size())
+          return null;
+
+        lWidth = getStackDimension(pChannel, pStackIndex, 0);
+        lHeight = getStackDimension(pChannel, pStackIndex, 1);
+        lDepth = getStackDimension(pChannel, pStackIndex, 2);
+        lLength = lWidth * lHeight * lDepth * Short.BYTES;
+        lOffset = lContainerIndex.mOffsets.get((int) pStackIndex);
+
+        if (lLength <= Integer.MAX_VALUE)
+        {
+          ArrayList<MappedByteBuffer> lMappedRegions =
+                                                     lContainerIndex.mMappedRegions;
+          while (lMappedRegions.size() <= pStackIndex)
+            lMappedRegions.add(null);
+
+          lMappedByteBuffer = lMappedRegions.get((int) pStackIndex);
+          if (lMappedByteBuffer == null)
+          {
+            lMappedByteBuffer =
+                              getMappedFileChannel(pChannel).map(MapMode.READ_ONLY,
+                                                                 lOffset,
+                                                                 lLength);
+            lMappedRegions.set((int) pStackIndex, lMappedByteBuffer);
+          }
+        }
+      }
+
+      StackInterface lStack;
+      if (lMappedByteBuffer != null)
+      {
+        lStack =
+               OffHeapPlanarStack.createStack(OffHeapMemory.wrapBuffer(lMappedByteBuffer),
+                                              lWidth,
+                                              lHeight,
+                                              lDepth);
+      }
+      else
+      {
+        if (mStackRecycler == null)
+          return null;
+
+        lStack = mStackRecycler.getOrWait(pTime,
+                                          pTimeUnit,
+                                          StackRequest.build(lWidth,
+                                                             lHeight,
+                                                             lDepth));
+        if (lStack == null)
+          return null;
+
+        lStack.getContiguousMemory()
+              .readBytesFromFileChannel(getMappedFileChannel(pChannel),
+                                        lOffset,
+                                        lLength);
+      }
+
+      addMetaDataToStack(pChannel, pStackIndex, lStack);
+
+      return lStack;
+    }
+    catch (final Throwable e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  @Override
+  public synchronized boolean update()
+  {
+    if (!super.update())
+      return false;
+
+    try
+    {
+      ArrayList<String> lChannelList = getChannelList();
+
+      for (String lChannel : lChannelList)
+        if (getMappedFile(lChannel).exists())
+          updateContainerIndex(lChannel);
+
+      return true;
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private void updateContainerIndex(String pChannel) throws IOException
+  {
+    long lContainerLength = getMappedFileChannel(pChannel).size();
+
+    ContainerIndex lContainerIndex =
+                                   mChannelToContainerIndexMap.get(pChannel);
+    if (lContainerIndex != null
+        && lContainerIndex.mFooterContainerLength == lContainerLength)
+      // closed container, its footer has already been read:
+      return;
+
+    if (lContainerIndex == null
+        || lContainerLength < lContainerIndex.mContainerLength)
+    {
+      // new channel, or the container has been rewritten. Stacks handed out
+      // may still be views of the old regions, these are left to the garbage
+      // collector instead of being unmapped:
+      lContainerIndex = new ContainerIndex();
+      mChannelToContainerIndexMap.put(pChannel, lContainerIndex);
+    }
+    lContainerIndex.mContainerLength = lContainerLength;
+
+    TLongArrayList lFooterOffsets = readFooter(pChannel,
+                                               lContainerLength);
+    if (lFooterOffsets != null)
+    {
+      lContainerIndex.mOffsets.resetQuick();
+      lContainerIndex.mOffsets.addAll(lFooterOffsets);
+      lContainerIndex.mFooterContainerLength = lContainerLength;
+      return;
+    }
+
+    appendOffsetsFromIndex(pChannel, lContainerIndex.mOffsets);
+  }
+
+  private TLongArrayList readFooter(String pChannel,
+                                   long pFileLength) throws IOException
+  {
+    FileChannel lFileChannel = getMappedFileChannel(pChannel);
+    long lFileLength = pFileLength;
+
+    if (lFileLength < MappedFileStackSink.cPageSizeInBytes
+                      + MappedFileStackSink.cTrailerSizeInBytes)
+      return null;
+
+    ByteBuffer lTrailer =
+                        readFully(lFileChannel,
+                                  lFileLength
+                                               - MappedFileStackSink.cTrailerSizeInBytes,
+                                  MappedFileStackSink.cTrailerSizeInBytes);
+    long lFooterOffset = lTrailer.getLong();
+    long lNumberOfStacks = lTrailer.getLong();
+    long lMagic = lTrailer.getLong();
+
+    if (lMagic != MappedFileStackSink.cMagic
+        || lFooterOffset + lNumberOfStacks
+                           * MappedFileStackSink.cFooterEntrySizeInBytes
+           + MappedFileStackSink.cTrailerSizeInBytes != lFileLength)
+      return null;
+
+    ByteBuffer lFooter =
+                       readFully(lFileChannel,
+                                 lFooterOffset,
+                                 (int) (lNumberOfStacks
+                                        * MappedFileStackSink.cFooterEntrySizeInBytes));
+
+    TLongArrayList lOffsets = new TLongArrayList((int) lNumberOfStacks);
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      long lOffset = lFooter.getLong();
+      long lLength = lFooter.getLong();
+      long lWidth = lFooter.getLong();
+      long lHeight = lFooter.getLong();
+      long lDepth = lFooter.getLong();
+
+      // the footer is authoritative for the stack dimensions:
+      if (lLength != lWidth * lHeight * lDepth * Short.BYTES)
+        return null;
+      setStackRequest(pChannel,
+                      i,
+                      StackRequest.build(lWidth, lHeight, lDepth));
+      lOffsets.add(lOffset);
+    }
+
+    return lOffsets;
+  }
+
+  private void appendOffsetsFromIndex(String pChannel,
+                                      TLongArrayList pOffsets)
+  {
+    // Without footer (sink not closed yet) the offsets can be computed from
+    // the stack dimensions since stacks are written back to back, page
+    // aligned. Only the offsets of stacks appended since the last update are
+    // computed:
+    long lNumberOfStacks = getNumberOfStacks(pChannel);
+
+    int lNumberOfOffsets = pOffsets.size();
+    long lOffset = MappedFileStackSink.cPageSizeInBytes;
+    if (lNumberOfOffsets > 0)
+      lOffset =
+              MappedFileStackSink.alignToPage(pOffsets.get(lNumberOfOffsets
+                                                           - 1)
+                                              + getStackSizeInBytes(pChannel,
+                                                                    lNumberOfOffsets
+                                                                              - 1));
+
+    for (long i = lNumberOfOffsets; i < lNumberOfStacks; i++)
+    {
+      pOffsets.add(lOffset);
+      lOffset =
+              MappedFileStackSink.alignToPage(lOffset
+                                              + getStackSizeInBytes(pChannel,
+                                                                    i));
+    }
+  }
+
+  private FileChannel getMappedFileChannel(String pChannel) throws IOException
+  {
+    FileChannel lFileChannel =
+                             mChannelToMappedFileChannelMap.get(pChannel);
+    if (lFileChannel == null)
+    {
+      File lMappedFile = getMappedFile(pChannel);
+      lFileChannel = getFileChannel(lMappedFile, true);
+      mChannelToMappedFileChannelMap.put(pChannel, lFileChannel);
+    }
+    return lFileChannel;
+  }
+
+  private static ByteBuffer readFully(FileChannel pFileChannel,
+                                      long pPosition,
+                                      int pLength) throws IOException
+  {
+    ByteBuffer lByteBuffer = ByteBuffer.allocate(pLength)
+                                       .order(MappedFileStackSink.cByteOrder);
+    long lPosition = pPosition;
+    while (lByteBuffer.hasRemaining())
+    {
+      int lRead = pFileChannel.read(lByteBuffer, lPosition);
+      if (lRead < 0)
+        throw new IOException("Unexpected end of file");
+      lPosition += lRead;
+    }
+    lByteBuffer.flip();
+    return lByteBuffer;
+  }
+
+  private static void unmapAll(ContainerIndex pContainerIndex)
+  {
+    for (MappedByteBuffer lMappedByteBuffer : pContainerIndex.mMappedRegions)
+      if (lMappedByteBuffer != null)
+        unmap(lMappedByteBuffer);
+    pContainerIndex.mMappedRegions.clear();
+  }
+
+  /**
+   * Unmaps a mapped region right away instead of waiting for the buffer to be
+   * garbage collected.
+   */
+  private static void unmap(MappedByteBuffer pMappedByteBuffer)
+  {
+    try
+    {
+      try
+      {
+        // Java 9 and later:
+        Class<?> lUnsafeClass = Class.forName("sun.misc.Unsafe");
+        Method lInvokeCleanerMethod =
+                                    lUnsafeClass.getMethod("invokeCleaner",
+                                                           ByteBuffer.class);
+        Field lUnsafeField = lUnsafeClass.getDeclaredField("theUnsafe");
+        lUnsafeField.setAccessible(true);
+        lInvokeCleanerMethod.invoke(lUnsafeField.get(null),
+                                    pMappedByteBuffer);
+      }
+      catch (NoSuchMethodException e)
+      {
+        // Java 8:
+        Method lCleanerMethod = pMappedByteBuffer.getClass()
+                                                 .getMethod("cleaner");
+        lCleanerMethod.setAccessible(true);
+        Object lCleaner = lCleanerMethod.invoke(pMappedByteBuffer);
+        if (lCleaner != null)
+          lCleaner.getClass().getMethod("clean").invoke(lCleaner);
+      }
+    }
+    catch (Throwable e)
+    {
+      // the region stays mapped until the buffer is garbage collected:
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    synchronized (this)
+    {
+      for (ContainerIndex lContainerIndex : mChannelToContainerIndexMap.values())
+        unmapAll(lContainerIndex);
+      mChannelToContainerIndexMap.clear();
+
+      for (FileChannel lFileChannel : mChannelToMappedFileChannelMap.values())
+        lFileChannel.close();
+      mChannelToMappedFileChannelMap.clear();
+    }
+    super.close();
+  }
+
+}
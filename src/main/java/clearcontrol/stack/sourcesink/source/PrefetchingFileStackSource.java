@@ -0,0 +1,424 @@
+package clearcontrol.stack.sourcesink.source;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.recycling.RecyclerInterface;
+
+/**
+ * File stack source that reads ahead of another file stack source. The access
+ * direction and stride are predicted from the last requested stack indices of
+ * each channel, and the next stacks in that direction are loaded
+ * asynchronously into stacks obtained from the delegated source's recycler.
+ * Loaded stacks are kept in a cache bounded by a budget in bytes, the stacks
+ * loaded first are evicted first.
+ *
+ * Stacks served from the cache are handed over to the caller and removed from
+ * the cache: as with any other source, the caller releases them once done. A
+ * cached stack is thus never accessed twice, which is why eviction follows the
+ * load order.
+ *
+ * @author royer
+ */
+public class PrefetchingFileStackSource implements
+                                        FileStackSourceInterface,
+                                        AsynchronousExecutorFeature,
+                                        AutoCloseable
+{
+  private static final int cDefaultReadAheadCount = 4;
+  private static final long cDefaultBudgetInBytes = 1L << 30;
+  private static final int cMaxPredictedStride = 16;
+
+  private final FileStackSourceInterface mDelegatedFileStackSource;
+  private final int mReadAheadCount;
+  private final long mBudgetInBytes;
+
+  // in load order, see class comment:
+  private final LinkedHashMap<StackKey, StackInterface> mCache =
+                                                               new LinkedHashMap<>();
+  private final HashSet<StackKey> mPendingSet = new HashSet<>();
+  private final HashMap<String, long[]> mChannelToLastIndexAndStrideMap =
+                                                                        new HashMap<>();
+  private long mCachedBytes;
+  private volatile boolean mClosed;
+
+  private final AtomicLong mNumberOfHits = new AtomicLong();
+  private final AtomicLong mNumberOfMisses = new AtomicLong();
+
+  /**
+   * Instantiates a prefetching file stack source that reads four stacks ahead
+   * with a cache budget of 1 GB.
+   *
+   * @param pDelegatedFileStackSource
+   *          file stack source to read ahead of
+   */
+  public PrefetchingFileStackSource(FileStackSourceInterface pDelegatedFileStackSource)
+  {
+    this(pDelegatedFileStackSource,
+         cDefaultReadAheadCount,
+         cDefaultBudgetInBytes);
+  }
+
+  /**
+   * Instantiates a prefetching file stack source.
+   *
+   * @param pDelegatedFileStackSource
+   *          file stack source to read ahead of
+   * @param pReadAheadCount
+   *          number of stacks to read ahead
+   * @param pBudgetInBytes
+   *          maximal number of bytes held by cached stacks
+   */
+  public PrefetchingFileStackSource(FileStackSourceInterface pDelegatedFileStackSource,
+                                    int pReadAheadCount,
+                                    long pBudgetInBytes)
+  {
+    super();
+    mDelegatedFileStackSource = pDelegatedFileStackSource;
+    mReadAheadCount = pReadAheadCount;
+    mBudgetInBytes = pBudgetInBytes;
+    initializeSerialExecutor();
+  }
+
+  @Override
+  public void setLocation(File pRootFolder, String pDataSetName)
+  {
+    invalidate();
+    mDelegatedFileStackSource.setLocation(pRootFolder, pDataSetName);
+  }
+
+  @Override
+  public File getLocation()
+  {
+    return mDelegatedFileStackSource.getLocation();
+  }
+
+  @Override
+  public ArrayList<String> getChannelList()
+  {
+    return mDelegatedFileStackSource.getChannelList();
+  }
+
+  @Override
+  public boolean update()
+  {
+    // stacks already read do not change, the cache stays valid:
+    return mDelegatedFileStackSource.update();
+  }
+
+  @Override
+  public long getNumberOfStacks()
+  {
+    return mDelegatedFileStackSource.getNumberOfStacks();
+  }
+
+  @Override
+  public long getNumberOfStacks(String pChannel)
+  {
+    return mDelegatedFileStackSource.getNumberOfStacks(pChannel);
+  }
+
+  @Override
+  public void setStackRecycler(RecyclerInterface<StackInterface, StackRequest> pStackRecycler)
+  {
+    invalidate();
+    mDelegatedFileStackSource.setStackRecycler(pStackRecycler);
+  }
+
+  @Override
+  public Double getStackTimeStampInSeconds(long pStackIndex)
+  {
+    return mDelegatedFileStackSource.getStackTimeStampInSeconds(pStackIndex);
+  }
+
+  @Override
+  public Double getStackTimeStampInSeconds(String pChannel,
+                                           long pStackIndex)
+  {
+    return mDelegatedFileStackSource.getStackTimeStampInSeconds(pChannel,
+                                                                pStackIndex);
+  }
+
+  @Override
+  public StackInterface getStack(long pStackIndex)
+  {
+    return getStack(cDefaultChannel, pStackIndex);
+  }
+
+  @Override
+  public StackInterface getStack(String pChannel, long pStackIndex)
+  {
+    return getStack(pChannel, pStackIndex, 1, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public StackInterface getStack(String pChannel,
+                                 long pStackIndex,
+                                 long pTime,
+                                 TimeUnit pTimeUnit)
+  {
+    final StackKey lStackKey = new StackKey(pChannel, pStackIndex);
+    StackInterface lStack;
+
+    synchronized (mCache)
+    {
+      lStack = takeFromCache(lStackKey);
+
+      // a stack being read ahead is waited for, within the given time, rather
+      // than read twice. It is read synchronously if that time runs out:
+      if (lStack == null && mPendingSet.contains(lStackKey))
+      {
+        final long lDeadline = System.nanoTime()
+                               + pTimeUnit.toNanos(pTime);
+        long lRemaining;
+        while (mPendingSet.contains(lStackKey)
+               && (lRemaining = lDeadline - System.nanoTime()) > 0)
+        {
+          try
+          {
+            TimeUnit.NANOSECONDS.timedWait(mCache, lRemaining);
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+        lStack = takeFromCache(lStackKey);
+      }
+
+      readAhead(pChannel, pStackIndex);
+    }
+
+    if (lStack != null)
+    {
+      mNumberOfHits.incrementAndGet();
+      return lStack;
+    }
+
+    mNumberOfMisses.incrementAndGet();
+    return mDelegatedFileStackSource.getStack(pChannel,
+                                              pStackIndex,
+                                              pTime,
+                                              pTimeUnit);
+  }
+
+  private StackInterface takeFromCache(StackKey pStackKey)
+  {
+    StackInterface lStack = mCache.remove(pStackKey);
+    if (lStack != null)
+      mCachedBytes -= lStack.getSizeInBytes();
+    return lStack;
+  }
+
+  private void readAhead(String pChannel, long pStackIndex)
+  {
+    long[] lLastIndexAndStride =
+                               mChannelToLastIndexAndStrideMap.get(pChannel);
+    long lStride = 1;
+    if (lLastIndexAndStride != null)
+    {
+      long lDelta = pStackIndex - lLastIndexAndStride[0];
+      if (lDelta == 0)
+        lStride = lLastIndexAndStride[1];
+      else if (Math.abs(lDelta) <= cMaxPredictedStride)
+        lStride = lDelta;
+      // otherwise this was a jump, assume forward playback from there.
+    }
+    mChannelToLastIndexAndStrideMap.put(pChannel, new long[]
+    { pStackIndex, lStride });
+
+    final long lNumberOfStacks =
+                               mDelegatedFileStackSource.getNumberOfStacks(pChannel);
+
+    HashSet<StackKey> lWindow = new HashSet<>();
+    for (int k = 1; k <= mReadAheadCount; k++)
+    {
+      long lIndex = pStackIndex + k * lStride;
+      if (lIndex < 0 || lIndex >= lNumberOfStacks)
+        break;
+      lWindow.add(new StackKey(pChannel, lIndex));
+    }
+
+    // read-aheads that have not started yet and fall out of the predicted
+    // window are cancelled:
+    mPendingSet.removeIf(k -> k.mChannel.equals(pChannel)
+                              && !lWindow.contains(k));
+
+    for (int k = 1; k <= mReadAheadCount; k++)
+    {
+      StackKey lStackKey = new StackKey(pChannel,
+                                        pStackIndex + k * lStride);
+      if (!lWindow.contains(lStackKey) || mCache.containsKey(lStackKey)
+          || mPendingSet.contains(lStackKey))
+        continue;
+
+      mPendingSet.add(lStackKey);
+      executeAsynchronously(() -> load(lStackKey));
+    }
+  }
+
+  private void load(StackKey pStackKey)
+  {
+    synchronized (mCache)
+    {
+      if (mClosed || !mPendingSet.contains(pStackKey))
+        return;
+    }
+
+    StackInterface lStack = null;
+    try
+    {
+      lStack = mDelegatedFileStackSource.getStack(pStackKey.mChannel,
+                                                  pStackKey.mIndex,
+                                                  1,
+                                                  TimeUnit.NANOSECONDS);
+    }
+    finally
+    {
+      synchronized (mCache)
+      {
+        if (mPendingSet.remove(pStackKey) && lStack != null && !mClosed)
+        {
+          mCache.put(pStackKey, lStack);
+          mCachedBytes += lStack.getSizeInBytes();
+          evict();
+        }
+        else if (lStack != null)
+          lStack.release();
+        mCache.notifyAll();
+      }
+    }
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<StackKey, StackInterface>> lIterator =
+                                                            mCache.entrySet()
+                                                                  .iterator();
+    while (mCachedBytes > mBudgetInBytes && lIterator.hasNext())
+    {
+      StackInterface lStack = lIterator.next().getValue();
+      lIterator.remove();
+      mCachedBytes -= lStack.getSizeInBytes();
+      lStack.release();
+    }
+  }
+
+  private void invalidate()
+  {
+    synchronized (mCache)
+    {
+      mPendingSet.clear();
+      for (StackInterface lStack : mCache.values())
+        lStack.release();
+      mCache.clear();
+      mCachedBytes = 0;
+      mChannelToLastIndexAndStrideMap.clear();
+      mCache.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of stacks served from the read-ahead cache
+   *
+   * @return number of hits
+   */
+  public long getNumberOfHits()
+  {
+    return mNumberOfHits.get();
+  }
+
+  /**
+   * Returns the number of stacks that had to be read on demand
+   *
+   * @return number of misses
+   */
+  public long getNumberOfMisses()
+  {
+    return mNumberOfMisses.get();
+  }
+
+  /**
+   * Returns the ratio of hits over requested stacks
+   *
+   * @return hit rate within [0,1]
+   */
+  public double getHitRate()
+  {
+    long lHits = mNumberOfHits.get();
+    long lTotal = lHits + mNumberOfMisses.get();
+    return lTotal == 0 ? 0 : ((double) lHits) / lTotal;
+  }
+
+  /**
+   * Returns the number of bytes currently held by cached stacks
+   *
+   * @return cached bytes
+   */
+  public long getCachedBytes()
+  {
+    synchronized (mCache)
+    {
+      return mCachedBytes;
+    }
+  }
+
+  /**
+   * Resets hit and miss counters
+   */
+  public void resetStatistics()
+  {
+    mNumberOfHits.set(0);
+    mNumberOfMisses.set(0);
+  }
+
+  @Override
+  public void close() throws Exception
+  {
+    mClosed = true;
+    invalidate();
+    resetThreadPoolAndWaitForCompletion(1, TimeUnit.MINUTES);
+    invalidate();
+    mDelegatedFileStackSource.close();
+  }
+
+  private static final class StackKey
+  {
+    final String mChannel;
+    final long mIndex;
+
+    StackKey(String pChannel, long pIndex)
+    {
+      mChannel = pChannel;
+      mIndex = pIndex;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return mChannel.hashCode() * 31 + Long.hashCode(mIndex);
+    }
+
+    @Override
+    public boolean equals(Object pObject)
+    {
+      if (!(pObject instanceof StackKey))
+        return false;
+      StackKey lStackKey = (StackKey) pObject;
+      return mIndex == lStackKey.mIndex
+             && mChannel.equals(lStackKey.mChannel);
+    }
+  }
+
+}
@@ -3,21 +3,34 @@ package clearcontrol.stack.sourcesink.source;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.core.file.FileEventNotifier;
+import clearcontrol.core.file.FileEventNotifier.FileEventKind;
 import clearcontrol.core.units.OrderOfMagnitude;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
 import clearcontrol.stack.sourcesink.FileStackBase;
 import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
 import coremem.recycling.RecyclerInterface;
 
 /**
- * Raw file stack source
+ * Raw file stack source.
+ * 
+ * In incremental update mode, the source remembers how much of each channel's
+ * index and metadata files has already been read, and update() only parses
+ * the lines appended since - which makes it possible to follow a dataset that
+ * is still being written. Following can be driven by file change events, see
+ * startFollowing().
  *
  * @author royer
  */
@@ -26,7 +39,22 @@ public class RawFileStackSource extends FileStackBase implements
                                 AutoCloseable
 {
 
-  private RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
+  protected RecyclerInterface<StackInterface, StackRequest> mStackRecycler;
+
+  private volatile boolean mIncrementalUpdate = false;
+
+  // per channel: index file bytes read, metadata file bytes read, number of
+  // stacks read:
+  private final ConcurrentHashMap<String, long[]> mChannelToReadProgressMap =
+                                                                            new ConcurrentHashMap<>();
+
+  private static final String cIndexFileSuffix = ".index.txt";
+  private static final String cMetaDataFileSuffix = ".metadata.txt";
+
+  private volatile FileEventNotifier mFileEventNotifier;
+  private final Set<String> mFollowedChannelSet =
+                                                ConcurrentHashMap.newKeySet();
+  private volatile boolean mFollowing = false;
 
   /**
    * Instantiates a raw file stack source
@@ -87,6 +115,8 @@ public class RawFileStackSource extends FileStackBase implements
                                   mStackRecycler.getOrWait(pTime,
                                                            pTimeUnit,
                                                            lStackRequest);
+      if (lStack == null)
+        return null;
 
       String lFileName =
                        String.format(StackSinkSourceInterface.cFormat,
@@ -109,15 +139,7 @@ public class RawFileStackSource extends FileStackBase implements
                                         0,
                                         lStack.getSizeInBytes());
 
-      final double lTimeStampInSeconds =
-                                       getStackTimeStampInSeconds(pChannel,
-                                                                  pStackIndex);
-      lStack.getMetaData()
-            .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
-      lStack.getMetaData().setIndex(pStackIndex);
-
-      lStack.getMetaData()
-            .addAll(getStackMetaData(pChannel, pStackIndex));
+      addMetaDataToStack(pChannel, pStackIndex, lStack);
 
       return lStack;
     }
@@ -129,17 +151,71 @@ public class RawFileStackSource extends FileStackBase implements
 
   }
 
+  /**
+   * Sets the time stamp, index and metadata of a stack read from this source.
+   * 
+   * @param pChannel
+   *          channel
+   * @param pStackIndex
+   *          stack index
+   * @param pStack
+   *          stack
+   */
+  protected void addMetaDataToStack(final String pChannel,
+                                    final long pStackIndex,
+                                    final StackInterface pStack)
+  {
+    final double lTimeStampInSeconds =
+                                     getStackTimeStampInSeconds(pChannel,
+                                                                pStackIndex,
+                                                                Double.NaN);
+    pStack.getMetaData()
+          .setTimeStampInNanoseconds((long) OrderOfMagnitude.unit2nano(lTimeStampInSeconds));
+    pStack.getMetaData().setIndex(pStackIndex);
+
+    pStack.getMetaData()
+          .addAll(getStackMetaData(pChannel, pStackIndex));
+  }
+
+  /**
+   * Sets the incremental update mode. In this mode, update() only reads what
+   * has been appended to the index and metadata files since the last update.
+   * 
+   * @param pIncrementalUpdate
+   *          true for incremental updates, false for full updates
+   */
+  public void setIncrementalUpdate(boolean pIncrementalUpdate)
+  {
+    mIncrementalUpdate = pIncrementalUpdate;
+  }
+
+  /**
+   * Returns true if this source is in incremental update mode.
+   * 
+   * @return true if in incremental update mode
+   */
+  public boolean isIncrementalUpdate()
+  {
+    return mIncrementalUpdate;
+  }
+
   @Override
-  public boolean update()
+  public synchronized boolean update()
   {
+    if (mIncrementalUpdate)
+      return updateIncrementally();
+
     try
     {
       clear();
+      mChannelToReadProgressMap.clear();
 
       ArrayList<String> lChannelList = getChannelList();
 
       for (String lChannel : lChannelList)
       {
+        if (readBinaryIndexFile(lChannel))
+          continue;
         readIndexFile(lChannel);
         readMetaDataFile(lChannel);
       }
@@ -153,6 +229,295 @@ public class RawFileStackSource extends FileStackBase implements
     }
   }
 
+  private boolean updateIncrementally()
+  {
+    try
+    {
+      // nothing read incrementally yet, start from a clean state:
+      if (mChannelToReadProgressMap.isEmpty())
+        clear();
+
+      ArrayList<String> lChannelList = getChannelList();
+
+      for (String lChannel : lChannelList)
+      {
+        long[] lReadProgress = mChannelToReadProgressMap.get(lChannel);
+
+        if (lReadProgress != null
+            && (getIndexFile(lChannel).length() < lReadProgress[0]
+                || getMetadataFile(lChannel).length() < lReadProgress[1]))
+        {
+          // files have been truncated or rewritten, start over:
+          clear();
+          mChannelToReadProgressMap.clear();
+          return updateIncrementally();
+        }
+
+        if (lReadProgress == null)
+        {
+          lReadProgress = new long[3];
+          if (readBinaryIndexFile(lChannel))
+          {
+            BinaryStackIndex lBinaryStackIndex = getBinaryIndex(lChannel);
+            int lNumberOfStacks = lBinaryStackIndex.getNumberOfStacks();
+            if (lNumberOfStacks > 0)
+            {
+              lReadProgress[0] =
+                               getLengthOfLines(getIndexFile(lChannel),
+                                                lNumberOfStacks);
+              lReadProgress[1] =
+                               lBinaryStackIndex.getMetaDataOffset(lNumberOfStacks
+                                                                   - 1)
+                                 + lBinaryStackIndex.getMetaDataLength(lNumberOfStacks
+                                                                       - 1);
+              lReadProgress[2] = lNumberOfStacks;
+            }
+          }
+          mChannelToReadProgressMap.put(lChannel, lReadProgress);
+        }
+
+        readAppendedLines(lChannel, lReadProgress);
+      }
+
+      return true;
+    }
+    catch (final IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private void readAppendedLines(String pChannel,
+                                 long[] pReadProgress) throws IOException
+  {
+    File lIndexFile = getIndexFile(pChannel);
+    File lMetaDataFile = getMetadataFile(pChannel);
+    if (!lIndexFile.exists() || !lMetaDataFile.exists())
+      return;
+
+    try (
+        FileChannel lIndexFileChannel =
+                                      FileChannel.open(lIndexFile.toPath(),
+                                                       StandardOpenOption.READ);
+        FileChannel lMetaDataFileChannel =
+                                         FileChannel.open(lMetaDataFile.toPath(),
+                                                          StandardOpenOption.READ))
+    {
+      LineReader lIndexLineReader = new LineReader(lIndexFileChannel,
+                                                   pReadProgress[0]);
+      LineReader lMetaDataLineReader =
+                                     new LineReader(lMetaDataFileChannel,
+                                                    pReadProgress[1]);
+
+      // Only stacks for which both the index and metadata lines are complete
+      // are read, the rest is read on a later update:
+      while (true)
+      {
+        String lIndexLine = lIndexLineReader.readLine();
+        if (lIndexLine == null)
+          break;
+        String lMetaDataLine = lMetaDataLineReader.readLine();
+        if (lMetaDataLine == null)
+          break;
+
+        // the stack is only counted once its index line is parsed, so its
+        // metadata is set first for concurrent readers:
+        parseMetaDataLine(pChannel, pReadProgress[2], lMetaDataLine);
+        parseIndexLine(pChannel, lIndexLine);
+
+        pReadProgress[0] += lIndexLineReader.getLineLength();
+        pReadProgress[1] += lMetaDataLineReader.getLineLength();
+        pReadProgress[2]++;
+      }
+    }
+  }
+
+  private static long getLengthOfLines(File pFile,
+                                       long pNumberOfLines) throws IOException
+  {
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(pFile.toPath(),
+                                                   StandardOpenOption.READ))
+    {
+      LineReader lLineReader = new LineReader(lFileChannel, 0);
+      long lLength = 0;
+      for (long i = 0; i < pNumberOfLines; i++)
+      {
+        if (lLineReader.readLine() == null)
+          throw new IOException("Index file shorter than binary index: "
+                                + pFile);
+        lLength += lLineReader.getLineLength();
+      }
+      return lLength;
+    }
+  }
+
+  /**
+   * Reads the complete lines of a file from a given position on, through a
+   * bounded buffer that only grows for lines longer than it.
+   */
+  private static class LineReader
+  {
+    private static final int cBufferSizeInBytes = 64 * 1024;
+
+    private final FileChannel mFileChannel;
+    private long mFilePosition;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(cBufferSizeInBytes);
+    private int mLineLength;
+
+    LineReader(FileChannel pFileChannel, long pPosition)
+    {
+      mFileChannel = pFileChannel;
+      mFilePosition = pPosition;
+      mBuffer.limit(0);
+    }
+
+    /**
+     * Returns the next complete line, without end-of-line character, or null
+     * if there is no complete line left.
+     */
+    String readLine() throws IOException
+    {
+      int lScanned = 0;
+      while (true)
+      {
+        int lStart = mBuffer.position();
+        for (int i = lStart + lScanned; i < mBuffer.limit(); i++)
+          if (mBuffer.get(i) == '\n')
+          {
+            String lLine = new String(mBuffer.array(), lStart, i - lStart);
+            mLineLength = i + 1 - lStart;
+            mBuffer.position(i + 1);
+            return lLine;
+          }
+        lScanned = mBuffer.remaining();
+
+        if (!fill())
+          return null;
+      }
+    }
+
+    /**
+     * Returns the length in bytes of the last line read, including the
+     * end-of-line character.
+     */
+    int getLineLength()
+    {
+      return mLineLength;
+    }
+
+    private boolean fill() throws IOException
+    {
+      mBuffer.compact();
+      if (!mBuffer.hasRemaining())
+      {
+        ByteBuffer lLargerBuffer =
+                                 ByteBuffer.allocate(2 * mBuffer.capacity());
+        mBuffer.flip();
+        lLargerBuffer.put(mBuffer);
+        mBuffer = lLargerBuffer;
+      }
+
+      int lRead = mFileChannel.read(mBuffer, mFilePosition);
+      mBuffer.flip();
+      if (lRead <= 0)
+        return false;
+      mFilePosition += lRead;
+      return true;
+    }
+  }
+
+  /**
+   * Starts following this source's files: an incremental update is triggered
+   * whenever the metadata file of one of the channels is modified, and channels
+   * created after following started are followed as well. This also switches
+   * this source to incremental update mode. A single notifier watches the
+   * index and metadata files of the dataset folder.
+   * 
+   * @return true if monitoring could be started
+   */
+  public boolean startFollowing()
+  {
+    stopFollowing();
+    setIncrementalUpdate(true);
+    mFollowing = true;
+
+    boolean lSuccess = update();
+
+    final FileEventNotifier lFileEventNotifier =
+                                               new FileEventNotifier(mFolder,
+                                                                     RawFileStackSource::isIndexOrMetaDataFile);
+    lFileEventNotifier.addFileEventListener((n, f, k) -> {
+      // new channels start with the creation of their index file:
+      if (f.getName().endsWith(cIndexFileSuffix))
+      {
+        if (k == FileEventKind.Created)
+          followNewChannels();
+      }
+      // metadata lines are written after index lines, so an event on the
+      // metadata file implies that the index file is up to date:
+      else if (k != FileEventKind.Deleted
+               && mFollowedChannelSet.contains(getChannel(f,
+                                                          cMetaDataFileSuffix)))
+        update();
+    });
+    mFileEventNotifier = lFileEventNotifier;
+    lSuccess &= lFileEventNotifier.startMonitoring();
+
+    lSuccess &= followNewChannels();
+    return lSuccess;
+  }
+
+  private static boolean isIndexOrMetaDataFile(File pFile)
+  {
+    return pFile.getName().endsWith(cIndexFileSuffix)
+           || pFile.getName().endsWith(cMetaDataFileSuffix);
+  }
+
+  private static String getChannel(File pFile, String pSuffix)
+  {
+    final String lFileName = pFile.getName();
+    return lFileName.substring(0, lFileName.length() - pSuffix.length());
+  }
+
+  private synchronized boolean followNewChannels()
+  {
+    if (!mFollowing)
+      return true;
+
+    boolean lNewChannels = false;
+    for (String lChannel : getChannelList())
+      lNewChannels |= mFollowedChannelSet.add(lChannel);
+
+    // lines appended before the new channels were followed are read now:
+    if (lNewChannels)
+      return update();
+    return true;
+  }
+
+  /**
+   * Stops following this source's files.
+   */
+  public void stopFollowing()
+  {
+    mFollowing = false;
+    final FileEventNotifier lFileEventNotifier = mFileEventNotifier;
+    mFileEventNotifier = null;
+    if (lFileEventNotifier != null)
+    {
+      try
+      {
+        lFileEventNotifier.close();
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+    mFollowedChannelSet.clear();
+  }
+
   protected void readMetaDataFile(String lChannel) throws FileNotFoundException
   {
     final Scanner lMetaDataFileScanner =
@@ -163,11 +528,7 @@ public class RawFileStackSource extends FileStackBase implements
     {
       final String lLine = lMetaDataFileScanner.nextLine();
 
-      StackMetaData lStackMetaData = new StackMetaData();
-
-      lStackMetaData.fromString(lLine);
-
-      setStackMetaData(lChannel, lStackIndex, lStackMetaData);
+      parseMetaDataLine(lChannel, lStackIndex, lLine);
 
       lStackIndex++;
     }
@@ -175,6 +536,17 @@ public class RawFileStackSource extends FileStackBase implements
     lMetaDataFileScanner.close();
   }
 
+  protected void parseMetaDataLine(String pChannel,
+                                   long pStackIndex,
+                                   String pLine)
+  {
+    StackMetaData lStackMetaData = new StackMetaData();
+
+    lStackMetaData.fromString(pLine);
+
+    setStackMetaData(pChannel, pStackIndex, lStackMetaData);
+  }
+
   protected void readIndexFile(String lChannel) throws FileNotFoundException
   {
     final Scanner lIndexFileScanner =
@@ -183,35 +555,40 @@ public class RawFileStackSource extends FileStackBase implements
     while (lIndexFileScanner.hasNextLine())
     {
       final String lLine = lIndexFileScanner.nextLine();
-      final String[] lSplittedLine = lLine.split("\t", -1);
-      final long lStackIndex =
-                             Long.parseLong(lSplittedLine[0].trim());
-      final double lTimeStampInSeconds =
-                                       Double.parseDouble(lSplittedLine[1].trim());
-      final String[] lDimensionsStringArray =
-                                            lSplittedLine[2].split(", ");
-
-      final long lWidth = Long.parseLong(lDimensionsStringArray[0]);
-      final long lHeight = Long.parseLong(lDimensionsStringArray[1]);
-      final long lDepth = Long.parseLong(lDimensionsStringArray[2]);
-
-      final StackRequest lStackRequest = StackRequest.build(lWidth,
-                                                            lHeight,
-                                                            lDepth);
-
-      setStackTimeStampInSeconds(lChannel,
-                                 lStackIndex,
-                                 lTimeStampInSeconds);
-      setStackRequest(lChannel, lStackIndex, lStackRequest);
+      parseIndexLine(lChannel, lLine);
     }
 
     lIndexFileScanner.close();
   }
 
+  protected void parseIndexLine(String pChannel, final String pLine)
+  {
+    final String[] lSplittedLine = pLine.split("\t", -1);
+    final long lStackIndex = Long.parseLong(lSplittedLine[0].trim());
+    final double lTimeStampInSeconds =
+                                     Double.parseDouble(lSplittedLine[1].trim());
+    final String[] lDimensionsStringArray =
+                                          lSplittedLine[2].split(", ");
+
+    final long lWidth = Long.parseLong(lDimensionsStringArray[0]);
+    final long lHeight = Long.parseLong(lDimensionsStringArray[1]);
+    final long lDepth = Long.parseLong(lDimensionsStringArray[2]);
+
+    final StackRequest lStackRequest = StackRequest.build(lWidth,
+                                                          lHeight,
+                                                          lDepth);
+
+    setStackTimeStampInSeconds(pChannel,
+                               lStackIndex,
+                               lTimeStampInSeconds);
+    setStackRequest(pChannel, lStackIndex, lStackRequest);
+  }
+
   @Override
   public void close() throws IOException
   {
-
+    stopFollowing();
+    super.close();
   }
 
 }
@@ -176,6 +176,8 @@ public class SqeazyFileStackSource extends FileStackBase implements
 
       for (String lChannel : lChannelList)
       {
+        if (readBinaryIndexFile(lChannel))
+          continue;
         readIndexFile(lChannel);
         readMetaDataFile(lChannel);
       }
@@ -247,7 +249,7 @@ public class SqeazyFileStackSource extends FileStackBase implements
   @Override
   public void close() throws IOException
   {
-
+    super.close();
   }
 
 }
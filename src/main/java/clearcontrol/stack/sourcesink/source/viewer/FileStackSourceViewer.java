@@ -8,6 +8,7 @@ import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
 import clearcontrol.stack.sourcesink.source.FileStackSource;
+import clearcontrol.stack.sourcesink.source.PrefetchingFileStackSource;
 import coremem.recycling.BasicRecycler;
 
 /**
@@ -26,6 +27,8 @@ public class FileStackSourceViewer extends StackSourceViewer
                                                       new Variable<>("DatasetName",
                                                                      null);
 
+  private PrefetchingFileStackSource mPrefetchingFileStackSource;
+
   /**
    * Instantiates a stack source
    * 
@@ -96,7 +99,33 @@ public class FileStackSourceViewer extends StackSourceViewer
     lFileStackSource.setLocation(pRootFolder, pName);
     lFileStackSource.update();
 
-    getStackSourceVariable().set(lFileStackSource);
+    // the dataset might still be written to:
+    lFileStackSource.startFollowing();
+
+    // stacks are read ahead while scrubbing through the dataset:
+    PrefetchingFileStackSource lPreviousPrefetchingFileStackSource =
+                                                                   mPrefetchingFileStackSource;
+    mPrefetchingFileStackSource =
+                                new PrefetchingFileStackSource(lFileStackSource);
+    getStackSourceVariable().set(mPrefetchingFileStackSource);
+
+    // the previous source's read-ahead thread and cached stacks are released,
+    // and it stops following its dataset:
+    closePrefetchingFileStackSource(lPreviousPrefetchingFileStackSource);
+  }
+
+  private void closePrefetchingFileStackSource(PrefetchingFileStackSource pPrefetchingFileStackSource)
+  {
+    if (pPrefetchingFileStackSource == null)
+      return;
+    try
+    {
+      pPrefetchingFileStackSource.close();
+    }
+    catch (Exception e)
+    {
+      e.printStackTrace();
+    }
   }
 
   /**
@@ -123,6 +152,8 @@ public class FileStackSourceViewer extends StackSourceViewer
   public void close()
   {
     super.close();
+    closePrefetchingFileStackSource(mPrefetchingFileStackSource);
+    mPrefetchingFileStackSource = null;
   }
 
 }
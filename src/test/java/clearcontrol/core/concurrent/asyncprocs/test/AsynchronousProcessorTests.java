@@ -6,7 +6,9 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorBase;
 import clearcontrol.core.concurrent.asyncprocs.AsynchronousProcessorInterface;
@@ -276,4 +278,158 @@ public class AsynchronousProcessorTests
     }
 
   }
+
+  /**
+   * Tests batch draining and latency histograms
+   */
+  @Test
+  public void testBatchesAndHistograms()
+  {
+    final ConcurrentLinkedQueue<Integer> lIntList =
+                                                  new ConcurrentLinkedQueue<>();
+
+    final AsynchronousProcessorBase<Integer, Integer> lProcessor =
+                                                                 new AsynchronousProcessorBase<Integer, Integer>("A",
+                                                                                                                 100)
+                                                                 {
+                                                                   @Override
+                                                                   public Integer process(final Integer pInput)
+                                                                   {
+                                                                     ThreadSleep.sleep(100,
+                                                                                       TimeUnit.MICROSECONDS);
+                                                                     lIntList.add(pInput);
+                                                                     return pInput;
+                                                                   }
+                                                                 };
+    lProcessor.setMaxBatchSize(8);
+    assertEquals(8, lProcessor.getMaxBatchSize());
+    assertTrue(lProcessor.start());
+
+    for (int i = 1; i <= 1000; i++)
+      assertTrue(lProcessor.passOrWait(i));
+
+    assertTrue(lProcessor.waitToFinish(10, TimeUnit.SECONDS));
+    assertTrue(lProcessor.stop(1, TimeUnit.SECONDS));
+
+    for (int i = 1; i <= 1000; i++)
+      assertEquals(i, lIntList.poll(), 0);
+
+    assertEquals(1000, lProcessor.getQueueWaitHistogram().getCount());
+    assertEquals(1000, lProcessor.getProcessTimeHistogram().getCount());
+    assertTrue(lProcessor.getProcessTimeHistogram()
+                         .getPercentileInNanoseconds(50) >= TimeUnit.MICROSECONDS.toNanos(50));
+
+    // inputs are rejected once stopped:
+    assertTrue(!lProcessor.passOrFail(1));
+  }
+
+  /**
+   * Tests that a pool sends results in input order with a bounded reorder
+   * buffer
+   */
+  @Test
+  public void testOrderedPoolOutput()
+  {
+    final ProcessorInterface<Integer, Integer> lProcessor = (input) -> {
+      ThreadSleep.sleep((long) (Math.random() * 1000000),
+                        TimeUnit.NANOSECONDS);
+      return input;
+    };
+
+    final ConcurrentLinkedQueue<Integer> lIntList =
+                                                  new ConcurrentLinkedQueue<>();
+    // failures in send() are not propagated, the bound is checked afterwards:
+    final AtomicInteger lMaxHeldResults = new AtomicInteger();
+
+    final AsynchronousProcessorPool<Integer, Integer> lProcessorPool =
+                                                                     new AsynchronousProcessorPool<Integer, Integer>("Pool",
+                                                                                                                     100,
+                                                                                                                     4,
+                                                                                                                     lProcessor)
+                                                                     {
+                                                                       @Override
+                                                                       protected void send(Integer pOutput)
+                                                                       {
+                                                                         lMaxHeldResults.accumulateAndGet(getNumberOfHeldResults(),
+                                                                                                          Math::max);
+                                                                         lIntList.add(pOutput);
+                                                                       }
+                                                                     };
+    lProcessorPool.setMaxOutOfOrderResults(3);
+    assertTrue(lProcessorPool.isOrderedOutput());
+    assertTrue(lProcessorPool.start());
+
+    for (int i = 1; i <= 500; i++)
+      assertTrue(lProcessorPool.passOrWait(i));
+
+    while (lIntList.size() < 500)
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+
+    assertTrue(lProcessorPool.waitToFinish(10, TimeUnit.SECONDS));
+    assertTrue(lProcessorPool.stop(1, TimeUnit.SECONDS));
+
+    assertTrue(lMaxHeldResults.get() <= 3);
+    for (int i = 1; i <= 500; i++)
+      assertEquals(i, lIntList.poll(), 0);
+    assertEquals(0, lProcessorPool.getNumberOfHeldResults());
+    assertEquals(500, lProcessorPool.getProcessTimeHistogram().getCount());
+  }
+
+  /**
+   * Tests that a consumer blocked in send() does not hold the reorder buffer:
+   * later results keep being completed and buffered meanwhile
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test(timeout = 10000)
+  public void testBlockedPoolConsumer() throws InterruptedException
+  {
+    final CountDownLatch lUnblock = new CountDownLatch(1);
+    final ConcurrentLinkedQueue<Integer> lIntList =
+                                                  new ConcurrentLinkedQueue<>();
+
+    final AsynchronousProcessorPool<Integer, Integer> lProcessorPool =
+                                                                     new AsynchronousProcessorPool<Integer, Integer>("Pool",
+                                                                                                                     100,
+                                                                                                                     4,
+                                                                                                                     (input) -> input)
+                                                                     {
+                                                                       @Override
+                                                                       protected void send(Integer pOutput)
+                                                                       {
+                                                                         if (pOutput == 1)
+                                                                           try
+                                                                           {
+                                                                             lUnblock.await();
+                                                                           }
+                                                                           catch (InterruptedException e)
+                                                                           {
+                                                                             Thread.currentThread()
+                                                                                   .interrupt();
+                                                                           }
+                                                                         lIntList.add(pOutput);
+                                                                       }
+                                                                     };
+    lProcessorPool.setMaxOutOfOrderResults(3);
+    assertTrue(lProcessorPool.start());
+
+    for (int i = 1; i <= 20; i++)
+      assertTrue(lProcessorPool.passOrWait(i));
+
+    // the results following the blocked one fill the reorder buffer:
+    while (lProcessorPool.getNumberOfHeldResults() < 3)
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+    assertTrue(lIntList.isEmpty());
+
+    lUnblock.countDown();
+    while (lIntList.size() < 20)
+      ThreadSleep.sleep(1, TimeUnit.MILLISECONDS);
+
+    assertTrue(lProcessorPool.waitToFinish(10, TimeUnit.SECONDS));
+    assertTrue(lProcessorPool.stop(1, TimeUnit.SECONDS));
+
+    for (int i = 1; i <= 20; i++)
+      assertEquals(i, lIntList.poll(), 0);
+  }
 }
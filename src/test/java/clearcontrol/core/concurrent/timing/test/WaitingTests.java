@@ -1,10 +1,13 @@
 package clearcontrol.core.concurrent.timing.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.concurrent.timing.WaitingInterface;
 
@@ -67,4 +70,109 @@ public class WaitingTests
     assertFalse(mDoneFlag.get());
 
   }
+
+  /**
+   * Tests that time outs are not cut short and that concurrent waiters do not
+   * serialize
+   * 
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testTimeOuts() throws InterruptedException
+  {
+    final TestClass lTestClass = new TestClass();
+
+    final long lStart = System.nanoTime();
+    assertFalse(lTestClass.waitFor(100L,
+                                   TimeUnit.MILLISECONDS,
+                                   () -> false));
+    assertTrue((System.nanoTime() - lStart) * 1e-6 >= 100);
+
+    // each waiter's condition only holds once all waiters are waiting, which
+    // never happens if waiters serialize:
+    final int lNumberOfWaiters = 4;
+    final AtomicInteger lNumberOfWaiting = new AtomicInteger();
+    final AtomicInteger lNumberOfSuccesses = new AtomicInteger();
+    final Thread[] lThreads = new Thread[lNumberOfWaiters];
+    for (int i = 0; i < lThreads.length; i++)
+    {
+      lThreads[i] = new Thread(() -> {
+        final AtomicBoolean lWaiting = new AtomicBoolean();
+        if (lTestClass.waitFor(10L, TimeUnit.SECONDS, () -> {
+          if (lWaiting.compareAndSet(false, true))
+            lNumberOfWaiting.incrementAndGet();
+          return lNumberOfWaiting.get() == lNumberOfWaiters;
+        }))
+          lNumberOfSuccesses.incrementAndGet();
+      });
+    }
+
+    for (Thread lThread : lThreads)
+      lThread.start();
+    for (Thread lThread : lThreads)
+      lThread.join();
+
+    assertEquals(lNumberOfWaiters, lNumberOfSuccesses.get());
+  }
+
+  /**
+   * Tests that interrupting a waiting thread does not end its wait, and that
+   * its interrupt status is restored afterwards
+   * 
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testInterrupts() throws InterruptedException
+  {
+    final TestClass lTestClass = new TestClass();
+    final AtomicBoolean lFlag = new AtomicBoolean(false);
+    final CountDownLatch lInterrupted = new CountDownLatch(1);
+    final AtomicBoolean lInterruptStatus = new AtomicBoolean(false);
+
+    final Thread lThread = new Thread(() -> {
+      if (lTestClass.waitFor(10L, TimeUnit.SECONDS, () -> {
+        if (Thread.currentThread().isInterrupted())
+          lInterrupted.countDown();
+        return lFlag.get();
+      }))
+        mDoneFlag.set(true);
+      lInterruptStatus.set(Thread.currentThread().isInterrupted());
+    });
+    lThread.start();
+    lThread.interrupt();
+    assertTrue(lInterrupted.await(10, TimeUnit.SECONDS));
+    assertFalse(mDoneFlag.get());
+
+    lFlag.set(true);
+    lTestClass.signalWaiters();
+    lThread.join();
+    assertTrue(mDoneFlag.get());
+    assertTrue(lInterruptStatus.get());
+  }
+
+  /**
+   * Tests that signaled waiters wake up without waiting for the polling period
+   * 
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testSignaling() throws InterruptedException
+  {
+    final TestClass lTestClass = new TestClass();
+    final AtomicBoolean lFlag = new AtomicBoolean(false);
+
+    final Thread lThread = new Thread(() -> {
+      if (lTestClass.waitFor(1L, TimeUnit.SECONDS, () -> lFlag.get()))
+        mDoneFlag.set(true);
+    });
+    lThread.start();
+    Thread.sleep(10);
+    lFlag.set(true);
+    lTestClass.signalWaiters();
+    lThread.join();
+    assertTrue(mDoneFlag.get());
+  }
 }
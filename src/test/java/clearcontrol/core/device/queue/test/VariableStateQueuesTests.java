@@ -3,6 +3,8 @@ package clearcontrol.core.device.queue.test;
 import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.device.queue.VariableQueueBase;
 import clearcontrol.core.variable.Variable;
@@ -51,4 +53,90 @@ public class VariableStateQueuesTests
 
   }
 
+  /**
+   * Tests queues of mixed value types, views and copies
+   */
+  @Test
+  public void testColumns()
+  {
+    VariableQueueBase lVariableStateQueues = new VariableQueueBase();
+
+    Variable<Double> lDoubleVariable =
+                                     new Variable<Double>("DoubleVariable",
+                                                          0.0);
+    Variable<Long> lLongVariable = new Variable<Long>("LongVariable",
+                                                      0L);
+    Variable<Boolean> lBooleanVariable =
+                                       new Variable<Boolean>("BooleanVariable",
+                                                             false);
+    Variable<Number> lNumberVariable =
+                                     new Variable<Number>("NumberVariable",
+                                                          0);
+    Variable<String> lStringVariable =
+                                     new Variable<String>("StringVariable",
+                                                          "");
+
+    lVariableStateQueues.registerVariables(lDoubleVariable,
+                                           lLongVariable,
+                                           lBooleanVariable,
+                                           lNumberVariable,
+                                           lStringVariable);
+
+    final AtomicInteger lGetCounter = new AtomicInteger();
+    lDoubleVariable.addGetListener((v) -> lGetCounter.incrementAndGet());
+
+    for (int r = 0; r < 2; r++)
+    {
+      lVariableStateQueues.clearQueue();
+      for (int i = 0; i < 1000; i++)
+      {
+        lDoubleVariable.set(0.5 * i);
+        lLongVariable.set((long) i);
+        lBooleanVariable.set(i % 3 == 0);
+        if (i == 10)
+          lNumberVariable.set(0.25);
+        else
+          lNumberVariable.set(i);
+        lStringVariable.set("s" + i);
+        lVariableStateQueues.addCurrentStateToQueue();
+      }
+    }
+    lVariableStateQueues.finalizeQueue();
+    assertEquals(0, lGetCounter.get());
+
+    VariableQueueBase lCopy = lVariableStateQueues.clone();
+    lVariableStateQueues.clearQueue();
+
+    assertEquals(0, lVariableStateQueues.getQueueLength());
+    assertEquals(1000, lCopy.getQueueLength());
+    assertEquals(334, lCopy.getNumberOfTrueValues(lBooleanVariable));
+
+    List<Boolean> lBooleanView =
+                               lCopy.getVariableQueueView(lBooleanVariable);
+    List<Number> lNumberView = lCopy.getVariableQueueView(lNumberVariable);
+    List<String> lStringView = lCopy.getVariableQueueView(lStringVariable);
+    for (int i = 0; i < 1000; i++)
+    {
+      assertEquals(0.5 * i,
+                   lCopy.getQueuedDoubleValue(lDoubleVariable, i),
+                   0);
+      assertEquals(i, lCopy.getQueuedLongValue(lLongVariable, i));
+      assertEquals(new Long(i),
+                   lCopy.getVariableQueueView(lLongVariable).get(i));
+      assertEquals(i % 3 == 0, lBooleanView.get(i));
+      assertEquals(i == 10 ? 0.25 : i,
+                   lNumberView.get(i).doubleValue(),
+                   0);
+      assertEquals(i == 10 ? (Object) new Double(0.25)
+                           : (Object) new Integer(i),
+                   lNumberView.get(i));
+      assertEquals("s" + i, lStringView.get(i));
+    }
+
+    ArrayList<Number> lTransformed =
+                                   lCopy.getVariableQueue((x) -> 2 * x,
+                                                          lNumberVariable);
+    assertEquals(2.0 * 999, lTransformed.get(999).doubleValue(), 0);
+  }
+
 }
@@ -0,0 +1,109 @@
+package clearcontrol.core.variable.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.variable.Variable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks the throughput of variable sets for different numbers of synced
+ * variables. Run with the GC profiler (-prof gc) to check that steady-state
+ * sets do not allocate.
+ *
+ * @author royer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariableSetBenchmark
+{
+  @Param(
+  { "1", "10", "100", "1000" })
+  public int mFanOut;
+
+  private Variable<Object> mStarVariable;
+  private Variable<Object> mChainVariable;
+  private final Object[] mValues = new Object[]
+  { new Object(), new Object() };
+  private int mCounter;
+
+  /**
+   * Builds a star of variables synced to a central variable, and a chain of
+   * variables each synced to the next one.
+   */
+  @Setup
+  public void setup()
+  {
+    mStarVariable = new Variable<Object>("star", mValues[0]);
+    for (int i = 0; i < mFanOut; i++)
+      mStarVariable.syncWith(new Variable<Object>("star" + i,
+                                                  mValues[0]));
+
+    mChainVariable = new Variable<Object>("chain", mValues[0]);
+    Variable<Object> lPrevious = mChainVariable;
+    for (int i = 0; i < mFanOut; i++)
+    {
+      Variable<Object> lNext = new Variable<Object>("chain" + i,
+                                                    mValues[0]);
+      lPrevious.syncWith(lNext);
+      lPrevious = lNext;
+    }
+  }
+
+  /**
+   * Sets the central variable of the star
+   *
+   * @return set value
+   */
+  @Benchmark
+  public Object setStar()
+  {
+    final Object lValue = mValues[mCounter++ & 1];
+    mStarVariable.set(lValue);
+    return lValue;
+  }
+
+  /**
+   * Sets the head of the chain
+   *
+   * @return set value
+   */
+  @Benchmark
+  public Object setChain()
+  {
+    final Object lValue = mValues[mCounter++ & 1];
+    mChainVariable.set(lValue);
+    return lValue;
+  }
+
+  /**
+   * Runs the benchmark
+   *
+   * @param pArgs
+   *          not used
+   * @throws RunnerException
+   *           if the benchmark fails
+   */
+  public static void main(String[] pArgs) throws RunnerException
+  {
+    new Runner(new OptionsBuilder().include(VariableSetBenchmark.class.getSimpleName())
+                                   .build()).run();
+  }
+}
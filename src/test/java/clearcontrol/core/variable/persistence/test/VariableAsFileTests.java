@@ -1,9 +1,13 @@
 package clearcontrol.core.variable.persistence.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.variable.Variable;
 import clearcontrol.core.variable.persistence.DoubleVariableAsFile;
@@ -152,4 +156,65 @@ public class VariableAsFileTests
     lVariableBundleAsFile2.close();
 
   }
+
+  /**
+   * @throws IOException
+   *           N/A
+   * @throws InterruptedException
+   *           N/A
+   */
+  @Test
+  public void testWriteBehindVariableBundleAsFile() throws IOException,
+                                                    InterruptedException
+  {
+    final File lTempFile =
+                         File.createTempFile("VariableAsFileTests",
+                                             "testWriteBehindVariableBundleAsFile");
+
+    final Variable<Double> x1 = new Variable<Double>("x", 1.0);
+    final VariableBundleAsFile lVariableBundleAsFile1 =
+                                                      new VariableBundleAsFile("bundle",
+                                                                               lTempFile,
+                                                                               false,
+                                                                               100);
+    lVariableBundleAsFile1.addVariable("path", x1);
+
+    final long lStart = System.nanoTime();
+    for (int i = 0; i < 10000; i++)
+      x1.set((double) i);
+    final long lElapsedInMilliseconds = (System.nanoTime() - lStart)
+                                        / 1000000;
+
+    assertTrue(lVariableBundleAsFile1.getNumberOfWrites() <= 2
+                                                             + lElapsedInMilliseconds
+                                                               / 100);
+    lVariableBundleAsFile1.close();
+    assertFalse(lVariableBundleAsFile1.isDirty());
+
+    final Variable<Double> x2 = new Variable<Double>("x", 1.0);
+    final VariableBundleAsFile lVariableBundleAsFile2 =
+                                                      new VariableBundleAsFile("bundle",
+                                                                               lTempFile,
+                                                                               true);
+    lVariableBundleAsFile2.addVariable("path", x2);
+    lVariableBundleAsFile2.read();
+    assertEquals(9999, x2.get(), 0.01);
+
+    // the file is only parsed again once it has been modified:
+    final AtomicInteger lSetCounter = new AtomicInteger();
+    x2.addSetListener((o, n) -> lSetCounter.incrementAndGet());
+    for (int i = 0; i < 100; i++)
+      x2.get();
+    assertEquals(0, lSetCounter.get());
+
+    Files.write(lTempFile.toPath(), "path.x\t=\t42\n".getBytes());
+    lTempFile.setLastModified(lTempFile.lastModified() + 2000);
+    // get listeners are called after the value is obtained:
+    x2.get();
+    assertEquals(42, x2.get(), 0.01);
+    assertEquals(1, lSetCounter.get());
+    assertEquals(0, lVariableBundleAsFile2.getNumberOfWrites());
+
+    lVariableBundleAsFile2.close();
+  }
 }
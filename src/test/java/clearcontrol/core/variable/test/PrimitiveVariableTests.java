@@ -0,0 +1,216 @@
+package clearcontrol.core.variable.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.core.variable.BooleanVariable;
+import clearcontrol.core.variable.DoubleVariable;
+import clearcontrol.core.variable.LongVariable;
+import clearcontrol.core.variable.Variable;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Primitive variable tests
+ *
+ * @author royer
+ */
+public class PrimitiveVariableTests
+{
+
+  /**
+   * Tests syncing, listeners and hooks of double variables
+   */
+  @Test
+  public void testDoubleVariable()
+  {
+    final DoubleVariable x = new DoubleVariable("x", 0);
+    final DoubleVariable y = new DoubleVariable("y")
+    {
+      @Override
+      public double setEventHook(double pOldValue, double pNewValue)
+      {
+        return Math.min(pNewValue, 10);
+      }
+    };
+
+    x.syncWith(y);
+
+    final AtomicInteger lSetCounter = new AtomicInteger();
+    final AtomicInteger lEdgeCounter = new AtomicInteger();
+    y.addSetListener((o, n) -> lSetCounter.incrementAndGet());
+    y.addEdgeListener((n) -> lEdgeCounter.incrementAndGet());
+
+    x.set(1);
+    assertEquals(1, x.get(), 0);
+    assertEquals(1, y.get(), 0);
+
+    y.set(2);
+    assertEquals(2, x.get(), 0);
+    assertEquals(2, y.get(), 0);
+
+    y.set(2);
+    y.set(20);
+    assertEquals(10, y.get(), 0);
+    assertEquals(10, x.get(), 0);
+
+    x.toggle();
+    assertEquals(-10, x.get(), 0);
+    assertEquals(-10, y.get(), 0);
+
+    assertEquals(5, lSetCounter.get());
+    assertEquals(4, lEdgeCounter.get());
+  }
+
+  /**
+   * Tests long variables
+   */
+  @Test
+  public void testLongVariable()
+  {
+    final LongVariable x = new LongVariable("x", 1);
+    final LongVariable y = new LongVariable("y", 1);
+    x.sendUpdatesTo(y);
+
+    x.increment();
+    x.increment();
+    assertEquals(3, y.get());
+    y.decrement();
+    assertEquals(2, y.get());
+    assertEquals(3, x.get());
+  }
+
+  /**
+   * Tests binding of primitive variables to reference variables
+   */
+  @Test
+  public void testAdapters()
+  {
+    final BooleanVariable lFlag = new BooleanVariable("flag");
+    final Variable<Boolean> lReference =
+                                       new Variable<Boolean>("reference",
+                                                             false);
+    lFlag.syncWith(lReference);
+
+    final AtomicInteger lReferenceCounter = new AtomicInteger();
+    final AtomicInteger lFlagCounter = new AtomicInteger();
+    lReference.addSetListener((o, n) -> lReferenceCounter.incrementAndGet());
+    lFlag.addSetListener((o, n) -> lFlagCounter.incrementAndGet());
+
+    lFlag.set(true);
+    assertTrue(lReference.get());
+    assertTrue(lFlag.asVariable().get());
+
+    lReference.set(false);
+    assertFalse(lFlag.get());
+
+    lFlag.asVariable().set(true);
+    assertTrue(lFlag.get());
+    assertTrue(lReference.get());
+
+    lReference.set((Boolean) null);
+    assertTrue(lFlag.get());
+
+    assertEquals(4, lReferenceCounter.get());
+    assertEquals(3, lFlagCounter.get());
+
+    // the primitive hook applies to values coming from reference variables:
+    final DoubleVariable lPower = new DoubleVariable("power")
+    {
+      @Override
+      public double setEventHook(double pOldValue, double pNewValue)
+      {
+        return Math.max(0, Math.min(1, pNewValue));
+      }
+    };
+    final Variable<Double> lSlider = new Variable<Double>("slider", 0.0);
+    lSlider.syncWith(lPower.asVariable());
+
+    lSlider.set(2.0);
+    assertEquals(1, lPower.get(), 0);
+    assertEquals(new Double(1), lPower.asVariable().get());
+  }
+
+  /**
+   * Tests that setting synced primitive variables does not allocate
+   */
+  @Test
+  public void testNoAllocation()
+  {
+    // per-thread allocation counters are specific to HotSpot JVMs:
+    Assume.assumeTrue(isThreadAllocatedMemorySupported());
+    final com.sun.management.ThreadMXBean lThreadMXBean =
+                                                        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long lThreadId = Thread.currentThread().getId();
+
+    final DoubleVariable x = new DoubleVariable("x");
+    final DoubleVariable y = new DoubleVariable("y");
+    final DoubleVariable z = new DoubleVariable("z");
+    x.syncWith(y);
+    y.syncWith(z);
+    final double[] lSum = new double[1];
+    z.addSetListener((o, n) -> lSum[0] += n);
+
+    final int lNumberOfSets = 1000000;
+    long lAllocatedBytes = 0;
+    for (int r = 0; r < 5; r++)
+    {
+      final long lStart =
+                        lThreadMXBean.getThreadAllocatedBytes(lThreadId);
+      for (int i = 0; i < lNumberOfSets; i++)
+        x.set(i);
+      lAllocatedBytes =
+                      lThreadMXBean.getThreadAllocatedBytes(lThreadId)
+                        - lStart;
+    }
+
+    System.out.format("%d bytes allocated for %d sets \n",
+                      lAllocatedBytes,
+                      lNumberOfSets);
+    assertEquals(lNumberOfSets - 1, z.get(), 0);
+    assertTrue(lAllocatedBytes < lNumberOfSets);
+  }
+
+  /**
+   * Tests that toggling reference variables keeps the number type
+   */
+  @Test
+  public void testReferenceToggle()
+  {
+    final Variable<Long> lLong = new Variable<Long>("long", 3L);
+    lLong.toggle();
+    assertEquals(Long.valueOf(-3), lLong.get());
+
+    final Variable<Double> lDouble = new Variable<Double>("double", 2.5);
+    lDouble.toggle();
+    assertEquals(Double.valueOf(-2.5), lDouble.get());
+
+    final Variable<Boolean> lBoolean = new Variable<Boolean>("boolean",
+                                                             false);
+    lBoolean.toggle();
+    assertTrue(lBoolean.get());
+  }
+
+  private static boolean isThreadAllocatedMemorySupported()
+  {
+    try
+    {
+      final Class<?> lClass =
+                            Class.forName("com.sun.management.ThreadMXBean");
+      final Object lThreadMXBean = ManagementFactory.getThreadMXBean();
+      return lClass.isInstance(lThreadMXBean)
+             && ((Boolean) lClass.getMethod("isThreadAllocatedMemoryEnabled")
+                                 .invoke(lThreadMXBean));
+    }
+    catch (Throwable e)
+    {
+      return false;
+    }
+  }
+
+}
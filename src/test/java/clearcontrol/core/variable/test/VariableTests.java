@@ -4,7 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import clearcontrol.core.concurrent.executors.AsynchronousExecutorFeature;
 import clearcontrol.core.concurrent.thread.ThreadSleep;
@@ -130,4 +132,89 @@ public class VariableTests implements AsynchronousExecutorFeature
     ThreadSleep.sleep(100, TimeUnit.MILLISECONDS);
 
   }
+
+  /**
+   * Tests propagation through a cycle of synced variables
+   */
+  @Test
+  public void testSyncCycles()
+  {
+    final Variable<Double> a = new Variable<Double>("a", 0.0);
+    final Variable<Double> b = new Variable<Double>("b", 0.0);
+    final Variable<Double> c = new Variable<Double>("c", 0.0);
+
+    a.sendUpdatesTo(b);
+    b.sendUpdatesTo(c);
+    c.sendUpdatesTo(a);
+
+    final AtomicInteger lCounter = new AtomicInteger();
+    c.addSetListener((o, n) -> lCounter.incrementAndGet());
+
+    for (int i = 1; i <= 1000; i++)
+    {
+      b.set((double) i);
+      assertEquals(new Double(i), a.get());
+      assertEquals(new Double(i), b.get());
+      assertEquals(new Double(i), c.get());
+    }
+    assertEquals(1000, lCounter.get());
+  }
+
+  /**
+   * Tests that a set issued from a listener during a propagation is propagated
+   * independently and does not disturb the enclosing propagation
+   */
+  @Test
+  public void testNestedSets()
+  {
+    final Variable<Double> x = new Variable<Double>("x", 0.0);
+    final Variable<Double> y = new Variable<Double>("y", 0.0);
+    final Variable<Double> z = new Variable<Double>("z", 0.0);
+    final Variable<Double> w = new Variable<Double>("w", 0.0);
+    final Variable<Double> v = new Variable<Double>("v", 0.0);
+
+    x.sendUpdatesTo(y);
+    x.sendUpdatesTo(z);
+    z.sendUpdatesTo(y);
+    w.syncWith(v);
+
+    final AtomicInteger lCounter = new AtomicInteger();
+    y.addSetListener((o, n) -> {
+      lCounter.incrementAndGet();
+      w.set(2 * n);
+    });
+
+    x.set(1.0);
+    assertEquals(new Double(1.0), x.get());
+    assertEquals(new Double(1.0), y.get());
+    assertEquals(new Double(1.0), z.get());
+    assertEquals(new Double(2.0), w.get());
+    assertEquals(new Double(2.0), v.get());
+    assertEquals(1, lCounter.get());
+  }
+
+  /**
+   * Tests propagation to many synced variables
+   */
+  @Test
+  public void testLargeFanOut()
+  {
+    final Variable<Long> lSource = new Variable<Long>("source", 0L);
+    final ArrayList<Variable<Long>> lTargets = new ArrayList<>();
+    for (int i = 0; i < 10000; i++)
+    {
+      final Variable<Long> lTarget = new Variable<Long>("target" + i,
+                                                       0L);
+      lSource.syncWith(lTarget);
+      lTargets.add(lTarget);
+    }
+
+    for (long v = 1; v <= 10; v++)
+    {
+      lTargets.get((int) v).set(v);
+      for (Variable<Long> lTarget : lTargets)
+        assertEquals(new Long(v), lTarget.get());
+      assertEquals(new Long(v), lSource.get());
+    }
+  }
 }
@@ -0,0 +1,204 @@
+package clearcontrol.devices.cameras.devices.sim.benchmark;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.variable.Variable;
+import clearcontrol.devices.cameras.devices.sim.StackCameraDeviceSimulator;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
+import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
+import clearcontrol.devices.cameras.devices.sim.providers.FractalStackProvider;
+import clearcontrol.devices.cameras.devices.sim.providers.RandomStackProvider;
+import clearcontrol.devices.cameras.devices.sim.providers.SinusStackProvider;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.buffers.ContiguousBuffer;
+import coremem.recycling.BasicRecycler;
+import coremem.recycling.RecyclerInterface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks simulated stack generation: parallel plane generation with bulk
+ * writes versus the previous voxel by voxel generation. Results are reported
+ * in voxels per second against the rate of a 2048x2048 camera at 100 frames
+ * per second.
+ *
+ * @author royer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StackCameraSimulationProviderBenchmark
+{
+  private static final long cWidth = 2048, cHeight = 2048, cDepth = 32;
+  private static final double cTargetVoxelsPerSecond = 2048.0 * 2048
+                                                       * 100;
+
+  @Param(
+  { "Fractal", "Random", "Sinus" })
+  public String mProvider;
+
+  private StackCameraSimulationProvider mStackCameraSimulationProvider;
+  private StackCameraSimulationQueue mQueue;
+  private RecyclerInterface<StackInterface, StackRequest> mRecycler;
+  private StackInterface mStack;
+
+  /**
+   * Sets up the provider, queue and recycler
+   */
+  @Setup
+  public void setup()
+  {
+    switch (mProvider)
+    {
+    case "Random":
+      mStackCameraSimulationProvider = new RandomStackProvider();
+      break;
+    case "Sinus":
+      mStackCameraSimulationProvider = new SinusStackProvider();
+      break;
+    default:
+      mStackCameraSimulationProvider = new FractalStackProvider();
+      break;
+    }
+
+    final StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                                 new StackCameraDeviceSimulator("StackCamera",
+                                                                                                mStackCameraSimulationProvider,
+                                                                                                new Variable<Boolean>("CameraTrigger",
+                                                                                                                      false));
+    mQueue = lStackCameraDeviceSimulator.requestQueue();
+    mQueue.clearQueue();
+    mQueue.getStackWidthVariable().set(cWidth);
+    mQueue.getStackHeightVariable().set(cHeight);
+    for (int z = 0; z < cDepth; z++)
+      mQueue.addCurrentStateToQueue();
+    mQueue.finalizeQueue();
+
+    mRecycler =
+              new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                              2);
+    mStack = mRecycler.getOrFail(StackRequest.build(cWidth,
+                                                    cHeight,
+                                                    cDepth));
+  }
+
+  /**
+   * Releases the stacks
+   */
+  @TearDown
+  public void tearDown()
+  {
+    mStack.release();
+    mRecycler.free();
+  }
+
+  /**
+   * Generates a stack with the provider
+   *
+   * @return generated stack
+   */
+  @Benchmark
+  public StackInterface generate()
+  {
+    final StackInterface lStack =
+                                mStackCameraSimulationProvider.getStack(mRecycler,
+                                                                        mQueue);
+    lStack.release();
+    return lStack;
+  }
+
+  /**
+   * Generates a stack voxel by voxel, as the providers previously did
+   *
+   * @return buffer
+   */
+  @Benchmark
+  public ContiguousBuffer generateVoxelByVoxel()
+  {
+    final ContiguousBuffer lContiguousBuffer =
+                                             new ContiguousBuffer(mStack.getContiguousMemory());
+    for (int z = 0; z < cDepth; z++)
+      for (int y = 0; y < cHeight; y++)
+        for (int x = 0; x < cWidth; x++)
+        {
+          short lValue;
+          switch (mProvider)
+          {
+          case "Random":
+            lValue = (short) (256 * fract(Math.cos(x + y + z)
+                                          * 1000000));
+            break;
+          case "Sinus":
+            lValue = (short) Math.max(Math.min(Math.sin(x / 11)
+                                               + Math.sin(y / 17)
+                                               + Math.sin(z / 31),
+                                               256),
+                                      0);
+            break;
+          default:
+            lValue = (short) (((byte) x ^ (byte) (y + cHeight / 3)
+                               ^ (byte) z));
+            break;
+          }
+          if (lValue < 32)
+            lValue = 0;
+          lContiguousBuffer.writeShort(lValue);
+        }
+    return lContiguousBuffer;
+  }
+
+  private static double fract(double x)
+  {
+    return x - Math.floor(x);
+  }
+
+  /**
+   * Runs the benchmark and reports voxel rates
+   *
+   * @param pArgs
+   *          not used
+   * @throws RunnerException
+   *           if the benchmark fails
+   */
+  public static void main(String[] pArgs) throws RunnerException
+  {
+    final Collection<RunResult> lResults =
+                                         new Runner(new OptionsBuilder().include(StackCameraSimulationProviderBenchmark.class.getSimpleName())
+                                                                        .build()).run();
+
+    for (RunResult lResult : lResults)
+    {
+      final double lVoxelsPerSecond = lResult.getPrimaryResult()
+                                             .getScore()
+                                      * cWidth
+                                      * cHeight
+                                      * cDepth;
+      System.out.format("%s %s: %.3g voxels/s, %.2fx target camera rate\n",
+                        lResult.getParams().getBenchmark(),
+                        lResult.getParams().getParam("mProvider"),
+                        lVoxelsPerSecond,
+                        lVoxelsPerSecond / cTargetVoxelsPerSecond);
+    }
+  }
+}
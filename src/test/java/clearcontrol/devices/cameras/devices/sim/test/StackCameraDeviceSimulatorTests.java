@@ -1,7 +1,10 @@
 package clearcontrol.devices.cameras.devices.sim.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -12,9 +15,20 @@ import clearcontrol.core.variable.Variable;
 import clearcontrol.devices.cameras.devices.sim.StackCameraDeviceSimulator;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationProvider;
 import clearcontrol.devices.cameras.devices.sim.StackCameraSimulationQueue;
+import clearcontrol.devices.cameras.devices.sim.providers.FileStackSourceStackProvider;
 import clearcontrol.devices.cameras.devices.sim.providers.FractalStackProvider;
+import clearcontrol.devices.cameras.devices.sim.providers.RandomStackProvider;
+import clearcontrol.devices.cameras.devices.sim.providers.SinusStackProvider;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.source.RawFileStackSource;
+import coremem.recycling.BasicRecycler;
+import coremem.recycling.RecyclerInterface;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 /**
@@ -106,4 +120,211 @@ public class StackCameraDeviceSimulatorTests
 
   }
 
+  /**
+   * Tests the stacks generated in parallel by the simulation providers
+   */
+  @Test
+  public void testProviders()
+  {
+    final int lWidth = 67, lHeight = 31, lDepth = 13;
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                    new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                    10);
+
+    final short[] lFractal = generate(new FractalStackProvider(),
+                                      lRecycler,
+                                      lWidth,
+                                      lHeight,
+                                      lDepth);
+    int i = 0;
+    for (int z = 0; z < lDepth; z++)
+      for (int y = 0; y < lHeight; y++)
+        for (int x = 0; x < lWidth; x++)
+        {
+          short lValue = (short) (((byte) x ^ (byte) (y + lHeight / 3)
+                                   ^ (byte) z));
+          if (lValue < 32)
+            lValue = 0;
+          assertEquals(lValue, lFractal[i++]);
+        }
+
+    final short[] lRandom = generate(new RandomStackProvider(),
+                                     lRecycler,
+                                     lWidth,
+                                     lHeight,
+                                     lDepth);
+    int lNumberOfNonZeroValues = 0;
+    for (short lValue : lRandom)
+    {
+      assertTrue(lValue == 0 || (lValue >= 32 && lValue < 256));
+      if (lValue != 0)
+        lNumberOfNonZeroValues++;
+    }
+    assertTrue(lNumberOfNonZeroValues > lRandom.length / 2);
+    // reproducible, whatever the thread scheduling:
+    assertArrayEquals(lRandom,
+                      generate(new RandomStackProvider(),
+                               lRecycler,
+                               lWidth,
+                               lHeight,
+                               lDepth));
+
+    final short[] lSinus = generate(new SinusStackProvider(),
+                                    lRecycler,
+                                    lWidth,
+                                    lHeight,
+                                    lDepth);
+    i = 0;
+    for (int z = 0; z < lDepth; z++)
+      for (int y = 0; y < lHeight; y++)
+        for (int x = 0; x < lWidth; x++)
+          assertEquals((short) Math.max(Math.min(Math.sin(x / 11)
+                                                 + Math.sin(y / 17)
+                                                 + Math.sin(z / 31),
+                                                 256),
+                                        0),
+                       lSinus[i++]);
+  }
+
+  /**
+   * Tests replaying a recorded dataset, with cropping and padding
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testFileStackSourceProvider() throws Exception
+  {
+    final int lWidth = 32, lHeight = 24, lDepth = 4;
+    final int lNumberOfStacks = 3;
+
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "StackCameraDeviceSimulatorTests"
+                                                      + Math.random());
+    lRootFolder.mkdirs();
+
+    final RawFileStackSink lRawFileStackSink = new RawFileStackSink();
+    lRawFileStackSink.setLocation(lRootFolder, "recorded");
+    final OffHeapPlanarStack lRecordedStack =
+                                            OffHeapPlanarStack.createStack(lWidth,
+                                                                           lHeight,
+                                                                           lDepth);
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      for (int z = 0; z < lDepth; z++)
+        for (int y = 0; y < lHeight; y++)
+          for (int x = 0; x < lWidth; x++)
+            lRecordedStack.getContiguousMemory()
+                          .setShortAligned(x + lWidth
+                                               * (y + lHeight * z),
+                                           (short) recorded(i, x, y, z));
+      assertTrue(lRawFileStackSink.appendStack(lRecordedStack));
+    }
+    lRawFileStackSink.close();
+    lRecordedStack.free();
+
+    final RawFileStackSource lRawFileStackSource =
+                                                 new RawFileStackSource(null);
+    lRawFileStackSource.setLocation(lRootFolder, "recorded");
+    try (FileStackSourceStackProvider lProvider =
+                                                new FileStackSourceStackProvider(lRawFileStackSource))
+    {
+      assertEquals(lNumberOfStacks, lProvider.getNumberOfStacks());
+
+      final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                      new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                      10);
+      final StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                                   new StackCameraDeviceSimulator("StackCamera",
+                                                                                                  lProvider,
+                                                                                                  new Variable<Boolean>("CameraTrigger",
+                                                                                                                        false));
+
+      // cropped in x and padded in y, more planes than recorded, replayed
+      // in a loop:
+      final int lCroppedWidth = 20, lPaddedHeight = 30, lPlanes = 6;
+      final StackCameraSimulationQueue lQueue =
+                                              lStackCameraDeviceSimulator.requestQueue();
+      lQueue.clearQueue();
+      lQueue.getStackWidthVariable().set((long) lCroppedWidth);
+      lQueue.getStackHeightVariable().set((long) lPaddedHeight);
+      for (int z = 0; z < lPlanes; z++)
+        lQueue.addCurrentStateToQueue();
+      lQueue.finalizeQueue();
+
+      for (int n = 0; n < 2 * lNumberOfStacks; n++)
+      {
+        final StackInterface lStack = lProvider.getStack(lRecycler,
+                                                         lQueue);
+        assertEquals(lPlanes, lStack.getDepth());
+        for (int z = 0; z < lPlanes; z++)
+          for (int y = 0; y < lPaddedHeight; y++)
+            for (int x = 0; x < lCroppedWidth; x++)
+            {
+              final int lRecordedX = x + (lWidth - lCroppedWidth) / 2;
+              final int lRecordedY = y - (lPaddedHeight - lHeight) / 2;
+              final int lExpected = lRecordedY < 0
+                                    || lRecordedY >= lHeight ? 0
+                                                             : recorded(n % lNumberOfStacks,
+                                                                        lRecordedX,
+                                                                        lRecordedY,
+                                                                        z % lDepth);
+              assertEquals(lExpected,
+                           lStack.getContiguousMemory()
+                                 .getShortAligned(x + lCroppedWidth
+                                                      * (y + lPaddedHeight
+                                                             * z)));
+            }
+        lStack.release();
+        lStackCameraDeviceSimulator.getCurrentIndexVariable()
+                                   .increment();
+      }
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  private static int recorded(int pIndex, int pX, int pY, int pZ)
+  {
+    return 1 + pIndex * 4096 + pZ * 1024 + pY * 32 + pX;
+  }
+
+  private short[] generate(StackCameraSimulationProvider pProvider,
+                           RecyclerInterface<StackInterface, StackRequest> pRecycler,
+                           int pWidth,
+                           int pHeight,
+                           int pDepth)
+  {
+    final StackCameraDeviceSimulator lStackCameraDeviceSimulator =
+                                                                 new StackCameraDeviceSimulator("StackCamera",
+                                                                                                pProvider,
+                                                                                                new Variable<Boolean>("CameraTrigger",
+                                                                                                                      false));
+    final StackCameraSimulationQueue lQueue =
+                                            lStackCameraDeviceSimulator.requestQueue();
+    lQueue.clearQueue();
+    lQueue.getStackWidthVariable().set((long) pWidth);
+    lQueue.getStackHeightVariable().set((long) pHeight);
+    for (int z = 0; z < pDepth; z++)
+      lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    final StackInterface lStack = pProvider.getStack(pRecycler, lQueue);
+    assertEquals(pDepth, lStack.getDepth());
+    final short[] lData = new short[pWidth * pHeight * pDepth];
+    lStack.getContiguousMemory().copyTo(lData);
+    lStack.release();
+    return lData;
+  }
+
 }
@@ -0,0 +1,162 @@
+package clearcontrol.devices.signalgen.devices.nirio.compiler.benchmark;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.staves.BezierStave;
+import clearcontrol.devices.signalgen.staves.RampContinuousStave;
+import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.SinusStave;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
+import clearcontrol.devices.signalgen.staves.TriggerStave;
+import coremem.buffers.ContiguousBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks movement rendering: bulk per-stave rendering with parallel staves
+ * versus the previous strided, one short at a time, rendering.
+ *
+ * @author royer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NIRIOScoreCompilerBenchmark
+{
+  @Param(
+  { "4", "16" })
+  public int mNumberOfStaves;
+
+  @Param(
+  { "33", "2048" })
+  public int mNumberOfTimePoints;
+
+  private Movement mMovement;
+  private ContiguousBuffer mBuffer;
+
+  /**
+   * Builds a movement with a mix of stave types
+   */
+  @Setup
+  public void setup()
+  {
+    mMovement = new Movement("movement", mNumberOfStaves);
+    for (int s = 0; s < mNumberOfStaves; s++)
+    {
+      final StaveInterface lStave;
+      switch (s % 5)
+      {
+      case 0:
+        lStave = new RampContinuousStave("ramp", 0.1f, 0.9f, -1, 1, 0);
+        break;
+      case 1:
+        lStave = new RampSteppingStave("steps",
+                                       0.1f,
+                                       0.9f,
+                                       -1,
+                                       1,
+                                       0,
+                                       0.01f);
+        break;
+      case 2:
+        lStave = new SinusStave("sinus", 0.25f, 0, 0.5f);
+        break;
+      case 3:
+        lStave = new BezierStave("bezier", 0, 1, 0.2f, 0.2f, 0.5f, 0.1f);
+        break;
+      default:
+        lStave = new TriggerStave("trigger", 0.2f, 0.6f, 1, 0);
+        break;
+      }
+      mMovement.setStave(s, lStave);
+    }
+
+    mBuffer = ContiguousBuffer.allocate(2L * mNumberOfStaves
+                                        * mNumberOfTimePoints);
+  }
+
+  /**
+   * Renders with per-stave bulk rendering
+   *
+   * @return rendered movement
+   */
+  @Benchmark
+  public short[] render()
+  {
+    return NIRIOScoreCompiler.renderMovement(mMovement,
+                                             mNumberOfTimePoints);
+  }
+
+  /**
+   * Renders with strided writes of individual values
+   *
+   * @return buffer
+   */
+  @Benchmark
+  public ContiguousBuffer renderStrided()
+  {
+    mBuffer.rewind();
+    renderStrided(mBuffer, mMovement, mNumberOfTimePoints);
+    return mBuffer;
+  }
+
+  private static void renderStrided(ContiguousBuffer pScoreBuffer,
+                                    MovementInterface pMovement,
+                                    long pNumberOfTimePoints)
+  {
+    final int lNumberOfStaves = pMovement.getNumberOfStaves();
+    final float lInvNumberOfTimepoints = 1f / pNumberOfTimePoints;
+
+    for (int s = 0; s < lNumberOfStaves; s++)
+    {
+      pScoreBuffer.pushPosition();
+      final StaveInterface lStave = pMovement.getStave(s);
+      for (int t = 0; t < pNumberOfTimePoints; t++)
+      {
+        final float lValue = lStave.getValue(t * lInvNumberOfTimepoints);
+        pScoreBuffer.writeShort((short) round(min(max(lValue, -1), 1)
+                                              * Short.MAX_VALUE));
+        pScoreBuffer.skipShorts(lNumberOfStaves - 1);
+      }
+      pScoreBuffer.popPosition();
+      pScoreBuffer.skipShorts(1);
+    }
+  }
+
+  /**
+   * Runs the benchmark
+   *
+   * @param pArgs
+   *          not used
+   * @throws RunnerException
+   *           if the benchmark fails
+   */
+  public static void main(String[] pArgs) throws RunnerException
+  {
+    new Runner(new OptionsBuilder().include(NIRIOScoreCompilerBenchmark.class.getSimpleName())
+                                   .build()).run();
+  }
+}
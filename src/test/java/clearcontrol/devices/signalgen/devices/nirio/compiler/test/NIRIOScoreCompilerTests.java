@@ -1,15 +1,26 @@
 package clearcontrol.devices.signalgen.devices.nirio.compiler.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.devices.signalgen.devices.nirio.compiler.CompiledMovementCache;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOCompiledScore;
 import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
 import clearcontrol.devices.signalgen.movement.Movement;
 import clearcontrol.devices.signalgen.score.Score;
+import clearcontrol.devices.signalgen.staves.BezierStave;
+import clearcontrol.devices.signalgen.staves.BinaryPatternSteppingStave;
+import clearcontrol.devices.signalgen.staves.ConstantStave;
+import clearcontrol.devices.signalgen.staves.EdgeStave;
+import clearcontrol.devices.signalgen.staves.IntervalStave;
+import clearcontrol.devices.signalgen.staves.RampContinuousStave;
 import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.SinusStave;
+import clearcontrol.devices.signalgen.staves.StaveInterface;
 import clearcontrol.devices.signalgen.staves.TriggerStave;
+import clearcontrol.devices.signalgen.staves.ZeroStave;
 
 import org.junit.Test;
 
@@ -139,4 +150,187 @@ public class NIRIOScoreCompilerTests
 
   }
 
+  @Test
+  public void testMovementCache() throws InterruptedException
+  {
+    final Score lScore = new Score("Test Score");
+
+    final Movement lMovement = new Movement("Test Movement");
+    final TriggerStave lCameraTriggerStave =
+                                           new TriggerStave("camera trigger");
+    lCameraTriggerStave.setStart(0.2f);
+    lCameraTriggerStave.setStop(0.6f);
+    final RampSteppingStave lGalvoScannerStave =
+                                               new RampSteppingStave("galvo");
+    lGalvoScannerStave.setSyncStart(0.1f);
+    lGalvoScannerStave.setSyncStop(0.7f);
+    lGalvoScannerStave.setStartValue(0f);
+    lGalvoScannerStave.setStopValue(1f);
+    lGalvoScannerStave.setStepHeight(0.02f);
+    lMovement.setStave(0, lCameraTriggerStave);
+    lMovement.setStave(1, lGalvoScannerStave);
+    lMovement.setDuration(5, TimeUnit.MILLISECONDS);
+
+    final int lNumberOfMovements = 10;
+    for (int i = 0; i < lNumberOfMovements; i++)
+      lScore.addMovement(lMovement.duplicate());
+
+    final NIRIOCompiledScore lNIRIOCompiledScore =
+                                                 new NIRIOCompiledScore();
+    final CompiledMovementCache lCache =
+                                       lNIRIOCompiledScore.getMovementCache();
+
+    // duplicated movements are equal in content, only the first is compiled:
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore);
+    assertEquals(1, lCache.getNumberOfMisses());
+    assertEquals(lNumberOfMovements - 1, lCache.getNumberOfHits());
+    assertEquals(1, lCache.getNumberOfCachedMovements());
+
+    final long lNumberOfTimePoints =
+                                   NIRIOScoreCompiler.getNumberOfTimePoints(lMovement);
+    final short[] lExpected =
+                            NIRIOScoreCompiler.renderMovement(lMovement,
+                                                              lNumberOfTimePoints);
+    final short[] lCompiled = new short[lExpected.length];
+    for (int m = 0; m < lNumberOfMovements; m++)
+    {
+      lNIRIOCompiledScore.getScoreBuffer()
+                         .getContiguousMemory()
+                         .subRegion(2L * m * lExpected.length,
+                                    2L * lExpected.length)
+                         .copyTo(lCompiled);
+      assertArrayEquals(lExpected, lCompiled);
+    }
+
+    // changing a stave parameter changes the key, only that movement is
+    // recompiled:
+    lCache.resetStatistics();
+    ((RampSteppingStave) lScore.getMovements()
+                               .get(3)
+                               .getStave(1)).setStopValue(0.5f);
+    NIRIOScoreCompiler.compile(lNIRIOCompiledScore, lScore);
+    assertEquals(1, lCache.getNumberOfMisses());
+    assertEquals(lNumberOfMovements - 1, lCache.getNumberOfHits());
+    assertEquals(2, lCache.getNumberOfCachedMovements());
+    System.out.println(lCache);
+  }
+
+  @Test
+  public void testBulkRendering()
+  {
+    final RampSteppingStave lNonSteppingStave =
+                                              new RampSteppingStave("ramp",
+                                                                    0.1f,
+                                                                    0.8f,
+                                                                    -1,
+                                                                    1,
+                                                                    0.2f,
+                                                                    0.05f);
+    lNonSteppingStave.setStepping(false);
+    final EdgeStave lEdgeStave = new EdgeStave("edge", 0.5f, 0, 1);
+    final TriggerStave lDisabledStave = new TriggerStave("disabled",
+                                                         0.2f,
+                                                         0.6f,
+                                                         1,
+                                                         0);
+    lDisabledStave.setEnabled(false);
+    // derived staves that redefine getValue must not use the closed forms:
+    final RampContinuousStave lDerivedStave =
+                                            new RampContinuousStave("derived",
+                                                                    0.1f,
+                                                                    0.9f,
+                                                                    -1,
+                                                                    1,
+                                                                    0.5f)
+                                            {
+                                              @Override
+                                              public float getValue(float pNormalizedTime)
+                                              {
+                                                return 0.5f * super.getValue(pNormalizedTime);
+                                              }
+                                            };
+
+    final StaveInterface[] lStaves = new StaveInterface[]
+    { new ZeroStave(),
+      new ConstantStave("constant", 0.3f),
+      new TriggerStave("trigger", 0, 0.4f, 1, 0),
+      lEdgeStave,
+      lDisabledStave,
+      new RampContinuousStave("ramp", 0.1f, 0.9f, -1, 1, 0.5f),
+      new RampContinuousStave("ramp", 0.1f, 0.9f, 0, 1, 0, 2.5f),
+      lDerivedStave,
+      new RampSteppingStave("steps", 0.1f, 0.9f, -1, 1, 0, 0.01f),
+      lNonSteppingStave,
+      new SinusStave("sinus", 0.3f, 0.1f, 0.9f),
+      new BezierStave("bezier", -0.5f, 1, 0.3f, 0.2f, 0.5f, 0.1f),
+      new BinaryPatternSteppingStave("pattern",
+                                     0.1f,
+                                     0.9f,
+                                     64,
+                                     5,
+                                     1,
+                                     2,
+                                     1) };
+
+    final Movement lMovement = new Movement("movement", lStaves.length);
+    for (int s = 0; s < lStaves.length; s++)
+      lMovement.setStave(s, lStaves[s]);
+
+    for (final int lNumberOfTimePoints : new int[]
+    { 1, 33, 2048 })
+    {
+      final float[] lNormalizedTimes = new float[lNumberOfTimePoints];
+      final float lInvNumberOfTimepoints = 1f / lNumberOfTimePoints;
+      for (int t = 0; t < lNumberOfTimePoints; t++)
+        lNormalizedTimes[t] = t * lInvNumberOfTimepoints;
+
+      // bulk rendering matches point-wise evaluation:
+      final float[] lValues = new float[lNumberOfTimePoints];
+      for (final StaveInterface lStave : lStaves)
+      {
+        lStave.render(lNormalizedTimes, lValues);
+        for (int t = 0; t < lNumberOfTimePoints; t++)
+          assertEquals(lStave.getName() + " at " + t,
+                       lStave.getValue(lNormalizedTimes[t]),
+                       lValues[t],
+                       0);
+      }
+
+      // interleaved compiled movement matches point-wise evaluation, except
+      // for interval staves which are compiled as intervals:
+      final short[] lCompiled =
+                              NIRIOScoreCompiler.renderMovement(lMovement,
+                                                                lNumberOfTimePoints);
+      for (int t = 0; t < lNumberOfTimePoints; t++)
+        for (int s = 0; s < lStaves.length; s++)
+        {
+          final float lValue =
+                             lStaves[s] instanceof IntervalStave ? getIntervalValue((IntervalStave) lStaves[s],
+                                                                                    lNormalizedTimes[t],
+                                                                                    t == lNumberOfTimePoints
+                                                                                         - 1)
+                                                                 : lStaves[s].getValue(lNormalizedTimes[t]);
+          final short lExpected =
+                                (short) Math.round(Math.min(Math.max(lValue,
+                                                                     -1),
+                                                            1)
+                                                   * Short.MAX_VALUE);
+          assertEquals(lExpected,
+                       lCompiled[t * lStaves.length + s]);
+        }
+    }
+  }
+
+  private static float getIntervalValue(IntervalStave pStave,
+                                        float pNormalizedTime,
+                                        boolean pLastTimePoint)
+  {
+    if (!pStave.isEnabled()
+        || (pLastTimePoint && pStave.getStart() == 0)
+        || pNormalizedTime < pStave.getStart()
+        || pNormalizedTime > pStave.getStop())
+      return pStave.getOutsideValue();
+    return pStave.getInsideValue();
+  }
+
 }
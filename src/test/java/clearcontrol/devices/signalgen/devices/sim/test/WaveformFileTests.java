@@ -0,0 +1,199 @@
+package clearcontrol.devices.signalgen.devices.sim.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.devices.nirio.compiler.NIRIOScoreCompiler;
+import clearcontrol.devices.signalgen.devices.sim.WaveformFileReader;
+import clearcontrol.devices.signalgen.devices.sim.WaveformFileSignalGeneratorSimulatorDevice;
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.staves.RampContinuousStave;
+import clearcontrol.devices.signalgen.staves.TriggerStave;
+
+import org.junit.Test;
+
+/**
+ * Waveform file simulator and reader tests
+ *
+ * @author royer
+ */
+public class WaveformFileTests
+{
+
+  /**
+   * Plays a queue on the waveform file simulator and reads back the traces
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testWriteAndRead() throws Exception
+  {
+    final File lFile = File.createTempFile("WaveformFileTests", ".wav");
+    lFile.deleteOnExit();
+
+    final WaveformFileSignalGeneratorSimulatorDevice lSignalGenerator =
+                                                                      new WaveformFileSignalGeneratorSimulatorDevice(lFile);
+    lSignalGenerator.setRealTime(false);
+    assertTrue(lSignalGenerator.open());
+
+    final Movement lMovement = new Movement("movement", 4);
+    final RampContinuousStave lRampStave =
+                                         new RampContinuousStave("ramp",
+                                                                 0,
+                                                                 1,
+                                                                 -1,
+                                                                 1,
+                                                                 0);
+    lMovement.setStave(1, lRampStave);
+    lMovement.setStave(3, new TriggerStave("trigger", 0.5f, 1, 1, 0));
+    lMovement.setDuration(2, TimeUnit.MILLISECONDS);
+
+    final int lNumberOfPlanes = 10;
+    final int lNumberOfStacks = 3;
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      final SignalGeneratorQueue lQueue =
+                                        lSignalGenerator.requestQueue();
+      lQueue.getStagingScore().addMovement(lMovement);
+      for (int z = 0; z < lNumberOfPlanes; z++)
+      {
+        lRampStave.setStopValue(z / (float) lNumberOfPlanes);
+        lQueue.addCurrentStateToQueue();
+      }
+      lQueue.finalizeQueue();
+      assertTrue(lSignalGenerator.playQueue(lQueue).get());
+    }
+    assertTrue(lSignalGenerator.close());
+
+    assertEquals(lNumberOfStacks, lSignalGenerator.getNumberOfRecords());
+    System.out.format("real-time factor: %g \n",
+                      lSignalGenerator.getRealTimeFactor());
+
+    final int lNumberOfTimePoints =
+                                  (int) NIRIOScoreCompiler.getNumberOfTimePoints(lMovement);
+    try (WaveformFileReader lReader = new WaveformFileReader(lFile))
+    {
+      assertEquals(lNumberOfStacks, lReader.getNumberOfRecords());
+      for (int r = 0; r < lNumberOfStacks; r++)
+      {
+        assertEquals(lNumberOfPlanes, lReader.getNumberOfMovements(r));
+        assertEquals(4, lReader.getNumberOfStaves(r, 0));
+        assertEquals(lNumberOfTimePoints,
+                     lReader.getNumberOfTimePoints(r, 0));
+
+        final double[] lTimes = lReader.getTimesInNanoseconds(r);
+        assertEquals(lNumberOfPlanes * lNumberOfTimePoints,
+                     lTimes.length);
+        // delta times are quantized to ticks:
+        assertEquals(lNumberOfPlanes * 2e6,
+                     lTimes[lTimes.length - 1],
+                     lNumberOfPlanes * 2e6 * 1e-3);
+
+        final float[] lZeroTrace = lReader.getTrace(r, 0);
+        final float[] lRampTrace = lReader.getTrace(r, 1);
+        final float[] lTriggerTrace = lReader.getTrace(r, 3);
+        for (int z = 0; z < lNumberOfPlanes; z++)
+          for (int t = 0; t < lNumberOfTimePoints; t++)
+          {
+            final int i = z * lNumberOfTimePoints + t;
+            final float lNormalizedTime = t / (float) lNumberOfTimePoints;
+            assertEquals(0, lZeroTrace[i], 0);
+            assertEquals(-1 + (z / (float) lNumberOfPlanes + 1)
+                              * lNormalizedTime,
+                         lRampTrace[i],
+                         1e-4);
+            assertEquals(lNormalizedTime < 0.5f ? 0 : 1,
+                         lTriggerTrace[i],
+                         0);
+          }
+      }
+    }
+  }
+
+  /**
+   * Prepares each queue while the previous one plays, transitions are computed
+   * from the previously scheduled queue
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testPreparedPlayback() throws Exception
+  {
+    final File lFile = File.createTempFile("WaveformFileTests", ".wav");
+    lFile.deleteOnExit();
+
+    final WaveformFileSignalGeneratorSimulatorDevice lSignalGenerator =
+                                                                      new WaveformFileSignalGeneratorSimulatorDevice(lFile);
+    lSignalGenerator.setRealTime(false);
+    lSignalGenerator.setTransitionDuration(1, TimeUnit.MILLISECONDS);
+    assertTrue(lSignalGenerator.open());
+
+    final Movement lMovement = new Movement("movement", 2);
+    final RampContinuousStave lRampStave =
+                                         new RampContinuousStave("ramp",
+                                                                 0,
+                                                                 1,
+                                                                 -1,
+                                                                 1,
+                                                                 0);
+    lMovement.setStave(0, lRampStave);
+    lMovement.setDuration(1, TimeUnit.MILLISECONDS);
+
+    final int lNumberOfPlanes = 5;
+    final int lNumberOfStacks = 4;
+    Future<Boolean> lPlaying = null;
+    for (int i = 0; i < lNumberOfStacks; i++)
+    {
+      final SignalGeneratorQueue lQueue =
+                                        lSignalGenerator.requestQueue();
+      lQueue.getStagingScore().addMovement(lMovement);
+      for (int z = 0; z < lNumberOfPlanes; z++)
+      {
+        lRampStave.setStopValue((i + z)
+                                / (float) (lNumberOfStacks
+                                           + lNumberOfPlanes));
+        lQueue.addCurrentStateToQueue();
+      }
+      lQueue.finalizeQueue();
+
+      // compiles while the previous queue plays:
+      assertTrue(lSignalGenerator.prepareQueue(lQueue).get());
+      if (lPlaying != null)
+        assertTrue(lPlaying.get());
+      lPlaying = lSignalGenerator.playQueue(lQueue);
+    }
+    assertTrue(lPlaying.get());
+    assertTrue(lSignalGenerator.close());
+
+    System.out.format("dead time: %g ms \n",
+                      lSignalGenerator.getDeadTimeInMillisecondsVariable()
+                                      .get());
+    assertTrue(lSignalGenerator.getDeadTimeInMillisecondsVariable()
+                               .get() >= 0);
+
+    try (WaveformFileReader lReader = new WaveformFileReader(lFile))
+    {
+      assertEquals(lNumberOfStacks, lReader.getNumberOfRecords());
+      assertEquals(lNumberOfPlanes, lReader.getNumberOfMovements(0));
+      for (int r = 1; r < lNumberOfStacks; r++)
+      {
+        // transition from the last plane of the previous stack:
+        assertEquals(lNumberOfPlanes + 1,
+                     lReader.getNumberOfMovements(r));
+        final float[] lRampTrace = lReader.getTrace(r, 0);
+        assertEquals((r - 1 + lNumberOfPlanes - 1)
+                     / (float) (lNumberOfStacks + lNumberOfPlanes),
+                     lRampTrace[0],
+                     1e-3);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+package clearcontrol.devices.signalgen.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import clearcontrol.devices.signalgen.SignalGeneratorQueue;
+import clearcontrol.devices.signalgen.devices.sim.SignalGeneratorSimulatorDevice;
+import clearcontrol.devices.signalgen.movement.Movement;
+import clearcontrol.devices.signalgen.movement.MovementInterface;
+import clearcontrol.devices.signalgen.movement.MovementSignature;
+import clearcontrol.devices.signalgen.score.ScoreInterface;
+import clearcontrol.devices.signalgen.staves.RampSteppingStave;
+import clearcontrol.devices.signalgen.staves.TriggerStave;
+
+import org.junit.Test;
+
+/**
+ * Signal generator queue tests
+ *
+ * @author royer
+ */
+public class SignalGeneratorQueueTests
+{
+
+  /**
+   * Tests that unchanged movements are shared between enqueued states and
+   * changed movements are copied.
+   */
+  @Test
+  public void testCopyOnWrite()
+  {
+    final SignalGeneratorQueue lQueue = new SignalGeneratorQueue(null);
+
+    final Movement lBeforeExposure = new Movement("before");
+    final RampSteppingStave lGalvoStave =
+                                        new RampSteppingStave("galvo",
+                                                              0.1f,
+                                                              0.9f,
+                                                              0,
+                                                              0.5f,
+                                                              0,
+                                                              0.01f);
+    lBeforeExposure.setStave(0, lGalvoStave);
+    lBeforeExposure.setDuration(1, TimeUnit.MILLISECONDS);
+
+    final Movement lExposure = new Movement("exposure");
+    lExposure.setStave(1, new TriggerStave("trigger", 0.2f, 0.6f, 1, 0));
+    lExposure.setDuration(5, TimeUnit.MILLISECONDS);
+
+    lQueue.getStagingScore().addMovement(lBeforeExposure);
+    lQueue.getStagingScore().addMovement(lExposure);
+
+    final int lNumberOfPlanes = 100;
+    for (int z = 0; z < lNumberOfPlanes; z++)
+    {
+      if (z == 50)
+        lGalvoStave.setStopValue(1);
+      lQueue.addCurrentStateToQueue();
+    }
+    lQueue.finalizeQueue();
+
+    final ArrayList<MovementInterface> lMovements =
+                                                  new ArrayList<>(lQueue.getQueuedScore()
+                                                                        .getMovements());
+    assertEquals(lNumberOfPlanes, lQueue.getQueueLength());
+    assertEquals(2 * lNumberOfPlanes, lMovements.size());
+
+    // enqueued movements are copies:
+    assertNotSame(lBeforeExposure, lMovements.get(0));
+    assertNotSame(lExposure, lMovements.get(1));
+
+    for (int z = 1; z < lNumberOfPlanes; z++)
+    {
+      if (z == 50)
+        assertNotSame(lMovements.get(0), lMovements.get(2 * z));
+      else
+        assertSame(lMovements.get(2 * (z - 1)), lMovements.get(2 * z));
+      assertSame(lMovements.get(1), lMovements.get(2 * z + 1));
+    }
+
+    // copies reflect the state of the staging score when enqueued:
+    assertEquals(0.5f,
+                 ((RampSteppingStave) lMovements.get(0)
+                                                .getStave(0)).getStopValue(),
+                 0);
+    assertEquals(1,
+                 ((RampSteppingStave) lMovements.get(2 * 50)
+                                                .getStave(0)).getStopValue(),
+                 0);
+
+    // states enqueued later are shared with previous queues:
+    lQueue.clearQueue();
+    lQueue.addCurrentStateToQueue();
+    assertSame(lMovements.get(2 * (lNumberOfPlanes - 1)),
+               lQueue.getQueuedScore().getMovement(0));
+
+    // changes of duration are detected too:
+    lExposure.setDuration(6, TimeUnit.MILLISECONDS);
+    lQueue.addCurrentStateToQueue();
+    assertNotSame(lQueue.getQueuedScore().getMovement(1),
+                  lQueue.getQueuedScore().getMovement(3));
+    assertEquals(6,
+                 lQueue.getQueuedScore()
+                       .getMovement(3)
+                       .getDuration(TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Tests that movements are hashed and matched in place consistently with
+   * their signatures.
+   */
+  @Test
+  public void testSignatureMatching()
+  {
+    final Movement lMovement = new Movement("movement");
+    final RampSteppingStave lGalvoStave =
+                                        new RampSteppingStave("galvo",
+                                                              0.1f,
+                                                              0.9f,
+                                                              0,
+                                                              0.5f,
+                                                              0,
+                                                              0.01f);
+    lMovement.setStave(0, lGalvoStave);
+    lMovement.setStave(2, new TriggerStave("trigger", 0.2f, 0.6f, 1, 0));
+    lMovement.setDuration(1, TimeUnit.MILLISECONDS);
+
+    final MovementSignature lSignature = MovementSignature.of(lMovement);
+    assertEquals(lSignature.hashCode(),
+                 (int) MovementSignature.hashCodeOf(lMovement));
+    assertTrue(lSignature.matches(lMovement));
+
+    lGalvoStave.setStopValue(1);
+    assertFalse(lSignature.matches(lMovement));
+    assertEquals(MovementSignature.of(lMovement).hashCode(),
+                 (int) MovementSignature.hashCodeOf(lMovement));
+
+    lGalvoStave.setStopValue(0.5f);
+    assertTrue(lSignature.matches(lMovement));
+    lMovement.setStave(1, new TriggerStave("trigger", 0.2f, 0.6f, 1, 0));
+    assertFalse(lSignature.matches(lMovement));
+  }
+
+  /**
+   * Tests that queues rebuilt after being prepared are prepared again, that
+   * unchanged queues share their preparation, and that preparations leave the
+   * queued score untouched.
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testPreparations() throws Exception
+  {
+    final AtomicInteger lNumberOfPreparations = new AtomicInteger();
+    final SignalGeneratorSimulatorDevice lSignalGenerator =
+                                                          new SignalGeneratorSimulatorDevice()
+                                                          {
+                                                            @Override
+                                                            protected boolean prepareScore(ScoreInterface pPreviousScore,
+                                                                                           ScoreInterface pScore)
+                                                            {
+                                                              lNumberOfPreparations.incrementAndGet();
+                                                              prependTransitionMovement(pPreviousScore,
+                                                                                        pScore,
+                                                                                        1,
+                                                                                        TimeUnit.MILLISECONDS);
+                                                              return true;
+                                                            }
+                                                          };
+
+    final SignalGeneratorQueue lQueue = lSignalGenerator.requestQueue();
+    final Movement lMovement = new Movement("movement");
+    lMovement.setStave(0, new TriggerStave("trigger", 0.2f, 0.6f, 1, 0));
+    lQueue.getStagingScore().addMovement(lMovement);
+    lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+
+    final Future<Boolean> lPreparation =
+                                       lSignalGenerator.prepareQueue(lQueue);
+    assertSame(lPreparation, lSignalGenerator.prepareQueue(lQueue));
+    assertTrue(lPreparation.get());
+    assertEquals(1, lNumberOfPreparations.get());
+
+    lQueue.clearQueue();
+    lQueue.addCurrentStateToQueue();
+    lQueue.addCurrentStateToQueue();
+    lQueue.finalizeQueue();
+    final Future<Boolean> lRepreparation =
+                                         lSignalGenerator.prepareQueue(lQueue);
+    assertNotSame(lPreparation, lRepreparation);
+    assertTrue(lRepreparation.get());
+    assertEquals(2, lNumberOfPreparations.get());
+
+    // the transition from the previous preparation is prepended to a copy:
+    assertEquals(2, lQueue.getQueuedScore().getNumberOfMovements());
+    assertEquals("movement",
+                 lQueue.getQueuedScore().getMovement(0).getName());
+  }
+
+}
@@ -0,0 +1,108 @@
+package clearcontrol.microscope.stacks.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import clearcontrol.microscope.stacks.StackRecyclerManager;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import coremem.recycling.RecyclerInterface;
+
+import org.junit.Test;
+
+/**
+ * Stack recycler manager tests
+ *
+ * @author royer
+ */
+public class StackRecyclerManagerTests
+{
+  private static final int cSize = 64;
+  private static final long cStackSizeInBytes = 2L * cSize
+                                                * cSize
+                                                * cSize;
+
+  /**
+   * Tests that cached stacks are freed when over budget, without requesting
+   * garbage collection
+   */
+  @Test
+  public void testReclaimCachedStacks()
+  {
+    final StackRecyclerManager lManager = new StackRecyclerManager();
+    lManager.getOffHeapBudgetInBytesVariable()
+            .set(2 * cStackSizeInBytes);
+
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                    lManager.getRecycler("test",
+                                                                                         10,
+                                                                                         10);
+    final ArrayList<StackInterface> lStacks = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      lStacks.add(lRecycler.getOrFail(new StackRequest(cSize,
+                                                       cSize,
+                                                       cSize)));
+
+    lManager.reclaimMemory();
+    assertEquals(4 * cStackSizeInBytes,
+                 (long) lManager.getAllocatedOffHeapBytesVariable()
+                                .get());
+    assertEquals(4 * cStackSizeInBytes,
+                 lManager.getLiveMemorySizeInBytes("test"));
+    assertEquals(0L,
+                 (long) lManager.getUnreachableOffHeapBytesVariable()
+                                .get());
+
+    for (StackInterface lStack : lStacks)
+      lStack.release();
+    assertEquals(4 * cStackSizeInBytes,
+                 lManager.getAvailableMemorySizeInBytes("test"));
+
+    lManager.reclaimMemory();
+    assertEquals(0L,
+                 (long) lManager.getAllocatedOffHeapBytesVariable()
+                                .get());
+    assertEquals(0, lManager.getAvailableMemorySizeInBytes("test"));
+    assertTrue(lManager.getAvoidedGCPauseTimeInMillisecondsVariable()
+                       .get() >= 0);
+  }
+
+  /**
+   * Tests that stacks held by no recycler are reclaimed by garbage collection
+   * 
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testReclaimUnreachableStacks() throws InterruptedException
+  {
+    final StackRecyclerManager lManager = new StackRecyclerManager();
+    lManager.getOffHeapBudgetInBytesVariable().set(cStackSizeInBytes);
+
+    RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                              lManager.getRecycler("test",
+                                                                                   10,
+                                                                                   10);
+    for (int i = 0; i < 4; i++)
+      lRecycler.getOrFail(new StackRequest(cSize, cSize, cSize));
+
+    // the recycler is dropped while its stacks are live:
+    lManager.clear("test");
+    lRecycler = null;
+
+    for (int i = 0; i < 100
+                    && lManager.getStackFactory()
+                               .getAllocatedBytes() > 0; i++)
+    {
+      lManager.reclaimMemory();
+      Thread.sleep(10);
+    }
+    assertEquals(0, lManager.getStackFactory().getAllocatedBytes());
+    assertEquals(0,
+                 lManager.getStackFactory()
+                         .getNumberOfAllocatedStacks());
+  }
+
+}
@@ -0,0 +1,258 @@
+package clearcontrol.stack.processor.preview.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.core.variable.Variable;
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.preview.StackPreviewStage;
+import coremem.ContiguousMemoryInterface;
+import coremem.recycling.BasicRecycler;
+
+import org.junit.Test;
+
+/**
+ * Stack preview stage tests
+ *
+ * @author royer
+ */
+public class StackPreviewStageTests
+{
+  // odd dimensions to exercise partial binning blocks:
+  private static final int cWidth = 13;
+  private static final int cHeight = 11;
+  private static final int cDepth = 37;
+
+  /**
+   * Tests projections and binned previews against brute-force computations
+   */
+  @Test
+  public void testPreviews()
+  {
+    final StackPreviewStage lStackPreviewStage =
+                                               new StackPreviewStage("Test");
+    lStackPreviewStage.setPlaneProcessingPool(new ForkJoinPool(4));
+
+    final StackInterface lStack = OffHeapPlanarStack.createStack(cWidth,
+                                                                 cHeight,
+                                                                 cDepth);
+    fill(lStack);
+
+    lStackPreviewStage.computePreviews(lStack);
+
+    final StackInterface lProjectionXY =
+                                       lStackPreviewStage.getMaxProjectionXYVariable()
+                                                         .get();
+    assertDimensions(lProjectionXY, cWidth, cHeight, 1);
+    for (int y = 0; y < cHeight; y++)
+      for (int x = 0; x < cWidth; x++)
+        assertEquals(value(x, y, cDepth - 1),
+                     get(lProjectionXY, x, y, 0));
+
+    final StackInterface lProjectionXZ =
+                                       lStackPreviewStage.getMaxProjectionXZVariable()
+                                                         .get();
+    assertDimensions(lProjectionXZ, cWidth, cDepth, 1);
+    for (int z = 0; z < cDepth; z++)
+      for (int x = 0; x < cWidth; x++)
+        assertEquals(value(x, cHeight - 1, z),
+                     get(lProjectionXZ, x, z, 0));
+
+    final StackInterface lProjectionZY =
+                                       lStackPreviewStage.getMaxProjectionZYVariable()
+                                                         .get();
+    assertDimensions(lProjectionZY, cDepth, cHeight, 1);
+    for (int y = 0; y < cHeight; y++)
+      for (int z = 0; z < cDepth; z++)
+        assertEquals(value(cWidth - 1, y, z),
+                     get(lProjectionZY, z, y, 0));
+
+    for (int lBinning = 2; lBinning <= 8; lBinning *= 2)
+    {
+      final StackInterface lBinned =
+                                   lStackPreviewStage.getBinnedPreviewVariable(lBinning)
+                                                     .get();
+      final int lBinnedWidth = (cWidth + lBinning - 1) / lBinning;
+      final int lBinnedHeight = (cHeight + lBinning - 1) / lBinning;
+      final int lBinnedDepth = (cDepth + lBinning - 1) / lBinning;
+      assertDimensions(lBinned,
+                       lBinnedWidth,
+                       lBinnedHeight,
+                       lBinnedDepth);
+
+      for (int k = 0; k < lBinnedDepth; k++)
+        for (int j = 0; j < lBinnedHeight; j++)
+          for (int i = 0; i < lBinnedWidth; i++)
+          {
+            long lSum = 0, lCount = 0;
+            for (int z = k * lBinning; z < Math.min(cDepth,
+                                                    (k + 1) * lBinning); z++)
+              for (int y = j * lBinning; y < Math.min(cHeight,
+                                                      (j + 1) * lBinning); y++)
+                for (int x = i * lBinning; x < Math.min(cWidth,
+                                                        (i + 1) * lBinning); x++)
+                {
+                  lSum += value(x, y, z);
+                  lCount++;
+                }
+            assertEquals(lSum / lCount, get(lBinned, i, j, k));
+          }
+    }
+  }
+
+  /**
+   * Tests that published previews retained by a consumer are not reused while
+   * further previews are published
+   */
+  @Test
+  public void testOutputRetention()
+  {
+    final StackPreviewStage lStackPreviewStage =
+                                               new StackPreviewStage("Test");
+    lStackPreviewStage.setPlaneProcessingPool(new ForkJoinPool(4));
+
+    final StackInterface lStack = OffHeapPlanarStack.createStack(cWidth,
+                                                                 cHeight,
+                                                                 cDepth);
+    fill(lStack);
+    lStackPreviewStage.computePreviews(lStack);
+
+    final StackInterface lHeldProjection =
+                                         lStackPreviewStage.getMaxProjectionXYVariable()
+                                                           .get();
+    lHeldProjection.retain();
+
+    // previews of an empty stack are all zero:
+    final StackInterface lEmptyStack =
+                                     OffHeapPlanarStack.createStack(cWidth,
+                                                                    cHeight,
+                                                                    cDepth);
+    for (int i = 0; i < 32; i++)
+    {
+      lStackPreviewStage.computePreviews(lEmptyStack);
+      final StackInterface lProjection =
+                                       lStackPreviewStage.getMaxProjectionXYVariable()
+                                                         .get();
+      assertTrue(lProjection != lHeldProjection);
+      assertEquals(0, get(lProjection, cWidth - 1, cHeight - 1, 0));
+    }
+
+    for (int y = 0; y < cHeight; y++)
+      for (int x = 0; x < cWidth; x++)
+        assertEquals(value(x, y, cDepth - 1),
+                     get(lHeldProjection, x, y, 0));
+    lHeldProjection.release();
+
+    assertTrue(lStackPreviewStage.close());
+    lStack.free();
+    lEmptyStack.free();
+  }
+
+  /**
+   * Tests that stacks received on the input variable are retained until their
+   * previews have been published
+   *
+   * @throws InterruptedException
+   *           NA
+   */
+  @Test
+  public void testInputRetention() throws InterruptedException
+  {
+    final StackPreviewStage lStackPreviewStage =
+                                               new StackPreviewStage("Test");
+    lStackPreviewStage.getActiveVariable().set(true);
+    assertTrue(lStackPreviewStage.open());
+
+    final CountDownLatch lPublished = new CountDownLatch(1);
+    final Variable<StackInterface> lDisplayVariable =
+                                                    new Variable<StackInterface>("Display")
+                                                    {
+                                                      @Override
+                                                      public StackInterface setEventHook(StackInterface pOldStack,
+                                                                                         StackInterface pNewStack)
+                                                      {
+                                                        lPublished.countDown();
+                                                        return super.setEventHook(pOldStack,
+                                                                                  pNewStack);
+                                                      }
+                                                    };
+    lStackPreviewStage.getBinnedPreviewVariable(8)
+                      .sendUpdatesTo(lDisplayVariable);
+
+    final BasicRecycler<StackInterface, StackRequest> lRecycler =
+                                                                new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                2);
+    final StackInterface lStack =
+                                lRecycler.getOrWait(1,
+                                                    TimeUnit.SECONDS,
+                                                    StackRequest.build(cWidth,
+                                                                       cHeight,
+                                                                       cDepth));
+    assertNotNull(lStack);
+    fill(lStack);
+
+    lStackPreviewStage.getInputStackVariable().set(lStack);
+    // the producer is done with the stack, the stage still holds it:
+    lStack.release();
+
+    assertTrue(lPublished.await(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 500 && !lStack.isReleased(); i++)
+      Thread.sleep(10);
+    assertTrue(lStack.isReleased());
+    assertEquals(0, lRecycler.getNumberOfLiveObjects());
+
+    assertEquals(value(cWidth - 1, cHeight - 1, cDepth - 1),
+                 get(lStackPreviewStage.getMaxProjectionXYVariable()
+                                       .get(),
+                     cWidth - 1,
+                     cHeight - 1,
+                     0));
+
+    assertTrue(lStackPreviewStage.close());
+    lRecycler.free();
+  }
+
+  private static int value(int x, int y, int z)
+  {
+    return x + 16 * y + 256 * z;
+  }
+
+  private static void fill(StackInterface pStack)
+  {
+    for (int z = 0; z < pStack.getDepth(); z++)
+    {
+      final ContiguousMemoryInterface lPlane =
+                                             pStack.getContiguousMemory(z);
+      for (int y = 0; y < pStack.getHeight(); y++)
+        for (int x = 0; x < pStack.getWidth(); x++)
+          lPlane.setShortAligned(y * pStack.getWidth() + x,
+                                 (short) value(x, y, z));
+    }
+  }
+
+  private static int get(StackInterface pStack, int x, int y, int z)
+  {
+    return pStack.getContiguousMemory(z)
+                 .getShortAligned(y * pStack.getWidth() + x)
+           & 0xFFFF;
+  }
+
+  private static void assertDimensions(StackInterface pStack,
+                                       long pWidth,
+                                       long pHeight,
+                                       long pDepth)
+  {
+    assertNotNull(pStack);
+    assertEquals(pWidth, pStack.getWidth());
+    assertEquals(pHeight, pStack.getHeight());
+    assertEquals(pDepth, pStack.getDepth());
+  }
+}
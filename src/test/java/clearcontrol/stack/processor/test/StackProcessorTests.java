@@ -1,15 +1,21 @@
 package clearcontrol.stack.processor.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
+import clearcontrol.microscope.stacks.StackRecyclerManager;
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.processor.PlaneStackProcessorInterface;
 import clearcontrol.stack.processor.StackProcessorBase;
 import clearcontrol.stack.processor.StackProcessorInterface;
+import clearcontrol.stack.processor.StackProcessorPipelineBase;
+import coremem.ContiguousMemoryInterface;
 import coremem.recycling.BasicRecycler;
 import coremem.recycling.RecyclerInterface;
 
@@ -85,4 +91,86 @@ public class StackProcessorTests
     assertTrue(lProcessedStack.getBytesPerVoxel() == lStack.getBytesPerVoxel());
 
   }
+
+  /**
+   * Tests plane-parallel processing of plane-separable processors
+   */
+  @Test
+  public void testPlaneProcessor()
+  {
+    final ContiguousOffHeapPlanarStackFactory lOffHeapPlanarStackFactory =
+                                                                         new ContiguousOffHeapPlanarStackFactory();
+
+    final BasicRecycler<StackInterface, StackRequest> lStartRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(lOffHeapPlanarStackFactory,
+                                                                                                                     cMaximalNumberOfAvailableObjects);
+
+    final PlaneProcessor lPlaneProcessor = new PlaneProcessor();
+
+    final TestPipeline lPipeline = new TestPipeline();
+    lPipeline.setPlaneProcessingPool(new ForkJoinPool(4));
+    lPipeline.addStackProcessor(lPlaneProcessor, "planes", 10, 10);
+
+    for (int lRepeat = 0; lRepeat < 2; lRepeat++)
+    {
+      final StackInterface lStack =
+                                  lStartRecycler.getOrWait(1,
+                                                           TimeUnit.SECONDS,
+                                                           StackRequest.build(16L,
+                                                                              8L,
+                                                                              64L));
+      for (int z = 0; z < lStack.getDepth(); z++)
+        lStack.getContiguousMemory(z).setShortAligned(3, (short) z);
+
+      // first in parallel through the pipeline, then sequentially:
+      final StackInterface lProcessedStack =
+                                           lRepeat == 0 ? lPipeline.process(lStack)
+                                                        : lPlaneProcessor.process(lStack,
+                                                                                  lStartRecycler);
+
+      assertFalse(lProcessedStack == lStack);
+      assertEquals(64, lProcessedStack.getDepth());
+      for (int z = 0; z < lProcessedStack.getDepth(); z++)
+        assertEquals(2 * z + 1,
+                     lProcessedStack.getContiguousMemory(z)
+                                    .getShortAligned(3));
+      lProcessedStack.release();
+    }
+  }
+
+  private static class PlaneProcessor extends StackProcessorBase
+                                      implements
+                                      PlaneStackProcessorInterface
+  {
+    PlaneProcessor()
+    {
+      super("PlaneProcessor");
+    }
+
+    @Override
+    public void processPlane(StackInterface pInputStack,
+                             int pPlaneIndex,
+                             ContiguousMemoryInterface pInputPlane,
+                             ContiguousMemoryInterface pOutputPlane)
+    {
+      final long lLength = pInputPlane.getSizeInBytes() / 2;
+      for (long i = 0; i < lLength; i++)
+        pOutputPlane.setShortAligned(i,
+                                     (short) (2 * pInputPlane.getShortAligned(i)
+                                              + 1));
+    }
+  }
+
+  private static class TestPipeline extends StackProcessorPipelineBase
+  {
+    TestPipeline()
+    {
+      super("TestPipeline", new StackRecyclerManager());
+    }
+
+    StackInterface process(StackInterface pStack)
+    {
+      return doProcess(pStack);
+    }
+  }
 }
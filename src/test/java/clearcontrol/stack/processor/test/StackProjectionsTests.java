@@ -0,0 +1,78 @@
+package clearcontrol.stack.processor.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.processor.StackProjections;
+import coremem.ContiguousMemoryInterface;
+
+import org.junit.Test;
+
+/**
+ * Stack projections tests
+ *
+ * @author royer
+ */
+public class StackProjectionsTests
+{
+  // odd dimensions to exercise partial binning blocks:
+  private static final int cWidth = 13;
+  private static final int cHeight = 11;
+  private static final int cDepth = 37;
+
+  /**
+   * Tests binned XY max projections against brute-force computations
+   */
+  @Test
+  public void testMaxProjectionXY()
+  {
+    final StackInterface lStack = OffHeapPlanarStack.createStack(cWidth,
+                                                                 cHeight,
+                                                                 cDepth);
+    for (int z = 0; z < cDepth; z++)
+    {
+      final ContiguousMemoryInterface lPlane = lStack.getContiguousMemory(z);
+      for (int y = 0; y < cHeight; y++)
+        for (int x = 0; x < cWidth; x++)
+          lPlane.setShortAligned(y * cWidth + x,
+                                 (short) (x + 16 * y + 256 * z));
+    }
+    // a single bright voxel:
+    lStack.getContiguousMemory(cDepth / 2)
+          .setShortAligned(2 * cWidth + 3, (short) 0xFFFF);
+
+    final ForkJoinPool lPool = new ForkJoinPool(4);
+    for (int lBinning = 1; lBinning <= 4; lBinning++)
+    {
+      final int lProjectionWidth = cWidth / lBinning;
+      final int lProjectionHeight = cHeight / lBinning;
+      final short[] lProjection =
+                                new short[lProjectionWidth * lProjectionHeight];
+      StackProjections.maxProjectionXY(lPool,
+                                       lStack,
+                                       lBinning,
+                                       lProjection);
+
+      for (int j = 0; j < lProjectionHeight; j++)
+        for (int i = 0; i < lProjectionWidth; i++)
+        {
+          int lMaximum = 0;
+          for (int z = 0; z < cDepth; z++)
+            for (int y = j * lBinning; y < (j + 1) * lBinning; y++)
+              for (int x = i * lBinning; x < (i + 1) * lBinning; x++)
+                lMaximum = Math.max(lMaximum,
+                                    lStack.getContiguousMemory(z)
+                                          .getShortAligned(y * cWidth
+                                                           + x)
+                                              & 0xFFFF);
+          assertEquals(lMaximum,
+                       lProjection[j * lProjectionWidth + i] & 0xFFFF);
+        }
+    }
+    lPool.shutdown();
+    lStack.free();
+  }
+}
@@ -0,0 +1,214 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.sink.MappedFileStackSink;
+import clearcontrol.stack.sourcesink.source.MappedFileStackSource;
+import coremem.buffers.ContiguousBuffer;
+import coremem.recycling.BasicRecycler;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Mapped file stack tests
+ *
+ * @author royer
+ */
+public class MappedFileStackTests
+{
+
+  private static final long cSizeX = 320;
+  private static final long cSizeY = 240;
+  private static final long cSizeZ = 17;
+
+  private static final int cNumberOfStacks = 7;
+  private static final int cMaximalNumberOfAvailableStacks = 20;
+
+  /**
+   * Test writing stacks with the sink and reading them back with the source,
+   * with and without the footer index.
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testSinkAndSource() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "MappedFileStackTests" + Math.random());
+
+    lRootFolder.mkdirs();
+
+    // small pre-allocation chunks to exercise file growth:
+    final MappedFileStackSink lMappedFileStackSink =
+                                                   new MappedFileStackSink(0,
+                                                                           0,
+                                                                           1024 * 1024);
+    lMappedFileStackSink.setLocation(lRootFolder, "testSink");
+
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(cSizeX,
+                                                                   cSizeY,
+                                                                   cSizeZ);
+
+    for (int i = 0; i < cNumberOfStacks; i++)
+    {
+      lStack.getMetaData().setIndex(i);
+      lStack.getMetaData()
+            .setTimeStampInNanoseconds(System.nanoTime());
+
+      ContiguousBuffer lContiguousBuffer =
+                                         ContiguousBuffer.wrap(lStack.getContiguousMemory());
+      while (lContiguousBuffer.hasRemainingShort())
+        lContiguousBuffer.writeShort((short) i);
+
+      assertTrue(lMappedFileStackSink.appendStack(lStack));
+    }
+
+    // before closing, the source recomputes offsets from the text index:
+    assertTrue(lMappedFileStackSink.flush());
+    checkSource(lRootFolder);
+
+    // after closing, the source uses the footer index:
+    lMappedFileStackSink.close();
+    checkSource(lRootFolder);
+
+    lStack.free();
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  /**
+   * Test that a source opened while the container is being written picks up
+   * the stacks appended since.
+   *
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testUpdateWhileWriting() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "MappedFileStackTests" + Math.random());
+
+    lRootFolder.mkdirs();
+
+    final MappedFileStackSink lMappedFileStackSink =
+                                                   new MappedFileStackSink(0,
+                                                                           0,
+                                                                           1024 * 1024);
+    lMappedFileStackSink.setLocation(lRootFolder, "testSink");
+
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(cSizeX,
+                                                                   cSizeY,
+                                                                   cSizeZ);
+
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+    final MappedFileStackSource lMappedFileStackSource =
+                                                       new MappedFileStackSource(lStackRecycler);
+
+    for (int i = 0; i < 2 * cNumberOfStacks; i++)
+    {
+      lStack.getMetaData().setIndex(i);
+      lStack.getMetaData()
+            .setTimeStampInNanoseconds(System.nanoTime());
+
+      ContiguousBuffer lContiguousBuffer =
+                                         ContiguousBuffer.wrap(lStack.getContiguousMemory());
+      while (lContiguousBuffer.hasRemainingShort())
+        lContiguousBuffer.writeShort((short) i);
+
+      assertTrue(lMappedFileStackSink.appendStack(lStack));
+
+      if (i == cNumberOfStacks - 1)
+      {
+        assertTrue(lMappedFileStackSink.flush());
+        lMappedFileStackSource.setLocation(lRootFolder, "testSink");
+        assertEquals(cNumberOfStacks,
+                     lMappedFileStackSource.getNumberOfStacks());
+      }
+    }
+
+    assertTrue(lMappedFileStackSink.flush());
+    assertTrue(lMappedFileStackSource.update());
+    assertEquals(2 * cNumberOfStacks,
+                 lMappedFileStackSource.getNumberOfStacks());
+
+    for (int i = 0; i < 2 * cNumberOfStacks; i++)
+    {
+      StackInterface lSourceStack = lMappedFileStackSource.getStack(i);
+      assertEquals(i,
+                   lSourceStack.getContiguousMemory()
+                               .getShortAligned(lSourceStack.getVolume()
+                                                - 1));
+    }
+
+    lMappedFileStackSource.close();
+    lMappedFileStackSink.close();
+    lStack.free();
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  private void checkSource(final File pRootFolder) throws IOException
+  {
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+
+    final MappedFileStackSource lMappedFileStackSource =
+                                                       new MappedFileStackSource(lStackRecycler);
+    lMappedFileStackSource.setLocation(pRootFolder, "testSink");
+
+    assertEquals(cNumberOfStacks,
+                 lMappedFileStackSource.getNumberOfStacks());
+
+    for (int i = cNumberOfStacks - 1; i >= 0; i--)
+    {
+      StackInterface lStack = lMappedFileStackSource.getStack(i);
+      assertEquals(cSizeX, lStack.getWidth());
+      assertEquals(cSizeY, lStack.getHeight());
+      assertEquals(cSizeZ, lStack.getDepth());
+      assertEquals(i, lStack.getMetaData().getIndex().longValue());
+
+      long lLastShortIndex = lStack.getVolume() - 1;
+      assertEquals(i,
+                   lStack.getContiguousMemory().getShortAligned(0));
+      assertEquals(i,
+                   lStack.getContiguousMemory()
+                         .getShortAligned(lLastShortIndex));
+    }
+
+    lMappedFileStackSource.close();
+  }
+}
@@ -0,0 +1,137 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
+import clearcontrol.stack.OffHeapPlanarStack;
+import clearcontrol.stack.StackInterface;
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.StackSinkSourceInterface;
+import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
+import clearcontrol.stack.sourcesink.source.PrefetchingFileStackSource;
+import clearcontrol.stack.sourcesink.source.RawFileStackSource;
+import coremem.buffers.ContiguousBuffer;
+import coremem.recycling.BasicRecycler;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Prefetching file stack source tests
+ *
+ * @author royer
+ */
+public class PrefetchingFileStackSourceTests
+{
+  private static final long cSizeX = 128;
+  private static final long cSizeY = 128;
+  private static final long cSizeZ = 16;
+
+  private static final int cNumberOfStacks = 12;
+  private static final int cMaximalNumberOfAvailableStacks = 20;
+
+  /**
+   * Test forward and backward playback through the read-ahead cache
+   *
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testPlayback() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "PrefetchingFileStackSourceTests"
+                                                      + Math.random());
+    lRootFolder.mkdirs();
+
+    final RawFileStackSink lRawFileStackSink = new RawFileStackSink();
+    lRawFileStackSink.setLocation(lRootFolder, "testSink");
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.createStack(cSizeX,
+                                                                   cSizeY,
+                                                                   cSizeZ);
+    for (int i = 0; i < cNumberOfStacks; i++)
+    {
+      ContiguousBuffer lContiguousBuffer =
+                                         ContiguousBuffer.wrap(lStack.getContiguousMemory());
+      while (lContiguousBuffer.hasRemainingShort())
+        lContiguousBuffer.writeShort((short) i);
+      assertTrue(lRawFileStackSink.appendStack(lStack));
+    }
+    lRawFileStackSink.close();
+    lStack.free();
+
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+    final RawFileStackSource lRawFileStackSource =
+                                                 new RawFileStackSource(lStackRecycler);
+
+    // budget for three stacks:
+    final PrefetchingFileStackSource lPrefetchingFileStackSource =
+                                                                 new PrefetchingFileStackSource(lRawFileStackSource,
+                                                                                                2,
+                                                                                                3 * cSizeX
+                                                                                                   * cSizeY
+                                                                                                   * cSizeZ
+                                                                                                   * Short.BYTES);
+    lPrefetchingFileStackSource.setLocation(lRootFolder, "testSink");
+    assertEquals(cNumberOfStacks,
+                 lPrefetchingFileStackSource.getNumberOfStacks());
+
+    // forward:
+    for (int i = 0; i < cNumberOfStacks; i++)
+      checkStack(lPrefetchingFileStackSource, i);
+
+    // backward, every other stack:
+    for (int i = cNumberOfStacks - 1; i >= 0; i -= 2)
+      checkStack(lPrefetchingFileStackSource, i);
+
+    System.out.format("hits: %d, misses: %d \n",
+                      lPrefetchingFileStackSource.getNumberOfHits(),
+                      lPrefetchingFileStackSource.getNumberOfMisses());
+
+    assertEquals(cNumberOfStacks + cNumberOfStacks / 2,
+                 lPrefetchingFileStackSource.getNumberOfHits()
+                                                  + lPrefetchingFileStackSource.getNumberOfMisses());
+    assertTrue(lPrefetchingFileStackSource.getHitRate() > 0.5);
+    assertTrue(lPrefetchingFileStackSource.getCachedBytes() <= 3
+                                                               * cSizeX
+                                                               * cSizeY
+                                                               * cSizeZ
+                                                               * Short.BYTES);
+
+    lPrefetchingFileStackSource.close();
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  private void checkStack(PrefetchingFileStackSource pSource, int pIndex)
+  {
+    // a player waits for stacks being read ahead:
+    StackInterface lStack =
+                          pSource.getStack(StackSinkSourceInterface.cDefaultChannel,
+                                           pIndex,
+                                           1,
+                                           TimeUnit.SECONDS);
+    assertEquals(pIndex,
+                 lStack.getContiguousMemory().getShortAligned(0));
+    assertEquals(pIndex,
+                 lStack.getContiguousMemory()
+                       .getShortAligned(lStack.getVolume() - 1));
+    lStack.release();
+  }
+}
@@ -1,15 +1,23 @@
 package clearcontrol.stack.sourcesink.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
 
+import clearcontrol.core.concurrent.thread.ThreadSleep;
 import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.BinaryStackIndex;
+import clearcontrol.stack.sourcesink.sink.BufferedRawFileStackSink;
 import clearcontrol.stack.sourcesink.sink.RawFileStackSink;
 import clearcontrol.stack.sourcesink.source.RawFileStackSource;
 import coremem.ContiguousMemoryInterface;
@@ -237,4 +245,329 @@ public class RawFileStackTests
     }
 
   }
+
+  /**
+   * test buffered sink and source
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testBufferedSinkAndSource() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final int lNumberOfStacks = 5;
+
+    {
+      final BufferedRawFileStackSink lBufferedFileStackSink =
+                                                            new BufferedRawFileStackSink(3,
+                                                                                         0);
+      lBufferedFileStackSink.setLocation(lRootFolder, "testSink");
+
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(cSizeX,
+                                                                     cSizeY,
+                                                                     cSizeZ);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+
+        ContiguousBuffer lContiguousBuffer =
+                                           ContiguousBuffer.wrap(lStack.getContiguousMemory());
+        while (lContiguousBuffer.hasRemainingShort())
+          lContiguousBuffer.writeShort((short) i);
+
+        assertTrue(lBufferedFileStackSink.appendStack("C0", lStack));
+        assertTrue(lBufferedFileStackSink.appendStack("C1", lStack));
+      }
+
+      assertEquals(lNumberOfStacks,
+                   lBufferedFileStackSink.getNumberOfStacks("C0"));
+
+      lBufferedFileStackSink.close();
+      lStack.free();
+    }
+
+    {
+      final ContiguousOffHeapPlanarStackFactory lOffHeapPlanarStackFactory =
+                                                                           new ContiguousOffHeapPlanarStackFactory();
+
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(lOffHeapPlanarStackFactory,
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final RawFileStackSource lLocalFileStackSource =
+                                                     new RawFileStackSource(lStackRecycler);
+
+      lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+
+      for (String lChannel : new String[]
+      { "C0", "C1" })
+      {
+        assertEquals(lNumberOfStacks,
+                     lLocalFileStackSource.getNumberOfStacks(lChannel));
+
+        for (int i = 0; i < lNumberOfStacks; i++)
+        {
+          StackInterface lStack = lLocalFileStackSource.getStack(lChannel,
+                                                                 i);
+          assertEquals(cSizeZ, lStack.getDepth());
+          assertEquals(i,
+                       lStack.getContiguousMemory()
+                             .getShortAligned(0));
+          assertEquals(i, lStack.getMetaData().getIndex().longValue());
+          lStack.release();
+        }
+      }
+
+      lLocalFileStackSource.close();
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+
+  }
+
+  /**
+   * test binary index written by the sink, and built lazily by the source when
+   * missing
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testBinaryIndex() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final int lNumberOfStacks = 4;
+
+    {
+      final RawFileStackSink lLocalFileStackSink =
+                                                 new RawFileStackSink();
+      lLocalFileStackSink.setLocation(lRootFolder, "testSink");
+
+      final OffHeapPlanarStack lStack =
+                                      OffHeapPlanarStack.createStack(16,
+                                                                     8,
+                                                                     4);
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        lStack.getMetaData().setIndex(i);
+        lStack.getMetaData()
+              .setTimeStampInNanoseconds(System.nanoTime());
+        assertTrue(lLocalFileStackSink.appendStack(lStack));
+      }
+
+      lLocalFileStackSink.close();
+      lStack.free();
+    }
+
+    final File lBinaryIndexFile = new File(lRootFolder,
+                                           "testSink/default.index.bin");
+    assertEquals(BinaryStackIndex.cHeaderSizeInBytes
+                 + lNumberOfStacks
+                   * BinaryStackIndex.cRecordSizeInBytes,
+                 lBinaryIndexFile.length());
+
+    checkBinaryIndexSource(lRootFolder, lNumberOfStacks);
+
+    // a record in the middle not matching the metadata file is detected, and
+    // the source then reads the text files:
+    try (FileChannel lFileChannel =
+                                  FileChannel.open(lBinaryIndexFile.toPath(),
+                                                   StandardOpenOption.WRITE))
+    {
+      ByteBuffer lMetaDataOffset =
+                                 ByteBuffer.allocate(Long.BYTES)
+                                           .order(BinaryStackIndex.cByteOrder);
+      lMetaDataOffset.putLong(1).flip();
+      lFileChannel.write(lMetaDataOffset,
+                         BinaryStackIndex.cHeaderSizeInBytes
+                                          + BinaryStackIndex.cRecordSizeInBytes
+                                          + 5 * Long.BYTES);
+    }
+    assertNull(BinaryStackIndex.open(lBinaryIndexFile,
+                                     new File(lRootFolder,
+                                              "testSink/default.metadata.txt")));
+    checkBinaryIndexSource(lRootFolder, lNumberOfStacks);
+
+    // the source builds the missing binary index from the text files:
+    assertTrue(lBinaryIndexFile.delete());
+    checkBinaryIndexSource(lRootFolder, lNumberOfStacks);
+    assertTrue(lBinaryIndexFile.exists());
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  private void checkBinaryIndexSource(File pRootFolder,
+                                      int pNumberOfStacks) throws IOException
+  {
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+
+    final RawFileStackSource lLocalFileStackSource =
+                                                   new RawFileStackSource(lStackRecycler);
+    lLocalFileStackSource.setLocation(pRootFolder, "testSink");
+
+    assertEquals(pNumberOfStacks,
+                 lLocalFileStackSource.getNumberOfStacks());
+
+    for (int i = pNumberOfStacks - 1; i >= 0; i--)
+    {
+      assertEquals(16,
+                   lLocalFileStackSource.getStackRequest("default", i)
+                                        .getWidth());
+      assertEquals(4,
+                   lLocalFileStackSource.getStackRequest("default", i)
+                                        .getDepth());
+      assertEquals(i,
+                   lLocalFileStackSource.getStackMetaData("default", i)
+                                        .getIndex()
+                                        .longValue());
+    }
+
+    lLocalFileStackSource.close();
+  }
+
+  /**
+   * test incremental updates of a source while the sink is still writing
+   * 
+   * @throws IOException
+   *           NA
+   */
+  @Test
+  public void testIncrementalUpdate() throws IOException
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final RawFileStackSink lLocalFileStackSink = new RawFileStackSink();
+    lLocalFileStackSink.setLocation(lRootFolder, "testSink");
+
+    final OffHeapPlanarStack lStack = OffHeapPlanarStack.createStack(16,
+                                                                     8,
+                                                                     4);
+
+    appendStacks(lLocalFileStackSink, lStack, 0, 2);
+
+    final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                     new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                     cMaximalNumberOfAvailableStacks);
+
+    final RawFileStackSource lLocalFileStackSource =
+                                                   new RawFileStackSource(lStackRecycler);
+    lLocalFileStackSource.setLocation(lRootFolder, "testSink");
+    lLocalFileStackSource.setIncrementalUpdate(true);
+    assertTrue(lLocalFileStackSource.update());
+    assertEquals(2, lLocalFileStackSource.getNumberOfStacks());
+
+    appendStacks(lLocalFileStackSink, lStack, 2, 5);
+    assertTrue(lLocalFileStackSource.update());
+    assertEquals(5, lLocalFileStackSource.getNumberOfStacks());
+    assertTrue(lLocalFileStackSource.update());
+    assertEquals(5, lLocalFileStackSource.getNumberOfStacks());
+
+    // driven by file events:
+    assertTrue(lLocalFileStackSource.startFollowing());
+    appendStacks(lLocalFileStackSink, lStack, 5, 7);
+    assertEquals(7,
+                 waitForNumberOfStacks(lLocalFileStackSource,
+                                       "default",
+                                       7));
+
+    for (int i = 0; i < 7; i++)
+      assertEquals(i,
+                   lLocalFileStackSource.getStackMetaData("default", i)
+                                        .getIndex()
+                                        .longValue());
+
+    // channels created while following are followed too:
+    assertTrue(lLocalFileStackSink.appendStack("second", lStack));
+    assertEquals(1,
+                 waitForNumberOfStacks(lLocalFileStackSource,
+                                       "second",
+                                       1));
+    assertTrue(lLocalFileStackSink.appendStack("second", lStack));
+    assertEquals(2,
+                 waitForNumberOfStacks(lLocalFileStackSource,
+                                       "second",
+                                       2));
+
+    lLocalFileStackSource.close();
+    lLocalFileStackSink.close();
+    lStack.free();
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
+
+  // file events are polled, waits for them to have been handled:
+  private static long waitForNumberOfStacks(RawFileStackSource pSource,
+                                            String pChannel,
+                                            long pNumberOfStacks)
+  {
+    final long lDeadline = System.nanoTime()
+                           + TimeUnit.SECONDS.toNanos(10);
+    while (pSource.getNumberOfStacks(pChannel) < pNumberOfStacks
+           && System.nanoTime() < lDeadline)
+      ThreadSleep.sleep(10, TimeUnit.MILLISECONDS);
+    return pSource.getNumberOfStacks(pChannel);
+  }
+
+  private void appendStacks(RawFileStackSink pSink,
+                            OffHeapPlanarStack pStack,
+                            int pFrom,
+                            int pTo)
+  {
+    for (int i = pFrom; i < pTo; i++)
+    {
+      pStack.getMetaData().setIndex(i);
+      pStack.getMetaData()
+            .setTimeStampInNanoseconds(System.nanoTime());
+      assertTrue(pSink.appendStack(pStack));
+    }
+  }
 }
@@ -17,6 +17,7 @@ import clearcontrol.stack.ContiguousOffHeapPlanarStackFactory;
 import clearcontrol.stack.OffHeapPlanarStack;
 import clearcontrol.stack.StackInterface;
 import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.sourcesink.sink.PipelinedSqeazyFileStackSink;
 import clearcontrol.stack.sourcesink.sink.SqeazyFileStackSink;
 import clearcontrol.stack.sourcesink.source.SqeazyFileStackSource;
 import coremem.ContiguousMemoryInterface;
@@ -652,4 +653,99 @@ public class SqeazyFileStackTests
 
   }
 
+  /**
+   * test pipelined sink with several appending threads, and source
+   *
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testPipelinedSinkAndSource() throws Exception
+  {
+    final File lRootFolder =
+                           new File(File.createTempFile("test",
+                                                        "test")
+                                        .getParentFile(),
+                                    "LocalFileStackTests" + Math.random());/**/
+
+    lRootFolder.mkdirs();
+    System.out.println(lRootFolder);
+
+    final int lNumberOfThreads = 3;
+    final int lNumberOfStacksPerThread = 4;
+
+    {
+      final PipelinedSqeazyFileStackSink lSqyFileStackSink =
+                                                           new PipelinedSqeazyFileStackSink("bitswap1->lz4",
+                                                                                            1,
+                                                                                            2);
+      lSqyFileStackSink.setLocation(lRootFolder, "testSink");
+
+      Thread[] lThreads = new Thread[lNumberOfThreads];
+      for (int t = 0; t < lNumberOfThreads; t++)
+      {
+        lThreads[t] = new Thread(() -> {
+          final OffHeapPlanarStack lStack =
+                                          OffHeapPlanarStack.createStack(cSizeX,
+                                                                         cSizeY,
+                                                                         cSizeZ);
+          for (int i = 0; i < lNumberOfStacksPerThread; i++)
+          {
+            lStack.getMetaData()
+                  .setTimeStampInNanoseconds(System.nanoTime());
+
+            ContiguousBuffer lContiguousBuffer =
+                                               ContiguousBuffer.wrap(lStack.getContiguousMemory());
+            while (lContiguousBuffer.hasRemainingShort())
+              lContiguousBuffer.writeShort((short) 42);
+
+            assertTrue(lSqyFileStackSink.appendStack(lStack));
+          }
+          lStack.free();
+        });
+        lThreads[t].start();
+      }
+      for (Thread lThread : lThreads)
+        lThread.join();
+
+      lSqyFileStackSink.close();
+
+      assertEquals(lNumberOfThreads * lNumberOfStacksPerThread,
+                   lSqyFileStackSink.getNumberOfStacks());
+      assertTrue(lSqyFileStackSink.getCompressionRatio(SqeazyFileStackSink.cDefaultChannel) > 1);
+    }
+
+    {
+      final BasicRecycler<StackInterface, StackRequest> lStackRecycler =
+                                                                       new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                       cMaximalNumberOfAvailableStacks);
+
+      final SqeazyFileStackSource lSqyFileStackSource =
+                                                      new SqeazyFileStackSource(lStackRecycler);
+      lSqyFileStackSource.setLocation(lRootFolder, "testSink");
+
+      assertEquals(lNumberOfThreads * lNumberOfStacksPerThread,
+                   lSqyFileStackSource.getNumberOfStacks());
+
+      for (int i = 0; i < lNumberOfThreads
+                          * lNumberOfStacksPerThread; i++)
+      {
+        final StackInterface lStack = lSqyFileStackSource.getStack(i);
+        assertEquals(cSizeZ, lStack.getDepth());
+        assertEquals(42,
+                     lStack.getContiguousMemory().getShortAligned(0));
+        lStack.release();
+      }
+
+      lSqyFileStackSource.close();
+    }
+
+    try
+    {
+      FileUtils.deleteDirectory(lRootFolder);
+    }
+    catch (Exception e)
+    {
+    }
+  }
 }
@@ -0,0 +1,85 @@
+package clearcontrol.stack.sourcesink.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import clearcontrol.stack.StackRequest;
+import clearcontrol.stack.metadata.StackMetaData;
+import clearcontrol.stack.sourcesink.server.StackRAMServer;
+
+import org.junit.Test;
+
+/**
+ * Stack server tests
+ *
+ * @author royer
+ */
+public class StackServerTests
+{
+
+  /**
+   * Tests storing and retrieving time stamps, dimensions and metadata
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @Test
+  public void testColumns() throws Exception
+  {
+    try (StackRAMServer lStackServer = new StackRAMServer())
+    {
+      final int lNumberOfStacks = 1000000;
+
+      for (int i = 0; i < lNumberOfStacks; i++)
+      {
+        lStackServer.setStackTimeStampInSeconds("A", i, 0.5 * i);
+        lStackServer.setStackDimensions("A", i, 1 + i % 7, 2, 3);
+      }
+
+      assertEquals(lNumberOfStacks, lStackServer.getNumberOfStacks("A"));
+      assertEquals(0, lStackServer.getNumberOfStacks("B"));
+
+      assertEquals(0.5 * 123456,
+                   lStackServer.getStackTimeStampInSeconds("A", 123456),
+                   0);
+      assertEquals((1 + 999 % 7) * 2 * 3 * Short.BYTES,
+                   lStackServer.getStackSizeInBytes("A", 999));
+
+      // primitive accessors:
+      assertEquals(0.5 * 123456,
+                   lStackServer.getStackTimeStampInSeconds("A",
+                                                           123456,
+                                                           -1),
+                   0);
+      assertEquals(-1,
+                   lStackServer.getStackTimeStampInSeconds("A",
+                                                           lNumberOfStacks,
+                                                           -1),
+                   0);
+      assertEquals(-1,
+                   lStackServer.getStackTimeStampInSeconds("B", 0, -1),
+                   0);
+      assertEquals(1 + 999 % 7,
+                   lStackServer.getStackDimension("A", 999, 0));
+      assertEquals(3, lStackServer.getStackDimension("A", 999, 2));
+      assertEquals(-1, lStackServer.getStackDimension("B", 999, 0));
+
+      StackRequest lStackRequest = lStackServer.getStackRequest("A", 5);
+      assertEquals(6, lStackRequest.getWidth());
+      assertEquals(2, lStackRequest.getHeight());
+      assertEquals(3, lStackRequest.getDepth());
+
+      assertNull(lStackServer.getStackRequest("B", 5));
+      assertNull(lStackServer.getStackMetaData("A", 5));
+
+      StackMetaData lStackMetaData = new StackMetaData();
+      lStackMetaData.setIndex(17);
+      lStackServer.setStackMetaData("A", 17, lStackMetaData);
+      assertEquals(17,
+                   (long) lStackServer.getStackMetaData("A", 17)
+                                      .getIndex());
+      assertNull(lStackServer.getStackMetaData("A", 16));
+    }
+  }
+
+}
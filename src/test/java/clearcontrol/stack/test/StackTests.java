@@ -1,8 +1,10 @@
 package clearcontrol.stack.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -244,4 +246,59 @@ public class StackTests
                                           + 10);
 
   }
+
+  /**
+   * Tests that retained stacks only go back to their recycler once every
+   * holder has released them
+   */
+  @Test
+  public void testRetainRelease()
+  {
+    final RecyclerInterface<StackInterface, StackRequest> lRecycler =
+                                                                    new BasicRecycler<StackInterface, StackRequest>(new ContiguousOffHeapPlanarStackFactory(),
+                                                                                                                    cMaximumNumberOfObjects);
+
+    final OffHeapPlanarStack lStack =
+                                    OffHeapPlanarStack.getOrWaitWithRecycler(lRecycler,
+                                                                             10,
+                                                                             TimeUnit.SECONDS,
+                                                                             cSizeX,
+                                                                             cSizeY,
+                                                                             cSizeZ);
+    assertEquals(1, lRecycler.getNumberOfLiveObjects());
+
+    lStack.retain();
+    lStack.retain();
+    lStack.release();
+    lStack.release();
+    assertFalse(lStack.isReleased());
+    assertEquals(1, lRecycler.getNumberOfLiveObjects());
+
+    lStack.release();
+    assertTrue(lStack.isReleased());
+    assertEquals(0, lRecycler.getNumberOfLiveObjects());
+
+    // released stacks can't be retained:
+    try
+    {
+      lStack.retain();
+      fail();
+    }
+    catch (IllegalStateException e)
+    {
+    }
+
+    // a recycled stack starts with no other holder:
+    final OffHeapPlanarStack lRecycledStack =
+                                            OffHeapPlanarStack.getOrWaitWithRecycler(lRecycler,
+                                                                                     10,
+                                                                                     TimeUnit.SECONDS,
+                                                                                     cSizeX,
+                                                                                     cSizeY,
+                                                                                     cSizeZ);
+    lRecycledStack.release();
+    assertTrue(lRecycledStack.isReleased());
+
+    lRecycler.free();
+  }
 }